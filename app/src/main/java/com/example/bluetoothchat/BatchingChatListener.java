@@ -0,0 +1,81 @@
+package com.example.bluetoothchat;
+
+import android.os.Handler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * {@link HandlerChatListener} that decodes chat traffic on the chat
+ * threads and passes it to the UI through a {@link MessageBatcher}
+ * instead of one Handler message per chat message. Sent and received
+ * messages share the batcher, so they stay in the order they happened.
+ *
+ * Payloads are {@link MessageCodec} records; plain UTF-8 text from older
+ * peers is still shown, with the sender taken from the connection.
+ */
+public class BatchingChatListener extends HandlerChatListener {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MessageBatcher batcher;
+    private final String localName;
+    private volatile String remoteName;
+    // Reused by every decode, one per thread that calls back
+    private final MessageCodec.Record readRecord = new MessageCodec.Record();
+    private final MessageCodec.Record writeRecord = new MessageCodec.Record();
+
+    /**
+     * @param handler   receives everything except chat messages
+     * @param batcher   receives the chat messages
+     * @param localName sender shown on messages written by this device
+     */
+    public BatchingChatListener(Handler handler, MessageBatcher batcher, String localName) {
+        super(handler);
+        this.batcher = batcher;
+        this.localName = localName;
+    }
+
+    @Override
+    public void onDeviceConnected(String address, String name) {
+        remoteName = name;
+        super.onDeviceConnected(address, name);
+    }
+
+    @Override
+    public void onMessageRead(BufferPool.Lease lease) {
+        Message message;
+        synchronized (readRecord) {
+            message = decode(lease.data(), lease.length(), readRecord, remoteName);
+        }
+        // hand the buffer back so the reader can reuse it, but keep the
+        // message counted against the receive window until the UI has it
+        batcher.offer(message, lease.releaseBuffer());
+    }
+
+    @Override
+    public void onMessageWritten(byte[] payload) {
+        Message message;
+        synchronized (writeRecord) {
+            message = decode(payload, payload.length, writeRecord, localName);
+        }
+        batcher.offer(message);
+    }
+
+    private static Message decode(byte[] data, int length, MessageCodec.Record record,
+                                  String defaultSender) {
+        if (MessageCodec.isRecord(data, 0, length)
+                && MessageCodec.decode(ByteBuffer.wrap(data, 0, length), record)) {
+            String sender = record.getSender().length() > 0
+                    ? record.getSender().toString() : defaultSender;
+            if (record.getKind() == MessageCodec.KIND_IMAGE) {
+                byte[] thumbnail = Arrays.copyOf(record.getThumbnail(), Math.max(0, record.getThumbnailLength()));
+                return new Message(record.getId(), sender, record.getBody().toString(), thumbnail);
+            }
+            return new Message(sender, record.getBody().toString());
+        }
+        // A chat frame holds a whole message, so no character is ever split
+        // here and one String is the fastest decode
+        return new Message(defaultSender, new String(data, 0, length, UTF_8));
+    }
+}
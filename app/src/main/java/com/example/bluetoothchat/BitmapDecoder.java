@@ -0,0 +1,153 @@
+package com.example.bluetoothchat;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Decodes the images of image messages for {@link ImageLoader}: the
+ * thumbnail straight from the message, the full image from its file,
+ * subsampled to the size it is shown at so a photo from the camera does
+ * not take tens of megabytes.
+ *
+ * Also prepares an image picked for sending, see {@link #prepare}.
+ */
+public class BitmapDecoder implements ImageLoader.Decoder<Bitmap> {
+
+    // Longest side of a thumbnail, small enough to go in one chat frame
+    public static final int THUMBNAIL_SIZE = 64;
+    private static final int THUMBNAIL_QUALITY = 60;
+    // Longest side of a full image as sent
+    public static final int IMAGE_SIZE = 1280;
+    private static final int IMAGE_QUALITY = 85;
+
+    private final File imageDir;
+    private final int targetSize;
+
+    /**
+     * @param imageDir   where full images are, named by {@link Message#getImageName()}
+     * @param targetSize longest side full images are shown at, in pixels
+     */
+    public BitmapDecoder(File imageDir, int targetSize) {
+        this.imageDir = imageDir;
+        this.targetSize = targetSize;
+    }
+
+    @Override
+    public Bitmap decode(Message message, boolean full) throws IOException {
+        if (!full) {
+            byte[] thumbnail = message.getThumbnail();
+            Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+            if (bitmap == null) {
+                throw new IOException("Bad thumbnail");
+            }
+            return bitmap;
+        }
+        File file = new File(imageDir, message.getImageName());
+        if (!file.isFile()) {
+            // still on its way
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, targetSize);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (bitmap == null) {
+            throw new IOException("Cannot decode " + file);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public int sizeOf(Bitmap image) {
+        return image.getByteCount();
+    }
+
+    /**
+     * The largest power of two to divide the image by that still leaves
+     * its longest side at least {@code targetSize}.
+     */
+    static int sampleSize(int width, int height, int targetSize) {
+        int longest = Math.max(width, height);
+        int sample = 1;
+        while (longest / (sample * 2) >= targetSize) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    /**
+     * Scale the picked image down to {@link #IMAGE_SIZE} into {@code out}
+     * as a JPEG, the file that is sent after the message.
+     *
+     * @return the thumbnail for the message
+     */
+    public static byte[] prepare(ContentResolver resolver, Uri uri, File out) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = open(resolver, uri);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, IMAGE_SIZE);
+        options.inJustDecodeBounds = false;
+        in = open(resolver, uri);
+        Bitmap sampled;
+        try {
+            sampled = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (sampled == null) {
+            throw new IOException("Cannot decode " + uri);
+        }
+        Bitmap image = scale(sampled, IMAGE_SIZE);
+        OutputStream file = new FileOutputStream(out);
+        try {
+            image.compress(Bitmap.CompressFormat.JPEG, IMAGE_QUALITY, file);
+        } finally {
+            file.close();
+        }
+        Bitmap thumbnail = scale(image, THUMBNAIL_SIZE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, bytes);
+        thumbnail.recycle();
+        image.recycle();
+        sampled.recycle();
+        return bytes.toByteArray();
+    }
+
+    private static InputStream open(ContentResolver resolver, Uri uri) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        return in;
+    }
+
+    /**
+     * A copy no longer than {@code size} on its longest side, or a copy of
+     * the same size if it already is not.
+     */
+    private static Bitmap scale(Bitmap bitmap, int size) {
+        int longest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longest <= size) {
+            return bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        float ratio = (float) size / longest;
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * ratio)),
+                Math.max(1, Math.round(bitmap.getHeight() * ratio)), true);
+    }
+}
@@ -4,17 +4,24 @@ import android.app.ActionBar;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.graphics.Bitmap;
+import android.net.Uri;
 import android.os.Bundle;
 
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import android.os.Handler;
-import android.os.Message;
+import android.os.IBinder;
 import android.text.InputType;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -29,12 +36,16 @@ import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -47,18 +58,16 @@ public class BluetoothChatFragment extends Fragment {
     // Intent request codes
     private static final int REQUEST_CONNECT_DEVICE = 1;
     private static final int REQUEST_ENABLE_BT = 2;
+    private static final int REQUEST_PICK_IMAGE = 3;
+
 
     // Layout Views
-    private ListView mConversationView;
+    private RecyclerView mConversationView;
+    private LinearLayoutManager mConversationLayout;
     private EditText mOutEditText;
     private ImageButton mSendButton;
     private TextView mStatusBar;
     private Button mDisconnect;
-    /**
-     *ArrayList of messages
-     */
-    private  ArrayList<com.example.bluetoothchat.Message> messages;
-
     /**
      * Message Adapter
      */
@@ -68,67 +77,112 @@ public class BluetoothChatFragment extends Fragment {
      * Name of the connected device
      */
     private String mConnectedDeviceName = null;
+    // Fingerprint of the connection's keys, for the users to compare
+    private String mFingerprint = null;
+    /**
+     * Posts to the main thread
+     */
+    private final Handler mHandler = new Handler();
+    /**
+     * The service that owns the connection, null until bound
+     */
+    private ChatService mService = null;
+    private boolean mBound;
+    /**
+     * What the screen shows, kept by the service across rotations
+     */
+    private ConversationState mConversation = null;
+    /**
+     * When this screen was created, for the time until it shows the conversation
+     */
+    private final long mCreatedAt = System.nanoTime();
+    /**
+     * Whether the screen has been drawn once; the chat listens only after that
+     */
+    private boolean mFirstFrameDrawn;
+    /**
+     * Gets the connection and the conversation from the service, as they
+     * stand, and the changes to them while this screen is attached
+     */
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((ChatService.LocalBinder) binder).getService();
+            mChatService = mService.getChat();
+            mFileTransfer = mService.getFileTransfer();
+            mImageLoader = mService.getImageLoader();
+            mImageDir = mService.getImageDir();
+            mConversation = mService.getConversation();
+            messageAdapter.setImageLoader(mImageLoader);
+
+            // Nothing to connect or read again, the screen shows what the service kept
+            mConnectedDeviceName = mConversation.getDeviceName();
+            mFingerprint = mConversation.getFingerprint();
+            messageAdapter.clear();
+            messageAdapter.addAll(mConversation.getMessages());
+            showState(mConversation.getState());
+            mConversation.attach(mConversationClient);
+            mChatService.getMetrics().histogram(ChatService.METRIC_ATTACH).recordSince(mCreatedAt);
+            if (mFirstFrameDrawn) {
+                mService.startListening();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // same process, only when it crashed
+            mService = null;
+        }
+    };
     /**
-     * The Handler that gets information back from the BluetoothChatService
+     * Shows what changes in the conversation while this screen is attached
      */
-    private final Handler mHandler = new Handler() {
+    private final ConversationState.Client mConversationClient = new ConversationState.Client() {
+        @Override
+        public void onStateChanged(int state) {
+            showState(state);
+        }
+
         @Override
-        public void handleMessage(Message msg) {
+        public void onDeviceConnected(String name) {
+            // save the connected device's name
+            mConnectedDeviceName = name;
+            mFingerprint = null;
+            messageAdapter.clear();
+            messageAdapter.addAll(mConversation.getMessages());
             FragmentActivity activity = getActivity();
-            switch (msg.what) {
-                case Constants.MESSAGE_STATE_CHANGED:
-                    switch (msg.arg1) {
-                        case ChatUtils.STATE_CONNECTED:
-                            mOutEditText.setEnabled(true);
-                            mSendButton.setEnabled(true);
-                            mDisconnect.setVisibility(View.VISIBLE);
-                            setStatus("Connected to "+mConnectedDeviceName);
-                            messages.clear();
-                            messageAdapter.clear();
-                            break;
-                        case ChatUtils.STATE_CONNECTING:
-                            setStatus("Connecting...");
-                            break;
-                        case ChatUtils.STATE_LISTEN:
-                        case ChatUtils.STATE_NONE:
-                            mSendButton.setEnabled(false);
-                            mOutEditText.setEnabled(false);
-                            mDisconnect.setVisibility(View.GONE);
-                            setStatus("Not Connected");
-                            messages.clear();
-                            messageAdapter.clear();
-                            break;
-                    }
-                    break;
-                case Constants.MESSAGE_WRITE:
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    String writeMessage = new String(writeBuf);
-                    com.example.bluetoothchat.Message temp =  new com.example.bluetoothchat.Message(mBluetoothAdapter.getName(),writeMessage);
-                    messageAdapter.add(temp);
-
-                    break;
-                case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    com.example.bluetoothchat.Message temp1 =  new com.example.bluetoothchat.Message(mConnectedDeviceName,readMessage);
-                    messageAdapter.add(temp1);
-                    break;
-                case Constants.MESSAGE_DEVICE_NAME:
-                    // save the connected device's name
-                    mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
-                    if (null != activity) {
-                        Toast.makeText(activity, "Connected to "
-                                + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
-                    }
-                    break;
-                case Constants.MESSAGE_TOAST:
-                    if (null != activity) {
-                        Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
-                                Toast.LENGTH_SHORT).show();
-                    }
-                    break;
+            if (null != activity) {
+                Toast.makeText(activity, "Connected to "
+                        + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        @Override
+        public void onEncrypted(String fingerprint) {
+            mFingerprint = fingerprint;
+            showState(mConversation.getState());
+        }
+
+        @Override
+        public void onMessages(List<com.example.bluetoothchat.Message> batch) {
+            messageAdapter.addAll(batch);
+        }
+
+        @Override
+        public void onHistory(List<com.example.bluetoothchat.Message> older) {
+            messageAdapter.prepend(older);
+        }
+
+        @Override
+        public void onImageArrived(long id) {
+            messageAdapter.onImageArrived(id);
+        }
+
+        @Override
+        public void onToast(String text) {
+            FragmentActivity activity = getActivity();
+            if (null != activity) {
+                Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
             }
         }
     };
@@ -140,14 +194,31 @@ public class BluetoothChatFragment extends Fragment {
      * String buffer for outgoing messages
      */
     private StringBuffer mOutStringBuffer;
+
+    // Id of the next message sent, starting at a random value so ids from
+    // different runs of the app are unlikely to repeat
+    private long mNextMessageId = new Random().nextLong();
     /**
      * Local Bluetooth adapter
      */
     private BluetoothAdapter mBluetoothAdapter = null;
     /**
-     * Member object for the chat services
+     * Member object for the chat services, owned by mService
      */
     private ChatUtils mChatService = null;
+    /**
+     * Files sent and received over the chat connection
+     */
+    private FileTransfer mFileTransfer = null;
+    /**
+     * Decodes and caches the images of image messages for the conversation
+     */
+    private ImageLoader<Bitmap> mImageLoader = null;
+    private File mImageDir = null;
+    /**
+     * Scales images picked for sending
+     */
+    private ExecutorService mImagePrepareExecutor = null;
     /**
      * The action listener for the EditText widget, to listen for the return key
      */
@@ -168,8 +239,8 @@ public class BluetoothChatFragment extends Fragment {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
 
-        //get local bluetooth adapter
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        //get local bluetooth adapter, looked up once for the app
+        mBluetoothAdapter = LocalBluetooth.getAdapter();
 
         // If the adapter is null, then Bluetooth is not supported
         if (mBluetoothAdapter == null) {
@@ -190,16 +261,27 @@ public class BluetoothChatFragment extends Fragment {
             Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
             // Otherwise, setup the chat session
-        } else if (mChatService == null) {
+        } else if (!mBound) {
             setupChat();
         }
     }
 
     @Override
     public void onDestroy() {
-
-        if (mChatService != null) {
-            mChatService.stop();
+        if (mBound) {
+            if (mConversation != null) {
+                mConversation.detach(mConversationClient);
+            }
+            getContext().unbindService(mServiceConnection);
+            mBound = false;
+            // a rotation comes straight back to the service, leaving the screen ends the chat
+            FragmentActivity activity = getActivity();
+            if (activity == null || !activity.isChangingConfigurations()) {
+                getContext().stopService(new Intent(getContext(), ChatService.class));
+            }
+        }
+        if (mImagePrepareExecutor != null) {
+            mImagePrepareExecutor.shutdownNow();
         }
 
         super.onDestroy();
@@ -212,24 +294,33 @@ public class BluetoothChatFragment extends Fragment {
         // Performing this check in onResume() covers the case in which BT was
         // not enabled during onStart(), so we were paused to enable it...
         // onResume() will be called when ACTION_REQUEST_ENABLE activity returns.
-        if (mChatService != null) {
-            // Only if the state is STATE_NONE, do we know that we haven't started already
-            if (mChatService.getState() == ChatUtils.STATE_NONE) {
-                // Start the Bluetooth chat services
-                mChatService.start();
-            }
+        if (mService != null && mFirstFrameDrawn) {
+            // Only starts if not listening or connected already
+            mService.startListening();
         }
     }
 
     @Override
     public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
-        mConversationView = (ListView) view.findViewById(R.id.in);
+        mConversationView = (RecyclerView) view.findViewById(R.id.in);
         mOutEditText = (EditText) view.findViewById(R.id.edit_text_out);
         mSendButton = (ImageButton) view.findViewById(R.id.button_send);
         mStatusBar = (TextView) view.findViewById(R.id.status);
         mDisconnect = (Button) view.findViewById(R.id.disconnect_btn);
 
-        messages = new ArrayList<>();
+        // Registering the service record with the Bluetooth stack takes a
+        // while on the main thread, so the chat starts listening only once
+        // the screen is up
+        StartupTrace.afterNextFrame(new Runnable() {
+            @Override
+            public void run() {
+                mFirstFrameDrawn = true;
+                StartupTrace.get().mark(StartupTrace.METRIC_FIRST_FRAME);
+                if (mBound && mService != null) {
+                    mService.startListening();
+                }
+            }
+        });
     }
 
     @Override
@@ -250,11 +341,35 @@ public class BluetoothChatFragment extends Fragment {
 
         // Initialize the array adapter for the conversation thread
 
-        messageAdapter = new MessageAdapter(getContext(),messages);
+        messageAdapter = new MessageAdapter(getContext());
 
+        mConversationLayout = new LinearLayoutManager(getContext());
+        mConversationLayout.setStackFromEnd(true);
+        mConversationView.setLayoutManager(mConversationLayout);
+        mConversationView.setAdapter(messageAdapter);
 
+        mImagePrepareExecutor = Executors.newSingleThreadExecutor();
 
-        mConversationView.setAdapter(messageAdapter);
+        // Follow new messages at the bottom, older history is inserted above
+        // the visible rows and keeps them in place
+        messageAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                if (positionStart + itemCount == messageAdapter.getItemCount()) {
+                    mConversationView.scrollToPosition(messageAdapter.getItemCount() - 1);
+                }
+            }
+        });
+
+        // Page in older history when the conversation is scrolled to the top
+        mConversationView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (mConversation != null && mConversationLayout.findFirstVisibleItemPosition() == 0) {
+                    mConversation.loadOlderHistory(ConversationState.HISTORY_PAGE_SIZE);
+                }
+            }
+        });
 
         // Initialize the compose field with a listener for the return key
         mOutEditText.setOnEditorActionListener(mWriteListener);
@@ -273,8 +388,11 @@ public class BluetoothChatFragment extends Fragment {
             }
         });
 
-        // Initialize the BluetoothChatService to perform bluetooth connections
-        mChatService = new ChatUtils(getActivity(), mHandler);
+        // The service owns the connection and keeps it across rotations; it
+        // is started so that it stays while no screen is bound
+        Intent service = new Intent(getContext(), ChatService.class);
+        getContext().startService(service);
+        mBound = getContext().bindService(service, mServiceConnection, Context.BIND_AUTO_CREATE);
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -282,7 +400,7 @@ public class BluetoothChatFragment extends Fragment {
         mDisconnect.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                if (mChatService.getState() == ChatUtils.STATE_CONNECTED){
+                if (mChatService != null && mChatService.getState() == ChatUtils.STATE_CONNECTED){
                     mChatService.stop();
                     mChatService.start();
                 }
@@ -311,6 +429,16 @@ public class BluetoothChatFragment extends Fragment {
                 ensureDiscoverable();
                 return true;
             }
+            case R.id.search_history: {
+                askSearchQuery();
+                return true;
+            }
+            case R.id.send_image: {
+                Intent pickIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                pickIntent.setType("image/*");
+                startActivityForResult(pickIntent, REQUEST_PICK_IMAGE);
+                return true;
+            }
 
             /*case R.id.rename_device:{
                 AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
@@ -328,7 +456,7 @@ public class BluetoothChatFragment extends Fragment {
                     public void onClick(DialogInterface dialogInterface, int i) {
                         String newname = editText.getText().toString();
                         if (!newname.equals("")){
-                            mBluetoothAdapter.setName(newname);
+                            LocalBluetooth.setName(newname);
                         }
                     }
                 }).setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
@@ -352,15 +480,16 @@ public class BluetoothChatFragment extends Fragment {
      */
     private void sendMessage(String message) {
         // Check that we're actually connected before trying anything
-        if (mChatService.getState() != ChatUtils.STATE_CONNECTED) {
+        if (mChatService == null || mChatService.getState() != ChatUtils.STATE_CONNECTED) {
             Toast.makeText(getActivity(), "Not connected to any device.", Toast.LENGTH_SHORT).show();
             return;
         }
 
         // Check that there's actually something to send
         if (message.length() > 0) {
-            // Get the message bytes and tell the BluetoothChatService to write
-            byte[] send = message.getBytes();
+            // Encode the message as a record and tell the BluetoothChatService to write
+            byte[] send = MessageCodec.encode(mNextMessageId++, System.currentTimeMillis(),
+                    MessageCodec.KIND_TEXT, LocalBluetooth.getName(), message);
             mChatService.write(send);
 
             // Reset out string buffer to zero and clear the edit text field
@@ -369,6 +498,153 @@ public class BluetoothChatFragment extends Fragment {
         }
     }
 
+    /**
+     * Sends an image: first a message with a thumbnail, which the peer shows
+     * right away, then the full image as a file named after the message.
+     * The text being composed goes with it as the caption.
+     *
+     * @param uri the picked image
+     */
+    private void sendImage(final Uri uri) {
+        if (mChatService == null || mChatService.getState() != ChatUtils.STATE_CONNECTED) {
+            Toast.makeText(getActivity(), "Not connected to any device.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final long id = mNextMessageId++;
+        final String caption = mOutEditText.getText().toString();
+        mOutStringBuffer.setLength(0);
+        mOutEditText.setText(mOutStringBuffer);
+        final ContentResolver resolver = getContext().getContentResolver();
+        final File image = new File(mImageDir, com.example.bluetoothchat.Message.imageName(id));
+        mImagePrepareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // decoding and scaling a photo takes far too long for the main thread
+                final byte[] thumbnail;
+                try {
+                    thumbnail = BitmapDecoder.prepare(resolver, uri, image);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot prepare " + uri + ": " + e);
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mChatService.write(MessageCodec.encode(id, System.currentTimeMillis(),
+                                MessageCodec.KIND_IMAGE, LocalBluetooth.getName(), caption, thumbnail));
+                        try {
+                            mFileTransfer.send(image);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Cannot send " + image + ": " + e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show the connection state in the status bar and the compose field.
+     *
+     * @param state one of the {@code ChatUtils.STATE_*} values
+     */
+    private void showState(int state) {
+        switch (state) {
+            case ChatUtils.STATE_CONNECTED:
+                mOutEditText.setEnabled(true);
+                mSendButton.setEnabled(true);
+                mDisconnect.setVisibility(View.VISIBLE);
+                // the same code on both phones rules out a device in the middle
+                setStatus(mFingerprint != null
+                        ? "Connected to " + mConnectedDeviceName + ", code " + mFingerprint
+                        : "Connected to " + mConnectedDeviceName);
+                break;
+            case ChatUtils.STATE_CONNECTING:
+                setStatus("Connecting...");
+                break;
+            case ChatUtils.STATE_LISTEN:
+            case ChatUtils.STATE_NONE:
+                mSendButton.setEnabled(false);
+                mOutEditText.setEnabled(false);
+                mDisconnect.setVisibility(View.GONE);
+                setStatus("Not Connected");
+                break;
+        }
+    }
+
+    /**
+     * Ask for the words to look for in the open conversation.
+     */
+    private void askSearchQuery() {
+        if (mConversation == null || mConversation.getIndex() == null) {
+            Toast.makeText(getActivity(), "No conversation open.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final EditText editText = new EditText(getContext());
+        editText.setInputType(InputType.TYPE_CLASS_TEXT);
+        new AlertDialog.Builder(getContext())
+                .setTitle("Search history")
+                .setView(editText)
+                .setPositiveButton("Search", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        searchHistory(editText.getText().toString());
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Look the words up in the index and show the newest messages that
+     * contain them. The matches are read from the history off the main thread.
+     */
+    private void searchHistory(String query) {
+        if (mConversation == null || mConversation.getIndex() == null) {
+            return;
+        }
+        final MessageStore store = mConversation.getStore();
+        mConversation.getIndex().search(query, MessageIndex.DEFAULT_LIMIT, new MessageIndex.SearchCallback() {
+            @Override
+            public void onResults(final String query, long[] positions) {
+                final String[] lines = new String[positions.length];
+                try {
+                    // the newest match may still be waiting for the writer
+                    if (positions.length > 0) {
+                        store.awaitCommitted(positions[0] + 1);
+                    }
+                    for (int i = 0; i < positions.length; i++) {
+                        com.example.bluetoothchat.Message message = store.read(positions[i], 1).get(0);
+                        lines[i] = message.getSender() + ": " + message.getMessage();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot read search results: " + e);
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (store != mConversation.getStore() || getActivity() == null) {
+                            return;
+                        }
+                        if (lines.length == 0) {
+                            Toast.makeText(getActivity(), "No messages match \"" + query + "\"",
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        new AlertDialog.Builder(getContext())
+                                .setTitle(query)
+                                .setItems(lines, null)
+                                .setPositiveButton("Close", null)
+                                .show();
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Updates the status on the action bar.
      *
@@ -387,6 +663,12 @@ public class BluetoothChatFragment extends Fragment {
                 }
                 break;
 
+            case REQUEST_PICK_IMAGE:
+                if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                    sendImage(data.getData());
+                }
+                break;
+
             case REQUEST_ENABLE_BT:
                 // When the request to enable Bluetooth returns
                 if (resultCode == Activity.RESULT_OK) {
@@ -427,9 +709,9 @@ public class BluetoothChatFragment extends Fragment {
         // Get the device MAC address
         String address = data.getExtras()
                 .getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
-        // Get the BluetoothDevice object
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         // Attempt to connect to the device
-        mChatService.connect(device);
+        if (mChatService != null) {
+            mChatService.connect(address);
+        }
     }
 }
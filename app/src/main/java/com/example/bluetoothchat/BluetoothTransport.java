@@ -0,0 +1,95 @@
+package com.example.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link ChatTransport} over RFCOMM sockets, registered under the app's service record.
+ */
+public class BluetoothTransport implements ChatTransport {
+    private final BluetoothAdapter bluetoothAdapter;
+    private final String name;
+    private final UUID uuid;
+
+    public BluetoothTransport(BluetoothAdapter bluetoothAdapter, String name, UUID uuid) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.name = name;
+        this.uuid = uuid;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        final BluetoothServerSocket serverSocket =
+                bluetoothAdapter.listenUsingRfcommWithServiceRecord(name, uuid);
+        return new Server() {
+            @Override
+            public Connection accept() throws IOException {
+                return new RfcommConnection(serverSocket.accept(), false);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection createConnection(String address) throws IOException {
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        return new RfcommConnection(device.createRfcommSocketToServiceRecord(uuid), true);
+    }
+
+    private class RfcommConnection implements Connection {
+        private final BluetoothSocket socket;
+        private final boolean outgoing;
+
+        RfcommConnection(BluetoothSocket socket, boolean outgoing) {
+            this.socket = socket;
+            this.outgoing = outgoing;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (outgoing) {
+                // Always cancel discovery because it will slow down a connection
+                bluetoothAdapter.cancelDiscovery();
+                // This is a blocking call and will only return on a
+                // successful connection or an exception
+                socket.connect();
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return socket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
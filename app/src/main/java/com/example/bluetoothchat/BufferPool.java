@@ -0,0 +1,202 @@
+package com.example.bluetoothchat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of receive buffers handed out as {@link Lease}s.
+ *
+ * The reader thread fills a leased buffer and posts it to the UI, and the UI
+ * releases it once the bytes are decoded. Buffers are created lazily up to
+ * {@code maxBuffers}; after that {@link #acquire(int)} blocks until one is
+ * released, which stops the reader and pushes back on the sender.
+ */
+public final class BufferPool {
+
+    /**
+     * A buffer borrowed from the pool. {@link #release()} must be called
+     * exactly once, after which the buffer must no longer be touched.
+     */
+    public static final class Lease {
+        private final BufferPool pool;
+        private final byte[] data;
+        private final AtomicBoolean leased = new AtomicBoolean();
+        private int length;
+        // the receive window the message counts against until released, or null
+        private CreditWindow window;
+
+        private Lease(BufferPool pool, byte[] data) {
+            this.pool = pool;
+            this.data = data;
+        }
+
+        public byte[] data() {
+            return data;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public void setLength(int length) {
+            this.length = length;
+        }
+
+        /**
+         * Count this lease's bytes against {@code window} until it is released.
+         */
+        void setWindow(CreditWindow window) {
+            this.window = window;
+        }
+
+        /**
+         * Hand the buffer back but keep its bytes counted against the
+         * receive window, for a receiver that has decoded the message and
+         * still holds it. The returned credit must be released once the
+         * message has been consumed.
+         */
+        public Credit releaseBuffer() {
+            CreditWindow held = window;
+            Credit credit = held != null ? new Credit(held, length) : Credit.NONE;
+            window = null;
+            release();
+            return credit;
+        }
+
+        public void release() {
+            if (!leased.compareAndSet(true, false)) {
+                throw new IllegalStateException("Lease released twice");
+            }
+            CreditWindow held = window;
+            if (held != null) {
+                window = null;
+                held.onReleased(length);
+            }
+            // Oversized buffers are not pooled and are simply dropped
+            if (pool != null) {
+                pool.free.offer(this);
+            }
+        }
+    }
+
+    /**
+     * Bytes of a message that still count against the receive window after
+     * its buffer went back to the pool, see {@link Lease#releaseBuffer()}.
+     */
+    public static final class Credit {
+        // for a lease that was not counted against a window
+        static final Credit NONE = new Credit(null, 0);
+
+        private final AtomicBoolean held;
+        private final CreditWindow window;
+        private final int bytes;
+
+        private Credit(CreditWindow window, int bytes) {
+            this.held = new AtomicBoolean(window != null);
+            this.window = window;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Give the bytes back to the window. Only the first call counts.
+         */
+        public void release() {
+            if (held.compareAndSet(true, false)) {
+                window.onReleased(bytes);
+            }
+        }
+    }
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ArrayBlockingQueue<Lease> free;
+    private final AtomicInteger created = new AtomicInteger();
+
+    //statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong exhaustions = new AtomicLong();
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        free = new ArrayBlockingQueue<>(maxBuffers);
+    }
+
+    /**
+     * Borrow a buffer of at least {@code size} bytes, blocking while the pool
+     * is exhausted.
+     */
+    public Lease acquire(int size) throws InterruptedException {
+        return acquire(size, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a buffer of at least {@code size} bytes.
+     *
+     * @return the lease, or null if none became free within the timeout
+     */
+    public Lease acquire(int size, long timeout, TimeUnit unit) throws InterruptedException {
+        if (size > bufferSize) {
+            // Rare large payloads get a one-off buffer instead of growing the pool
+            misses.incrementAndGet();
+            return lease(new Lease(null, new byte[size]));
+        }
+
+        Lease lease = free.poll();
+        if (lease != null) {
+            hits.incrementAndGet();
+            return lease(lease);
+        }
+
+        while (true) {
+            int count = created.get();
+            if (count >= maxBuffers) {
+                break;
+            }
+            if (created.compareAndSet(count, count + 1)) {
+                misses.incrementAndGet();
+                return lease(new Lease(this, new byte[bufferSize]));
+            }
+        }
+
+        // Pool is dry, wait for the consumer to hand a buffer back
+        exhaustions.incrementAndGet();
+        lease = timeout == Long.MAX_VALUE ? free.take() : free.poll(timeout, unit);
+        return lease == null ? null : lease(lease);
+    }
+
+    private static Lease lease(Lease lease) {
+        lease.leased.set(true);
+        lease.length = 0;
+        lease.window = null;
+        return lease;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getAvailable() {
+        return free.size();
+    }
+
+    public int getCreated() {
+        return created.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getExhaustions() {
+        return exhaustions.get();
+    }
+}
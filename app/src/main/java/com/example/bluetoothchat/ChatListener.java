@@ -0,0 +1,52 @@
+package com.example.bluetoothchat;
+
+/**
+ * Receives everything {@link ChatUtils} reports about a session.
+ * Methods are called on the ChatUtils worker threads.
+ *
+ * @see HandlerChatListener
+ */
+public interface ChatListener {
+
+    /**
+     * The connection state changed to one of the {@code ChatUtils.STATE_*} values.
+     */
+    void onStateChanged(int state);
+
+    /**
+     * A peer connected.
+     *
+     * @param address its MAC address, which identifies it
+     * @param name    its name, for display; may be null and need not be unique
+     */
+    void onDeviceConnected(String address, String name);
+
+    /**
+     * The connection to the peer is encrypted. Both users see the same
+     * fingerprint unless a device in the middle set up the keys.
+     *
+     * @see SecureConnection#getFingerprint()
+     */
+    void onEncrypted(String fingerprint);
+
+    /**
+     * A message arrived. The lease must be released once it has been decoded.
+     */
+    void onMessageRead(BufferPool.Lease lease);
+
+    /**
+     * A message was accepted for sending. It is sent again after a lost
+     * frame or connection until the peer acknowledges it.
+     */
+    void onMessageWritten(byte[] payload);
+
+    /**
+     * The peer acknowledged a message reported by {@link #onMessageWritten}.
+     */
+    void onMessageDelivered(byte[] payload);
+
+    /**
+     * Something the user should be told about.
+     */
+    void onToast(String text);
+}
@@ -0,0 +1,295 @@
+package com.example.bluetoothchat;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Owns the chat connection, so it outlives the screen: a rotation
+ * recreates {@link BluetoothChatFragment}, which binds to the service
+ * again and shows the {@link ConversationState} as it stands instead of
+ * dropping the link and connecting again.
+ *
+ * The fragment starts the service and stops it when the screen is left
+ * for good. While connected it runs in the foreground, so the connection
+ * also survives the app going to the background.
+ */
+public class ChatService extends Service {
+    //for debugging
+    private static final String TAG = "ChatService";
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final String CHANNEL_ID = "connection";
+    // connection metrics, written when the service is stopped
+    private static final String METRICS_FILE = "metrics.json";
+    // Full images sent and received, named after their message
+    private static final String IMAGE_DIR = "images";
+    // Width of the image in a conversation row, see message_image.xml
+    private static final int IMAGE_WIDTH_DP = 200;
+
+    // From the creation of a chat screen until it shows the conversation
+    public static final String METRIC_ATTACH = "ui.attach";
+
+    /**
+     * Given to the fragment when it binds, in the same process.
+     */
+    public class LocalBinder extends Binder {
+        public ChatService getService() {
+            return ChatService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+
+    /**
+     * Gets the ChatUtils events on the main thread and keeps them in the conversation
+     */
+    private final Handler handler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case Constants.MESSAGE_STATE_CHANGED:
+                    updateForeground(msg.arg1);
+                    conversation.onStateChanged(msg.arg1);
+                    break;
+                case Constants.MESSAGE_DEVICE_NAME:
+                    conversation.onDeviceConnected(msg.getData().getString(Constants.DEVICE_ADDRESS),
+                            msg.getData().getString(Constants.DEVICE_NAME));
+                    updateForeground(conversation.getState());
+                    break;
+                case Constants.MESSAGE_FINGERPRINT:
+                    conversation.onEncrypted(msg.getData().getString(Constants.FINGERPRINT));
+                    break;
+                case Constants.MESSAGE_TOAST:
+                    conversation.onToast(msg.getData().getString(Constants.TOAST));
+                    break;
+            }
+        }
+    };
+
+    private final Executor mainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    /**
+     * Reports finished file transfers, called on the chat threads
+     */
+    private final FileTransfer.Listener fileTransferListener = new FileTransfer.Listener() {
+        @Override
+        public void onSendProgress(String name, long acknowledged, long size) {
+        }
+
+        @Override
+        public void onFileSent(String name, long size) {
+            toast("Sent " + name);
+        }
+
+        @Override
+        public void onReceiveProgress(String name, long received, long size) {
+        }
+
+        @Override
+        public void onFileReceived(File file) {
+            final Long imageId = com.example.bluetoothchat.Message.imageIdOf(file.getName());
+            if (imageId == null) {
+                toast("Received " + file.getName());
+                return;
+            }
+            // the full image of a message already shown with its thumbnail
+            File image = new File(imageDir, file.getName());
+            if (!file.renameTo(image)) {
+                Log.e(TAG, "Cannot move " + file + " to " + image);
+                return;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    imageLoader.invalidate(imageId);
+                    conversation.onImageArrived(imageId);
+                }
+            });
+        }
+
+        @Override
+        public void onTransferFailed(String name, IOException e) {
+            toast("Transfer of " + name + " failed");
+        }
+
+        private void toast(final String text) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    conversation.onToast(text);
+                }
+            });
+        }
+    };
+
+    //member variables
+    private ChatUtils chatUtils;
+    private FileTransfer fileTransfer;
+    private MessageBatcher batcher;
+    private ConversationState conversation;
+    private ImageLoader<Bitmap> imageLoader;
+    private ExecutorService imageDecodeExecutor;
+    private File imageDir;
+    private boolean foreground;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "onCreate()");
+        conversation = new ConversationState(new File(getFilesDir(), "history"), mainExecutor);
+
+        // Chat messages are decoded on the chat threads and added to the
+        // conversation in one batch per frame
+        batcher = MessageBatcher.onChoreographer(conversation);
+        chatUtils = new ChatUtils(this, new BatchingChatListener(handler, batcher, LocalBluetooth.getName()));
+        fileTransfer = new FileTransfer(new File(getFilesDir(), "received"), fileTransferListener);
+        chatUtils.setFileTransfer(fileTransfer);
+        // Come back by itself when the link drops, e.g. out of range for a moment
+        chatUtils.setAutoReconnect(true);
+
+        // Images are decoded on their own thread and cached by size, an
+        // eighth of the heap as for any bitmap cache
+        imageDir = new File(getFilesDir(), IMAGE_DIR);
+        imageDir.mkdirs();
+        imageDecodeExecutor = Executors.newSingleThreadExecutor();
+        int imageWidth = (int) (IMAGE_WIDTH_DP * getResources().getDisplayMetrics().density);
+        imageLoader = new ImageLoader<>(new BitmapDecoder(imageDir, imageWidth),
+                Runtime.getRuntime().maxMemory() / 8, imageDecodeExecutor, mainExecutor);
+        imageLoader.setMetrics(chatUtils.getMetrics());
+        StartupTrace.get().setMetrics(chatUtils.getMetrics());
+
+        // Listening registers the service record with the Bluetooth stack,
+        // which the screen asks for once it is on display, see startListening()
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // a killed service is not brought back, the next screen starts it
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy()");
+        chatUtils.stop();
+        dumpMetrics();
+        batcher.close();
+        conversation.close();
+        fileTransfer.close();
+        imageDecodeExecutor.shutdownNow();
+        handler.removeCallbacksAndMessages(null);
+        if (foreground) {
+            stopForeground(true);
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Listen for incoming connections, unless already listening or connected.
+     * Called on the main thread.
+     */
+    public void startListening() {
+        if (chatUtils.getState() == ChatUtils.STATE_NONE) {
+            chatUtils.start();
+            StartupTrace.get().mark(StartupTrace.METRIC_LISTENING);
+        }
+    }
+
+    public ChatUtils getChat() {
+        return chatUtils;
+    }
+
+    public FileTransfer getFileTransfer() {
+        return fileTransfer;
+    }
+
+    public ConversationState getConversation() {
+        return conversation;
+    }
+
+    public ImageLoader<Bitmap> getImageLoader() {
+        return imageLoader;
+    }
+
+    /**
+     * Where full images are kept, named by {@link com.example.bluetoothchat.Message#getImageName()}.
+     */
+    public File getImageDir() {
+        return imageDir;
+    }
+
+    /**
+     * Stay in the foreground while connected, with a notification that
+     * brings the chat back.
+     */
+    private void updateForeground(int state) {
+        if (state == ChatUtils.STATE_CONNECTED && !foreground) {
+            startForeground(NOTIFICATION_ID, buildNotification(conversation.getDeviceName()));
+            foreground = true;
+        } else if (state != ChatUtils.STATE_CONNECTED && foreground) {
+            stopForeground(true);
+            foreground = false;
+        }
+    }
+
+    private android.app.Notification buildNotification(String deviceName) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Connection",
+                    NotificationManager.IMPORTANCE_LOW);
+            ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).createNotificationChannel(channel);
+        }
+        Intent open = new Intent(this, MainActivity.class);
+        open.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_bluetooth_discoverable)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(deviceName != null ? "Connected to " + deviceName : "Connected")
+                .setContentIntent(PendingIntent.getActivity(this, 0, open, 0))
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * Save the connection metrics to app storage for offline analysis.
+     */
+    private void dumpMetrics() {
+        MetricsRegistry metrics = chatUtils.getMetrics();
+        Log.d(TAG, "metrics:\n" + metrics.toText());
+        Log.d(TAG, "images: " + imageLoader.getReport());
+        Log.d(TAG, "startup: " + StartupTrace.get());
+        try {
+            metrics.writeTo(new File(getFilesDir(), METRICS_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write metrics: " + e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.bluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The link layer used by {@link ChatUtils}: listen for peers, accept them,
+ * connect to them and hand out their streams.
+ *
+ * {@link BluetoothTransport} is what the app uses. {@link LoopbackTransport}
+ * and {@link TcpTransport} let the connection state machine and data path
+ * run on a plain JVM.
+ */
+public interface ChatTransport {
+
+    /**
+     * A listening endpoint. Closing it makes a blocked {@link #accept()} throw.
+     */
+    interface Server extends Closeable {
+        /**
+         * Block until a peer connects.
+         */
+        Connection accept() throws IOException;
+    }
+
+    /**
+     * One link to a peer. Closing it makes blocked reads, writes and
+     * {@link #connect()} calls throw.
+     */
+    interface Connection extends Closeable {
+        /**
+         * Block until the link is up. Accepted connections are already connected.
+         */
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getRemoteAddress();
+
+        String getRemoteName();
+    }
+
+    /**
+     * Start listening for incoming connections.
+     */
+    Server listen() throws IOException;
+
+    /**
+     * Create an outgoing connection to {@code address}. Nothing is sent
+     * until {@link Connection#connect()} is called.
+     */
+    Connection createConnection(String address) throws IOException;
+}
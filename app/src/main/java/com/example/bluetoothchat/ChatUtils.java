@@ -1,40 +1,70 @@
 package com.example.bluetoothchat;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ChatUtils {
     //member variables
     private Context context;
-    private Handler handler;
-    private int state;
-    private int newState;
+    private ChatListener listener;
+    //connection state, read without the lock
+    private final ConnectionState state;
 
-    //bluetooth adapter
-    private BluetoothAdapter bluetoothAdapter;
+    //link layer, RFCOMM unless a test supplies another one
+    private ChatTransport transport;
 
     //Connect thread
     private ConnectThread connectThread;
     //accept thread
     private AcceptThread acceptThread;
-    //connected thread
-    private ConnectedThread connectedThread;
+    //connected thread, volatile so write() can skip the lock
+    private volatile ConnectedThread connectedThread;
+    //receive buffers lent to the UI until it has decoded them
+    private final BufferPool receivePool = new BufferPool(1024, 64);
+    //file transfers carried next to the chat, null if not enabled
+    private FileTransfer fileTransfer;
+    //offer compressed chat on new connections
+    private boolean compression = true;
+    //encrypt new connections, see SecureConnection
+    private boolean encryption = true;
+    //chat bytes the peer may send ahead of the UI, 0 for no limit
+    private int receiveWindow = CreditWindow.DEFAULT_WINDOW_BYTES;
+    //sequence numbers, acks and retransmission of chat, kept across connections
+    private final ReliableDelivery delivery;
+    //latencies and traffic of every connection made by this service
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    //sends pings and reconnect attempts, its thread ends when idle
+    private final ScheduledThreadPoolExecutor timer;
+
+    //reconnect to the last peer when the connection is lost
+    private boolean autoReconnect;
+    //address of the last peer connected to, either way
+    private String lastAddress;
+    //when the connection was lost, 0 while not reconnecting
+    private long reconnectStartedAt;
+    private int reconnectAttempt;
+    private ScheduledFuture<?> reconnectTask;
+    private long reconnectBaseDelayMillis = RECONNECT_BASE_DELAY_MILLIS;
+    private long reconnectMaxDelayMillis = RECONNECT_MAX_DELAY_MILLIS;
+    private int maxReconnectAttempts = MAX_RECONNECT_ATTEMPTS;
+    private final Random random = new Random();
     //UUID for app
 
-    private final UUID APP_UUID = UUID.fromString("79433a70-ec23-4c09-8c39-70b6584c9e34");
-    private final String APP_NAME = "BluetoothChat";
+    private static final UUID APP_UUID = UUID.fromString("79433a70-ec23-4c09-8c39-70b6584c9e34");
+    private static final String APP_NAME = "BluetoothChat";
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE= 1;// we're doing nothing
@@ -42,6 +72,21 @@ public class ChatUtils {
     public static final int STATE_CONNECTING = 3;// now initiating an outgoing connection
     public static final int STATE_CONNECTED = 4; // now connected to a remote device
 
+    // Metric names, next to the ones of PeerSession and SendQueue
+    public static final String METRIC_CONNECT = "connect";
+    public static final String METRIC_CONNECT_FAILURES = "connect.failures";
+    public static final String METRIC_ACCEPT_FIRST_BYTE = "accept.firstByte";
+    public static final String METRIC_RECONNECT = "reconnect";
+    public static final String METRIC_RECONNECT_ATTEMPTS = "reconnect.attempts";
+
+    // How often the connected peer is pinged for the round-trip time
+    static final long PING_INTERVAL_MILLIS = 5000;
+
+    // Reconnect attempts wait a random time up to base * 2^attempt, capped
+    static final long RECONNECT_BASE_DELAY_MILLIS = 250;
+    static final long RECONNECT_MAX_DELAY_MILLIS = 15000;
+    static final int MAX_RECONNECT_ATTEMPTS = 12;
+
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
@@ -50,28 +95,211 @@ public class ChatUtils {
      * @param handler A Handler to send messages back to the UI Activity
      */
     public ChatUtils(Context context, Handler handler){
+        this(context, new HandlerChatListener(handler));
+    }
+
+    /**
+     * Constructor for a Bluetooth session reporting straight to a listener.
+     *
+     * @param context  The UI Activity Context
+     * @param listener Receives state changes and messages
+     */
+    public ChatUtils(Context context, ChatListener listener){
+        this(new BluetoothTransport(LocalBluetooth.getAdapter(), APP_NAME, APP_UUID),
+                listener);
         this.context = context;
-        this.handler = handler;
+    }
+
+    /**
+     * Constructor for a session over any transport, reporting straight to a listener.
+     *
+     * @param transport The link layer to listen and connect on
+     * @param listener  Receives state changes and messages
+     */
+    public ChatUtils(ChatTransport transport, ChatListener listener){
+        this.transport = transport;
+        this.listener = listener;
+
+        delivery = new ReliableDelivery(receivePool, new ReliableDelivery.Callback() {
+            @Override
+            public void onMessage(BufferPool.Lease lease) {
+                // Send the obtained bytes to the UI Activity
+                ChatUtils.this.listener.onMessageRead(lease);
+            }
+
+            @Override
+            public void onDelivered(byte[] payload) {
+                ChatUtils.this.listener.onMessageDelivered(payload);
+            }
+        });
+        delivery.setMetrics(metrics);
+
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ChatPing");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setKeepAliveTime(PING_INTERVAL_MILLIS * 2, TimeUnit.MILLISECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        timer.setRemoveOnCancelPolicy(true);
+
+        // The state changes under this object's lock; one thread reports the
+        // changes in order, without the lock, so a listener cannot block it
+        ThreadPoolExecutor reporter = new ThreadPoolExecutor(1, 1,
+                PING_INTERVAL_MILLIS * 2, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ChatState");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        reporter.allowCoreThreadTimeOut(true);
+        state = new ConnectionState(reporter);
+
+        // Give every state change to the listener so the UI Activity can update
+        state.addListener(new ConnectionState.Listener() {
+            @Override
+            public void onTransition(int from, int to) {
+                ChatUtils.this.listener.onStateChanged(to);
+            }
+        });
+    }
+
+    /**
+     * Pool of buffers carried by {@link Constants#MESSAGE_READ}. The receiver
+     * must call {@link BufferPool.Lease#release()} once it is done with one.
+     */
+    public BufferPool getReceivePool() {
+        return receivePool;
+    }
+
+    /**
+     * Carry file transfers on every connection from now on. Must be set
+     * before connecting.
+     */
+    public synchronized void setFileTransfer(FileTransfer fileTransfer) {
+        this.fileTransfer = fileTransfer;
+    }
+
+    /**
+     * Queue a file for the connected device. If the connection is lost the
+     * transfer resumes where it stopped once a device is connected again.
+     *
+     * @throws IllegalStateException if no {@link FileTransfer} was set
+     */
+    public void sendFile(File file) throws FileNotFoundException {
+        FileTransfer transfer;
+        synchronized (this) {
+            transfer = fileTransfer;
+        }
+        if (transfer == null) {
+            throw new IllegalStateException("File transfer not enabled");
+        }
+        transfer.send(file);
+    }
 
-        state = STATE_NONE;
-        newState = state;
-        //initaialize adapter
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    /**
+     * Latency histograms and traffic counters of every connection this
+     * service has made: connect time ({@link #METRIC_CONNECT}), time from
+     * accepting a peer to its first byte ({@link #METRIC_ACCEPT_FIRST_BYTE}),
+     * plus the metrics of {@link PeerSession#setMetrics}.
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reconnect by itself when the connection is lost, unless the peer
+     * disconnected on purpose. The service keeps listening and also dials
+     * the last peer with jittered exponential backoff, so whichever side
+     * gets through first restores the session. The time it took is
+     * recorded as {@link #METRIC_RECONNECT}. Off by default.
+     */
+    public synchronized void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+        if (!autoReconnect) {
+            stopReconnecting();
+        }
+    }
+
+    /**
+     * Change the reconnect backoff, for tests on fast transports.
+     */
+    synchronized void setReconnectBackoff(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        reconnectBaseDelayMillis = baseDelayMillis;
+        reconnectMaxDelayMillis = maxDelayMillis;
+        maxReconnectAttempts = maxAttempts;
+    }
+
+    /**
+     * Address of the last device connected to, in either direction, or null.
+     */
+    public synchronized String getLastAddress() {
+        return lastAddress;
+    }
+
+    /**
+     * Whether to offer compressed chat on new connections. Compression is
+     * used only if the peer offers it as well. On by default.
+     */
+    public synchronized void setCompressionEnabled(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Whether to encrypt new connections. Both sides must agree: an
+     * encrypting side drops a connection to a peer that does not. On by default.
+     */
+    public synchronized void setEncryptionEnabled(boolean encryption) {
+        this.encryption = encryption;
+    }
+
+    /**
+     * How many bytes of chat the peer may send before the UI has released
+     * them, see {@link CreditWindow}; 0 lets it send as fast as it can.
+     * Both sides must agree on whether to use a window. Applies to new
+     * connections. {@link CreditWindow#DEFAULT_WINDOW_BYTES} by default.
+     */
+    public synchronized void setReceiveWindow(int bytes) {
+        this.receiveWindow = bytes;
+    }
+
+    /**
+     * Chat sequencing and retransmission shared by every connection.
+     */
+    ReliableDelivery getDelivery() {
+        return delivery;
     }
 
     /**
      * Return the current connection state.
      */
-    public  synchronized int getState() {
-        return state;
+    public int getState() {
+        return state.get();
     }
 
-    private synchronized void updateUserInterfaceTitle(){
-        state = getState();
-        newState = state;
+    /**
+     * Also tell {@code stateListener} about every state change, in order,
+     * on a thread of its own that holds no lock of this service.
+     */
+    public void addStateListener(ConnectionState.Listener stateListener) {
+        state.addListener(stateListener);
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        handler.obtainMessage(Constants.MESSAGE_STATE_CHANGED,newState,-1).sendToTarget();
+    public void removeStateListener(ConnectionState.Listener stateListener) {
+        state.removeListener(stateListener);
+    }
+
+    /**
+     * Transitions refused by the state table, zero unless something is wrong.
+     */
+    long getRejectedTransitions() {
+        return state.getRejectedTransitions();
     }
 
 
@@ -88,30 +316,30 @@ public class ChatUtils {
             connectThread = null;
         }
 
-        // Start the thread to listen on a BluetoothServerSocket
-        if (acceptThread == null){
-            acceptThread = new AcceptThread();
-            acceptThread.start();
-        }
-
         // Cancel any thread currently running a connection
         if (connectedThread !=null){
             connectedThread.cancel();
             connectedThread = null;
+            // ended here unless it was lost already
+            state.compareAndSet(STATE_CONNECTED, STATE_NONE);
         }
 
-
-        //update UI title
-        updateUserInterfaceTitle();
+        // Start the thread to listen on the transport
+        if (acceptThread == null){
+            acceptThread = new AcceptThread();
+            acceptThread.start();
+        }
+        state.moveTo(STATE_LISTEN);
 
     }
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start the ConnectedThread to begin managing a connection
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param connection The connection that has been made
+     * @param acceptedAt When an incoming connection was accepted, 0 for outgoing ones
+     * @param from       The state the connection was made in
      */
-    private synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+    private synchronized void connected(ChatTransport.Connection connection, long acceptedAt, int from) {
 
         //cancel the thread that completed the connection
         if (connectThread != null) {
@@ -130,25 +358,40 @@ public class ChatUtils {
             acceptThread = null;
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        connectedThread = new ConnectedThread(socket);
-        connectedThread.start();
+        String address = connection.getRemoteAddress();
+        if (lastAddress != null && !lastAddress.equals(address)) {
+            // Messages for the last device cannot go to this one
+            int lost = delivery.reset();
+            if (lost > 0) {
+                sendToast(lost + " messages not delivered");
+            }
+        }
+        lastAddress = address;
+        if (reconnectStartedAt != 0) {
+            metrics.histogram(METRIC_RECONNECT).recordSince(reconnectStartedAt);
+            stopReconnecting();
+        }
+
+        // Create the thread to manage the connection and perform transmissions
+        // first, so a write() made as soon as the UI hears of the connection
+        // is queued on it
+        connectedThread = new ConnectedThread(connection, acceptedAt);
+
+        // Send the name of the connected device back to the UI Activity,
+        // before the first message from it can arrive
+        listener.onDeviceConnected(address, connection.getRemoteName());
 
-        // Send the name of the connected device back to the UI Activity
-        Message message = handler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        message.setData(bundle);
-        handler.sendMessage(message);
+        connectedThread.start();
 
-        // Update UI title
-        updateUserInterfaceTitle();
+        // Only now, so write() finds the new thread once it sees the state
+        moveFrom(from, STATE_CONNECTED);
     }
 
     /**
      * stop all threads
      */
     public synchronized void stop(){
+        stopReconnecting();
         if (connectThread!=null){
             connectThread.cancel();
             connectThread = null;
@@ -163,21 +406,20 @@ public class ChatUtils {
             connectedThread.cancel();
             connectedThread = null;
         }
-        state = STATE_NONE;
-
-        //update UI title
-        updateUserInterfaceTitle();
+        state.moveTo(STATE_NONE);
 
     }
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
      *
-     * @param device The BluetoothDevice to connect
+     * @param address The transport address of the device, its MAC address for Bluetooth
      */
-    public synchronized void connect(BluetoothDevice device){
+    public synchronized void connect(String address){
+        // the user picked a device, stop dialing the last one
+        stopReconnecting();
 
         //cancel any thread attempting to make a connection
-        if(state == STATE_CONNECTING){
+        if (connectThread != null) {
             connectThread.cancel();
             connectThread = null;
         }
@@ -191,48 +433,60 @@ public class ChatUtils {
         if (connectedThread != null){
             connectedThread.cancel();
             connectedThread = null;
+            state.compareAndSet(STATE_CONNECTED, STATE_NONE);
         }
-        connectThread = new ConnectThread(device);
+        connectThread = new ConnectThread(address);
         connectThread.start();
-        updateUserInterfaceTitle();
 
     }
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Send a message to the connected device. It is numbered and kept until
+     * the peer acknowledges it, and sent again on the next connection if
+     * this one drops first. It is reported with {@link Constants#MESSAGE_WRITE}
+     * once accepted.
      *
      * @param buffer The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see ReliableDelivery#send(byte[])
      */
     public void write(byte[] buffer) {
-        // Create temporary object
-        ConnectedThread connThread;
-
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (state != STATE_CONNECTED) {
-                return;
-            }
-
-            connThread = connectedThread;
+        // No lock needed, connectedThread is only set while connected
+        if (connectedThread == null) {
+            return;
         }
-        // Perform the write unsynchronized
-        connThread.write(buffer);
+        if (!delivery.send(buffer)) {
+            sendToast("Too many messages waiting to be sent");
+            return;
+        }
+        // Share the sent message back to the UI Activity
+        listener.onMessageWritten(buffer);
+    }
+
+    /**
+     * Show a short message in the UI Activity.
+     */
+    private void sendToast(String text) {
+        listener.onToast(text);
     }
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
+     *
+     * @param thread The ConnectThread that failed
      */
-    private void connectionFailed(){
-        Message message = handler.obtainMessage(Constants.MESSAGE_TOAST);
-        //create a bundle to put data into the message to pass it to the main activity
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST,"Can't connect to the device");
-
-        message.setData(bundle);
-        handler.sendMessage(message);
+    private synchronized void connectionFailed(ConnectThread thread){
+        if (thread != connectThread) {
+            // Cancelled: the service was stopped or another connection won
+            return;
+        }
+        connectThread = null;
+        if (reconnectStartedAt != 0) {
+            // Keep listening and try again later
+            ChatUtils.this.start();
+            scheduleReconnect();
+            return;
+        }
+        sendToast("Can't connect to the device");
 
-        state = STATE_NONE;
-        // Update UI title
-        updateUserInterfaceTitle();
+        moveFrom(STATE_CONNECTING, STATE_NONE);
 
         //start chat utils again to start listening again
         ChatUtils.this.start();
@@ -240,25 +494,87 @@ public class ChatUtils {
     }
     /**
      * * Indicate that the connection was lost and notify the UI Activity .
+     *
+     * @param thread   The ConnectedThread whose connection ended
+     * @param peerLeft Whether the peer disconnected on purpose
      */
-    private void connectionLost(){
+    private synchronized void connectionLost(ConnectedThread thread, boolean peerLeft){
+        if (thread != connectedThread) {
+            // Already replaced or stopped
+            return;
+        }
         // Send a failure message back to the Activity
-        Message message = handler.obtainMessage(Constants.MESSAGE_TOAST);
+        sendToast("Disconnected");
 
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Disconnected");
-        message.setData(bundle);
-        handler.sendMessage(message);
-
-        state = STATE_NONE;
+        moveFrom(STATE_CONNECTED, STATE_NONE);
 
         // Start the service over to restart listening mode
         ChatUtils.this.start();
-        // Update UI title
-        updateUserInterfaceTitle();
 
-        // Start the service over to restart listening mode
-        ChatUtils.this.start();
+        if (autoReconnect && !peerLeft && lastAddress != null) {
+            reconnectStartedAt = System.nanoTime();
+            reconnectAttempt = 0;
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Move from the state the caller knows it is in. Every move happens
+     * under this object's lock, so a different state means a bug here.
+     */
+    private void moveFrom(int expected, int to) {
+        if (!state.compareAndSet(expected, to)) {
+            Log.w("ChatUtils", "Expected state " + expected + " before " + to + ", was " + state.get());
+        }
+    }
+
+    /**
+     * Dial the last peer after the next backoff delay, or give up after
+     * too many attempts and only keep listening.
+     */
+    private synchronized void scheduleReconnect() {
+        if (reconnectAttempt >= maxReconnectAttempts) {
+            stopReconnecting();
+            sendToast("Can't reconnect to the device");
+            return;
+        }
+        long delay = backoffMillis(reconnectAttempt++, reconnectBaseDelayMillis,
+                reconnectMaxDelayMillis, random);
+        reconnectTask = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconnect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * "Full jitter" backoff: a random delay up to base * 2^attempt, capped.
+     * Spreading the attempts out keeps two peers that lost each other at
+     * the same moment from dialing each other in lockstep.
+     */
+    static long backoffMillis(int attempt, long baseMillis, long maxMillis, Random random) {
+        long ceiling = Math.min(maxMillis, baseMillis << Math.min(attempt, 30));
+        return (long) (random.nextDouble() * (ceiling + 1));
+    }
+
+    private synchronized void reconnect() {
+        reconnectTask = null;
+        if (reconnectStartedAt == 0 || state.get() == STATE_CONNECTED || connectThread != null) {
+            return;
+        }
+        metrics.counter(METRIC_RECONNECT_ATTEMPTS).incrementAndGet();
+        // Leave the accept thread running, whichever side gets through first wins
+        connectThread = new ConnectThread(lastAddress);
+        connectThread.start();
+    }
+
+    private synchronized void stopReconnecting() {
+        reconnectStartedAt = 0;
+        if (reconnectTask != null) {
+            reconnectTask.cancel(false);
+            reconnectTask = null;
+        }
     }
 
 
@@ -271,25 +587,29 @@ public class ChatUtils {
      */
     private class AcceptThread extends Thread{
         //member variables
-        private BluetoothServerSocket serverSocket;
+        private ChatTransport.Server serverSocket;
 
         public AcceptThread(){
-            BluetoothServerSocket temp = null;
+            ChatTransport.Server temp = null;
             try {
-                temp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(APP_NAME,APP_UUID);
+                temp = transport.listen();
             } catch (IOException e) {
                 Log.e("Accept ->constructor",e.toString());
             }
             serverSocket = temp;
-            state = STATE_LISTEN;
         }
 
         public void run(){
 
-            BluetoothSocket socket = null;
+            ChatTransport.Connection socket = null;
+            if (serverSocket == null) {
+                return;
+            }
 
+            long acceptedAt = 0;
             try {
                 socket = serverSocket.accept();
+                acceptedAt = System.nanoTime();
             } catch (IOException e) {
                 Log.e("Accept->run",e.toString());
                 try {
@@ -299,12 +619,13 @@ public class ChatUtils {
                 }
             }
             if (socket != null) {
-                synchronized (this) {
-                    switch (state) {
+                synchronized (ChatUtils.this) {
+                    int current = state.get();
+                    switch (current) {
                         case STATE_LISTEN:
                         case STATE_CONNECTING:
                             // Situation normal. Start the connected thread.
-                            connected(socket,socket.getRemoteDevice());
+                            connected(socket, acceptedAt, current);
                             break;
                         case STATE_NONE:
                         case STATE_CONNECTED:
@@ -321,6 +642,9 @@ public class ChatUtils {
 
         }
         public void cancel(){
+            if (serverSocket == null) {
+                return;
+            }
             try {
                 serverSocket.close();
             } catch (IOException e) {
@@ -338,62 +662,73 @@ public class ChatUtils {
     private class ConnectThread extends Thread{
 
         //member variables
-        private final BluetoothSocket bluetoothSocket;
-        private final BluetoothDevice bluetoothDevice;
-
-        public ConnectThread(BluetoothDevice bluetoothDevice){
-            this.bluetoothDevice = bluetoothDevice;
+        private final ChatTransport.Connection socket;
 
+        public ConnectThread(String address){
             //setting up the socket
-            BluetoothSocket temp = null;
+            ChatTransport.Connection temp = null;
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            // Get a connection for the given address
             try {
-                temp = bluetoothDevice.createRfcommSocketToServiceRecord(APP_UUID);
+                temp = transport.createConnection(address);
             } catch (IOException e) {
                 Log.e("Connect -> constructor",e.toString());
             }
 
-            bluetoothSocket = temp;
-            state = STATE_CONNECTING;
+            socket = temp;
+            state.moveTo(STATE_CONNECTING);
         }
         public void run(){
-            // Always cancel discovery because it will slow down a connection
-            bluetoothAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the socket
+            long start = System.nanoTime();
             try {
+                if (socket == null) {
+                    throw new IOException("No connection to the device");
+                }
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
-                bluetoothSocket.connect();
+                socket.connect();
             } catch (IOException e) {
                 // Close the socket
                 Log.e("Connect -> run",e.toString());
+                metrics.counter(METRIC_CONNECT_FAILURES).incrementAndGet();
 
                 try {
-                    bluetoothSocket.close();
+                    if (socket != null) {
+                        socket.close();
+                    }
                 } catch (IOException ex) {
                     Log.e("Connect -> closesocket",ex.toString());
                 }
 
-                connectionFailed();
+                connectionFailed(this);
                 return;
             }
 
-            // Reset the ConnectThread because we're done
+            metrics.histogram(METRIC_CONNECT).recordSince(start);
+
             synchronized (ChatUtils.this){
+                if (connectThread != this) {
+                    // Cancelled after connecting, e.g. the peer got through to
+                    // the accept thread first
+                    cancel();
+                    return;
+                }
+                // Reset the ConnectThread because we're done
                 connectThread = null;
-            }
 
-            // Start the connected thread
-            connected(bluetoothSocket,bluetoothDevice);
+                // Start the connected thread
+                connected(socket, 0, STATE_CONNECTING);
+            }
         }
 
         public void cancel(){
             //close the socket
+            if (socket == null) {
+                return;
+            }
             try {
-                bluetoothSocket.close();
+                socket.close();
             }catch (IOException e){
                 Log.e("Connect -> cancel",e.toString());
             }
@@ -404,67 +739,109 @@ public class ChatUtils {
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      */
-    private class ConnectedThread extends Thread{
+    private class ConnectedThread extends Thread implements PeerSession.Listener {
         //member variables
-        private final BluetoothSocket socket;
-        private final InputStream inputStream;
-        private final OutputStream outputStream;
+        private final ChatTransport.Connection socket;
+        //encryption layer under the session, null if not encrypting
+        private final SecureConnection secure;
+        //reader loop and send queue for the connection
+        private final PeerSession session;
 
-        public ConnectedThread(BluetoothSocket socket){
-            this.socket = socket;
+        public ConnectedThread(ChatTransport.Connection socket, long acceptedAt){
+            // The keys are agreed on by run(), the session's streams wait for them
+            secure = encryption ? new SecureConnection(socket) : null;
+            this.socket = secure != null ? secure : socket;
 
-            InputStream tempIn = null;
-            OutputStream tempOut = null;
+            PeerSession temp = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the connection's input and output streams
             try{
-                tempIn = socket.getInputStream();
-                tempOut = socket.getOutputStream();
+                temp = new PeerSession(this.socket, receivePool, this);
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            inputStream = tempIn;
-            outputStream = tempOut;
-            state = STATE_CONNECTED;
+            session = temp;
+            if (session != null) {
+                session.setCompressionOffered(compression);
+                if (receiveWindow > 0) {
+                    session.setFlowControl(receiveWindow);
+                }
+                session.setMetrics(metrics);
+                if (acceptedAt != 0) {
+                    session.recordFirstByte(metrics.histogram(METRIC_ACCEPT_FIRST_BYTE), acceptedAt);
+                }
+                session.startPings(timer, PING_INTERVAL_MILLIS);
+                delivery.attach(session, timer);
+                if (fileTransfer != null) {
+                    fileTransfer.attach(session);
+                }
+            }
         }
 
         public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
-            // Keep listening to the InputStream while connected
-            while (state == STATE_CONNECTED) {
+            if (session == null) {
+                connectionLost(this, false);
+                return;
+            }
+            if (secure != null) {
                 try {
-                    // Read from the InputStream
-                    bytes = inputStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    handler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
+                    secure.handshake();
+                    listener.onEncrypted(secure.getFingerprint());
                 } catch (IOException e) {
-                    e.printStackTrace();
-                    connectionLost();
-                    break;
+                    Log.e("Connected -> run", "Secure handshake failed: " + e);
+                    if (!session.isClosed()) {
+                        sendToast("Secure connection failed");
+                        session.close();
+                        detach();
+                        connectionLost(this, false);
+                    }
+                    return;
                 }
             }
+            // Keep listening to the InputStream while connected
+            session.run();
         }
 
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer){
-            try {
-                outputStream.write(buffer);
+        @Override
+        public void onMessage(PeerSession session, BufferPool.Lease lease) {
+            // Unsequenced chat from a peer that does not number its messages
+            listener.onMessageRead(lease);
+        }
 
-                // Share the sent message back to the UI Activity
-                handler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        @Override
+        public void onClosed(PeerSession session, IOException cause) {
+            detach();
+            connectionLost(this, session.hasPeerLeft());
+        }
+
+        @Override
+        public void onSent(PeerSession session, byte[] payload) {
+            // Chat goes out as sequenced frames, reported by ReliableDelivery
+        }
+
+        @Override
+        public void onSendFailed(PeerSession session, byte[] payload, IOException e) {
+            // Sequenced chat is sent again on the next connection
+        }
 
+        private void detach() {
+            // unacknowledged messages wait for the next connection
+            delivery.detach(session);
+            synchronized (ChatUtils.this) {
+                if (fileTransfer != null) {
+                    // the transfer resumes on the next connection
+                    fileTransfer.detach(session);
+                }
+            }
         }
 
         public void cancel(){
+            if (session != null) {
+                detach();
+                // Tell the peer, so it does not try to reconnect
+                session.disconnect();
+                return;
+            }
             try {
                 socket.close();
             } catch (IOException e) {
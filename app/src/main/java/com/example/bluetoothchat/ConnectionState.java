@@ -0,0 +1,177 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection state of {@link ChatUtils}, held in an atomic so it can be
+ * read from any thread without a lock.
+ *
+ * Every change is a compare-and-set checked against a fixed transition
+ * table; a move the table does not allow is refused and counted. After a
+ * change the listeners are told through the reporting executor, by default
+ * on the thread that made it. An owner that changes the state under its
+ * own lock passes a serial executor instead, so the listeners run outside
+ * that lock and hear of the changes in the order they were made.
+ */
+public final class ConnectionState {
+    private static final String TAG = "ConnectionState";
+
+    /**
+     * Told about every accepted transition, through the reporting executor.
+     */
+    public interface Listener {
+        void onTransition(int from, int to);
+    }
+
+    // TRANSITIONS[from][to], indexed by the ChatUtils.STATE_* constants
+    private static final boolean[][] TRANSITIONS = new boolean[ChatUtils.STATE_CONNECTED + 1][];
+
+    static {
+        // started listening or dialing
+        boolean[] none = allow(ChatUtils.STATE_LISTEN, ChatUtils.STATE_CONNECTING);
+        // accepted a peer, started dialing, or stopped
+        boolean[] listen = allow(ChatUtils.STATE_NONE, ChatUtils.STATE_CONNECTING, ChatUtils.STATE_CONNECTED);
+        // connected, failed, or cancelled back to listening
+        boolean[] connecting = allow(ChatUtils.STATE_NONE, ChatUtils.STATE_LISTEN, ChatUtils.STATE_CONNECTED);
+        // lost or ended; listening or dialing again starts from NONE
+        boolean[] connected = allow(ChatUtils.STATE_NONE);
+        TRANSITIONS[ChatUtils.STATE_NONE] = none;
+        TRANSITIONS[ChatUtils.STATE_LISTEN] = listen;
+        TRANSITIONS[ChatUtils.STATE_CONNECTING] = connecting;
+        TRANSITIONS[ChatUtils.STATE_CONNECTED] = connected;
+    }
+
+    private static boolean[] allow(int... targets) {
+        boolean[] row = new boolean[ChatUtils.STATE_CONNECTED + 1];
+        for (int target : targets) {
+            row[target] = true;
+        }
+        return row;
+    }
+
+    private final AtomicInteger state = new AtomicInteger(ChatUtils.STATE_NONE);
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong transitions = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Executor reporter;
+
+    /**
+     * A state whose listeners are told on the thread that made the change.
+     */
+    public ConnectionState() {
+        this(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * A state whose listeners are told through {@code reporter}.
+     */
+    public ConnectionState(Executor reporter) {
+        this.reporter = reporter;
+    }
+
+    /**
+     * Whether the table allows moving from {@code from} to a different state {@code to}.
+     */
+    public static boolean isAllowed(int from, int to) {
+        return from >= ChatUtils.STATE_NONE && from <= ChatUtils.STATE_CONNECTED
+                && to >= ChatUtils.STATE_NONE && to <= ChatUtils.STATE_CONNECTED
+                && TRANSITIONS[from][to];
+    }
+
+    public int get() {
+        return state.get();
+    }
+
+    /**
+     * Move to {@code to} from whatever the state is now. Staying in the
+     * same state is not a transition and reports nothing.
+     *
+     * @return false if the table does not allow the move
+     */
+    public boolean moveTo(int to) {
+        while (true) {
+            int from = state.get();
+            if (from == to) {
+                return true;
+            }
+            if (!isAllowed(from, to)) {
+                reject(from, to);
+                return false;
+            }
+            if (state.compareAndSet(from, to)) {
+                changed(from, to);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move from {@code expect} to {@code to} only if the state is still {@code expect}.
+     *
+     * @return false if the state was different or the table does not allow the move
+     */
+    public boolean compareAndSet(int expect, int to) {
+        if (expect == to) {
+            return state.get() == expect;
+        }
+        if (!isAllowed(expect, to)) {
+            reject(expect, to);
+            return false;
+        }
+        if (!state.compareAndSet(expect, to)) {
+            return false;
+        }
+        changed(expect, to);
+        return true;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Number of accepted transitions so far.
+     */
+    public long getTransitions() {
+        return transitions.get();
+    }
+
+    /**
+     * Number of moves refused by the transition table. Non-zero means a bug
+     * in the caller.
+     */
+    public long getRejectedTransitions() {
+        return rejected.get();
+    }
+
+    private void changed(final int from, final int to) {
+        transitions.incrementAndGet();
+        reporter.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) {
+                    listener.onTransition(from, to);
+                }
+            }
+        });
+    }
+
+    private void reject(int from, int to) {
+        rejected.incrementAndGet();
+        Log.w(TAG, "Refused transition " + from + " -> " + to);
+    }
+}
@@ -0,0 +1,339 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Everything the chat screen shows, kept by {@link ChatService} for as
+ * long as the connection lives: the connection state, the peer, the
+ * messages shown and the open conversation's history and index.
+ *
+ * The screen attaches while it is on display and detaches when it goes,
+ * on a rotation for instance. While detached, messages keep arriving and
+ * are written to the history as before; a screen that attaches reads the
+ * state as it stands instead of connecting and loading the history again.
+ * The service can outlive many screens, so while none is attached only the
+ * last {@link #MAX_SHOWN} messages are kept in memory; the new screen
+ * pages older ones back in from the history as the user scrolls up.
+ *
+ * All methods are called on the main thread.
+ */
+public class ConversationState implements MessageBatcher.Sink {
+    private static final String TAG = "ConversationState";
+
+    // Messages read from the history per page
+    public static final int HISTORY_PAGE_SIZE = 50;
+    // Messages kept while no screen is attached, older ones are read again from the history
+    public static final int MAX_SHOWN = 4 * HISTORY_PAGE_SIZE;
+
+    /**
+     * The attached screen. Called on the main thread.
+     */
+    public interface Client {
+        /**
+         * The connection state changed to one of the {@code ChatUtils.STATE_*} values.
+         */
+        void onStateChanged(int state);
+
+        /**
+         * A peer connected. If it is another one, its conversation has
+         * replaced the messages shown; read them again.
+         */
+        void onDeviceConnected(String name);
+
+        /**
+         * The connection is encrypted; show the fingerprint for the users to compare.
+         */
+        void onEncrypted(String fingerprint);
+
+        /**
+         * Messages to add at the bottom.
+         */
+        void onMessages(List<Message> batch);
+
+        /**
+         * Older messages from the history to add at the top.
+         */
+        void onHistory(List<Message> older);
+
+        /**
+         * The full image of message {@code id} has been received.
+         */
+        void onImageArrived(long id);
+
+        void onToast(String text);
+    }
+
+    private final File historyDir;
+    private final Executor mainExecutor;
+
+    //member variables
+    private int state = ChatUtils.STATE_NONE;
+    private String deviceName;
+    //of the connection's keys, null until it is encrypted
+    private String fingerprint;
+    //what the conversation list shows, oldest first
+    private final List<Message> messages = new ArrayList<>();
+    private Client client;
+
+    //the open conversation, null until a peer connects
+    private String conversationAddress;
+    private MessageStore store;
+    private MessageIndex index;
+    //position in the history of the first message shown
+    private long historyStart;
+    private boolean loadingHistory;
+
+    /**
+     * @param historyDir   holds one history directory per peer
+     * @param mainExecutor runs code on the main thread, for history pages read in the background
+     */
+    public ConversationState(File historyDir, Executor mainExecutor) {
+        this.historyDir = historyDir;
+        this.mainExecutor = mainExecutor;
+    }
+
+    /**
+     * Start telling {@code client} about changes. It reads the state as
+     * it stands through the getters first.
+     */
+    public void attach(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * Stop telling {@code client} about changes, if it is the one attached.
+     */
+    public void detach(Client client) {
+        if (this.client == client) {
+            this.client = null;
+            trim();
+        }
+    }
+
+    public boolean isAttached() {
+        return client != null;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * @return the connected peer, or the last one, or null
+     */
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    /**
+     * @return the fingerprint of the connection's keys, or null if it is not encrypted (yet)
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the messages shown, oldest first
+     */
+    public List<Message> getMessages() {
+        return Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * @return the history of the open conversation, or null
+     */
+    public MessageStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the index of the open conversation's history, or null
+     */
+    public MessageIndex getIndex() {
+        return index;
+    }
+
+    public void onStateChanged(int state) {
+        this.state = state;
+        if (client != null) {
+            client.onStateChanged(state);
+        }
+    }
+
+    /**
+     * @param address the peer's MAC address, which its history is kept under
+     * @param name    the peer's name, shown to the user
+     */
+    public void onDeviceConnected(String address, String name) {
+        deviceName = name;
+        // a new connection, with keys of its own
+        fingerprint = null;
+        openConversation(address);
+        if (client != null) {
+            client.onDeviceConnected(name);
+        }
+    }
+
+    public void onEncrypted(String fingerprint) {
+        this.fingerprint = fingerprint;
+        if (client != null) {
+            client.onEncrypted(fingerprint);
+        }
+    }
+
+    public void onToast(String text) {
+        // nobody to show it to while detached
+        if (client != null) {
+            client.onToast(text);
+        }
+    }
+
+    public void onImageArrived(long id) {
+        if (client != null) {
+            client.onImageArrived(id);
+        }
+    }
+
+    @Override
+    public void onBatch(List<Message> batch) {
+        messages.addAll(batch);
+        for (Message message : batch) {
+            if (store == null) {
+                break;
+            }
+            try {
+                long position = store.append(message);
+                index.add(position, message.getMessage());
+            } catch (IOException e) {
+                // still shown, only not kept
+                Log.e(TAG, "Cannot write history: " + e);
+                break;
+            }
+        }
+        if (client != null) {
+            client.onMessages(batch);
+        }
+        trim();
+    }
+
+    /**
+     * Drop the oldest messages beyond {@link #MAX_SHOWN} while no screen is
+     * attached. An attached screen holds every message it shows anyway,
+     * and would see the rows it is reading go.
+     */
+    private void trim() {
+        int excess = messages.size() - MAX_SHOWN;
+        if (client != null || excess <= 0) {
+            return;
+        }
+        messages.subList(0, excess).clear();
+        // they stay in the history, where loadOlderHistory reads them again
+        historyStart += excess;
+        if (store != null) {
+            historyStart = Math.min(historyStart, store.appendedCount());
+        }
+    }
+
+    /**
+     * Show the history of a conversation, opening its log if it is not the
+     * one already shown. Only the last page is read; older pages are read
+     * as the user scrolls up.
+     *
+     * Histories are kept by address, since names repeat and change.
+     *
+     * @param address address of the connected device
+     */
+    private void openConversation(String address) {
+        if (address == null || address.equals(conversationAddress)) {
+            return;
+        }
+        close();
+        conversationAddress = address;
+        messages.clear();
+        File dir = new File(historyDir, fileName(address));
+        try {
+            store = new MessageStore(dir);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open history: " + e);
+            return;
+        }
+        // The index is only in memory, built again from the history in the background
+        index = new MessageIndex();
+        index.rebuild(store);
+        // Everything appended from now on is added to the list as it arrives
+        historyStart = store.appendedCount();
+        loadOlderHistory(HISTORY_PAGE_SIZE);
+    }
+
+    private static String fileName(String key) {
+        return key.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Read the page before the first message shown and put it at the top
+     * of the list, unless one is being read already.
+     */
+    public void loadOlderHistory(int pageSize) {
+        if (store == null || loadingHistory || historyStart == 0) {
+            return;
+        }
+        loadingHistory = true;
+        final MessageStore from = store;
+        final long end = historyStart;
+        long start = Math.max(0, historyStart - pageSize);
+        from.loadPage(start, (int) (historyStart - start), new MessageStore.PageCallback() {
+            @Override
+            public void onPage(final long first, final List<Message> page) {
+                mainExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadingHistory = false;
+                        if (from != store || end != historyStart) {
+                            // another conversation was opened, or the list trimmed, meanwhile
+                            return;
+                        }
+                        historyStart = first;
+                        messages.addAll(0, page);
+                        if (client != null) {
+                            client.onHistory(page);
+                        }
+                        trim();
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                mainExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // scrolling up again tries again
+                        loadingHistory = false;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Close the open conversation's history. The last messages are written
+     * in the background, the main thread does not wait for the disk.
+     */
+    public void close() {
+        if (store != null) {
+            index.close();
+            index = null;
+            store.closeInBackground();
+            store = null;
+        }
+        conversationAddress = null;
+        loadingHistory = false;
+    }
+}
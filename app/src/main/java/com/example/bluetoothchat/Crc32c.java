@@ -0,0 +1,72 @@
+package com.example.bluetoothchat;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum used to protect chat frames.
+ *
+ * java.util.zip.CRC32C only exists from API 26, so this is a table driven
+ * (slicing-by-4) software implementation that works on every supported device.
+ */
+public final class Crc32c implements Checksum {
+    // Reflected Castagnoli polynomial
+    private static final int POLY = 0x82F63B78;
+
+    private static final int[] T0 = new int[256];
+    private static final int[] T1 = new int[256];
+    private static final int[] T2 = new int[256];
+    private static final int[] T3 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            T0[i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            T1[i] = (T0[i] >>> 8) ^ T0[T0[i] & 0xFF];
+            T2[i] = (T1[i] >>> 8) ^ T0[T1[i] & 0xFF];
+            T3[i] = (T2[i] >>> 8) ^ T0[T2[i] & 0xFF];
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ T0[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int end = off + len;
+        // Four bytes per step while we can
+        while (end - off >= 4) {
+            c ^= (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+                    | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+            c = T3[c & 0xFF] ^ T2[(c >>> 8) & 0xFF] ^ T1[(c >>> 16) & 0xFF] ^ T0[c >>> 24];
+            off += 4;
+        }
+        while (off < end) {
+            c = (c >>> 8) ^ T0[(c ^ b[off++]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
@@ -0,0 +1,260 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receiving half of credit-based flow control: keeps a fast peer from
+ * sending chat faster than the consumer takes it.
+ *
+ * The peer may have at most {@code windowBytes} of chat in flight that
+ * has not been consumed yet. A message counts as consumed once its lease
+ * is released, so messages waiting in the UI's queue count as in flight
+ * too. The window is granted again in CREDIT frames as the consumer
+ * catches up; the sending half, {@link SendQueue}, holds chat back while
+ * it has no room left. Control frames and file chunks are not counted.
+ *
+ * <pre>
+ *   CREDIT : flags(1) consumed(8) window(4) sent(8)
+ * </pre>
+ *
+ * With {@link #FLAG_GRANT} the frame grants the peer room up to
+ * {@code consumed + window} bytes of its stream. {@code sent} is always
+ * set, by the writer: how many counted bytes it had written before this
+ * frame. A frame dropped for a bad CRC is never counted by the receiver,
+ * so when {@code sent} is ahead of what arrived the receiver takes the
+ * difference as lost. A sender that runs out of room sends a
+ * {@link #FLAG_PROBE}, answered with a grant as soon as there is room,
+ * and probes again with each PING while it waits, so a lost frame stalls
+ * the chat for at most one ping interval. Both sides must use flow
+ * control: the sender holds its chat until the peer's first grant.
+ */
+public class CreditWindow {
+    private static final String TAG = "CreditWindow";
+
+    // Half of the receive buffers of ChatUtils
+    public static final int DEFAULT_WINDOW_BYTES = 32 * 1024;
+
+    static final int CREDIT_SIZE = 21;
+    static final int FLAG_GRANT = 1;
+    static final int FLAG_PROBE = 2;
+    static final int CONSUMED_OFFSET = 1;
+    static final int WINDOW_OFFSET = 9;
+    static final int SENT_OFFSET = 13;
+
+    // Metric names, next to the ones of SendQueue
+    public static final String METRIC_HELD = "credit.held";
+    public static final String METRIC_LOST = "credit.lost";
+
+    private final SendQueue sendQueue;
+    private final int windowBytes;
+
+    //counted bytes of the peer's stream that arrived, including ones dropped on the way
+    private long arrived;
+    //bytes handed to the consumer and not released yet
+    private long held;
+    //the consumed count of the last grant sent
+    private long granted = -1;
+    //the peer probed and is waiting for more room
+    private boolean probeWaiting;
+
+    //statistics
+    private final AtomicLong maxHeld = new AtomicLong();
+    private final AtomicLong grantsSent = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    //shared metrics, null unless set
+    private AtomicLong heldGauge;
+    private AtomicLong lostCounter;
+
+    /**
+     * @param sendQueue   carries the grants to the peer
+     * @param windowBytes how many unconsumed bytes the peer may have in flight
+     */
+    public CreditWindow(SendQueue sendQueue, int windowBytes) {
+        this.sendQueue = sendQueue;
+        this.windowBytes = windowBytes;
+    }
+
+    /**
+     * Record the bytes currently held by the consumer ({@link #METRIC_HELD})
+     * and those the peer sent that never arrived ({@link #METRIC_LOST}).
+     */
+    public synchronized void setMetrics(MetricsRegistry metrics) {
+        heldGauge = metrics.counter(METRIC_HELD);
+        lostCounter = metrics.counter(METRIC_LOST);
+    }
+
+    /**
+     * The bytes a frame counts against the window, or 0 for frames that are
+     * not: the message a chat frame carries, before compression and
+     * without the sequence number. Both sides must count the same way.
+     */
+    static int countedBytes(int type, int payloadLength) {
+        switch (type) {
+            case FrameCodec.TYPE_CHAT:
+                return payloadLength;
+            case FrameCodec.TYPE_CHAT_SEQ:
+                return Math.max(0, payloadLength - ReliableDelivery.SEQ_SIZE);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The bytes a received frame counts against the window.
+     */
+    static int countedBytes(int type, byte[] buffer, int offset, int length) {
+        try {
+            switch (type) {
+                case FrameCodec.TYPE_CHAT_DEFLATE:
+                    return PayloadCompression.decompressedLength(buffer, offset, length);
+                case FrameCodec.TYPE_CHAT_SEQ_DEFLATE:
+                    if (length < ReliableDelivery.SEQ_SIZE) {
+                        return 0;
+                    }
+                    return PayloadCompression.decompressedLength(buffer, offset + ReliableDelivery.SEQ_SIZE,
+                            length - ReliableDelivery.SEQ_SIZE);
+                default:
+                    return countedBytes(type, length);
+            }
+        } catch (IOException e) {
+            // the next probe finds the bytes missing and counts them lost
+            return 0;
+        }
+    }
+
+    /**
+     * Grant the peer its first window. Called when the session starts.
+     */
+    public void open() {
+        grant(false);
+    }
+
+    /**
+     * A frame of the peer's stream arrived; counted frames take room until
+     * the consumer releases them, or right away if they never get to it.
+     */
+    public void onArrived(int type, byte[] buffer, int offset, int length) {
+        int bytes = countedBytes(type, buffer, offset, length);
+        if (bytes > 0) {
+            synchronized (this) {
+                arrived += bytes;
+            }
+        }
+    }
+
+    /**
+     * Count {@code lease} as held by the consumer until it is released.
+     * Must follow the {@link #onArrived} of its frame.
+     */
+    public void hold(BufferPool.Lease lease) {
+        long now;
+        synchronized (this) {
+            held += lease.length();
+            now = held;
+            if (heldGauge != null) {
+                heldGauge.addAndGet(lease.length());
+            }
+        }
+        lease.setWindow(this);
+        long max;
+        while (now > (max = maxHeld.get()) && !maxHeld.compareAndSet(max, now)) {
+            // retry
+        }
+    }
+
+    void onReleased(int bytes) {
+        synchronized (this) {
+            held -= bytes;
+            if (heldGauge != null) {
+                heldGauge.addAndGet(-bytes);
+            }
+        }
+        grantIfDue();
+    }
+
+    /**
+     * A CREDIT frame from the peer: its mark, and maybe a probe to answer.
+     */
+    public void onCredit(byte[] buffer, int offset, int length) {
+        if (length < CREDIT_SIZE) {
+            return;
+        }
+        long sent = FrameCodec.getLong(buffer, offset + SENT_OFFSET);
+        synchronized (this) {
+            if (sent > arrived) {
+                // everything written before the mark that is not here was dropped
+                Log.d(TAG, (sent - arrived) + " bytes never arrived");
+                lost.addAndGet(sent - arrived);
+                if (lostCounter != null) {
+                    lostCounter.addAndGet(sent - arrived);
+                }
+                arrived = sent;
+            }
+        }
+        grant((buffer[offset] & FLAG_PROBE) != 0);
+    }
+
+    /**
+     * Send a grant if the consumer has freed a quarter of the window since
+     * the last one, or anything at all while the peer is waiting for it.
+     */
+    public void grantIfDue() {
+        grant(false);
+    }
+
+    private void grant(boolean probed) {
+        byte[] payload;
+        synchronized (this) {
+            if (probed) {
+                // answered once there is more room, a grant of none would only bring the next probe
+                probeWaiting = true;
+            }
+            long consumed = arrived - held;
+            long freed = consumed - granted;
+            // with nothing held no release will come, so the probe gets the grant as it stands
+            if (granted >= 0 && freed < windowBytes / 4 && !(probeWaiting && (freed > 0 || held == 0))) {
+                return;
+            }
+            payload = new byte[CREDIT_SIZE];
+            payload[0] = FLAG_GRANT;
+            FrameCodec.putLong(payload, CONSUMED_OFFSET, consumed);
+            FrameCodec.putInt(payload, WINDOW_OFFSET, windowBytes);
+            // a full send queue is retried by the next call
+            if (!sendQueue.offer(FrameCodec.TYPE_CREDIT, payload)) {
+                return;
+            }
+            granted = consumed;
+            probeWaiting = false;
+        }
+        grantsSent.incrementAndGet();
+    }
+
+    public int getWindowBytes() {
+        return windowBytes;
+    }
+
+    public synchronized long getHeldBytes() {
+        return held;
+    }
+
+    /**
+     * The most bytes the consumer held at once.
+     */
+    public long getMaxHeldBytes() {
+        return maxHeld.get();
+    }
+
+    public long getGrantsSent() {
+        return grantsSent.get();
+    }
+
+    /**
+     * Counted bytes the peer sent that were dropped on the way.
+     */
+    public long getLostBytes() {
+        return lost.get();
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Devices seen by discovery, keyed by MAC address and kept across launches
+ * so the device list can show them before a new scan has found anything.
+ *
+ * Every sighting updates the device's name, signal strength and last seen
+ * time in place, so a device that is reported many times during one scan
+ * is still a single entry. Devices not seen for longer than the maximum
+ * age are dropped by {@link #expire}.
+ *
+ * <pre>
+ *   file  : version(4) count(4) device*
+ *   device: address(UTF) hasName(1) name(UTF)? rssi(2) lastSeen(8)
+ * </pre>
+ */
+public class DeviceCache {
+    private static final String TAG = "DeviceCache";
+    private static final int VERSION = 1;
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    // Reported by discovery when the signal strength is unknown
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+    // Keeps a hostile or corrupt file from allocating without bound
+    private static final int MAX_DEVICES = 1024;
+
+    public static final class Device {
+        private final String address;
+        private String name;
+        private short rssi;
+        private long lastSeen;
+
+        Device(String address, String name, short rssi, long lastSeen) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return the friendly name, or null if the device never reported one
+         */
+        public String getName() {
+            return name;
+        }
+
+        public short getRssi() {
+            return rssi;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    private static final Comparator<Device> NEWEST_FIRST = new Comparator<Device>() {
+        @Override
+        public int compare(Device a, Device b) {
+            return a.lastSeen < b.lastSeen ? 1 : a.lastSeen > b.lastSeen ? -1 : 0;
+        }
+    };
+
+    private final File file;
+    private final long maxAgeMillis;
+    private final Map<String, Device> devices = new HashMap<>();
+    // One save at a time, they share the temporary file
+    private final Object saveLock = new Object();
+
+    public DeviceCache(File file) {
+        this(file, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public DeviceCache(File file, long maxAgeMillis) {
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Record a sighting. A null name or unknown RSSI keeps what is already
+     * known, since discovery does not always report them.
+     *
+     * @return the device, or null if the sighting changed nothing the list shows
+     */
+    public synchronized Device update(String address, String name, short rssi, long now) {
+        String key = address.toUpperCase(Locale.US);
+        Device device = devices.get(key);
+        if (device == null) {
+            device = new Device(key, name, rssi, now);
+            devices.put(key, device);
+            return device;
+        }
+        device.lastSeen = Math.max(device.lastSeen, now);
+        boolean changed = false;
+        if (name != null && !name.equals(device.name)) {
+            device.name = name;
+            changed = true;
+        }
+        if (rssi != RSSI_UNKNOWN && rssi != device.rssi) {
+            device.rssi = rssi;
+            changed = true;
+        }
+        return changed ? device : null;
+    }
+
+    public synchronized Device get(String address) {
+        return devices.get(address.toUpperCase(Locale.US));
+    }
+
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    /**
+     * @return the devices, most recently seen first
+     */
+    public synchronized List<Device> getDevices() {
+        List<Device> list = new ArrayList<>(devices.values());
+        Collections.sort(list, NEWEST_FIRST);
+        return list;
+    }
+
+    /**
+     * Drop the devices not seen since {@code now - maxAge}.
+     *
+     * @return the number of devices dropped
+     */
+    public synchronized int expire(long now) {
+        int dropped = 0;
+        Iterator<Device> it = devices.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastSeen > maxAgeMillis) {
+                it.remove();
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Replace the contents with what was last saved. A missing file is an
+     * empty cache; an unreadable one is logged and ignored.
+     */
+    public synchronized void load() {
+        devices.clear();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            int version = in.readInt();
+            if (version != VERSION) {
+                Log.w(TAG, "Ignoring device cache version " + version);
+                return;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_DEVICES) {
+                throw new IOException("Bad device count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                short rssi = in.readShort();
+                long lastSeen = in.readLong();
+                devices.put(address, new Device(address, name, rssi, lastSeen));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + file, e);
+            devices.clear();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of device cache failed", e);
+            }
+        }
+    }
+
+    /**
+     * Write the cache to its file. The file is written under a temporary
+     * name and renamed over the old one, so a crash never leaves half a cache.
+     */
+    public void save() throws IOException {
+        List<Device> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(devices.size());
+            for (Device device : devices.values()) {
+                snapshot.add(new Device(device.address, device.name, device.rssi, device.lastSeen));
+            }
+        }
+        Collections.sort(snapshot, NEWEST_FIRST);
+        if (snapshot.size() > MAX_DEVICES) {
+            snapshot = snapshot.subList(0, MAX_DEVICES);
+        }
+
+        synchronized (saveLock) {
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (Device device : snapshot) {
+                    out.writeUTF(device.address);
+                    out.writeBoolean(device.name != null);
+                    if (device.name != null) {
+                        out.writeUTF(device.name);
+                    }
+                    out.writeShort(device.rssi);
+                    out.writeLong(device.lastSeen);
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Cannot replace " + file);
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -21,6 +22,11 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -40,6 +46,11 @@ public class DeviceListActivity extends Activity {
      */
     public static String EXTRA_DEVICE_ADDRESS = "device_address";
 
+    /**
+     * Devices found by earlier scans, in the app's files directory
+     */
+    private static final String DEVICE_CACHE_FILE = "devices.bin";
+
     /**
      * Member fields
      */
@@ -50,6 +61,14 @@ public class DeviceListActivity extends Activity {
      */
     private ArrayAdapter<String> mNewDevicesArrayAdapter;
 
+    /**
+     * Devices seen by this and earlier scans, and the row shown for each address
+     */
+    private DeviceCache mDeviceCache;
+    private final Map<String, String> mDeviceRows = new HashMap<>();
+    private final Set<String> mPairedAddresses = new HashSet<>();
+    private int mFoundThisScan;
+
     //scan Button
     private Button scanButton;
     //scan progress bar
@@ -100,7 +119,7 @@ public class DeviceListActivity extends Activity {
         this.registerReceiver(mReceiver, filter);
 
         // Get the local Bluetooth adapter
-        mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+        mBtAdapter = LocalBluetooth.getAdapter();
 
         // Get a set of currently paired devices
         Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
@@ -110,12 +129,65 @@ public class DeviceListActivity extends Activity {
             findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
             for (BluetoothDevice device : pairedDevices) {
                 pairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                mPairedAddresses.add(device.getAddress());
             }
         } else {
             String noDevices = "No devices paired yet";
             pairedDevicesArrayAdapter.add(noDevices);
         }
 
+        // Show what earlier scans found right away, a new scan updates it
+        mDeviceCache = new DeviceCache(new File(getFilesDir(), DEVICE_CACHE_FILE));
+        mDeviceCache.load();
+        mDeviceCache.expire(System.currentTimeMillis());
+        for (DeviceCache.Device device : mDeviceCache.getDevices()) {
+            if (!mPairedAddresses.contains(device.getAddress())) {
+                showDevice(device);
+            }
+        }
+        if (!mDeviceRows.isEmpty()) {
+            findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+            findViewById(R.id.new_devices).setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Add a row for the device, or replace its row in place if it has one
+     */
+    private void showDevice(DeviceCache.Device device) {
+        String name = device.getName() != null ? device.getName() : "Unknown device";
+        if (device.getRssi() != DeviceCache.RSSI_UNKNOWN) {
+            name += "  " + device.getRssi() + " dBm";
+        }
+        // The address must stay last, the click listener reads it from there
+        String row = name + "\n" + device.getAddress();
+        String old = mDeviceRows.put(device.getAddress(), row);
+        if (old == null) {
+            mNewDevicesArrayAdapter.add(row);
+            return;
+        }
+        int position = mNewDevicesArrayAdapter.getPosition(old);
+        mNewDevicesArrayAdapter.setNotifyOnChange(false);
+        mNewDevicesArrayAdapter.remove(old);
+        mNewDevicesArrayAdapter.insert(row, position);
+        mNewDevicesArrayAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Write the device cache on a background thread
+     */
+    private void saveDeviceCache() {
+        final DeviceCache cache = mDeviceCache;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.save();
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot save the device cache", e);
+                }
+            }
+        });
     }
 
     /**
@@ -125,6 +197,7 @@ public class DeviceListActivity extends Activity {
         Log.d(TAG, "doDiscovery()");
 
         progressBar.setVisibility(View.VISIBLE);
+        mFoundThisScan = 0;
 
 
 
@@ -179,16 +252,24 @@ public class DeviceListActivity extends Activity {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 // If it's already paired, skip it, because it's been listed already
                 if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                    mFoundThisScan++;
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DeviceCache.RSSI_UNKNOWN);
+                    // Repeated sightings update the device's row instead of adding one
+                    DeviceCache.Device found = mDeviceCache.update(device.getAddress(), device.getName(),
+                            rssi, System.currentTimeMillis());
+                    if (found != null) {
+                        showDevice(found);
+                    }
                 }
                 // When discovery is finished, change the Activity title
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
 
                 progressBar.setVisibility(View.GONE);
                 scanButton.setVisibility(View.VISIBLE);
-                if (mNewDevicesArrayAdapter.getCount() == 0) {
+                if (mFoundThisScan == 0) {
                     Toast.makeText(context, "No new available devices nearby", Toast.LENGTH_SHORT).show();
                 }
+                saveDeviceCache();
             }
         }
     };
@@ -204,6 +285,8 @@ public class DeviceListActivity extends Activity {
 
         // Unregister broadcast listeners
         this.unregisterReceiver(mReceiver);
+
+        saveDeviceCache();
     }
 
 }
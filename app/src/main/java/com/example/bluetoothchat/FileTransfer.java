@@ -0,0 +1,556 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends and receives files over a {@link PeerSession}, next to the chat.
+ *
+ * A transfer starts with an OFFER frame (id, size, chunk size, window,
+ * name). The receiver answers with a rewind ack carrying how many bytes of
+ * that transfer it already has, 0 for a new one, and the sender streams
+ * CHUNK frames (id, offset, data) from there. At most {@code windowBytes}
+ * may be unacknowledged at a time; the receiver acks cumulatively as it
+ * writes.
+ *
+ * Each chunk is exactly one frame, so the frame's CRC32C is the chunk
+ * checksum: {@link FrameDecoder} drops a corrupt chunk, the next one then
+ * arrives at the wrong offset and the receiver asks for a rewind to its
+ * last good offset. Checking the data a second time would double the CPU
+ * cost per byte on both ends for no extra coverage.
+ *
+ * Partial files are kept as {@code <id>.part} in the download directory.
+ * When the connection is lost the current transfer waits for the next
+ * {@link #attach}, offers itself again and continues from the receiver's
+ * offset instead of starting over.
+ *
+ * The source file is read through memory mapped regions; chunks are copied
+ * from the mapping straight into the socket write buffer.
+ */
+public class FileTransfer implements FrameDecoder.FrameListener, Closeable {
+    private static final String TAG = "FileTransfer";
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final int DEFAULT_WINDOW_BYTES = 256 * 1024;
+    // How much of the source file is mapped at a time
+    private static final long MAP_REGION = 8 * 1024 * 1024;
+    // Offer again when the receiver has been silent this long
+    static final long ACK_TIMEOUT_MILLIS = 3000;
+    private static final long WAIT_MILLIS = 20;
+
+    // Ack status: progress is cumulative, rewind moves the sender to the offset
+    private static final int ACK_PROGRESS = 0;
+    private static final int ACK_REWIND = 1;
+
+    private static final int OFFER_HEAD = 8 + 8 + 4 + 4 + 2;
+    private static final int CHUNK_HEAD = 8 + 8;
+    private static final int ACK_SIZE = 8 + 8 + 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Transfer events. Progress and completion of sent files are reported on
+     * the reader thread of the session, failures to send on the sender thread.
+     */
+    public interface Listener {
+        void onSendProgress(String name, long acknowledged, long size);
+
+        void onFileSent(String name, long size);
+
+        void onReceiveProgress(String name, long received, long size);
+
+        void onFileReceived(File file);
+
+        void onTransferFailed(String name, IOException e);
+    }
+
+    private static final class Outgoing {
+        final long id;
+        final File file;
+        FileChannel channel;
+        long size;
+        MappedByteBuffer region;
+        long regionStart;
+        // shared with the reader thread, guarded by the FileTransfer
+        boolean offered;
+        boolean accepted;
+        long next;
+        long acked;
+        long lastHeard;
+
+        Outgoing(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    private static final class Incoming {
+        final long id;
+        final String name;
+        final long size;
+        final int ackInterval;
+        final File partFile;
+        FileChannel channel;
+        long expected;
+        long lastAcked;
+        boolean rewindSent;
+        boolean done;
+
+        Incoming(long id, String name, long size, int ackInterval, File partFile) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.ackInterval = ackInterval;
+            this.partFile = partFile;
+        }
+    }
+
+    // queued by close() to stop the sender
+    private static final Outgoing STOP = new Outgoing(0, null);
+
+    private final File downloadDir;
+    private final Listener listener;
+    private final int chunkSize;
+    private final int windowBytes;
+    private final Random random = new Random();
+    private final LinkedBlockingQueue<Outgoing> outgoing = new LinkedBlockingQueue<>();
+    // receive side state, only touched by the reader thread and close()
+    private final ConcurrentHashMap<Long, Incoming> incoming = new ConcurrentHashMap<>();
+    private final Thread sender;
+
+    // guarded by this
+    private PeerSession session;
+    private Outgoing current;
+    private boolean closed;
+
+    //statistics
+    private final AtomicLong chunkBytesSent = new AtomicLong();
+    private final AtomicLong chunkBytesReceived = new AtomicLong();
+    private final AtomicLong rewinds = new AtomicLong();
+
+    public FileTransfer(File downloadDir, Listener listener) {
+        this(downloadDir, listener, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW_BYTES);
+    }
+
+    /**
+     * @param downloadDir where received files are written
+     * @param chunkSize   data bytes per chunk frame
+     * @param windowBytes how many bytes may be sent ahead of the last ack
+     */
+    public FileTransfer(File downloadDir, Listener listener, int chunkSize, int windowBytes) {
+        if (chunkSize <= 0 || chunkSize + CHUNK_HEAD > FrameCodec.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+        }
+        this.downloadDir = downloadDir;
+        this.listener = listener;
+        this.chunkSize = chunkSize;
+        this.windowBytes = Math.max(windowBytes, chunkSize);
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "FileSender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Carry transfers over a new session. Must be called before the session
+     * is started. A transfer interrupted by a lost connection resumes here.
+     */
+    public void attach(PeerSession session) {
+        session.setFrameHandler(FrameCodec.TYPE_FILE_OFFER, this);
+        session.setFrameHandler(FrameCodec.TYPE_FILE_CHUNK, this);
+        session.setFrameHandler(FrameCodec.TYPE_FILE_ACK, this);
+        synchronized (this) {
+            this.session = session;
+            if (current != null) {
+                current.offered = false;
+                current.accepted = false;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * The session is gone. The current transfer pauses until the next {@link #attach}.
+     */
+    public synchronized void detach(PeerSession session) {
+        if (this.session != session) {
+            return;
+        }
+        this.session = null;
+        if (current != null) {
+            current.offered = false;
+            current.accepted = false;
+        }
+    }
+
+    /**
+     * Queue a file to be sent. Files are sent one after another.
+     */
+    public void send(File file) throws FileNotFoundException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        long id;
+        synchronized (random) {
+            id = random.nextLong();
+        }
+        outgoing.add(new Outgoing(id, file));
+    }
+
+    private void sendLoop() {
+        try {
+            while (true) {
+                Outgoing transfer = outgoing.take();
+                if (transfer == STOP) {
+                    return;
+                }
+                try {
+                    sendFile(transfer);
+                    listener.onFileSent(transfer.file.getName(), transfer.size);
+                } catch (IOException e) {
+                    Log.e(TAG, "send " + transfer.file + ": " + e);
+                    listener.onTransferFailed(transfer.file.getName(), e);
+                } finally {
+                    synchronized (this) {
+                        current = null;
+                    }
+                    closeQuietly(transfer.channel);
+                    transfer.region = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void sendFile(Outgoing transfer) throws IOException, InterruptedException {
+        transfer.channel = new RandomAccessFile(transfer.file, "r").getChannel();
+        transfer.size = transfer.channel.size();
+        synchronized (this) {
+            current = transfer;
+        }
+        while (true) {
+            PeerSession target;
+            long offset;
+            int length;
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("File transfer closed");
+                    }
+                    if (transfer.accepted && transfer.acked >= transfer.size) {
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (session != null && !transfer.offered) {
+                        if (session.send(FrameCodec.TYPE_FILE_OFFER, encodeOffer(transfer), null)) {
+                            transfer.offered = true;
+                            transfer.lastHeard = now;
+                        }
+                    } else if (session != null && transfer.accepted && transfer.next < transfer.size
+                            && transfer.next - transfer.acked < windowBytes) {
+                        break;
+                    } else if (transfer.offered && now - transfer.lastHeard > ACK_TIMEOUT_MILLIS) {
+                        // the offer or the acks were lost, ask where the receiver is
+                        transfer.offered = false;
+                        continue;
+                    }
+                    wait(WAIT_MILLIS);
+                }
+                target = session;
+                offset = transfer.next;
+                length = (int) Math.min(chunkSize, transfer.size - offset);
+            }
+
+            ByteBuffer data = map(transfer, offset, length);
+            byte[] head = new byte[CHUNK_HEAD];
+            FrameCodec.putLong(head, 0, transfer.id);
+            FrameCodec.putLong(head, 8, offset);
+
+            if (target.send(FrameCodec.TYPE_FILE_CHUNK, head, data)) {
+                chunkBytesSent.addAndGet(length);
+                synchronized (this) {
+                    // unless a rewind moved the sender meanwhile
+                    if (transfer.next == offset) {
+                        transfer.next = offset + length;
+                    }
+                }
+            } else {
+                // send queue full, give the writer time to drain it
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private byte[] encodeOffer(Outgoing transfer) {
+        byte[] name = transfer.file.getName().getBytes(UTF_8);
+        int nameLength = Math.min(name.length, 0xFFFF);
+        byte[] offer = new byte[OFFER_HEAD + nameLength];
+        FrameCodec.putLong(offer, 0, transfer.id);
+        FrameCodec.putLong(offer, 8, transfer.size);
+        FrameCodec.putInt(offer, 16, chunkSize);
+        FrameCodec.putInt(offer, 20, windowBytes);
+        offer[24] = (byte) (nameLength >>> 8);
+        offer[25] = (byte) nameLength;
+        System.arraycopy(name, 0, offer, OFFER_HEAD, nameLength);
+        return offer;
+    }
+
+    /**
+     * A view of {@code length} bytes of the file at {@code offset}, mapping
+     * the next region when it is outside the current one.
+     */
+    private ByteBuffer map(Outgoing transfer, long offset, int length) throws IOException {
+        if (transfer.region == null || offset < transfer.regionStart
+                || offset + length > transfer.regionStart + transfer.region.capacity()) {
+            long size = Math.min(Math.max(MAP_REGION, length), transfer.size - offset);
+            transfer.region = transfer.channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            transfer.regionStart = offset;
+        }
+        ByteBuffer view = transfer.region.duplicate();
+        int position = (int) (offset - transfer.regionStart);
+        view.limit(position + length);
+        view.position(position);
+        return view;
+    }
+
+    @Override
+    public void onFrame(int type, byte[] buffer, int offset, int length) {
+        switch (type) {
+            case FrameCodec.TYPE_FILE_OFFER:
+                onOffer(buffer, offset, length);
+                break;
+            case FrameCodec.TYPE_FILE_CHUNK:
+                onChunk(buffer, offset, length);
+                break;
+            case FrameCodec.TYPE_FILE_ACK:
+                onAck(buffer, offset, length);
+                break;
+        }
+    }
+
+    private void onOffer(byte[] buffer, int offset, int length) {
+        if (length < OFFER_HEAD) {
+            return;
+        }
+        long id = FrameCodec.getLong(buffer, offset);
+        long size = FrameCodec.getLong(buffer, offset + 8);
+        int senderWindow = FrameCodec.getInt(buffer, offset + 20);
+        int nameLength = (buffer[offset + 24] & 0xFF) << 8 | buffer[offset + 25] & 0xFF;
+        if (size < 0 || OFFER_HEAD + nameLength > length) {
+            return;
+        }
+        Incoming in = incoming.get(id);
+        if (in == null) {
+            String name = new String(buffer, offset + OFFER_HEAD, nameLength, UTF_8);
+            in = new Incoming(id, name, size, Math.max(senderWindow / 4, 1),
+                    new File(downloadDir, Long.toHexString(id) + ".part"));
+            try {
+                downloadDir.mkdirs();
+                in.channel = new RandomAccessFile(in.partFile, "rw").getChannel();
+                // a part file left by an earlier attempt is resumed
+                in.expected = Math.min(in.channel.size(), size);
+                in.channel.truncate(in.expected);
+            } catch (IOException e) {
+                Log.e(TAG, "receive " + name + ": " + e);
+                closeQuietly(in.channel);
+                listener.onTransferFailed(name, e);
+                return;
+            }
+            incoming.put(id, in);
+        }
+        // Tell the sender where to continue, or that the file is complete
+        in.rewindSent = false;
+        sendAck(in, ACK_REWIND);
+        if (!in.done && in.expected == in.size) {
+            complete(in);
+        }
+    }
+
+    private void onChunk(byte[] buffer, int offset, int length) {
+        if (length < CHUNK_HEAD) {
+            return;
+        }
+        Incoming in = incoming.get(FrameCodec.getLong(buffer, offset));
+        if (in == null || in.done) {
+            return;
+        }
+        long position = FrameCodec.getLong(buffer, offset + 8);
+        int dataOffset = offset + CHUNK_HEAD;
+        int dataLength = length - CHUNK_HEAD;
+        if (position != in.expected || position + dataLength > in.size) {
+            // Chunks after a missing one are all refused, ask for a rewind only once
+            if (!in.rewindSent) {
+                in.rewindSent = sendAck(in, ACK_REWIND);
+            }
+            return;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(buffer, dataOffset, dataLength);
+            long writePosition = position;
+            while (data.hasRemaining()) {
+                writePosition += in.channel.write(data, writePosition);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "receive " + in.name + ": " + e);
+            incoming.remove(in.id);
+            closeQuietly(in.channel);
+            listener.onTransferFailed(in.name, e);
+            return;
+        }
+        in.expected += dataLength;
+        in.rewindSent = false;
+        chunkBytesReceived.addAndGet(dataLength);
+        if (in.expected - in.lastAcked >= in.ackInterval || in.expected == in.size) {
+            sendAck(in, ACK_PROGRESS);
+            listener.onReceiveProgress(in.name, in.expected, in.size);
+        }
+        if (in.expected == in.size) {
+            complete(in);
+        }
+    }
+
+    private void complete(Incoming in) {
+        // Kept as done so a late offer for the same file is answered, not received twice
+        in.done = true;
+        try {
+            in.channel.close();
+            File target = uniqueFile(in.name);
+            if (!in.partFile.renameTo(target)) {
+                throw new IOException("Cannot rename " + in.partFile + " to " + target);
+            }
+            listener.onFileReceived(target);
+        } catch (IOException e) {
+            Log.e(TAG, "receive " + in.name + ": " + e);
+            listener.onTransferFailed(in.name, e);
+        }
+    }
+
+    private File uniqueFile(String name) {
+        // never let the peer pick a directory
+        String safe = new File(name).getName().replaceAll("[^A-Za-z0-9._ -]", "_");
+        if (safe.length() == 0 || safe.startsWith(".")) {
+            safe = "file" + safe;
+        }
+        File file = new File(downloadDir, safe);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(downloadDir, "(" + i + ") " + safe);
+        }
+        return file;
+    }
+
+    private boolean sendAck(Incoming in, int status) {
+        byte[] ack = new byte[ACK_SIZE];
+        FrameCodec.putLong(ack, 0, in.id);
+        FrameCodec.putLong(ack, 8, in.expected);
+        ack[16] = (byte) status;
+        PeerSession target;
+        synchronized (this) {
+            target = session;
+        }
+        if (target == null || !target.send(FrameCodec.TYPE_FILE_ACK, ack, null)) {
+            return false;
+        }
+        in.lastAcked = in.expected;
+        return true;
+    }
+
+    private void onAck(byte[] buffer, int offset, int length) {
+        if (length < ACK_SIZE) {
+            return;
+        }
+        long id = FrameCodec.getLong(buffer, offset);
+        long acked = FrameCodec.getLong(buffer, offset + 8);
+        int status = buffer[offset + 16];
+        String name;
+        long size;
+        synchronized (this) {
+            Outgoing transfer = current;
+            if (transfer == null || transfer.id != id || acked < 0 || acked > transfer.size) {
+                return;
+            }
+            transfer.lastHeard = System.currentTimeMillis();
+            if (status == ACK_REWIND) {
+                if (transfer.accepted && acked < transfer.next) {
+                    rewinds.incrementAndGet();
+                }
+                transfer.accepted = true;
+                transfer.next = acked;
+                transfer.acked = acked;
+            } else if (acked > transfer.acked && acked <= transfer.next) {
+                transfer.acked = acked;
+            }
+            name = transfer.file.getName();
+            size = transfer.size;
+            acked = transfer.acked;
+            notifyAll();
+        }
+        listener.onSendProgress(name, acked, size);
+    }
+
+    /**
+     * Stop sending. Queued files are dropped; partial received files stay
+     * on disk.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        outgoing.clear();
+        outgoing.add(STOP);
+        for (Incoming in : incoming.values()) {
+            closeQuietly(in.channel);
+        }
+    }
+
+    /**
+     * Data bytes put on the send queue, including chunks sent again after a rewind.
+     */
+    public long getChunkBytesSent() {
+        return chunkBytesSent.get();
+    }
+
+    public long getChunkBytesReceived() {
+        return chunkBytesReceived.get();
+    }
+
+    /**
+     * How often the receiver sent the sender back to an earlier offset.
+     */
+    public long getRewinds() {
+        return rewinds.get();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format for everything that goes over the chat socket.
+ *
+ * RFCOMM is a byte stream, so a single write can arrive split over several
+ * reads or glued to the next one. Every payload is therefore wrapped in a frame:
+ *
+ * <pre>
+ *   +------+------+-------------+------+---------+----------+
+ *   | SYNC | TYPE | LENGTH (4)  | HCRC | PAYLOAD | CRC32C(4)|
+ *   +------+------+-------------+------+---------+----------+
+ * </pre>
+ *
+ * LENGTH is big endian and counts the payload only. HCRC is the low byte
+ * of the CRC over TYPE and LENGTH, so a corrupt length is caught before
+ * {@link FrameDecoder} waits for a payload that is not coming. The CRC
+ * covers TYPE, LENGTH, HCRC and PAYLOAD. The SYNC byte lets the decoder
+ * find the next frame boundary again after a corrupt frame.
+ */
+public final class FrameCodec {
+
+    public static final byte SYNC = (byte) 0xA5;
+
+    public static final int HEADER_SIZE = 7;
+    public static final int TRAILER_SIZE = 4;
+    public static final int OVERHEAD = HEADER_SIZE + TRAILER_SIZE;
+
+    // Largest payload a peer is allowed to send in one frame
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    // Frame types
+    public static final int TYPE_CHAT = 1;
+    // File transfer, see FileTransfer
+    public static final int TYPE_FILE_OFFER = 2;
+    public static final int TYPE_FILE_CHUNK = 3;
+    public static final int TYPE_FILE_ACK = 4;
+    // Capabilities sent once per connection, see PayloadCompression
+    public static final int TYPE_HELLO = 5;
+    // Chat payload compressed by PayloadCompression
+    public static final int TYPE_CHAT_DEFLATE = 6;
+    // Round-trip probes, the pong echoes the ping's payload
+    public static final int TYPE_PING = 7;
+    public static final int TYPE_PONG = 8;
+    // Sent before a deliberate disconnect, so the peer does not reconnect
+    public static final int TYPE_BYE = 9;
+    // Sequenced chat and its acknowledgements, see ReliableDelivery
+    public static final int TYPE_CHAT_SEQ = 10;
+    public static final int TYPE_CHAT_SEQ_DEFLATE = 11;
+    public static final int TYPE_ACK = 12;
+    public static final int TYPE_RESUME = 13;
+    // Chat addressed to a peer further away, see MeshRelay
+    public static final int TYPE_ROUTED = 14;
+    // Receive window grants and probes, see CreditWindow
+    public static final int TYPE_CREDIT = 15;
+
+    private final Crc32c crc = new Crc32c();
+    private byte[] frame;
+
+    /**
+     * @param maxPayload size of the largest payload this encoder will write
+     */
+    public FrameCodec(int maxPayload) {
+        frame = new byte[maxPayload + OVERHEAD];
+    }
+
+    public FrameCodec() {
+        this(1024);
+    }
+
+    /**
+     * Encode one frame into the given array.
+     *
+     * @return the number of bytes written, always {@code length + OVERHEAD}
+     */
+    public int encode(int type, byte[] payload, int offset, int length, byte[] dst, int dstOffset) {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Frame payload too large: " + length);
+        }
+        dst[dstOffset] = SYNC;
+        dst[dstOffset + 1] = (byte) type;
+        putInt(dst, dstOffset + 2, length);
+        System.arraycopy(payload, offset, dst, dstOffset + HEADER_SIZE, length);
+        return finish(dst, dstOffset, length);
+    }
+
+    /**
+     * Encode one frame whose payload is {@code head} followed by the
+     * remaining bytes of {@code body}. The body's position is not changed,
+     * so it can be a slice of a mapped file.
+     *
+     * @return the number of bytes written
+     */
+    public int encode(int type, byte[] head, ByteBuffer body, byte[] dst, int dstOffset) {
+        int length = head.length + body.remaining();
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Frame payload too large: " + length);
+        }
+        dst[dstOffset] = SYNC;
+        dst[dstOffset + 1] = (byte) type;
+        putInt(dst, dstOffset + 2, length);
+        System.arraycopy(head, 0, dst, dstOffset + HEADER_SIZE, head.length);
+        body.duplicate().get(dst, dstOffset + HEADER_SIZE + head.length, body.remaining());
+        return finish(dst, dstOffset, length);
+    }
+
+    private int finish(byte[] dst, int dstOffset, int length) {
+        crc.reset();
+        crc.update(dst, dstOffset + 1, HEADER_SIZE - 2);
+        dst[dstOffset + HEADER_SIZE - 1] = (byte) crc.getValue();
+        crc.update(dst, dstOffset + HEADER_SIZE - 1, 1 + length);
+        putInt(dst, dstOffset + HEADER_SIZE + length, (int) crc.getValue());
+        return length + OVERHEAD;
+    }
+
+    /**
+     * Encode one frame and write it to the stream with a single write call.
+     * The internal frame buffer is reused, so callers must not share an
+     * encoder between threads.
+     */
+    public void writeFrame(OutputStream out, int type, byte[] payload, int offset, int length)
+            throws IOException {
+        if (frame.length < length + OVERHEAD) {
+            frame = new byte[length + OVERHEAD];
+        }
+        int n = encode(type, payload, offset, length, frame, 0);
+        out.write(frame, 0, n);
+    }
+
+    static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16
+                | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+
+    static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
+    }
+
+    static long getLong(byte[] b, int off) {
+        return (long) getInt(b, off) << 32 | (getInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+}
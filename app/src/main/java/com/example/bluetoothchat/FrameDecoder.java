@@ -0,0 +1,203 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Incremental decoder for frames written by {@link FrameCodec}.
+ *
+ * Bytes from the socket are read straight into a ring buffer that is
+ * allocated once, and complete frames are handed to a {@link FrameListener}
+ * as they become available. A frame whose length is out of range, or whose
+ * header check or CRC does not match, is counted as corrupt and the decoder
+ * slides forward one byte to look for the next SYNC marker. The header is
+ * checked before waiting for the payload, so a corrupt length does not
+ * hold up the frames behind it.
+ */
+public final class FrameDecoder {
+
+    /**
+     * Receives decoded frames. The buffer is only valid for the duration
+     * of the call; copy the payload out if it must outlive the callback.
+     */
+    public interface FrameListener {
+        void onFrame(int type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final FrameListener listener;
+    private final int maxPayload;
+    private final byte[] ring;
+    private final int mask;
+    // Used only for payloads that wrap around the end of the ring
+    private final byte[] scratch;
+    private final Crc32c crc = new Crc32c();
+
+    // Monotonic positions, masked on access
+    private long readPos;
+    private long writePos;
+
+    //statistics
+    private long framesDecoded;
+    private long corruptFrames;
+    private long bytesDiscarded;
+
+    public FrameDecoder(FrameListener listener) {
+        this(listener, FrameCodec.MAX_PAYLOAD);
+    }
+
+    public FrameDecoder(FrameListener listener, int maxPayload) {
+        if (maxPayload <= 0 || maxPayload > FrameCodec.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("maxPayload out of range: " + maxPayload);
+        }
+        this.listener = listener;
+        this.maxPayload = maxPayload;
+        // Room for two whole frames so one can always be completed
+        int capacity = Integer.highestOneBit((maxPayload + FrameCodec.OVERHEAD) * 2 - 1) << 1;
+        ring = new byte[capacity];
+        mask = capacity - 1;
+        scratch = new byte[maxPayload];
+    }
+
+    /**
+     * Perform one blocking read from the stream directly into the ring
+     * buffer and deliver every frame that is now complete.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    public int readFrom(InputStream in) throws IOException {
+        int n = fill(in);
+        if (n > 0) {
+            decode();
+        }
+        return n;
+    }
+
+    /**
+     * Perform one blocking read from the stream into the ring buffer without
+     * delivering anything, for callers that account for the bytes before
+     * the frames are handled. Follow with {@link #decode()}.
+     *
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    public int fill(InputStream in) throws IOException {
+        int free = ring.length - (int) (writePos - readPos);
+        int index = (int) (writePos & mask);
+        int n = in.read(ring, index, Math.min(free, ring.length - index));
+        if (n < 0) {
+            return -1;
+        }
+        writePos += n;
+        return n;
+    }
+
+    /**
+     * Feed bytes that were read elsewhere and deliver every frame that is now complete.
+     */
+    public void feed(byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            int free = ring.length - (int) (writePos - readPos);
+            int index = (int) (writePos & mask);
+            int n = Math.min(length, Math.min(free, ring.length - index));
+            System.arraycopy(src, offset, ring, index, n);
+            writePos += n;
+            offset += n;
+            length -= n;
+            decode();
+        }
+    }
+
+    /**
+     * Deliver every complete frame in the ring buffer.
+     */
+    public void decode() throws IOException {
+        while (true) {
+            long available = writePos - readPos;
+            if (available == 0) {
+                return;
+            }
+            if (ring[(int) (readPos & mask)] != FrameCodec.SYNC) {
+                skip(1);
+                continue;
+            }
+            if (available < FrameCodec.HEADER_SIZE) {
+                return;
+            }
+            int type = ring[(int) ((readPos + 1) & mask)] & 0xFF;
+            int length = intAt(readPos + 2);
+            if (length < 0 || length > maxPayload) {
+                corruptFrames++;
+                skip(1);
+                continue;
+            }
+            crc.reset();
+            updateCrc(readPos + 1, FrameCodec.HEADER_SIZE - 2);
+            if ((byte) crc.getValue() != ring[(int) ((readPos + FrameCodec.HEADER_SIZE - 1) & mask)]) {
+                // The length cannot be trusted, on a quiet link its payload may never come
+                corruptFrames++;
+                skip(1);
+                continue;
+            }
+            if (available < length + FrameCodec.OVERHEAD) {
+                // Wait for the rest of the frame
+                return;
+            }
+
+            updateCrc(readPos + FrameCodec.HEADER_SIZE - 1, 1 + length);
+            if ((int) crc.getValue() != intAt(readPos + FrameCodec.HEADER_SIZE + length)) {
+                corruptFrames++;
+                skip(1);
+                continue;
+            }
+
+            long payloadPos = readPos + FrameCodec.HEADER_SIZE;
+            readPos += length + FrameCodec.OVERHEAD;
+            framesDecoded++;
+            deliver(type, payloadPos, length);
+        }
+    }
+
+    private void deliver(int type, long position, int length) throws IOException {
+        int index = (int) (position & mask);
+        int firstPart = ring.length - index;
+        if (length <= firstPart) {
+            listener.onFrame(type, ring, index, length);
+        } else {
+            System.arraycopy(ring, index, scratch, 0, firstPart);
+            System.arraycopy(ring, 0, scratch, firstPart, length - firstPart);
+            listener.onFrame(type, scratch, 0, length);
+        }
+    }
+
+    private void skip(int n) {
+        readPos += n;
+        bytesDiscarded += n;
+    }
+
+    private void updateCrc(long position, int length) {
+        int index = (int) (position & mask);
+        int firstPart = Math.min(length, ring.length - index);
+        crc.update(ring, index, firstPart);
+        if (firstPart < length) {
+            crc.update(ring, 0, length - firstPart);
+        }
+    }
+
+    private int intAt(long position) {
+        return (ring[(int) (position & mask)] & 0xFF) << 24
+                | (ring[(int) ((position + 1) & mask)] & 0xFF) << 16
+                | (ring[(int) ((position + 2) & mask)] & 0xFF) << 8
+                | (ring[(int) ((position + 3) & mask)] & 0xFF);
+    }
+
+    public long getFramesDecoded() {
+        return framesDecoded;
+    }
+
+    public long getCorruptFrames() {
+        return corruptFrames;
+    }
+
+    public long getBytesDiscarded() {
+        return bytesDiscarded;
+    }
+}
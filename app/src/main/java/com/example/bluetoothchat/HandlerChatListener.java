@@ -0,0 +1,71 @@
+package com.example.bluetoothchat;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * Forwards {@link ChatUtils} events to a Handler as the
+ * {@link Constants} messages the UI already understands.
+ */
+public class HandlerChatListener implements ChatListener {
+    private final Handler handler;
+
+    public HandlerChatListener(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void onStateChanged(int state) {
+        // Give the new state to the Handler so the UI Activity can update
+        handler.obtainMessage(Constants.MESSAGE_STATE_CHANGED, state, -1).sendToTarget();
+    }
+
+    @Override
+    public void onDeviceConnected(String address, String name) {
+        // Send the name of the connected device back to the UI Activity
+        Message message = handler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.DEVICE_ADDRESS, address);
+        bundle.putString(Constants.DEVICE_NAME, name);
+        message.setData(bundle);
+        handler.sendMessage(message);
+    }
+
+    @Override
+    public void onEncrypted(String fingerprint) {
+        // Show the UI Activity what to compare with the peer
+        Message message = handler.obtainMessage(Constants.MESSAGE_FINGERPRINT);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.FINGERPRINT, fingerprint);
+        message.setData(bundle);
+        handler.sendMessage(message);
+    }
+
+    @Override
+    public void onMessageRead(BufferPool.Lease lease) {
+        // Send the obtained bytes to the UI Activity
+        handler.obtainMessage(Constants.MESSAGE_READ, lease.length(), -1, lease).sendToTarget();
+    }
+
+    @Override
+    public void onMessageWritten(byte[] payload) {
+        // Share the sent message back to the UI Activity
+        handler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, payload).sendToTarget();
+    }
+
+    @Override
+    public void onMessageDelivered(byte[] payload) {
+        // The UI does not show delivery receipts
+    }
+
+    @Override
+    public void onToast(String text) {
+        //create a bundle to put data into the message to pass it to the main activity
+        Message message = handler.obtainMessage(Constants.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.TOAST, text);
+        message.setData(bundle);
+        handler.sendMessage(message);
+    }
+}
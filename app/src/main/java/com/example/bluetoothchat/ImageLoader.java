@@ -0,0 +1,359 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes the images of image messages off the main thread and keeps them
+ * in an LRU cache bounded by bytes rather than by count, since a full
+ * image weighs as much as hundreds of thumbnails.
+ *
+ * The conversation list checks {@link #get} when it binds a row and only
+ * asks for a {@link #load} on a miss, so scrolling back over rows already
+ * seen never decodes again. Each message has two entries, its thumbnail
+ * and its full image; the full image replaces the thumbnail once decoded.
+ * A load for an image that is already being decoded joins that decode,
+ * and a row that is recycled before its decode starts cancels it.
+ *
+ * The images are of type {@code T} so the cache does not depend on
+ * Android; {@link BitmapDecoder} decodes Bitmaps for the app.
+ */
+public class ImageLoader<T> {
+    private static final String TAG = "ImageLoader";
+
+    // Metric names
+    public static final String METRIC_DECODE = "image.decode";
+    public static final String METRIC_HITS = "image.cache.hits";
+    public static final String METRIC_MISSES = "image.cache.misses";
+    public static final String METRIC_EVICTIONS = "image.cache.evictions";
+
+    /**
+     * Turns a message into an image. Called on the decode executor.
+     */
+    public interface Decoder<T> {
+        /**
+         * @param full the full image rather than the thumbnail
+         * @return the image, or null if it is not there yet, like a full
+         * image still on its way
+         */
+        T decode(Message message, boolean full) throws IOException;
+
+        /**
+         * Bytes the image takes in memory.
+         */
+        int sizeOf(T image);
+    }
+
+    /**
+     * Receives a decoded image. Called on the callback executor.
+     */
+    public interface Callback<T> {
+        void onLoaded(Message message, boolean full, T image);
+    }
+
+    /**
+     * A message's thumbnail or full image.
+     */
+    private static final class Key {
+        long id;
+        boolean full;
+
+        Key(long id, boolean full) {
+            this.id = id;
+            this.full = full;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return id == other.id && full == other.full;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (id ^ id >>> 32) * 2 + (full ? 1 : 0);
+        }
+    }
+
+    private final class Request implements Runnable {
+        final Key key;
+        final Message message;
+        final List<Callback<T>> callbacks = new ArrayList<>(1);
+        boolean cancelled;
+
+        Request(Key key, Message message) {
+            this.key = key;
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ImageLoader.this) {
+                if (cancelled) {
+                    return;
+                }
+            }
+            T image = null;
+            long start = System.nanoTime();
+            try {
+                image = decoder.decode(message, key.full);
+            } catch (IOException | RuntimeException e) {
+                // a corrupt image must not take the decode thread with it
+                Log.e(TAG, "Cannot decode " + message.getImageName() + ": " + e);
+            }
+            long nanos = System.nanoTime() - start;
+            decodeTimes.record(nanos);
+            final List<Callback<T>> waiting;
+            synchronized (ImageLoader.this) {
+                if (sharedDecodeTimes != null) {
+                    sharedDecodeTimes.record(nanos);
+                }
+                pending.remove(key);
+                if (image == null) {
+                    absent.add(key);
+                    return;
+                }
+                putLocked(key, image);
+                waiting = new ArrayList<>(callbacks);
+            }
+            final T loaded = image;
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback<T> callback : waiting) {
+                        callback.onLoaded(message, key.full, loaded);
+                    }
+                }
+            });
+        }
+    }
+
+    private final Decoder<T> decoder;
+    private final long maxBytes;
+    private final Executor decodeExecutor;
+    private final Executor callbackExecutor;
+
+    //member variables, guarded by this
+    private final LinkedHashMap<Key, T> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Key, Request> pending = new HashMap<>();
+    //images the decoder had nothing for, not asked again until invalidated
+    private final Set<Key> absent = new HashSet<>();
+    //reused by lookups, so the bind path does not allocate
+    private final Key probe = new Key(0, false);
+    private long cacheBytes;
+
+    //statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final LatencyHistogram decodeTimes = new LatencyHistogram();
+    //shared metrics, null unless set
+    private LatencyHistogram sharedDecodeTimes;
+    private AtomicLong hitCounter;
+    private AtomicLong missCounter;
+    private AtomicLong evictionCounter;
+
+    /**
+     * @param maxBytes         how many bytes of images the cache may hold
+     * @param decodeExecutor   runs the decodes, never the main thread
+     * @param callbackExecutor delivers decoded images, the main thread in the app
+     */
+    public ImageLoader(Decoder<T> decoder, long maxBytes, Executor decodeExecutor, Executor callbackExecutor) {
+        this.decoder = decoder;
+        this.maxBytes = maxBytes;
+        this.decodeExecutor = decodeExecutor;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Record decode times ({@link #METRIC_DECODE}) and cache hits, misses
+     * and evictions.
+     */
+    public synchronized void setMetrics(MetricsRegistry metrics) {
+        sharedDecodeTimes = metrics.histogram(METRIC_DECODE);
+        hitCounter = metrics.counter(METRIC_HITS);
+        missCounter = metrics.counter(METRIC_MISSES);
+        evictionCounter = metrics.counter(METRIC_EVICTIONS);
+    }
+
+    /**
+     * The cached image, or null. Never decodes; counts a hit or a miss.
+     */
+    public T get(long id, boolean full) {
+        T image;
+        synchronized (this) {
+            probe.id = id;
+            probe.full = full;
+            image = cache.get(probe);
+            AtomicLong shared = image != null ? hitCounter : missCounter;
+            if (shared != null) {
+                shared.incrementAndGet();
+            }
+        }
+        (image != null ? hits : misses).incrementAndGet();
+        return image;
+    }
+
+    /**
+     * Decode an image of {@code message} in the background and hand it to
+     * {@code callback}, unless the decoder had nothing for it last time.
+     *
+     * @return false if no callback will come
+     */
+    public boolean load(Message message, boolean full, Callback<T> callback) {
+        Request request;
+        synchronized (this) {
+            probe.id = message.getId();
+            probe.full = full;
+            if (absent.contains(probe)) {
+                return false;
+            }
+            final T cached = cache.get(probe);
+            if (cached != null) {
+                // decoded since the caller's get
+                deliver(callback, message, full, cached);
+                return true;
+            }
+            request = pending.get(probe);
+            if (request != null) {
+                request.callbacks.add(callback);
+                return true;
+            }
+            Key key = new Key(message.getId(), full);
+            request = new Request(key, message);
+            request.callbacks.add(callback);
+            pending.put(key, request);
+        }
+        decodeExecutor.execute(request);
+        return true;
+    }
+
+    private void deliver(final Callback<T> callback, final Message message, final boolean full, final T image) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onLoaded(message, full, image);
+            }
+        });
+    }
+
+    /**
+     * Stop delivering to {@code callback}, a row that now shows another
+     * message. Decodes nobody waits for any more are skipped.
+     */
+    public synchronized void cancel(Callback<T> callback) {
+        Iterator<Request> requests = pending.values().iterator();
+        while (requests.hasNext()) {
+            Request request = requests.next();
+            if (request.callbacks.remove(callback) && request.callbacks.isEmpty()) {
+                request.cancelled = true;
+                requests.remove();
+            }
+        }
+    }
+
+    /**
+     * The full image of {@code id} has arrived: forget that it was missing.
+     */
+    public synchronized void invalidate(long id) {
+        probe.id = id;
+        probe.full = true;
+        absent.remove(probe);
+    }
+
+    private void putLocked(Key key, T image) {
+        int size = decoder.sizeOf(image);
+        if (size > maxBytes) {
+            // would push out everything else, it is shown this once
+            return;
+        }
+        T old = cache.put(key, image);
+        if (old != null) {
+            cacheBytes -= decoder.sizeOf(old);
+        }
+        cacheBytes += size;
+        if (key.full) {
+            // the full image is shown from now on
+            probe.id = key.id;
+            probe.full = false;
+            T thumbnail = cache.remove(probe);
+            if (thumbnail != null) {
+                cacheBytes -= decoder.sizeOf(thumbnail);
+            }
+        }
+        Iterator<Map.Entry<Key, T>> eldest = cache.entrySet().iterator();
+        while (cacheBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Key, T> entry = eldest.next();
+            cacheBytes -= decoder.sizeOf(entry.getValue());
+            eldest.remove();
+            evictions.incrementAndGet();
+            if (evictionCounter != null) {
+                evictionCounter.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getCacheCount() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Share of {@link #get} calls answered from the cache, between 0 and 1.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * How long decodes took, the ones that found nothing included.
+     */
+    public LatencyHistogram.Snapshot getDecodeTimes() {
+        return decodeTimes.snapshot();
+    }
+
+    /**
+     * One line on the cache and the decodes, for the log.
+     */
+    public String getReport() {
+        return String.format(Locale.US, "hit rate %.1f%% (%d hits, %d misses), %d evictions, %d/%d KB; decode %s",
+                getHitRate() * 100, hits.get(), misses.get(), evictions.get(),
+                getCacheBytes() / 1024, maxBytes / 1024, decodeTimes.snapshot());
+    }
+}
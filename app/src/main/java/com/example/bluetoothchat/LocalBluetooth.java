@@ -0,0 +1,56 @@
+package com.example.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+
+/**
+ * The local Bluetooth adapter and its name, looked up once for the whole
+ * app on first use instead of by each screen and service as it starts.
+ *
+ * Asking the adapter for its name goes to the Bluetooth process every
+ * time; the name is kept here and changed through {@link #setName}.
+ */
+public final class LocalBluetooth {
+
+    //member variables
+    private static boolean lookedUp;
+    private static BluetoothAdapter adapter;
+    private static String name;
+
+    private LocalBluetooth() {
+    }
+
+    /**
+     * @return the local adapter, or null if the device has no Bluetooth
+     */
+    public static synchronized BluetoothAdapter getAdapter() {
+        if (!lookedUp) {
+            adapter = BluetoothAdapter.getDefaultAdapter();
+            lookedUp = true;
+        }
+        return adapter;
+    }
+
+    /**
+     * @return the name other devices see, or null if there is no adapter
+     * or it is not known yet because Bluetooth is off
+     */
+    public static synchronized String getName() {
+        if (name == null && getAdapter() != null) {
+            name = adapter.getName();
+        }
+        return name;
+    }
+
+    /**
+     * Rename the local adapter.
+     *
+     * @return true if the adapter took the name
+     */
+    public static synchronized boolean setName(String newName) {
+        if (getAdapter() == null || !adapter.setName(newName)) {
+            return false;
+        }
+        name = newName;
+        return true;
+    }
+}
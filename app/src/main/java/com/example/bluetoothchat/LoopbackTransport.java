@@ -0,0 +1,156 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * {@link ChatTransport} that connects endpoints inside one process through
+ * {@link MemoryPipe}s. Endpoints that share a {@link Network} can reach each
+ * other by the address they were created with.
+ */
+public class LoopbackTransport implements ChatTransport {
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    /**
+     * The set of listening endpoints that can see each other.
+     */
+    public static class Network {
+        private final ConcurrentHashMap<String, LoopbackServer> servers = new ConcurrentHashMap<>();
+    }
+
+    private final Network network;
+    private final String localAddress;
+
+    public LoopbackTransport(Network network, String localAddress) {
+        this.network = network;
+        this.localAddress = localAddress;
+    }
+
+    public String getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        LoopbackServer server = new LoopbackServer();
+        if (network.servers.putIfAbsent(localAddress, server) != null) {
+            throw new IOException("Address already in use: " + localAddress);
+        }
+        return server;
+    }
+
+    @Override
+    public Connection createConnection(String address) {
+        return new PipeConnection(address, null, null);
+    }
+
+    private class LoopbackServer implements Server {
+        private final LinkedBlockingQueue<PipeConnection> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        @Override
+        public Connection accept() throws IOException {
+            PipeConnection connection;
+            try {
+                connection = pending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while accepting");
+            }
+            if (closed) {
+                connection.close();
+                throw new IOException("Server closed");
+            }
+            return connection;
+        }
+
+        synchronized boolean offer(PipeConnection connection) {
+            return !closed && pending.offer(connection);
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            network.servers.remove(localAddress, this);
+            // refuse connections nobody accepted, like a socket backlog
+            PipeConnection connection;
+            while ((connection = pending.poll()) != null) {
+                connection.close();
+            }
+            // wake a blocked accept()
+            pending.offer(new PipeConnection(localAddress, null, null));
+        }
+    }
+
+    private class PipeConnection implements Connection {
+        private final String remoteAddress;
+        private MemoryPipe in;
+        private MemoryPipe out;
+        private boolean closed;
+
+        PipeConnection(String remoteAddress, MemoryPipe in, MemoryPipe out) {
+            this.remoteAddress = remoteAddress;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            if (in != null) {
+                return;
+            }
+            LoopbackServer server = network.servers.get(remoteAddress);
+            if (server == null) {
+                throw new IOException("Connection refused: " + remoteAddress);
+            }
+            MemoryPipe toServer = new MemoryPipe(PIPE_CAPACITY);
+            MemoryPipe toClient = new MemoryPipe(PIPE_CAPACITY);
+            if (!server.offer(new PipeConnection(localAddress, toServer, toClient))) {
+                throw new IOException("Connection refused: " + remoteAddress);
+            }
+            in = toClient;
+            out = toServer;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                throw new IOException("Not connected");
+            }
+            return in.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                throw new IOException("Not connected");
+            }
+            return out.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteAddress;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            if (in != null) {
+                in.close();
+                out.close();
+            }
+        }
+    }
+}
@@ -7,25 +7,36 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 
+/**
+ * The launcher. Decides before anything is inflated whether the user goes
+ * through onboarding first, so a first run does not build the chat screen
+ * only to leave it; until then the launcher theme's logo stays on screen.
+ */
 public class MainActivity extends AppCompatActivity {
     public static final String TAG = "mainactivitysc";
 
+    // Loading this class starts the startup trace, where the process start is not known
+    private static final StartupTrace startup = StartupTrace.get();
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        setTheme(R.style.AppTheme);
-        super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
-
         SharedPreferences sharedPreferences = getSharedPreferences("Bluetooth_messenger",MODE_PRIVATE);
         //Check if Onboarding_completed is false
         if (!sharedPreferences.getBoolean("Onboarding_completed",false)){
+            super.onCreate(savedInstanceState);
+            startup.mark(StartupTrace.METRIC_ROUTE);
             Intent boardingIntent = new Intent(this,OnboardingActivity.class);
             startActivity(boardingIntent);
             finish();
             return;
         }
 
+        setTheme(R.style.AppTheme);
+        super.onCreate(savedInstanceState);
+        startup.mark(StartupTrace.METRIC_ROUTE);
+        setContentView(R.layout.activity_main);
+
         if (savedInstanceState == null) {
             FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
             BluetoothChatFragment fragment = new BluetoothChatFragment();
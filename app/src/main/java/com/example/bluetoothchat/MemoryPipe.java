@@ -0,0 +1,123 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded in-memory byte pipe. Unlike java.io.PipedInputStream it does not
+ * care which threads read and write, and closing either end wakes both.
+ */
+public final class MemoryPipe {
+    private final byte[] buffer;
+    private int readIndex;
+    private int count;
+    private boolean closed;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MemoryPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (MemoryPipe.this) {
+                return count;
+            }
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MemoryPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    public MemoryPipe(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (count == 0) {
+            if (closed) {
+                return -1;
+            }
+            await();
+        }
+        int n = Math.min(len, count);
+        int first = Math.min(n, buffer.length - readIndex);
+        System.arraycopy(buffer, readIndex, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, n - first);
+        readIndex = (readIndex + n) % buffer.length;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (count == buffer.length && !closed) {
+                await();
+            }
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            int writeIndex = (readIndex + count) % buffer.length;
+            int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writeIndex));
+            System.arraycopy(b, off, buffer, writeIndex, n);
+            count += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relay mode for a {@link SessionManager}: chat addressed to a device that
+ * is not connected here is passed on through the peers that are, so a
+ * chain of devices each in range of the next can reach its far end.
+ *
+ * <pre>
+ *   ROUTED payload: id(8) hops(1) ttl(4) dstLength(1) dst srcLength(1) src body
+ * </pre>
+ *
+ * The id is picked at random by the sender. A message goes straight to its
+ * destination if that is connected, otherwise to every peer but the one it
+ * came from. Each relay takes one from {@code hops} and drops it at zero.
+ * A message no peer could take waits, up to {@code ttl} milliseconds, and
+ * is sent to the next peer that connects; the time it waited is taken off
+ * its ttl. Every device forwards a message once, see {@link SeenIds}.
+ *
+ * Forwarded messages keep the bytes they arrived with: the payload is
+ * copied out of the decoder once, its hop count is changed in place and
+ * the same array is queued on every peer it goes to.
+ *
+ * Use it as the manager's listener, then {@link #attach} it:
+ *
+ * <pre>
+ *   MeshRelay relay = new MeshRelay(localAddress, peerListener, relayListener);
+ *   SessionManager manager = new SessionManager(transport, relay);
+ *   relay.attach(manager);
+ * </pre>
+ */
+public class MeshRelay implements SessionManager.Listener {
+    private static final String TAG = "MeshRelay";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_HOP_LIMIT = 8;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // Messages waiting for a peer, the oldest are dropped beyond this
+    static final int MAX_STORED = 256;
+
+    // Payload layout
+    private static final int ID = 0;
+    private static final int HOPS = 8;
+    private static final int TTL = 9;
+    private static final int ADDRESSES = 13;
+
+    /**
+     * Receives the messages addressed to this device. Called on a reader thread.
+     */
+    public interface Listener {
+        void onRelayedMessage(String source, byte[] body);
+    }
+
+    /**
+     * The ids of the messages already seen. A Bloom filter answers for
+     * every id, so a new one, the usual case, costs a few bit tests. A hit
+     * is confirmed in an exact LRU set of the latest ids, so a false
+     * positive never drops a new message.
+     *
+     * The filter has two generations and forgets the older one each time
+     * the newer fills up, which keeps its false positive rate below 1%
+     * however long the relay runs. Each generation holds more ids than the
+     * exact set, so every id in the exact set is in the filter too. An id
+     * the filter still remembers but the exact set has forgotten counts as
+     * new: it has been going round for longer than {@code exactCapacity}
+     * newer messages, and its hop count still limits how far it goes.
+     *
+     * Not thread safe.
+     */
+    static final class SeenIds {
+        private static final int HASHES = 4;
+
+        private final int bitsMask;
+        private final int generationCapacity;
+        private long[] current;
+        private long[] previous;
+        private int currentCount;
+        private final LinkedHashMap<Long, Boolean> exact;
+
+        /**
+         * @param log2Bits      log2 of the bits per filter generation
+         * @param exactCapacity ids kept in the exact set
+         */
+        SeenIds(int log2Bits, final int exactCapacity) {
+            bitsMask = (1 << log2Bits) - 1;
+            current = new long[1 << (log2Bits - 6)];
+            previous = new long[current.length];
+            // about 0.25% false positives per full generation with 4 hashes
+            generationCapacity = Math.max(exactCapacity, 1 << (log2Bits - 4));
+            exact = new LinkedHashMap<Long, Boolean>(exactCapacity * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                    return size() > exactCapacity;
+                }
+            };
+        }
+
+        SeenIds() {
+            this(17, 1024);
+        }
+
+        /**
+         * Remember {@code id}.
+         *
+         * @return false if it was seen before
+         */
+        boolean add(long id) {
+            long hash = mix(id);
+            if (mightContain(current, hash) || mightContain(previous, hash)) {
+                if (exact.get(id) != null) {
+                    return false;
+                }
+            }
+            if (currentCount == generationCapacity) {
+                long[] cleared = previous;
+                Arrays.fill(cleared, 0);
+                previous = current;
+                current = cleared;
+                currentCount = 0;
+            }
+            for (int i = 0; i < HASHES; i++) {
+                int bit = bit(hash, i);
+                current[bit >>> 6] |= 1L << bit;
+            }
+            currentCount++;
+            exact.put(id, Boolean.TRUE);
+            return true;
+        }
+
+        private boolean mightContain(long[] bits, long hash) {
+            for (int i = 0; i < HASHES; i++) {
+                int bit = bit(hash, i);
+                if ((bits[bit >>> 6] & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Double hashing on the two halves of the mixed id
+        private int bit(long hash, int i) {
+            return ((int) hash + i * (int) (hash >>> 32)) & bitsMask;
+        }
+
+        // splitmix64 finalizer
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * A message waiting for a peer.
+     */
+    private static final class Stored {
+        final byte[] payload;
+        final long storedAt;
+
+        Stored(byte[] payload, long storedAt) {
+            this.payload = payload;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private final String localAddress;
+    private final byte[] localAddressBytes;
+    private final SessionManager.Listener peerListener;
+    private final Listener listener;
+    private final Random random = new Random();
+    private volatile SessionManager manager;
+    private int hopLimit = DEFAULT_HOP_LIMIT;
+    private long ttlMillis = DEFAULT_TTL_MILLIS;
+
+    // Guarded by this
+    private final SeenIds seen = new SeenIds();
+    private final ArrayDeque<Stored> stored = new ArrayDeque<>();
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param localAddress the address peers know this device by
+     * @param peerListener receives everything else the manager reports
+     * @param listener     receives the messages addressed to this device
+     */
+    public MeshRelay(String localAddress, SessionManager.Listener peerListener, Listener listener) {
+        this.localAddress = localAddress;
+        this.localAddressBytes = localAddress.getBytes(UTF_8);
+        this.peerListener = peerListener;
+        this.listener = listener;
+    }
+
+    /**
+     * Start relaying on {@code manager}, which must report to this relay.
+     * Call before starting or connecting it.
+     */
+    public void attach(SessionManager manager) {
+        this.manager = manager;
+        manager.setFrameHandler(FrameCodec.TYPE_ROUTED, new SessionManager.FrameHandler() {
+            @Override
+            public void onFrame(String address, int type, byte[] buffer, int offset, int length) {
+                onRoutedFrame(address, buffer, offset, length);
+            }
+        });
+    }
+
+    /**
+     * Change how far and how long messages sent from now on may travel.
+     */
+    public synchronized void setLimits(int hopLimit, long ttlMillis) {
+        if (hopLimit < 1 || hopLimit > 255) {
+            throw new IllegalArgumentException("Hop limit out of range: " + hopLimit);
+        }
+        this.hopLimit = hopLimit;
+        this.ttlMillis = Math.min(ttlMillis, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Send {@code body} to {@code destination}, through other peers if it
+     * is not connected here. Never blocks.
+     *
+     * @return false if the message could not even be stored
+     */
+    public boolean send(String destination, byte[] body) {
+        byte[] dst = destination.getBytes(UTF_8);
+        if (dst.length > 255 || localAddressBytes.length > 255) {
+            throw new IllegalArgumentException("Address too long");
+        }
+        byte[] payload = new byte[ADDRESSES + 2 + dst.length + localAddressBytes.length + body.length];
+        long id = random.nextLong();
+        FrameCodec.putLong(payload, ID, id);
+        synchronized (this) {
+            payload[HOPS] = (byte) hopLimit;
+            FrameCodec.putInt(payload, TTL, (int) ttlMillis);
+            seen.add(id);
+        }
+        int i = ADDRESSES;
+        payload[i++] = (byte) dst.length;
+        System.arraycopy(dst, 0, payload, i, dst.length);
+        i += dst.length;
+        payload[i++] = (byte) localAddressBytes.length;
+        System.arraycopy(localAddressBytes, 0, payload, i, localAddressBytes.length);
+        i += localAddressBytes.length;
+        System.arraycopy(body, 0, payload, i, body.length);
+        if (payload.length > FrameCodec.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Message too large: " + body.length);
+        }
+        return forward(payload, destination, null);
+    }
+
+    private void onRoutedFrame(String from, byte[] buffer, int offset, int length) {
+        int dstLength = length > ADDRESSES ? buffer[offset + ADDRESSES] & 0xFF : -1;
+        int src = offset + ADDRESSES + 1 + dstLength;
+        if (dstLength < 0 || src >= offset + length || src + 1 + (buffer[src] & 0xFF) > offset + length) {
+            Log.w(TAG, "Dropping malformed message from " + from);
+            return;
+        }
+        long id = FrameCodec.getLong(buffer, offset + ID);
+        synchronized (this) {
+            if (!seen.add(id)) {
+                duplicates.incrementAndGet();
+                return;
+            }
+        }
+        int dst = offset + ADDRESSES + 1;
+        if (isLocal(buffer, dst, dstLength)) {
+            int srcLength = buffer[src] & 0xFF;
+            int body = src + 1 + srcLength;
+            delivered.incrementAndGet();
+            listener.onRelayedMessage(new String(buffer, src + 1, srcLength, UTF_8),
+                    Arrays.copyOfRange(buffer, body, offset + length));
+            return;
+        }
+        int hops = buffer[offset + HOPS] & 0xFF;
+        if (hops <= 1 || FrameCodec.getInt(buffer, offset + TTL) <= 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        // The one copy of the message, shared by every queue it goes on
+        byte[] payload = Arrays.copyOfRange(buffer, offset, offset + length);
+        payload[HOPS] = (byte) (hops - 1);
+        forward(payload, new String(payload, ADDRESSES + 1, dstLength, UTF_8), from);
+    }
+
+    private boolean isLocal(byte[] buffer, int offset, int length) {
+        if (length != localAddressBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != localAddressBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queue the payload to the destination if it is connected, otherwise
+     * to every peer but {@code from}, or store it if none takes it. The
+     * payload must not change once queued.
+     */
+    private boolean forward(byte[] payload, String destination, String from) {
+        SessionManager manager = this.manager;
+        if (manager == null) {
+            throw new IllegalStateException("Not attached");
+        }
+        PeerSession direct = manager.getSession(destination);
+        if (direct != null && direct.send(FrameCodec.TYPE_ROUTED, payload, null)) {
+            forwarded.incrementAndGet();
+            return true;
+        }
+        int sent = 0;
+        for (PeerSession session : manager.getSessions()) {
+            if (session == direct || session.getRemoteAddress().equals(from)) {
+                continue;
+            }
+            if (session.send(FrameCodec.TYPE_ROUTED, payload, null)) {
+                sent++;
+            }
+        }
+        if (sent > 0) {
+            forwarded.addAndGet(sent);
+            return true;
+        }
+        synchronized (this) {
+            if (stored.size() == MAX_STORED) {
+                stored.removeFirst();
+                dropped.incrementAndGet();
+            }
+            stored.addLast(new Stored(payload, System.nanoTime()));
+        }
+        return true;
+    }
+
+    /**
+     * Give the messages waiting for a peer to the one that just connected.
+     */
+    private void sendStored(String address) {
+        SessionManager manager = this.manager;
+        PeerSession session = manager != null ? manager.getSession(address) : null;
+        if (session == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            Iterator<Stored> it = stored.iterator();
+            while (it.hasNext()) {
+                Stored message = it.next();
+                long waited = TimeUnit.NANOSECONDS.toMillis(now - message.storedAt);
+                long ttl = FrameCodec.getInt(message.payload, TTL) - waited;
+                if (ttl <= 0) {
+                    it.remove();
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                // a copy, the stored payload may still be queued elsewhere
+                byte[] payload = message.payload.clone();
+                FrameCodec.putInt(payload, TTL, (int) ttl);
+                if (!session.send(FrameCodec.TYPE_ROUTED, payload, null)) {
+                    // the queue is full, the rest waits for the next peer
+                    return;
+                }
+                it.remove();
+                forwarded.incrementAndGet();
+            }
+        }
+    }
+
+    public String getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * Messages received for this device.
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * Frames queued to peers, for messages sent here and passed on.
+     */
+    public long getForwardedCount() {
+        return forwarded.get();
+    }
+
+    /**
+     * Messages received again and not forwarded a second time.
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    /**
+     * Messages dropped at their hop limit, after their ttl, or because
+     * too many were waiting.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public synchronized int getStoredCount() {
+        return stored.size();
+    }
+
+    @Override
+    public void onPeerConnected(String address, String name) {
+        peerListener.onPeerConnected(address, name);
+        sendStored(address);
+    }
+
+    @Override
+    public void onPeerDisconnected(String address) {
+        peerListener.onPeerDisconnected(address);
+    }
+
+    @Override
+    public void onMessage(String address, BufferPool.Lease lease) {
+        peerListener.onMessage(address, lease);
+    }
+
+    @Override
+    public void onSent(String address, byte[] payload) {
+        peerListener.onSent(address, payload);
+    }
+
+    @Override
+    public void onSendFailed(String address, byte[] payload, IOException e) {
+        peerListener.onSendFailed(address, payload, e);
+    }
+
+    @Override
+    public void onConnectFailed(String address, IOException e) {
+        peerListener.onConnectFailed(address, e);
+    }
+}
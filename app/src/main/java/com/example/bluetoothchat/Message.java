@@ -1,14 +1,32 @@
 package com.example.bluetoothchat;
 
 public class Message {
+    // Full images are named after the message, see getImageName()
+    private static final String IMAGE_PREFIX = "img-";
+    private static final String IMAGE_SUFFIX = ".jpg";
+
     //member
     private String sender, message;
+    //id of an image message, whose full image is a file named after it
+    private long id;
+    //small preview sent with an image message, null for text
+    private byte[] thumbnail;
 
     public Message (String sender, String  message){
         this.sender = sender;
         this.message =message;
     }
 
+    /**
+     * An image message: the caption, and a thumbnail shown until the full
+     * image has arrived.
+     */
+    public Message(long id, String sender, String caption, byte[] thumbnail) {
+        this(sender, caption);
+        this.id = id;
+        this.thumbnail = thumbnail;
+    }
+
     public String getSender() {
         return sender;
     }
@@ -16,4 +34,50 @@ public class Message {
     public String getMessage() {
         return message;
     }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isImage() {
+        return thumbnail != null;
+    }
+
+    public byte[] getThumbnail() {
+        return thumbnail;
+    }
+
+    /**
+     * File name of the full image of an image message.
+     */
+    public String getImageName() {
+        return imageName(id);
+    }
+
+    public static String imageName(long id) {
+        return IMAGE_PREFIX + Long.toHexString(id) + IMAGE_SUFFIX;
+    }
+
+    /**
+     * The message id a full image file belongs to, or null if the name is
+     * not one of {@link #getImageName()}.
+     */
+    public static Long imageIdOf(String fileName) {
+        int start = IMAGE_PREFIX.length();
+        int end = fileName.length() - IMAGE_SUFFIX.length();
+        if (!fileName.startsWith(IMAGE_PREFIX) || !fileName.endsWith(IMAGE_SUFFIX)
+                || end <= start || end - start > 16) {
+            return null;
+        }
+        // the id is unsigned hex, which Long.parseLong does not take above 2^63
+        long id = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(fileName.charAt(i), 16);
+            if (digit < 0) {
+                return null;
+            }
+            id = id << 4 | digit;
+        }
+        return id;
+    }
 }
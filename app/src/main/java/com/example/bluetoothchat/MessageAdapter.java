@@ -1,41 +1,243 @@
 package com.example.bluetoothchat;
 
-import android.bluetooth.BluetoothAdapter;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
+import androidx.recyclerview.widget.AsyncDifferConfig;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
-public class MessageAdapter extends ArrayAdapter<Message> {
-    private BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-    public MessageAdapter(@NonNull Context context, ArrayList<Message> messages) {
-        super(context, 0,messages);
+/**
+ * Adapter for the conversation list.
+ *
+ * Changes are made to a working copy on the main thread; the difference
+ * to the list on screen is computed on a background thread and applied
+ * as range notifications, so a new message binds one row instead of
+ * rebinding every visible one. Changes made while a diff is running are
+ * folded into the next one.
+ *
+ * Image messages show their thumbnail until the full image is decoded.
+ * Both come from an {@link ImageLoader}, whose cache is checked when a row
+ * is bound; only a miss decodes, in the background.
+ */
+public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.ViewHolder> {
+
+    /**
+     * Messages are never edited, so the same instance means the same row.
+     */
+    private static final DiffUtil.ItemCallback<Message> DIFF_CALLBACK = new DiffUtil.ItemCallback<Message>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
+            return oldItem == newItem;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Message oldItem, @NonNull Message newItem) {
+            return true;
+        }
+    };
+
+    private static final int TYPE_TEXT = 0;
+    private static final int TYPE_IMAGE = 1;
+
+    static class ViewHolder extends RecyclerView.ViewHolder implements ImageLoader.Callback<Bitmap> {
+        final TextView senderTextView;
+        final TextView messageTextView;
+        //null in text rows
+        final ImageView imageView;
+        //the image message shown, and whether its full image is
+        private long imageId;
+        private boolean showingFull;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            senderTextView = (TextView) itemView.findViewById(R.id.sender);
+            messageTextView = (TextView) itemView.findViewById(R.id.message);
+            imageView = (ImageView) itemView.findViewById(R.id.image);
+        }
+
+        void show(Bitmap image, boolean full) {
+            imageView.setImageBitmap(image);
+            showingFull = full;
+        }
+
+        @Override
+        public void onLoaded(Message message, boolean full, Bitmap image) {
+            // the row may show another message by now, and a late thumbnail must not cover the full image
+            if (message.getId() == imageId && (full || !showingFull)) {
+                show(image, full);
+            }
+        }
     }
 
-    @NonNull
-    @Override
-    public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
+    private final LayoutInflater inflater;
+    private final AsyncListDiffer<Message> differ;
+    //main thread copy that add() and prepend() change
+    private final List<Message> messages = new ArrayList<>();
+    private ImageLoader<Bitmap> imageLoader;
+    private boolean diffing;
+    private boolean dirty;
 
-        Message message = (Message) getItem(position);
+    private final Runnable commitCallback = new Runnable() {
+        @Override
+        public void run() {
+            diffing = false;
+            if (dirty) {
+                dirty = false;
+                submit();
+            }
+        }
+    };
+
+    public MessageAdapter(@NonNull Context context) {
+        this(context, null);
+    }
 
-        if (convertView == null){
-            convertView = LayoutInflater.from(getContext()).inflate(R.layout.message,parent,false);
+    /**
+     * @param diffExecutor runs the diffs, or null for the library's shared background thread
+     */
+    MessageAdapter(@NonNull Context context, Executor diffExecutor) {
+        inflater = LayoutInflater.from(context);
+        AsyncDifferConfig.Builder<Message> config = new AsyncDifferConfig.Builder<>(DIFF_CALLBACK);
+        if (diffExecutor != null) {
+            config.setBackgroundThreadExecutor(diffExecutor);
         }
-        TextView senderTextView = (TextView) convertView.findViewById(R.id.sender);
-        TextView messageTextView = (TextView) convertView.findViewById(R.id.message);
+        differ = new AsyncListDiffer<>(new AdapterListUpdateCallback(this), config.build());
+    }
+
+    /**
+     * Append a message at the bottom of the conversation.
+     */
+    public void add(Message message) {
+        messages.add(message);
+        submit();
+    }
+
+    /**
+     * Append several messages at once, with a single update of the list.
+     */
+    public void addAll(List<Message> batch) {
+        messages.addAll(batch);
+        submit();
+    }
+
+    /**
+     * Insert older messages above the ones already shown.
+     */
+    public void prepend(List<Message> older) {
+        messages.addAll(0, older);
+        submit();
+    }
 
-        senderTextView.setText(message.getSender());
-        messageTextView.setText(message.getMessage());
+    public void clear() {
+        messages.clear();
+        submit();
+    }
 
-        return convertView;
+    /**
+     * Where image rows get their images; without one they show the caption only.
+     */
+    public void setImageLoader(ImageLoader<Bitmap> imageLoader) {
+        this.imageLoader = imageLoader;
     }
 
+    /**
+     * The full image of message {@code id} has been received: show it
+     * instead of the thumbnail.
+     */
+    public void onImageArrived(long id) {
+        if (imageLoader != null) {
+            imageLoader.invalidate(id);
+        }
+        List<Message> current = differ.getCurrentList();
+        // most likely one of the latest
+        for (int i = current.size() - 1; i >= 0; i--) {
+            Message message = current.get(i);
+            if (message.isImage() && message.getId() == id) {
+                notifyItemChanged(i);
+                return;
+            }
+        }
+    }
 
+    private void submit() {
+        if (diffing) {
+            dirty = true;
+            return;
+        }
+        diffing = true;
+        differ.submitList(new ArrayList<>(messages), commitCallback);
+    }
+
+    public Message getItem(int position) {
+        return differ.getCurrentList().get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return differ.getCurrentList().size();
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return getItem(position).isImage() ? TYPE_IMAGE : TYPE_TEXT;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        int layout = viewType == TYPE_IMAGE ? R.layout.message_image : R.layout.message;
+        return new ViewHolder(inflater.inflate(layout, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        Message message = getItem(position);
+        holder.senderTextView.setText(message.getSender());
+        holder.messageTextView.setText(message.getMessage());
+        if (holder.imageView != null) {
+            bindImage(holder, message);
+        }
+    }
+
+    private void bindImage(ViewHolder holder, Message message) {
+        holder.imageId = message.getId();
+        holder.show(null, false);
+        if (imageLoader == null) {
+            return;
+        }
+        // the row's previous message is off screen, its decodes are not needed
+        imageLoader.cancel(holder);
+        Bitmap full = imageLoader.get(message.getId(), true);
+        if (full != null) {
+            holder.show(full, true);
+            return;
+        }
+        Bitmap thumbnail = imageLoader.get(message.getId(), false);
+        if (thumbnail != null) {
+            holder.show(thumbnail, false);
+        } else {
+            imageLoader.load(message, false, holder);
+        }
+        imageLoader.load(message, true, holder);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        if (holder.imageView != null && imageLoader != null) {
+            imageLoader.cancel(holder);
+        }
+    }
 }
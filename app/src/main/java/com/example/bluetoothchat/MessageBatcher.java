@@ -0,0 +1,172 @@
+package com.example.bluetoothchat;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects messages built on the chat threads and hands them to the UI
+ * once per display frame.
+ *
+ * The first message to arrive after a delivery asks for the next frame;
+ * everything that arrives before that frame is delivered with it as one
+ * list. A burst of hundreds of messages therefore costs the main thread
+ * one adapter update instead of one per message, and never more than one
+ * per frame.
+ *
+ * A message may come with the {@link BufferPool.Credit} of the bytes it
+ * was read from; that is released once the sink has taken the message,
+ * so messages waiting here for a frame still hold back the sender.
+ */
+public class MessageBatcher {
+
+    /**
+     * Receives the batches, on the thread the {@link FrameScheduler} runs ticks on.
+     */
+    public interface Sink {
+        void onBatch(List<Message> batch);
+    }
+
+    /**
+     * Runs a tick at the next display frame.
+     */
+    public interface FrameScheduler {
+        void scheduleFrame(Runnable tick);
+    }
+
+    private final FrameScheduler scheduler;
+    private final Sink sink;
+    private final ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<>();
+    // each one queued after its message, see the tick
+    private final ConcurrentLinkedQueue<BufferPool.Credit> credits = new ConcurrentLinkedQueue<>();
+    // true from the first message of a batch until its frame starts draining
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    //statistics
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            // Clear first, so a message offered while draining asks for another frame
+            scheduled.set(false);
+            if (closed) {
+                inbox.clear();
+                releaseQueuedCredits();
+                return;
+            }
+            // Credits before messages: a credit's message was queued before
+            // it, so it is in this batch or an earlier one. A credit queued
+            // after this point asks for another frame.
+            List<BufferPool.Credit> consumed = new ArrayList<>();
+            BufferPool.Credit credit;
+            while ((credit = credits.poll()) != null) {
+                consumed.add(credit);
+            }
+            List<Message> batch = new ArrayList<>();
+            Message message;
+            while ((message = inbox.poll()) != null) {
+                batch.add(message);
+            }
+            if (!batch.isEmpty()) {
+                batches.incrementAndGet();
+                delivered.addAndGet(batch.size());
+                if (batch.size() > maxBatchSize.get()) {
+                    maxBatchSize.set(batch.size());
+                }
+                sink.onBatch(batch);
+            }
+            for (BufferPool.Credit done : consumed) {
+                done.release();
+            }
+        }
+    };
+
+    public MessageBatcher(FrameScheduler scheduler, Sink sink) {
+        this.scheduler = scheduler;
+        this.sink = sink;
+    }
+
+    /**
+     * A batcher that delivers on the {@link Choreographer} frames of the
+     * calling thread, which must have a Looper (normally the main thread).
+     */
+    public static MessageBatcher onChoreographer(Sink sink) {
+        final Choreographer choreographer = Choreographer.getInstance();
+        return new MessageBatcher(new FrameScheduler() {
+            @Override
+            public void scheduleFrame(final Runnable tick) {
+                choreographer.postFrameCallback(new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        tick.run();
+                    }
+                });
+            }
+        }, sink);
+    }
+
+    /**
+     * Queue a message for the next frame. May be called from any thread.
+     */
+    public void offer(Message message) {
+        offer(message, BufferPool.Credit.NONE);
+    }
+
+    /**
+     * Queue a message for the next frame and release {@code credit} once
+     * the sink has taken it. May be called from any thread.
+     */
+    public void offer(Message message, BufferPool.Credit credit) {
+        if (closed) {
+            credit.release();
+            return;
+        }
+        inbox.add(message);
+        if (credit != BufferPool.Credit.NONE) {
+            credits.add(credit);
+            if (closed) {
+                // closed meanwhile, nobody will take it
+                releaseQueuedCredits();
+            }
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            scheduler.scheduleFrame(tick);
+        }
+    }
+
+    /**
+     * Drop queued messages and deliver nothing more, e.g. once the views are gone.
+     */
+    public void close() {
+        closed = true;
+        inbox.clear();
+        releaseQueuedCredits();
+    }
+
+    private void releaseQueuedCredits() {
+        BufferPool.Credit credit;
+        while ((credit = credits.poll()) != null) {
+            credit.release();
+        }
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getMessagesDelivered() {
+        return delivered.get();
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+}
@@ -0,0 +1,526 @@
+package com.example.bluetoothchat;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Binary record carried in a chat frame: who sent the message, when, its
+ * id and kind, and the text.
+ *
+ * <pre>
+ *   record : MAGIC(1) VERSION(1) field*
+ *   field  : tag(1) length(varint) value
+ *
+ *   tag 1  id         8 bytes, big endian
+ *   tag 2  timestamp  8 bytes, milliseconds since the epoch
+ *   tag 3  kind       1 byte, see KIND_*
+ *   tag 4  sender     UTF-8
+ *   tag 5  body       UTF-8
+ *   tag 6  thumbnail  encoded image, only in KIND_IMAGE
+ * </pre>
+ *
+ * Every field says how long it is, so a reader skips tags it does not
+ * know and a newer peer can add fields without breaking older ones.
+ * MAGIC is a byte that never occurs in UTF-8, which tells a record apart
+ * from the plain text older versions sent.
+ *
+ * Encoding and decoding work directly on a ByteBuffer, with text converted
+ * by hand, and decode into a reused {@link Record}, so neither allocates
+ * once the record's text arrays have grown to the longest message.
+ *
+ * An image message carries its caption as the body and a small thumbnail,
+ * so the conversation can show it at once; the full image follows as a
+ * file named after the id, see {@link Message#getImageName()}.
+ */
+public final class MessageCodec {
+
+    public static final byte MAGIC = (byte) 0xFF;
+    public static final int VERSION = 1;
+
+    // Kinds of message
+    public static final int KIND_TEXT = 1;
+    public static final int KIND_IMAGE = 2;
+
+    static final int TAG_ID = 1;
+    static final int TAG_TIMESTAMP = 2;
+    static final int TAG_KIND = 3;
+    static final int TAG_SENDER = 4;
+    static final int TAG_BODY = 5;
+    static final int TAG_THUMBNAIL = 6;
+
+    // MAGIC and VERSION, then the id, timestamp and kind fields
+    private static final int FIXED_LENGTH = 2 + (2 + 8) + (2 + 8) + (2 + 1);
+    private static final char REPLACEMENT = '\uFFFD';
+
+    /**
+     * A decoded message. The text fields are reused by the next decode.
+     */
+    public static final class Record {
+        private long id;
+        private long timestamp;
+        private int kind;
+        private final Text sender = new Text();
+        private final Text body = new Text();
+        private byte[] thumbnail = new byte[0];
+        private int thumbnailLength = -1;
+
+        public long getId() {
+            return id;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the sender, only valid until the next decode
+         */
+        public CharSequence getSender() {
+            return sender.view;
+        }
+
+        /**
+         * @return the body, only valid until the next decode
+         */
+        public CharSequence getBody() {
+            return body.view;
+        }
+
+        /**
+         * @return the length of the thumbnail in {@link #getThumbnail()},
+         * or -1 if the record has none
+         */
+        public int getThumbnailLength() {
+            return thumbnailLength;
+        }
+
+        /**
+         * @return the array holding the thumbnail from offset 0, only valid
+         * until the next decode
+         */
+        public byte[] getThumbnail() {
+            return thumbnail;
+        }
+
+        /**
+         * Copy the record into a {@link Message} for the UI.
+         */
+        public Message toMessage() {
+            if (kind == KIND_IMAGE) {
+                byte[] copy = new byte[Math.max(0, thumbnailLength)];
+                System.arraycopy(thumbnail, 0, copy, 0, copy.length);
+                return new Message(id, sender.toString(), body.toString(), copy);
+            }
+            return new Message(sender.toString(), body.toString());
+        }
+
+        void clear() {
+            id = 0;
+            timestamp = 0;
+            kind = 0;
+            sender.setLength(0);
+            body.setLength(0);
+            thumbnailLength = -1;
+        }
+    }
+
+    /**
+     * Decoded text in a reused array, seen through a CharBuffer over it.
+     */
+    private static final class Text {
+        private char[] chars = new char[64];
+        private CharBuffer view = CharBuffer.wrap(chars);
+
+        char[] reserve(int capacity) {
+            if (chars.length < capacity) {
+                chars = new char[Math.max(capacity, chars.length * 2)];
+                view = CharBuffer.wrap(chars);
+            }
+            return chars;
+        }
+
+        void setLength(int length) {
+            view.clear();
+            view.limit(length);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, view.limit());
+        }
+    }
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Size of the encoded record.
+     */
+    public static int encodedLength(CharSequence sender, CharSequence body) {
+        return encodedLength(sender, body, null);
+    }
+
+    /**
+     * Size of the encoded record with a thumbnail, which may be null.
+     */
+    public static int encodedLength(CharSequence sender, CharSequence body, byte[] thumbnail) {
+        int senderBytes = utf8Length(sender);
+        int bodyBytes = utf8Length(body);
+        int length = FIXED_LENGTH
+                + 1 + varintLength(senderBytes) + senderBytes
+                + 1 + varintLength(bodyBytes) + bodyBytes;
+        if (thumbnail != null) {
+            length += 1 + varintLength(thumbnail.length) + thumbnail.length;
+        }
+        return length;
+    }
+
+    /**
+     * Encode a record at the buffer's position, advancing it.
+     *
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the record does not fit; the
+     *                                 position is then unspecified
+     */
+    public static int encode(long id, long timestamp, int kind, CharSequence sender,
+                             CharSequence body, ByteBuffer dst) {
+        return encode(id, timestamp, kind, sender, body, null, dst);
+    }
+
+    /**
+     * Encode a record with a thumbnail, which is left out if null.
+     *
+     * @see #encode(long, long, int, CharSequence, CharSequence, ByteBuffer)
+     */
+    public static int encode(long id, long timestamp, int kind, CharSequence sender,
+                             CharSequence body, byte[] thumbnail, ByteBuffer dst) {
+        int start = dst.position();
+        dst.put(MAGIC);
+        dst.put((byte) VERSION);
+        dst.put((byte) TAG_ID);
+        dst.put((byte) 8);
+        dst.putLong(id);
+        dst.put((byte) TAG_TIMESTAMP);
+        dst.put((byte) 8);
+        dst.putLong(timestamp);
+        dst.put((byte) TAG_KIND);
+        dst.put((byte) 1);
+        dst.put((byte) kind);
+        putText(TAG_SENDER, sender, dst);
+        putText(TAG_BODY, body, dst);
+        if (thumbnail != null) {
+            dst.put((byte) TAG_THUMBNAIL);
+            putVarint(dst, thumbnail.length);
+            dst.put(thumbnail);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Encode a record into a new array of the exact size.
+     */
+    public static byte[] encode(long id, long timestamp, int kind, CharSequence sender, CharSequence body) {
+        return encode(id, timestamp, kind, sender, body, (byte[]) null);
+    }
+
+    /**
+     * Encode a record with a thumbnail into a new array of the exact size.
+     */
+    public static byte[] encode(long id, long timestamp, int kind, CharSequence sender, CharSequence body,
+                                byte[] thumbnail) {
+        byte[] record = new byte[encodedLength(sender, body, thumbnail)];
+        encode(id, timestamp, kind, sender, body, thumbnail, ByteBuffer.wrap(record));
+        return record;
+    }
+
+    /**
+     * Whether the bytes are a record rather than the plain text of an
+     * older peer.
+     */
+    public static boolean isRecord(byte[] bytes, int offset, int length) {
+        return length >= 2 && bytes[offset] == MAGIC;
+    }
+
+    /**
+     * Decode the record between the buffer's position and limit into
+     * {@code into}, consuming it. Unknown fields are skipped; fields that
+     * are missing keep their zero value.
+     *
+     * @return false if the bytes are not a record or are cut short
+     */
+    public static boolean decode(ByteBuffer src, Record into) {
+        into.clear();
+        if (src.remaining() < 2 || src.get() != MAGIC) {
+            return false;
+        }
+        // a later version only adds fields, which are skipped below
+        src.get();
+        while (src.hasRemaining()) {
+            int tag = src.get() & 0xFF;
+            int length = getVarint(src);
+            if (length < 0 || length > src.remaining()) {
+                return false;
+            }
+            int end = src.position() + length;
+            switch (tag) {
+                case TAG_ID:
+                    if (length >= 8) {
+                        into.id = src.getLong();
+                    }
+                    break;
+                case TAG_TIMESTAMP:
+                    if (length >= 8) {
+                        into.timestamp = src.getLong();
+                    }
+                    break;
+                case TAG_KIND:
+                    if (length >= 1) {
+                        into.kind = src.get() & 0xFF;
+                    }
+                    break;
+                case TAG_SENDER:
+                    getText(src, end, into.sender);
+                    break;
+                case TAG_BODY:
+                    getText(src, end, into.body);
+                    break;
+                case TAG_THUMBNAIL:
+                    if (into.thumbnail.length < length) {
+                        into.thumbnail = new byte[Math.max(length, into.thumbnail.length * 2)];
+                    }
+                    src.get(into.thumbnail, 0, length);
+                    into.thumbnailLength = length;
+                    break;
+            }
+            // skips unknown fields, and the rest of known ones that grew
+            src.position(end);
+        }
+        return true;
+    }
+
+    private static void putText(int tag, CharSequence text, ByteBuffer dst) {
+        dst.put((byte) tag);
+        int length = utf8Length(text);
+        putVarint(dst, length);
+        if (dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        if (dst.hasArray()) {
+            // straight into the array, without a bounds check per byte
+            int start = dst.arrayOffset() + dst.position();
+            putUtf8(text, dst.array(), start);
+            dst.position(dst.position() + length);
+            return;
+        }
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | c >> 6));
+                dst.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                dst.put((byte) (0xF0 | cp >> 18));
+                dst.put((byte) (0x80 | cp >> 12 & 0x3F));
+                dst.put((byte) (0x80 | cp >> 6 & 0x3F));
+                dst.put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // a lone surrogate cannot be encoded
+                dst.put((byte) '?');
+            } else {
+                dst.put((byte) (0xE0 | c >> 12));
+                dst.put((byte) (0x80 | c >> 6 & 0x3F));
+                dst.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private static void putUtf8(CharSequence text, byte[] dst, int pos) {
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xC0 | c >> 6);
+                dst[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                dst[pos++] = (byte) (0xF0 | cp >> 18);
+                dst[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                dst[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                dst[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                dst[pos++] = (byte) '?';
+            } else {
+                dst[pos++] = (byte) (0xE0 | c >> 12);
+                dst[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                dst[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    static int utf8Length(CharSequence text) {
+        int n = text.length();
+        int bytes = n;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // two chars, four bytes
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Decode UTF-8 up to {@code end} into {@code out}. Malformed bytes
+     * become U+FFFD.
+     */
+    private static void getText(ByteBuffer src, int end, Text out) {
+        // every byte decodes to at most one char
+        char[] chars = out.reserve(end - src.position());
+        int n = 0;
+        if (src.hasArray()) {
+            // straight from the array, without a bounds check per byte
+            int base = src.arrayOffset();
+            n = getUtf8(src.array(), base + src.position(), base + end, chars);
+            src.position(end);
+            out.setLength(n);
+            return;
+        }
+        while (src.position() < end) {
+            int b = src.get() & 0xFF;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+                continue;
+            }
+            int extra = extraBytes(b);
+            if (extra == 0) {
+                chars[n++] = REPLACEMENT;
+                continue;
+            }
+            int cp = b & (0x3F >> extra);
+            int i = 0;
+            for (; i < extra && src.position() < end; i++) {
+                int next = src.get(src.position()) & 0xFF;
+                if ((next & 0xC0) != 0x80) {
+                    break;
+                }
+                src.get();
+                cp = cp << 6 | next & 0x3F;
+            }
+            n = putCodePoint(chars, n, i < extra ? -1 : cp, extra);
+        }
+        out.setLength(n);
+    }
+
+    private static int getUtf8(byte[] src, int pos, int end, char[] out) {
+        int n = 0;
+        while (pos < end) {
+            int b = src[pos++] & 0xFF;
+            if (b < 0x80) {
+                out[n++] = (char) b;
+                continue;
+            }
+            int extra = extraBytes(b);
+            if (extra == 0) {
+                out[n++] = REPLACEMENT;
+                continue;
+            }
+            int cp = b & (0x3F >> extra);
+            int i = 0;
+            for (; i < extra && pos < end && (src[pos] & 0xC0) == 0x80; i++) {
+                cp = cp << 6 | src[pos++] & 0x3F;
+            }
+            n = putCodePoint(out, n, i < extra ? -1 : cp, extra);
+        }
+        return n;
+    }
+
+    /**
+     * @return how many continuation bytes follow a lead byte, or 0 if it
+     * cannot start a sequence
+     */
+    private static int extraBytes(int b) {
+        if (b >= 0xC2 && b < 0xE0) {
+            return 1;
+        } else if (b >= 0xE0 && b < 0xF0) {
+            return 2;
+        } else if (b >= 0xF0 && b < 0xF5) {
+            return 3;
+        }
+        return 0;
+    }
+
+    /**
+     * Store a decoded sequence at {@code n}, or U+FFFD if it was cut short
+     * (-1), overlong, a surrogate or beyond Unicode.
+     *
+     * @return the index after it
+     */
+    private static int putCodePoint(char[] out, int n, int cp, int extra) {
+        if (cp < 0 || (extra == 2 && (cp < 0x800 || Character.isSurrogate((char) cp)))
+                || (extra == 3 && (cp < 0x10000 || cp > Character.MAX_CODE_POINT))) {
+            out[n++] = REPLACEMENT;
+        } else if (extra == 3) {
+            out[n++] = Character.highSurrogate(cp);
+            out[n++] = Character.lowSurrogate(cp);
+        } else {
+            out[n++] = (char) cp;
+        }
+        return n;
+    }
+
+    private static int varintLength(int value) {
+        int n = 1;
+        while ((value >>>= 7) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * @return the value, or -1 if it is cut short or too long
+     */
+    private static int getVarint(ByteBuffer src) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!src.hasRemaining()) {
+                return -1;
+            }
+            int b = src.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Full-text index over a conversation's history: for every word, the
+ * numbers of the messages in the {@link MessageStore} that contain it.
+ *
+ * Words are runs of letters and digits, lower-cased; every CJK ideograph is
+ * a word of its own since those scripts do not separate words with spaces.
+ * Each word's message numbers only ever grow, so they are kept as varint
+ * encoded gaps from the previous number, usually one or two bytes each.
+ *
+ * Every query word matches the words it is a prefix of, and a message
+ * matches when it contains all of the query words. Messages are indexed
+ * and searched on the index's own thread, in the order they were added;
+ * {@link #search(String, int)} can also be called directly from any thread
+ * but the main one.
+ */
+public class MessageIndex implements Closeable {
+    private static final String TAG = "MessageIndex";
+
+    public static final int DEFAULT_LIMIT = 100;
+    // Longer words are cut to this, they would only bloat the dictionary
+    static final int MAX_WORD = 32;
+    private static final int REBUILD_PAGE = 1024;
+
+    /**
+     * Receives the result of {@link #search(String, int, SearchCallback)}.
+     * Called on the index's thread.
+     */
+    public interface SearchCallback {
+        void onResults(String query, long[] positions);
+    }
+
+    /**
+     * Message numbers of one word, as varint encoded gaps.
+     */
+    static final class Postings {
+        byte[] data = new byte[4];
+        int length;
+        int count;
+        long last = -1;
+
+        /**
+         * @return false if the message is not after the last one added
+         */
+        boolean add(long position) {
+            if (position <= last) {
+                return false;
+            }
+            if (data.length - length < 10) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            }
+            long gap = position - last;
+            while ((gap & ~0x7FL) != 0) {
+                data[length++] = (byte) (gap & 0x7F | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+            last = position;
+            count++;
+            return true;
+        }
+
+        void addTo(BitSet set) {
+            long position = -1;
+            int i = 0;
+            while (i < length) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[i++];
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                position += gap;
+                set.set((int) position);
+            }
+        }
+    }
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+    // Guarded by this
+    private final TreeMap<String, Postings> words = new TreeMap<>();
+    private final StringBuilder word = new StringBuilder(MAX_WORD);
+    private long indexed;
+    private long postingsBytes;
+
+    /**
+     * Index a message on the index's thread. Messages must be added in the
+     * order of their numbers; one already indexed is ignored.
+     *
+     * @param position the number the store gave the message
+     */
+    public void add(final long position, final String text) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                index(position, text);
+            }
+        });
+    }
+
+    /**
+     * Drop the index and build it again from the store, reading it a page
+     * at a time on the index's thread. Messages added meanwhile are indexed
+     * once, after the pass.
+     */
+    public void rebuild(final MessageStore store) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MessageIndex.this) {
+                    words.clear();
+                    indexed = 0;
+                    postingsBytes = 0;
+                }
+                try {
+                    long end = store.appendedCount();
+                    store.awaitCommitted(end);
+                    for (long from = 0; from < end; from += REBUILD_PAGE) {
+                        List<Message> page = store.read(from, (int) Math.min(REBUILD_PAGE, end - from));
+                        for (int i = 0; i < page.size(); i++) {
+                            index(from + i, page.get(i).getMessage());
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "rebuild: " + e);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "rebuild interrupted");
+                }
+            }
+        });
+    }
+
+    /**
+     * Search on the index's thread, after everything added before.
+     */
+    public void search(final String query, final int limit, final SearchCallback callback) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResults(query, search(query, limit));
+            }
+        });
+    }
+
+    /**
+     * Numbers of the messages that contain every word of the query, or a
+     * word starting with it.
+     *
+     * @return at most {@code limit} numbers, newest first
+     */
+    public synchronized long[] search(String query, int limit) {
+        BitSet matches = null;
+        int n = query.length();
+        int i = 0;
+        while ((i = nextWord(query, i, n)) >= 0) {
+            String prefix = word.toString();
+            BitSet any = new BitSet();
+            // every word in [prefix, prefix + highest char] starts with the prefix
+            SortedMap<String, Postings> range = words.subMap(prefix, prefix + Character.MAX_VALUE);
+            for (Postings postings : range.values()) {
+                postings.addTo(any);
+            }
+            if (matches == null) {
+                matches = any;
+            } else {
+                matches.and(any);
+            }
+            if (matches.isEmpty()) {
+                break;
+            }
+        }
+        if (matches == null) {
+            return new long[0];
+        }
+        long[] result = new long[Math.min(limit, matches.cardinality())];
+        int position = matches.length();
+        for (int k = 0; k < result.length; k++) {
+            position = matches.previousSetBit(position - 1);
+            result[k] = position;
+        }
+        return result;
+    }
+
+    /**
+     * Block until everything queued so far has been indexed.
+     */
+    public void flush() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    /**
+     * Number of messages indexed, counting from the first in the store.
+     */
+    public synchronized long getIndexedCount() {
+        return indexed;
+    }
+
+    public synchronized int getWordCount() {
+        return words.size();
+    }
+
+    /**
+     * Size of the encoded message numbers of all words.
+     */
+    public synchronized long getPostingsBytes() {
+        return postingsBytes;
+    }
+
+    @Override
+    public void close() {
+        worker.shutdown();
+    }
+
+    private synchronized void index(long position, String text) {
+        if (position < indexed || position > Integer.MAX_VALUE) {
+            return;
+        }
+        int n = text.length();
+        int i = 0;
+        while ((i = nextWord(text, i, n)) >= 0) {
+            String key = word.toString();
+            Postings postings = words.get(key);
+            if (postings == null) {
+                postings = new Postings();
+                words.put(key, postings);
+            }
+            int before = postings.length;
+            if (postings.add(position)) {
+                postingsBytes += postings.length - before;
+            }
+        }
+        indexed = position + 1;
+    }
+
+    /**
+     * Put the next word at or after {@code i} into {@link #word}.
+     *
+     * @return where to look for the word after it, or -1 if there is none
+     */
+    private int nextWord(CharSequence text, int i, int n) {
+        word.setLength(0);
+        while (i < n) {
+            int cp = Character.codePointAt(text, i);
+            int next = i + Character.charCount(cp);
+            if (Character.isIdeographic(cp)) {
+                if (word.length() > 0) {
+                    // ends the word before it, and is looked at again
+                    return i;
+                }
+                word.appendCodePoint(cp);
+                return next;
+            }
+            if (Character.isLetterOrDigit(cp)) {
+                if (word.length() < MAX_WORD) {
+                    word.appendCodePoint(Character.toLowerCase(cp));
+                }
+            } else if (word.length() > 0) {
+                return next;
+            }
+            i = next;
+        }
+        return word.length() > 0 ? n : -1;
+    }
+}
@@ -0,0 +1,679 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Persistent conversation history: an append-only log of {@link Message}s
+ * split into segment files, with a sparse offset index per segment.
+ *
+ * {@link #append} only queues the message; a writer thread drains whatever
+ * has been queued, writes it in one go and syncs once per batch (group
+ * commit). Reads seek through the sparse index to the nearest indexed
+ * record and scan from there, so a page costs the same no matter how long
+ * the history is.
+ *
+ * <pre>
+ *   segment  NNNN.log : record*     record = length(4) crc32c(4) body
+ *   index    NNNN.idx : entry*      entry  = record number(4) file position(4)
+ * </pre>
+ *
+ * NNNN is the number of the first message in the segment. A torn record at
+ * the end of the last segment (power loss mid-write) is truncated on open.
+ *
+ * If the writer cannot write, the store stops taking messages: appending
+ * and waiting for messages that will never be committed fail with the
+ * error, and what was committed before can still be read.
+ *
+ * {@link #closeInBackground()} leaves the last commit and sync to the
+ * writer, for callers on the main thread; a store opened on the same
+ * directory before that is done waits for it.
+ */
+public class MessageStore implements Closeable {
+    private static final String TAG = "MessageStore";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_INDEX_INTERVAL = 64;
+
+    private static final int RECORD_HEADER = 8;
+    // Queued by close() to stop the writer once everything before it is committed
+    private static final Message STOP = new Message(null, null);
+    private static final int MAX_RECORD = FrameCodec.MAX_PAYLOAD * 4;
+    // Writers still committing after closeInBackground(), by directory
+    private static final ConcurrentHashMap<String, Thread> closing = new ConcurrentHashMap<>();
+
+    /**
+     * Receives a page loaded by {@link #loadPage}. Called on the store's reader thread.
+     */
+    public interface PageCallback {
+        void onPage(long from, List<Message> messages);
+
+        /**
+         * The page could not be read, or not all of it has been written.
+         */
+        void onFailed(IOException e);
+    }
+
+    private static final class Segment {
+        final long base;
+        final File logFile;
+        final File indexFile;
+        // sparse index, entries are (record number within segment, file position)
+        int[] indexRecords = new int[16];
+        int[] indexPositions = new int[16];
+        int indexSize;
+        int count;
+        long bytes;
+
+        Segment(File dir, long base) {
+            this.base = base;
+            String name = String.format(Locale.US, "%020d", base);
+            logFile = new File(dir, name + ".log");
+            indexFile = new File(dir, name + ".idx");
+        }
+
+        void addIndexEntry(int record, int position) {
+            if (indexSize == indexRecords.length) {
+                indexRecords = Arrays.copyOf(indexRecords, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexRecords[indexSize] = record;
+            indexPositions[indexSize] = position;
+            indexSize++;
+        }
+
+        /**
+         * Index of the last entry at or before {@code record}.
+         */
+        int floorEntry(int record) {
+            int lo = 0;
+            int hi = indexSize - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (indexRecords[mid] <= record) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final LinkedBlockingQueue<Message> pending = new LinkedBlockingQueue<>();
+    private final ExecutorService reader = Executors.newSingleThreadExecutor();
+    private final Thread writer;
+    private final Crc32c crc = new Crc32c();
+
+    // Touched by the writer thread only
+    private Segment active;
+    private FileChannel logChannel;
+    private FileChannel indexChannel;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(8 * 1024);
+    private final List<Message> batch = new ArrayList<>();
+
+    // Guarded by this
+    private long committed;
+    private long appended;
+    private boolean closed;
+    // Why the writer stopped, null while it runs
+    private IOException failure;
+
+    //statistics
+    private volatile long commits;
+
+    public MessageStore(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES, DEFAULT_INDEX_INTERVAL);
+    }
+
+    public MessageStore(File dir, int segmentBytes, int indexInterval) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        Thread previous = closing.get(dir.getAbsolutePath());
+        if (previous != null) {
+            // the last store of this directory is still writing its files
+            try {
+                previous.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while the history was being closed");
+            }
+        }
+        recover();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        writer.start();
+    }
+
+    /**
+     * Queue a message for the log. Never blocks on disk.
+     *
+     * @return the number of the message, its position in the history
+     * @throws IOException if the writer has failed
+     */
+    public long append(Message message) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Store is closed");
+            }
+            checkFailure();
+            pending.add(message);
+            return appended++;
+        }
+    }
+
+    /**
+     * Number of messages that are safely on disk.
+     */
+    public synchronized long size() {
+        return committed;
+    }
+
+    /**
+     * Number of messages appended, including those not yet on disk.
+     */
+    public synchronized long appendedCount() {
+        return appended;
+    }
+
+    public long getCommitCount() {
+        return commits;
+    }
+
+    /**
+     * Block until every message appended so far is on disk.
+     *
+     * @throws IOException if the writer failed before
+     */
+    public synchronized void flush() throws InterruptedException, IOException {
+        while (committed < appended && !closed) {
+            checkFailure();
+            wait();
+        }
+    }
+
+    /**
+     * Block until the first {@code count} messages are on disk, or all of
+     * them if fewer have been appended.
+     *
+     * @throws IOException if the writer failed before
+     */
+    public synchronized void awaitCommitted(long count) throws InterruptedException, IOException {
+        while (committed < Math.min(count, appended) && !closed) {
+            checkFailure();
+            wait();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("History cannot be written", failure);
+        }
+    }
+
+    /**
+     * Read up to {@code count} committed messages starting at {@code from}.
+     */
+    public List<Message> read(long from, int count) throws IOException {
+        List<Message> result = new ArrayList<>(Math.max(0, count));
+        long next = Math.max(0, from);
+        while (true) {
+            Segment segment;
+            int first;
+            int n;
+            synchronized (this) {
+                long end = Math.min(committed, from + count);
+                if (next >= end) {
+                    return result;
+                }
+                segment = segments.floorEntry(next).getValue();
+                first = (int) (next - segment.base);
+                n = (int) (Math.min(end, segment.base + segment.count) - next);
+            }
+            readSegment(segment, first, n, result);
+            next += n;
+        }
+    }
+
+    /**
+     * Read a page on the store's reader thread.
+     */
+    public void loadPage(final long from, final int count, final PageCallback callback) {
+        reader.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // The page may include messages still waiting for the writer
+                    awaitCommitted(from + count);
+                    callback.onPage(from, read(from, count));
+                } catch (IOException e) {
+                    Log.e(TAG, "loadPage: " + e);
+                    callback.onFailed(e);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "loadPage interrupted");
+                }
+            }
+        });
+    }
+
+    private void readSegment(Segment segment, int first, int count, List<Message> out) throws IOException {
+        int entry;
+        int record;
+        int position;
+        synchronized (this) {
+            entry = segment.floorEntry(first);
+            record = segment.indexRecords[entry];
+            position = segment.indexPositions[entry];
+        }
+        DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(
+                new FileInputStream(segment.logFile), 16 * 1024));
+        try {
+            skipFully(in, position);
+            byte[] body = new byte[256];
+            while (record < first + count) {
+                int length = in.readInt();
+                in.readInt(); // crc, verified on recovery
+                if (record < first) {
+                    skipFully(in, length);
+                } else {
+                    if (body.length < length) {
+                        body = new byte[length];
+                    }
+                    in.readFully(body, 0, length);
+                    out.add(decode(body, length));
+                }
+                record++;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Take no more messages, wait until the queued ones are committed and
+     * close the files.
+     */
+    @Override
+    public void close() {
+        if (!stop()) {
+            return;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Take no more messages and return at once; the writer commits the
+     * queued ones and closes the files on its own thread. Pages already
+     * asked for are still read.
+     */
+    public void closeInBackground() {
+        // before the writer can see STOP, so that it is always taken off again
+        closing.put(dir.getAbsolutePath(), writer);
+        if (!stop()) {
+            closing.remove(dir.getAbsolutePath(), writer);
+        }
+    }
+
+    /**
+     * @return false if the store was closed already
+     */
+    private boolean stop() {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            notifyAll();
+        }
+        // Not an interrupt: that would close the FileChannels mid-write
+        pending.add(STOP);
+        reader.shutdown();
+        return true;
+    }
+
+    private void writeLoop() {
+        try {
+            openActive();
+            boolean stopping = false;
+            while (!stopping) {
+                batch.add(pending.take());
+                pending.drainTo(batch);
+                // close() queues STOP after the last message it accepted
+                if (batch.get(batch.size() - 1) == STOP) {
+                    batch.remove(batch.size() - 1);
+                    stopping = true;
+                }
+                if (!batch.isEmpty()) {
+                    commit();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "writer interrupted");
+        } catch (IOException e) {
+            Log.e(TAG, "write: " + e);
+            // nothing queued will be written, wake whoever waits for it
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+            pending.clear();
+        } finally {
+            closeChannels();
+            closing.remove(dir.getAbsolutePath(), writer);
+        }
+    }
+
+    private void commit() throws IOException {
+        int written = 0;
+        for (Message message : batch) {
+            if (active.bytes >= segmentBytes) {
+                flushBuffers();
+                roll();
+            }
+            writeRecord(message);
+            written++;
+        }
+        flushBuffers();
+        // One sync for the whole batch
+        logChannel.force(false);
+        indexChannel.force(false);
+        batch.clear();
+        commits++;
+        synchronized (this) {
+            committed += written;
+            notifyAll();
+        }
+    }
+
+    private void writeRecord(Message message) throws IOException {
+        byte[] body = encode(message);
+        if (writeBuffer.remaining() < RECORD_HEADER + body.length) {
+            flushBuffers();
+            if (writeBuffer.capacity() < RECORD_HEADER + body.length) {
+                writeBuffer = ByteBuffer.allocate(RECORD_HEADER + body.length);
+            }
+        }
+        int position = (int) active.bytes;
+        crc.reset();
+        crc.update(body, 0, body.length);
+        writeBuffer.putInt(body.length).putInt((int) crc.getValue()).put(body);
+
+        synchronized (this) {
+            if (active.count % indexInterval == 0 && (active.indexSize == 0
+                    || active.indexRecords[active.indexSize - 1] != active.count)) {
+                active.addIndexEntry(active.count, position);
+                if (indexBuffer.remaining() < 8) {
+                    flushBuffers();
+                }
+                indexBuffer.putInt(active.count).putInt(position);
+            }
+            active.count++;
+        }
+        active.bytes += RECORD_HEADER + body.length;
+    }
+
+    private void flushBuffers() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            logChannel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+        indexBuffer.flip();
+        while (indexBuffer.hasRemaining()) {
+            indexChannel.write(indexBuffer);
+        }
+        indexBuffer.clear();
+    }
+
+    private void roll() throws IOException {
+        logChannel.force(false);
+        indexChannel.force(false);
+        closeChannels();
+        Segment segment = new Segment(dir, active.base + active.count);
+        synchronized (this) {
+            segments.put(segment.base, segment);
+        }
+        active = segment;
+        openActive();
+    }
+
+    private void openActive() throws IOException {
+        logChannel = openChannel(active.logFile);
+        logChannel.position(active.bytes);
+        indexChannel = openChannel(active.indexFile);
+        indexChannel.position((long) active.indexSize * 8);
+    }
+
+    /**
+     * Open a segment file for the writer. Tests override it to make writes fail.
+     */
+    FileChannel openChannel(File file) throws IOException {
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    private void closeChannels() {
+        try {
+            if (logChannel != null) {
+                logChannel.close();
+            }
+            if (indexChannel != null) {
+                indexChannel.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e);
+        }
+    }
+
+    /**
+     * Load the segment list and indexes, and repair the tail of the last segment.
+     */
+    private void recover() throws IOException {
+        File[] logs = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(".log");
+            }
+        });
+        if (logs != null) {
+            for (File log : logs) {
+                String name = log.getName();
+                try {
+                    long base = Long.parseLong(name.substring(0, name.length() - 4));
+                    segments.put(base, new Segment(dir, base));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring " + name);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new Segment(dir, 0));
+        }
+
+        Long[] bases = segments.keySet().toArray(new Long[0]);
+        for (int i = 0; i < bases.length; i++) {
+            Segment segment = segments.get(bases[i]);
+            loadIndex(segment);
+            if (i + 1 < bases.length) {
+                segment.count = (int) (bases[i + 1] - segment.base);
+                segment.bytes = segment.logFile.length();
+            } else {
+                scanTail(segment);
+            }
+        }
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        active = last.getValue();
+        committed = active.base + active.count;
+        appended = committed;
+    }
+
+    private void loadIndex(Segment segment) throws IOException {
+        if (!segment.indexFile.exists()) {
+            segment.addIndexEntry(0, 0);
+            return;
+        }
+        DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(
+                new FileInputStream(segment.indexFile)));
+        try {
+            long entries = segment.indexFile.length() / 8;
+            for (long i = 0; i < entries; i++) {
+                segment.addIndexEntry(in.readInt(), in.readInt());
+            }
+        } finally {
+            in.close();
+        }
+        if (segment.indexSize == 0) {
+            segment.addIndexEntry(0, 0);
+        }
+    }
+
+    /**
+     * Count the records of the last segment from its last index entry on,
+     * verifying each one, and cut the files back to the last good record.
+     */
+    private void scanTail(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.logFile, "rw");
+        try {
+            long fileLength = file.length();
+            // Index entries past the end of the log belong to lost records
+            while (segment.indexSize > 1 && segment.indexPositions[segment.indexSize - 1] >= fileLength) {
+                segment.indexSize--;
+            }
+            int record = segment.indexRecords[segment.indexSize - 1];
+            long position = segment.indexPositions[segment.indexSize - 1];
+            byte[] header = new byte[RECORD_HEADER];
+            byte[] body = new byte[256];
+            while (position + RECORD_HEADER <= fileLength) {
+                file.seek(position);
+                file.readFully(header);
+                int length = FrameCodec.getInt(header, 0);
+                if (length < 0 || length > MAX_RECORD || position + RECORD_HEADER + length > fileLength) {
+                    break;
+                }
+                if (body.length < length) {
+                    body = new byte[length];
+                }
+                file.readFully(body, 0, length);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != FrameCodec.getInt(header, 4)) {
+                    break;
+                }
+                if (record % indexInterval == 0 && segment.indexRecords[segment.indexSize - 1] < record) {
+                    segment.addIndexEntry(record, (int) position);
+                }
+                record++;
+                position += RECORD_HEADER + length;
+            }
+            if (position < fileLength) {
+                Log.w(TAG, "Truncating torn tail of " + segment.logFile.getName());
+                file.setLength(position);
+            }
+            while (segment.indexSize > 1 && segment.indexRecords[segment.indexSize - 1] >= record) {
+                segment.indexSize--;
+            }
+            segment.count = record;
+            segment.bytes = position;
+        } finally {
+            file.close();
+        }
+        // Rewrite the index so it matches what survived
+        RandomAccessFile index = new RandomAccessFile(segment.indexFile, "rw");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(segment.indexSize * 8);
+            for (int i = 0; i < segment.indexSize; i++) {
+                buffer.putInt(segment.indexRecords[i]).putInt(segment.indexPositions[i]);
+            }
+            index.setLength(0);
+            index.write(buffer.array());
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * <pre>
+     *   body : senderLength(4) sender textLength(4) text [id(8) thumbnailLength(4) thumbnail]
+     * </pre>
+     * The image part is only there for image messages, so text written by
+     * older versions reads back unchanged.
+     */
+    static byte[] encode(Message message) {
+        byte[] sender = message.getSender() == null ? new byte[0] : message.getSender().getBytes(UTF_8);
+        byte[] text = message.getMessage() == null ? new byte[0] : message.getMessage().getBytes(UTF_8);
+        byte[] thumbnail = message.getThumbnail();
+        int imageLength = thumbnail == null ? 0 : 12 + thumbnail.length;
+        ByteBuffer buffer = ByteBuffer.allocate(8 + sender.length + text.length + imageLength);
+        buffer.putInt(sender.length).put(sender).putInt(text.length).put(text);
+        if (thumbnail != null) {
+            buffer.putLong(message.getId()).putInt(thumbnail.length).put(thumbnail);
+        }
+        return buffer.array();
+    }
+
+    static Message decode(byte[] body, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(body, 0, length);
+        int senderLength = buffer.getInt();
+        String sender = new String(body, buffer.position(), senderLength, UTF_8);
+        buffer.position(buffer.position() + senderLength);
+        int textLength = buffer.getInt();
+        String text = new String(body, buffer.position(), textLength, UTF_8);
+        buffer.position(buffer.position() + textLength);
+        if (buffer.remaining() >= 12) {
+            long id = buffer.getLong();
+            byte[] thumbnail = new byte[buffer.getInt()];
+            buffer.get(thumbnail);
+            return new Message(id, sender, text, thumbnail);
+        }
+        return new Message(sender, text);
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.bluetoothchat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named latency histograms and counters for one chat service.
+ *
+ * Metrics are created on first use and live as long as the registry, so
+ * they add up across connections. Recording never locks; a dump is a
+ * snapshot of each metric taken one after the other.
+ *
+ * The JSON dump has the form
+ * <pre>
+ * {"uptimeMs":1234,
+ *  "counters":{"bytes.in":512,...},
+ *  "histograms":{"rtt":{"count":9,"min":..,"mean":..,"p50":..,"p90":..,"p99":..,"p999":..,"max":..},...}}
+ * </pre>
+ * with every latency in microseconds, written without the line breaks.
+ */
+public class MetricsRegistry {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final long createdAt = System.nanoTime();
+
+    /**
+     * The histogram called {@code name}, created empty if it does not exist yet.
+     */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * The counter called {@code name}, created at zero if it does not exist yet.
+     */
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Reset every histogram and counter to empty.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : counters.values()) {
+            counter.set(0);
+        }
+    }
+
+    /**
+     * One line per metric, sorted by name, for logs.
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue().snapshot()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Compact JSON dump of every metric, sorted by name.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"uptimeMs\":").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdAt));
+        json.append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendName(json, entry.getKey());
+            json.append(entry.getValue().get());
+        }
+        json.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendName(json, entry.getKey());
+            LatencyHistogram.Snapshot s = entry.getValue().snapshot();
+            json.append("{\"count\":").append(s.getCount())
+                    .append(",\"min\":").append(micros(s.getMin()))
+                    .append(",\"mean\":").append(micros(s.getMean()))
+                    .append(",\"p50\":").append(micros(s.getValueAtPercentile(50)))
+                    .append(",\"p90\":").append(micros(s.getValueAtPercentile(90)))
+                    .append(",\"p99\":").append(micros(s.getValueAtPercentile(99)))
+                    .append(",\"p999\":").append(micros(s.getValueAtPercentile(99.9)))
+                    .append(",\"max\":").append(micros(s.getMax()))
+                    .append('}');
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    /**
+     * Write {@link #toJson()} to {@code file}. The dump goes to a temporary
+     * file first and is renamed over the old one, so a reader never sees
+     * half a file.
+     */
+    public void writeTo(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(toJson().getBytes(UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static void appendName(StringBuilder json, String name) {
+        json.append('"');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append("\":");
+    }
+}
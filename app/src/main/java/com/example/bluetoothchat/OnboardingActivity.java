@@ -28,6 +28,12 @@ public class OnboardingActivity extends FragmentActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_onboarding);
+        StartupTrace.afterNextFrame(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.get().mark(StartupTrace.METRIC_FIRST_FRAME);
+            }
+        });
 
         pager = (ViewPager) findViewById(R.id.pager);
         indicator = (SmartTabLayout) findViewById(R.id.indicator);
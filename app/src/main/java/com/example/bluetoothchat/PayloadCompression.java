@@ -0,0 +1,181 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-frame compression of chat payloads.
+ *
+ * Every compressed frame is independent, so a frame dropped by the decoder
+ * does not break the ones after it. To make short messages compress at all,
+ * both sides prime the compressor with the same preset {@link #DICTIONARY}
+ * of common chat and log text. Peers agree on it with a HELLO frame that
+ * carries {@link #DICTIONARY_ID}; a peer that never sends one only ever
+ * gets plain frames.
+ *
+ * A compressed payload is the original length (4 bytes, big endian)
+ * followed by a raw deflate stream. Deflater and Inflater hold native
+ * memory and are slow to create, so a few of each are pooled.
+ */
+public final class PayloadCompression {
+
+    // Below this, the length prefix and block overhead eat any saving
+    public static final int MIN_COMPRESS_SIZE = 24;
+
+    static final int HEADER_SIZE = 4;
+    private static final int POOL_SIZE = 4;
+
+    // HELLO payload: version, capability flags, dictionary id
+    private static final int HELLO_VERSION = 1;
+    private static final int CAP_DEFLATE = 1;
+    static final int HELLO_SIZE = 1 + 1 + 4;
+
+    /**
+     * Text the compressor can refer back to. Deflate codes near matches
+     * more cheaply, so the most common strings come last. Changing it
+     * changes {@link #DICTIONARY_ID}, and peers with another dictionary
+     * simply stop compressing towards each other.
+     */
+    static final byte[] DICTIONARY = ("ERROR WARN INFO DEBUG Exception at java.lang. "
+            + "NullPointerException IllegalStateException IOException timeout failed connection "
+            + "android.bluetooth socket read write closed null true false 0x00 http://www. .com "
+            + "https:// 2020-01-01 12:00:00 version update install download upload battery "
+            + "settings phone device app file photo video picture message send sent received "
+            + "tomorrow today tonight morning afternoon evening weekend monday friday "
+            + "please thank you thanks sorry okay ok yes yeah no not sure maybe "
+            + "what when where why who how which could would should will can't don't "
+            + "I'm you're it's that's there is are was were have has had been be do does did "
+            + "going to want to need to have to got to let me know about this that with from "
+            + "for the and but or so just really very also too much more some any all "
+            + "good great nice cool awesome love like see you later talk soon bye "
+            + "how are you doing I am fine what's up hello hi hey are you there? "
+            + " the  to  and  you  a  I  is  it  in  of  for  on  that  me ").getBytes(Charset.forName("UTF-8"));
+
+    public static final int DICTIONARY_ID;
+
+    static {
+        Crc32c crc = new Crc32c();
+        crc.update(DICTIONARY, 0, DICTIONARY.length);
+        DICTIONARY_ID = (int) crc.getValue();
+    }
+
+    private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private PayloadCompression() {
+    }
+
+    /**
+     * Compress {@code src} into {@code dst}, which must have room for
+     * {@code length} bytes.
+     *
+     * @return the size of the compressed payload, or -1 if it would not be
+     * smaller than the input and the payload should be sent as it is
+     */
+    public static int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        if (length < MIN_COMPRESS_SIZE) {
+            return -1;
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            int limit = length - HEADER_SIZE;
+            int n = 0;
+            while (!deflater.finished() && n < limit) {
+                n += deflater.deflate(dst, dstOffset + HEADER_SIZE + n, limit - n);
+            }
+            if (!deflater.finished()) {
+                return -1;
+            }
+            FrameCodec.putInt(dst, dstOffset, length);
+            return HEADER_SIZE + n;
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Size of the payload once decompressed, read from the length prefix.
+     */
+    public static int decompressedLength(byte[] src, int offset, int length) throws IOException {
+        if (length < HEADER_SIZE) {
+            throw new IOException("Compressed payload too short");
+        }
+        int size = FrameCodec.getInt(src, offset);
+        if (size < 0 || size > FrameCodec.MAX_PAYLOAD) {
+            throw new IOException("Bad decompressed length " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Decompress a payload made by {@link #compress} into {@code dst}, which
+     * must have room for {@link #decompressedLength} bytes.
+     *
+     * @return the number of bytes written
+     */
+    public static int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset)
+            throws IOException {
+        int size = decompressedLength(src, offset, length);
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            // raw streams do not ask for the dictionary, it is set up front
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(src, offset + HEADER_SIZE, length - HEADER_SIZE);
+            int n = 0;
+            while (n < size) {
+                int read = inflater.inflate(dst, dstOffset + n, size - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != size) {
+                throw new IOException("Compressed payload ended after " + n + " of " + size + " bytes");
+            }
+            return n;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Payload of the HELLO frame announcing that this side can read compressed chat.
+     */
+    public static byte[] hello() {
+        byte[] hello = new byte[HELLO_SIZE];
+        hello[0] = HELLO_VERSION;
+        hello[1] = CAP_DEFLATE;
+        FrameCodec.putInt(hello, 2, DICTIONARY_ID);
+        return hello;
+    }
+
+    /**
+     * Whether the peer's HELLO says it reads frames compressed with our dictionary.
+     */
+    public static boolean acceptsCompression(byte[] hello, int offset, int length) {
+        return length >= HELLO_SIZE
+                && (hello[offset + 1] & CAP_DEFLATE) != 0
+                && FrameCodec.getInt(hello, offset + 2) == DICTIONARY_ID;
+    }
+}
@@ -0,0 +1,574 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The data path of one open connection: frames read from the peer are
+ * copied into leased receive buffers, and outgoing frames go through a
+ * {@link SendQueue}.
+ *
+ * {@link #run()} is the blocking read loop and must be given a thread;
+ * it returns once the connection is closed or fails.
+ *
+ * Either side may send a PING carrying its clock; the peer answers at once
+ * with a PONG echoing it, which gives the round-trip time of the live
+ * connection including both send queues. Both go on the control channel,
+ * ahead of queued chat and file chunks.
+ *
+ * With {@link #setFlowControl} the session grants the peer a window of
+ * chat bytes, see {@link CreditWindow}, so chat the consumer has not
+ * taken yet is bounded however fast the peer sends.
+ */
+public class PeerSession implements Runnable, FrameDecoder.FrameListener, SendQueue.Callback {
+    private static final String TAG = "PeerSession";
+
+    /**
+     * Receives the traffic of a session. Called on the reader thread for
+     * inbound messages and on the writer for send results.
+     */
+    public interface Listener {
+        /**
+         * A chat message arrived. The lease must be released once it has been decoded.
+         */
+        void onMessage(PeerSession session, BufferPool.Lease lease);
+
+        void onSent(PeerSession session, byte[] payload);
+
+        void onSendFailed(PeerSession session, byte[] payload, IOException e);
+
+        /**
+         * The connection failed or ended. Not called after {@link #close()}.
+         */
+        void onClosed(PeerSession session, IOException cause);
+    }
+
+    // Outgoing frames queued within the linger time share one socket write
+    static final int SEND_QUEUE_CAPACITY = 256;
+    static final int SEND_BATCH_BYTES = 4096;
+    static final long SEND_LINGER_NANOS = 2000000L;
+
+    // PING payload: the sender's System.nanoTime()
+    static final int PING_SIZE = 8;
+    // A peer that leaves this many pings in a row unanswered does not speak them
+    static final int MAX_UNANSWERED_PINGS = 3;
+    // How long after disconnect() the connection stays open for the BYE to be written
+    static final long BYE_LINGER_MILLIS = 200;
+
+    // Closes the connections whose BYE was not written in time, shared by all sessions
+    private static final ScheduledThreadPoolExecutor lingerTimer = newLingerTimer();
+
+    // Metric names, see setMetrics()
+    public static final String METRIC_BYTES_IN = "bytes.in";
+    public static final String METRIC_MESSAGES_IN = "messages.in";
+    public static final String METRIC_MESSAGES_OUT = "messages.out";
+    public static final String METRIC_RTT = "rtt";
+
+    private final ChatTransport.Connection connection;
+    private final Listener listener;
+    private final BufferPool receivePool;
+    private final InputStream inputStream;
+    //splits the incoming byte stream back into frames
+    private final FrameDecoder frameDecoder;
+    //writer stage that batches outgoing frames off the caller's thread
+    private final SendQueue sendQueue;
+    private final String remoteAddress;
+    //handlers for frame types other than chat, indexed by type
+    private final FrameDecoder.FrameListener[] frameHandlers = new FrameDecoder.FrameListener[256];
+    //run after the frames of each read, null if not set
+    private Runnable afterReadHandler;
+    //whether to offer compressed chat to the peer
+    private boolean compressionOffered;
+    //bounds the chat the peer may send ahead of the consumer, null if not set
+    private CreditWindow creditWindow;
+    private volatile boolean closed;
+    private volatile Thread readerThread;
+
+    //shared metrics, null unless set
+    private AtomicLong bytesIn;
+    private AtomicLong messagesIn;
+    private AtomicLong messagesOut;
+    private LatencyHistogram rttHistogram;
+    //time to the first byte read, recorded once
+    private LatencyHistogram firstByteHistogram;
+    private long firstByteSince;
+
+    private final AtomicInteger unansweredPings = new AtomicInteger();
+    private volatile long lastRttNanos = -1;
+    private volatile ScheduledFuture<?> pingTask;
+
+    //set once the connection and send queue are closed
+    private final AtomicBoolean shutDown = new AtomicBoolean();
+    //closes the connection if the BYE is not written in time
+    private volatile ScheduledFuture<?> lingerTask;
+    //the peer said BYE before the connection ended
+    private volatile boolean peerLeft;
+
+    public PeerSession(ChatTransport.Connection connection, BufferPool receivePool,
+                       Listener listener) throws IOException {
+        this.connection = connection;
+        this.receivePool = receivePool;
+        this.listener = listener;
+        this.remoteAddress = connection.getRemoteAddress();
+        inputStream = connection.getInputStream();
+        frameDecoder = new FrameDecoder(this);
+        sendQueue = new SendQueue(connection.getOutputStream(), SEND_QUEUE_CAPACITY,
+                SEND_BATCH_BYTES, SEND_LINGER_NANOS, this);
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public String getRemoteName() {
+        return connection.getRemoteName();
+    }
+
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    public FrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    /**
+     * Offer compressed chat to the peer when the session starts. Chat is
+     * sent compressed only once the peer has offered it too. Set before
+     * the session is started.
+     */
+    public void setCompressionOffered(boolean offered) {
+        compressionOffered = offered;
+    }
+
+    /**
+     * Let the peer have at most {@code windowBytes} of chat in flight that
+     * the listener has not released yet, and hold our chat to the window
+     * the peer grants. The peer must use flow control too. Set before the
+     * session is started and before {@link #setMetrics}.
+     */
+    public void setFlowControl(int windowBytes) {
+        creditWindow = new CreditWindow(sendQueue, windowBytes);
+        sendQueue.setCreditRequired(true);
+    }
+
+    /**
+     * The receive window, or null without flow control.
+     */
+    public CreditWindow getCreditWindow() {
+        return creditWindow;
+    }
+
+    /**
+     * Record the traffic of this session into {@code metrics}: bytes and
+     * chat messages per direction, round-trip times, the send queue's
+     * write latencies and the use of both windows. Set before the session
+     * is started.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        bytesIn = metrics.counter(METRIC_BYTES_IN);
+        messagesIn = metrics.counter(METRIC_MESSAGES_IN);
+        messagesOut = metrics.counter(METRIC_MESSAGES_OUT);
+        rttHistogram = metrics.histogram(METRIC_RTT);
+        sendQueue.setMetrics(metrics);
+        if (creditWindow != null) {
+            creditWindow.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * Record into {@code histogram} the time from {@code sinceNanos}, a
+     * {@link System#nanoTime()} reading, until the first read from the peer
+     * returns. Set before the session is started.
+     */
+    public void recordFirstByte(LatencyHistogram histogram, long sinceNanos) {
+        firstByteHistogram = histogram;
+        firstByteSince = sinceNanos;
+    }
+
+    /**
+     * Ping the peer every {@code intervalMillis} on {@code timer} until the
+     * session is closed, or until the peer turns out not to answer pings.
+     */
+    public void startPings(ScheduledExecutorService timer, long intervalMillis) {
+        pingTask = timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (closed || unansweredPings.get() >= MAX_UNANSWERED_PINGS) {
+                    stopPings();
+                    return;
+                }
+                ping();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopPings() {
+        ScheduledFuture<?> task = pingTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Queue a PING. The round-trip time is known once its PONG arrives.
+     * Chat waiting for credit asks the peer for room again.
+     *
+     * @return false if the send queue is full or the session is closed
+     */
+    public boolean ping() {
+        sendQueue.probeCredit();
+        byte[] payload = new byte[PING_SIZE];
+        FrameCodec.putLong(payload, 0, System.nanoTime());
+        if (!sendQueue.offer(FrameCodec.TYPE_PING, payload)) {
+            return false;
+        }
+        unansweredPings.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Round-trip time measured by the latest PONG, or -1 before the first one.
+     */
+    public long getLastRttNanos() {
+        return lastRttNanos;
+    }
+
+    @Override
+    public void run() {
+        readerThread = Thread.currentThread();
+        sendQueue.start();
+        if (compressionOffered) {
+            sendQueue.offer(FrameCodec.TYPE_HELLO, PayloadCompression.hello());
+        }
+        if (creditWindow != null) {
+            creditWindow.open();
+        }
+        IOException cause = null;
+        // Keep listening to the InputStream until closed
+        while (!closed) {
+            try {
+                // Read from the InputStream, complete frames are passed to onFrame()
+                int n = frameDecoder.fill(inputStream);
+                if (n < 0) {
+                    throw new IOException("End of stream");
+                }
+                onBytesRead(n);
+                frameDecoder.decode();
+                if (afterReadHandler != null) {
+                    afterReadHandler.run();
+                }
+                if (creditWindow != null) {
+                    // retry a grant the full send queue turned away
+                    creditWindow.grantIfDue();
+                }
+            } catch (IOException e) {
+                cause = e;
+                break;
+            }
+        }
+        readerThread = null;
+        if (!closed) {
+            Log.e(TAG, "Connection to " + remoteAddress + " lost: " + cause);
+            closeQuietly();
+            listener.onClosed(this, cause);
+        }
+    }
+
+    private void onBytesRead(int n) {
+        if (firstByteHistogram != null) {
+            firstByteHistogram.recordSince(firstByteSince);
+            firstByteHistogram = null;
+        }
+        if (bytesIn != null) {
+            bytesIn.addAndGet(n);
+        }
+    }
+
+    /**
+     * Route frames of another type than chat to {@code handler}. It is called
+     * on the reader thread with the decoder's buffer, which is only valid
+     * during the call. Set handlers before the session is started.
+     */
+    public void setFrameHandler(int type, FrameDecoder.FrameListener handler) {
+        if (type == FrameCodec.TYPE_CHAT) {
+            throw new IllegalArgumentException("Chat frames go to the listener");
+        }
+        frameHandlers[type] = handler;
+    }
+
+    /**
+     * Run {@code handler} on the reader thread once the frames of each read
+     * have been handled, so a frame handler can answer a burst of frames
+     * with one reply. Set before the session is started.
+     */
+    public void setAfterReadHandler(Runnable handler) {
+        afterReadHandler = handler;
+    }
+
+    /**
+     * Count a message handed to the consumer against the receive window
+     * until its lease is released. For frame handlers that deliver chat.
+     */
+    public void hold(BufferPool.Lease lease) {
+        if (creditWindow != null) {
+            creditWindow.hold(lease);
+        }
+    }
+
+    @Override
+    public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+        if (creditWindow != null) {
+            creditWindow.onArrived(type, buffer, offset, length);
+        }
+        if (type == FrameCodec.TYPE_CREDIT) {
+            onCredit(buffer, offset, length);
+            return;
+        }
+        if (type == FrameCodec.TYPE_HELLO) {
+            if (compressionOffered && PayloadCompression.acceptsCompression(buffer, offset, length)) {
+                sendQueue.setCompression(true);
+            }
+            return;
+        }
+        if (type == FrameCodec.TYPE_CHAT_DEFLATE) {
+            onCompressedFrame(buffer, offset, length);
+            return;
+        }
+        if (type == FrameCodec.TYPE_PING) {
+            byte[] echo = new byte[length];
+            System.arraycopy(buffer, offset, echo, 0, length);
+            sendQueue.offer(FrameCodec.TYPE_PONG, echo);
+            return;
+        }
+        if (type == FrameCodec.TYPE_PONG) {
+            onPong(buffer, offset, length);
+            return;
+        }
+        if (type == FrameCodec.TYPE_BYE) {
+            peerLeft = true;
+            return;
+        }
+        if (type != FrameCodec.TYPE_CHAT) {
+            FrameDecoder.FrameListener handler = frameHandlers[type];
+            if (handler == null) {
+                Log.w(TAG, "Ignoring frame of type " + type);
+                return;
+            }
+            handler.onFrame(type, buffer, offset, length);
+            return;
+        }
+        // The decoder reuses its buffer, so the listener gets a leased copy.
+        // This blocks while every buffer in the pool is still held.
+        BufferPool.Lease lease;
+        try {
+            lease = receivePool.acquire(length);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a receive buffer");
+        }
+        System.arraycopy(buffer, offset, lease.data(), 0, length);
+        lease.setLength(length);
+        deliver(lease);
+    }
+
+    private void deliver(BufferPool.Lease lease) {
+        if (messagesIn != null) {
+            messagesIn.incrementAndGet();
+        }
+        hold(lease);
+        listener.onMessage(this, lease);
+    }
+
+    private void onCredit(byte[] buffer, int offset, int length) {
+        if (length < CreditWindow.CREDIT_SIZE) {
+            Log.w(TAG, "Ignoring credit of " + length + " bytes");
+            return;
+        }
+        if ((buffer[offset] & CreditWindow.FLAG_GRANT) != 0) {
+            sendQueue.grantCredit(FrameCodec.getLong(buffer, offset + CreditWindow.CONSUMED_OFFSET),
+                    FrameCodec.getInt(buffer, offset + CreditWindow.WINDOW_OFFSET));
+        }
+        if (creditWindow != null) {
+            creditWindow.onCredit(buffer, offset, length);
+        }
+    }
+
+    private void onPong(byte[] buffer, int offset, int length) {
+        if (length != PING_SIZE) {
+            Log.w(TAG, "Ignoring pong of " + length + " bytes");
+            return;
+        }
+        long rtt = System.nanoTime() - FrameCodec.getLong(buffer, offset);
+        unansweredPings.set(0);
+        lastRttNanos = rtt;
+        if (rttHistogram != null) {
+            rttHistogram.record(rtt);
+        }
+    }
+
+    private void onCompressedFrame(byte[] buffer, int offset, int length) throws IOException {
+        int size;
+        try {
+            size = PayloadCompression.decompressedLength(buffer, offset, length);
+        } catch (IOException e) {
+            Log.e(TAG, "Dropping compressed frame: " + e);
+            return;
+        }
+        BufferPool.Lease lease;
+        try {
+            lease = receivePool.acquire(size);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a receive buffer");
+        }
+        try {
+            lease.setLength(PayloadCompression.decompress(buffer, offset, length, lease.data(), 0));
+        } catch (IOException e) {
+            // the frame passed its CRC, so the peer compressed it differently; skip it
+            Log.e(TAG, "Dropping compressed frame: " + e);
+            lease.release();
+            return;
+        }
+        deliver(lease);
+    }
+
+    /**
+     * Queue a chat message for the writer. Never blocks.
+     *
+     * @return false if the send queue is full or the session is closed
+     */
+    public boolean send(byte[] payload) {
+        return sendQueue.offer(FrameCodec.TYPE_CHAT, payload);
+    }
+
+    /**
+     * Queue a frame of any type, its payload being {@code head} followed by
+     * the remaining bytes of {@code body} (which may be null). Never blocks.
+     * Only chat frames are reported to the listener.
+     *
+     * @return false if the send queue is full or the session is closed
+     */
+    public boolean send(int type, byte[] head, ByteBuffer body) {
+        return sendQueue.offer(type, head, body);
+    }
+
+    @Override
+    public void onSent(int type, byte[] payload) {
+        if (type == FrameCodec.TYPE_BYE) {
+            // the last thing the peer reads, nothing left to wait for
+            closeQuietly();
+        }
+        if (type == FrameCodec.TYPE_CHAT) {
+            if (messagesOut != null) {
+                messagesOut.incrementAndGet();
+            }
+            listener.onSent(this, payload);
+        }
+    }
+
+    @Override
+    public void onSendFailed(int type, byte[] payload, IOException e) {
+        if (type == FrameCodec.TYPE_BYE) {
+            closeQuietly();
+        }
+        if (type == FrameCodec.TYPE_CHAT) {
+            listener.onSendFailed(this, payload, e);
+        }
+    }
+
+    /**
+     * Tell the peer this is a deliberate disconnect, then close. Never
+     * blocks: the BYE is queued after everything else, and the connection
+     * is closed by the writer once it is written, or after
+     * {@link #BYE_LINGER_MILLIS} if it is not, e.g. when the session was
+     * never started. The session counts as closed from the call on.
+     */
+    public void disconnect() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!sendQueue.offer(FrameCodec.TYPE_BYE, new byte[0])) {
+            closeQuietly();
+            return;
+        }
+        lingerTask = lingerTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly();
+            }
+        }, BYE_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        if (shutDown.get()) {
+            // the BYE went out before the timer was set
+            lingerTask.cancel(false);
+        }
+    }
+
+    /**
+     * Whether the peer said BYE, so the connection ended on purpose and
+     * should not be reestablished.
+     */
+    public boolean hasPeerLeft() {
+        return peerLeft;
+    }
+
+    /**
+     * Close the connection. The listener is not told about it.
+     */
+    public void close() {
+        closed = true;
+        closeQuietly();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void closeQuietly() {
+        if (!shutDown.compareAndSet(false, true)) {
+            return;
+        }
+        ScheduledFuture<?> linger = lingerTask;
+        if (linger != null) {
+            linger.cancel(false);
+        }
+        stopPings();
+        sendQueue.close();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e);
+        }
+        // Wake the reader if it is waiting on the receive pool
+        Thread reader = readerThread;
+        if (reader != null) {
+            reader.interrupt();
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor newLingerTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PeerLinger");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setKeepAliveTime(BYE_LINGER_MILLIS * 10, TimeUnit.MILLISECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+}
@@ -0,0 +1,594 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chat delivery that survives lost frames and lost connections.
+ *
+ * Every message gets a sequence number and stays in a retransmit buffer,
+ * bounded by bytes, until the peer acknowledges it. The receiver hands
+ * messages on in order, holds a few that arrive after a gap (a frame
+ * dropped for a bad CRC) and answers each read with one ACK frame:
+ *
+ * <pre>
+ *   CHAT_SEQ : seq(8) message          (CHAT_SEQ_DEFLATE: seq(8) compressed message)
+ *   ACK      : cumulative(8) count(1) (first(8) last(8))*count
+ *   RESUME   : epoch(8) base(8) peerEpoch(8) received(8)
+ * </pre>
+ *
+ * The cumulative number says everything up to it arrived; the ranges are
+ * messages held beyond a gap, which are then not sent again. Messages
+ * below a held range are retransmitted once straight away, and anything
+ * unacknowledged for {@link #RETRANSMIT_TIMEOUT_MILLIS} again on a timer.
+ *
+ * The state outlives a connection. Each new session starts with both
+ * sides sending RESUME: the stream's epoch and first unacknowledged
+ * number, and how far the peer's stream was received. Only the
+ * unacknowledged suffix is then sent again. A peer that comes back with
+ * a different epoch was restarted, so its stream is picked up from its
+ * base, and ours is sent in full if it does not know our epoch.
+ */
+public class ReliableDelivery implements FrameDecoder.FrameListener {
+    private static final String TAG = "ReliableDelivery";
+
+    public static final int DEFAULT_BUFFER_BYTES = 256 * 1024;
+    // Resend what has not been acknowledged after this long
+    static final long RETRANSMIT_TIMEOUT_MILLIS = 1000;
+    // Messages held beyond a gap, each one holds a receive buffer
+    static final int MAX_OUT_OF_ORDER = 32;
+    static final int MAX_ACK_RANGES = 4;
+
+    static final int SEQ_SIZE = 8;
+    static final int RESUME_SIZE = 32;
+
+    // Metric names, next to the ones of PeerSession
+    public static final String METRIC_DELIVERY = "delivery";
+    public static final String METRIC_RETRANSMITS = "retransmits";
+    public static final String METRIC_DUPLICATES = "duplicates";
+
+    /**
+     * Receives the messages and receipts. Messages are handed on in order
+     * on the reader thread of the session.
+     */
+    public interface Callback {
+        /**
+         * A message arrived. The lease must be released once it has been decoded.
+         */
+        void onMessage(BufferPool.Lease lease);
+
+        /**
+         * The peer acknowledged a message given to {@link #send}.
+         */
+        void onDelivered(byte[] payload);
+    }
+
+    private static final class Pending {
+        final long seq;
+        // the frame payload, seq followed by the message
+        final byte[] frame;
+        final byte[] message;
+        long firstSent;
+        long lastSent;
+        int transmissions;
+        // held by the peer beyond a gap
+        boolean selected;
+
+        Pending(long seq, byte[] message) {
+            this.seq = seq;
+            this.message = message;
+            frame = new byte[SEQ_SIZE + message.length];
+            FrameCodec.putLong(frame, 0, seq);
+            System.arraycopy(message, 0, frame, SEQ_SIZE, message.length);
+        }
+    }
+
+    private final BufferPool receivePool;
+    private final Callback callback;
+    private final int maxBufferBytes;
+    private final Random random = new Random();
+    private long retransmitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_TIMEOUT_MILLIS);
+
+    // guarded by this
+    private PeerSession session;
+    // the peer's RESUME has arrived on the current session
+    private boolean resumed;
+    private ScheduledFuture<?> retransmitTask;
+
+    // send side, guarded by this
+    private long epoch;
+    private long nextSeq = 1;
+    private final ArrayDeque<Pending> unacked = new ArrayDeque<>();
+    private long unackedBytes;
+
+    // receive side, guarded by this
+    private long peerEpoch;
+    private long received;
+    private final TreeMap<Long, BufferPool.Lease> outOfOrder = new TreeMap<>();
+    private boolean ackDue;
+
+    //statistics
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong acksSent = new AtomicLong();
+    //shared metrics, null unless set
+    private LatencyHistogram deliveryHistogram;
+    private AtomicLong retransmitCounter;
+    private AtomicLong duplicateCounter;
+    private AtomicLong messagesIn;
+    private AtomicLong messagesOut;
+
+    public ReliableDelivery(BufferPool receivePool, Callback callback) {
+        this(receivePool, callback, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * @param maxBufferBytes how many message bytes may wait for an ack
+     */
+    public ReliableDelivery(BufferPool receivePool, Callback callback, int maxBufferBytes) {
+        this.receivePool = receivePool;
+        this.callback = callback;
+        this.maxBufferBytes = maxBufferBytes;
+        epoch = newEpoch();
+    }
+
+    /**
+     * Record the time from sending a message to its ack
+     * ({@link #METRIC_DELIVERY}), retransmissions and duplicates received,
+     * plus the chat message counters of {@link PeerSession}.
+     */
+    public synchronized void setMetrics(MetricsRegistry metrics) {
+        deliveryHistogram = metrics.histogram(METRIC_DELIVERY);
+        retransmitCounter = metrics.counter(METRIC_RETRANSMITS);
+        duplicateCounter = metrics.counter(METRIC_DUPLICATES);
+        messagesIn = metrics.counter(PeerSession.METRIC_MESSAGES_IN);
+        messagesOut = metrics.counter(PeerSession.METRIC_MESSAGES_OUT);
+    }
+
+    /**
+     * Change the retransmit timeout, for tests.
+     */
+    synchronized void setRetransmitTimeout(long millis) {
+        retransmitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private long newEpoch() {
+        long e;
+        do {
+            e = random.nextLong();
+        } while (e == 0);
+        return e;
+    }
+
+    /**
+     * Carry the chat over a new session. Must be called before the session
+     * is started. Nothing is sent until the peer's RESUME has arrived.
+     *
+     * @param timer runs the retransmit timer while the session is attached
+     */
+    public void attach(PeerSession session, ScheduledExecutorService timer) {
+        session.setFrameHandler(FrameCodec.TYPE_CHAT_SEQ, this);
+        session.setFrameHandler(FrameCodec.TYPE_CHAT_SEQ_DEFLATE, this);
+        session.setFrameHandler(FrameCodec.TYPE_ACK, this);
+        session.setFrameHandler(FrameCodec.TYPE_RESUME, this);
+        session.setAfterReadHandler(new Runnable() {
+            @Override
+            public void run() {
+                sendAckIfDue();
+            }
+        });
+        synchronized (this) {
+            cancelTimer();
+            this.session = session;
+            resumed = false;
+            byte[] resume = new byte[RESUME_SIZE];
+            FrameCodec.putLong(resume, 0, epoch);
+            FrameCodec.putLong(resume, 8, unacked.isEmpty() ? nextSeq : unacked.peekFirst().seq);
+            FrameCodec.putLong(resume, 16, peerEpoch);
+            FrameCodec.putLong(resume, 24, received);
+            session.send(FrameCodec.TYPE_RESUME, resume, null);
+            long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(retransmitTimeoutNanos) / 2);
+            retransmitTask = timer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    retransmitExpired();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The session is gone. Unacknowledged messages wait for the next {@link #attach}.
+     */
+    public synchronized void detach(PeerSession session) {
+        if (this.session != session) {
+            return;
+        }
+        cancelTimer();
+        this.session = null;
+        resumed = false;
+    }
+
+    /**
+     * Forget both streams, e.g. before talking to a different device.
+     *
+     * @return the number of messages that were never acknowledged
+     */
+    public synchronized int reset() {
+        int lost = unacked.size();
+        unacked.clear();
+        unackedBytes = 0;
+        epoch = newEpoch();
+        nextSeq = 1;
+        peerEpoch = 0;
+        received = 0;
+        releaseOutOfOrder();
+        return lost;
+    }
+
+    private void cancelTimer() {
+        if (retransmitTask != null) {
+            retransmitTask.cancel(false);
+            retransmitTask = null;
+        }
+    }
+
+    /**
+     * Number and queue a message. It is sent now if the session has
+     * resumed, otherwise as soon as one does.
+     *
+     * @return false if the retransmit buffer is full
+     */
+    public synchronized boolean send(byte[] message) {
+        if (unackedBytes + message.length > maxBufferBytes) {
+            return false;
+        }
+        Pending p = new Pending(nextSeq++, message);
+        unacked.addLast(p);
+        unackedBytes += message.length;
+        if (resumed) {
+            transmit(p, System.nanoTime());
+        }
+        return true;
+    }
+
+    /**
+     * Messages sent or queued and not yet acknowledged.
+     */
+    public synchronized int getUnacknowledged() {
+        return unacked.size();
+    }
+
+    public synchronized long getUnacknowledgedBytes() {
+        return unackedBytes;
+    }
+
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getAcksSent() {
+        return acksSent.get();
+    }
+
+    // Hold the lock
+    private boolean transmit(Pending p, long now) {
+        if (session == null || !session.send(FrameCodec.TYPE_CHAT_SEQ, p.frame, null)) {
+            // the send queue is full, the timer tries again
+            return false;
+        }
+        if (p.transmissions++ == 0) {
+            p.firstSent = now;
+        } else {
+            retransmits.incrementAndGet();
+            if (retransmitCounter != null) {
+                retransmitCounter.incrementAndGet();
+            }
+        }
+        p.lastSent = now;
+        return true;
+    }
+
+    private synchronized void retransmitExpired() {
+        if (!resumed || session.getSendQueue().isCreditStalled()) {
+            // while the peer has no room, a resend would only wait behind the first send
+            return;
+        }
+        long now = System.nanoTime();
+        for (Pending p : unacked) {
+            if (p.selected || (p.transmissions > 0 && now - p.lastSent < retransmitTimeoutNanos)) {
+                continue;
+            }
+            if (!transmit(p, now)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+        switch (type) {
+            case FrameCodec.TYPE_CHAT_SEQ:
+            case FrameCodec.TYPE_CHAT_SEQ_DEFLATE:
+                onData(type, buffer, offset, length);
+                break;
+            case FrameCodec.TYPE_ACK:
+                onAck(buffer, offset, length);
+                break;
+            case FrameCodec.TYPE_RESUME:
+                onResume(buffer, offset, length);
+                break;
+        }
+    }
+
+    private void onData(int type, byte[] buffer, int offset, int length) throws IOException {
+        if (length < SEQ_SIZE) {
+            return;
+        }
+        long seq = FrameCodec.getLong(buffer, offset);
+        synchronized (this) {
+            if (seq <= received || outOfOrder.containsKey(seq)) {
+                // already here, the ack that said so was lost or late
+                ackDue = true;
+                duplicates.incrementAndGet();
+                if (duplicateCounter != null) {
+                    duplicateCounter.incrementAndGet();
+                }
+                return;
+            }
+            if (seq != received + 1 && outOfOrder.size() >= MAX_OUT_OF_ORDER) {
+                // too far ahead, it will be sent again
+                ackDue = true;
+                return;
+            }
+        }
+
+        // Copy out of the decoder's buffer outside the lock, this may block
+        // while every receive buffer is held
+        BufferPool.Lease lease;
+        try {
+            if (type == FrameCodec.TYPE_CHAT_SEQ) {
+                lease = receivePool.acquire(length - SEQ_SIZE);
+                System.arraycopy(buffer, offset + SEQ_SIZE, lease.data(), 0, length - SEQ_SIZE);
+                lease.setLength(length - SEQ_SIZE);
+            } else {
+                lease = decompress(buffer, offset + SEQ_SIZE, length - SEQ_SIZE);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a receive buffer");
+        }
+
+        synchronized (this) {
+            ackDue = true;
+            if (seq <= received || outOfOrder.containsKey(seq)
+                    || (seq != received + 1 && outOfOrder.size() >= MAX_OUT_OF_ORDER)) {
+                // a RESUME on another session moved the stream while we copied
+                if (lease != null) {
+                    lease.release();
+                }
+                return;
+            }
+            if (lease == null) {
+                // could not be decompressed; acknowledged anyway, a resend would fail too
+                if (seq == received + 1) {
+                    received++;
+                    deliverHeld();
+                }
+                return;
+            }
+            if (seq != received + 1) {
+                outOfOrder.put(seq, lease);
+                return;
+            }
+            received++;
+            deliver(lease);
+            deliverHeld();
+        }
+    }
+
+    private BufferPool.Lease decompress(byte[] buffer, int offset, int length) throws InterruptedException {
+        BufferPool.Lease lease = null;
+        try {
+            lease = receivePool.acquire(PayloadCompression.decompressedLength(buffer, offset, length));
+            lease.setLength(PayloadCompression.decompress(buffer, offset, length, lease.data(), 0));
+            return lease;
+        } catch (IOException e) {
+            Log.e(TAG, "Dropping compressed message: " + e);
+            if (lease != null) {
+                lease.release();
+            }
+            return null;
+        }
+    }
+
+    // Hold the lock
+    private void deliverHeld() {
+        Map.Entry<Long, BufferPool.Lease> next;
+        while ((next = outOfOrder.firstEntry()) != null && next.getKey() <= received + 1) {
+            outOfOrder.pollFirstEntry();
+            if (next.getKey() == received + 1) {
+                received++;
+                deliver(next.getValue());
+            } else {
+                next.getValue().release();
+            }
+        }
+    }
+
+    // Hold the lock, so messages are handed on in order
+    private void deliver(BufferPool.Lease lease) {
+        if (messagesIn != null) {
+            messagesIn.incrementAndGet();
+        }
+        if (session != null) {
+            session.hold(lease);
+        }
+        callback.onMessage(lease);
+    }
+
+    private void sendAckIfDue() {
+        synchronized (this) {
+            if (!ackDue || session == null) {
+                return;
+            }
+            ackDue = false;
+            List<long[]> ranges = new ArrayList<>();
+            long first = 0;
+            long last = 0;
+            for (Long seq : outOfOrder.keySet()) {
+                if (first != 0 && seq == last + 1) {
+                    last = seq;
+                    continue;
+                }
+                if (first != 0) {
+                    ranges.add(new long[]{first, last});
+                }
+                first = seq;
+                last = seq;
+            }
+            if (first != 0) {
+                ranges.add(new long[]{first, last});
+            }
+            int count = Math.min(ranges.size(), MAX_ACK_RANGES);
+            byte[] ack = new byte[8 + 1 + count * 16];
+            FrameCodec.putLong(ack, 0, received);
+            ack[8] = (byte) count;
+            for (int i = 0; i < count; i++) {
+                FrameCodec.putLong(ack, 9 + i * 16, ranges.get(i)[0]);
+                FrameCodec.putLong(ack, 17 + i * 16, ranges.get(i)[1]);
+            }
+            if (session.send(FrameCodec.TYPE_ACK, ack, null)) {
+                acksSent.incrementAndGet();
+            } else {
+                ackDue = true;
+            }
+        }
+    }
+
+    private void onAck(byte[] buffer, int offset, int length) {
+        if (length < 9) {
+            return;
+        }
+        int count = buffer[offset + 8] & 0xFF;
+        if (length < 9 + count * 16) {
+            return;
+        }
+        List<byte[]> delivered = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            acknowledge(FrameCodec.getLong(buffer, offset), now, delivered);
+            long highest = 0;
+            for (int i = 0; i < count; i++) {
+                long first = FrameCodec.getLong(buffer, offset + 9 + i * 16);
+                long last = FrameCodec.getLong(buffer, offset + 17 + i * 16);
+                for (Pending p : unacked) {
+                    if (p.seq >= first && p.seq <= last) {
+                        p.selected = true;
+                    }
+                }
+                highest = Math.max(highest, last);
+            }
+            // The peer holds messages beyond a gap: send what is missing once
+            // right away instead of waiting for the timer
+            for (Pending p : unacked) {
+                if (p.seq > highest) {
+                    break;
+                }
+                if (!p.selected && p.transmissions == 1 && !transmit(p, now)) {
+                    break;
+                }
+            }
+        }
+        for (byte[] payload : delivered) {
+            callback.onDelivered(payload);
+        }
+    }
+
+    // Hold the lock
+    private void acknowledge(long cumulative, long now, List<byte[]> delivered) {
+        Iterator<Pending> it = unacked.iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (p.seq > cumulative) {
+                break;
+            }
+            it.remove();
+            unackedBytes -= p.message.length;
+            if (deliveryHistogram != null && p.firstSent != 0) {
+                deliveryHistogram.record(now - p.firstSent);
+            }
+            if (messagesOut != null) {
+                messagesOut.incrementAndGet();
+            }
+            delivered.add(p.message);
+        }
+    }
+
+    private void onResume(byte[] buffer, int offset, int length) {
+        if (length < RESUME_SIZE) {
+            return;
+        }
+        long theirEpoch = FrameCodec.getLong(buffer, offset);
+        long theirBase = FrameCodec.getLong(buffer, offset + 8);
+        long ourEpochSeen = FrameCodec.getLong(buffer, offset + 16);
+        long theirReceived = FrameCodec.getLong(buffer, offset + 24);
+        List<byte[]> delivered = new ArrayList<>();
+        synchronized (this) {
+            if (theirEpoch != peerEpoch) {
+                // a new stream from the peer, it starts at its base
+                Log.d(TAG, "New stream from the peer at " + theirBase);
+                peerEpoch = theirEpoch;
+                received = theirBase - 1;
+                releaseOutOfOrder();
+            } else if (theirBase - 1 > received) {
+                // acknowledged before, so nothing below the base is coming again
+                received = theirBase - 1;
+                deliverHeld();
+            }
+            long now = System.nanoTime();
+            if (ourEpochSeen == epoch) {
+                acknowledge(theirReceived, now, delivered);
+            } else {
+                // the peer does not hold anything of ours beyond a gap
+                for (Pending p : unacked) {
+                    p.selected = false;
+                }
+            }
+            resumed = true;
+            // Send the unacknowledged suffix again, in order
+            for (Pending p : unacked) {
+                if (!p.selected && !transmit(p, now)) {
+                    break;
+                }
+            }
+        }
+        for (byte[] payload : delivered) {
+            callback.onDelivered(payload);
+        }
+    }
+
+    // Hold the lock
+    private void releaseOutOfOrder() {
+        for (BufferPool.Lease lease : outOfOrder.values()) {
+            lease.release();
+        }
+        outOfOrder.clear();
+    }
+}
@@ -0,0 +1,357 @@
+package com.example.bluetoothchat;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * {@link ChatTransport.Connection} that encrypts and authenticates
+ * everything written to another connection.
+ *
+ * {@link #handshake()} has each side send a fresh P-256 public key; the
+ * ECDH secret, run through HKDF-SHA256, gives one AES-256 key per
+ * direction. From then on every write becomes one record:
+ *
+ * <pre>
+ *   hello : MAGIC(1) VERSION(1) keyLength(2) key      X.509 encoded
+ *   record: length(4) ciphertext tag(16)              AES-GCM, length as AAD
+ * </pre>
+ *
+ * The nonce of a record is the number of records sent before it in that
+ * direction, so it is never sent and never repeats under one key, and a
+ * record that is dropped, replayed or reordered fails authentication. Each
+ * direction keeps one Cipher and one record buffer for the whole
+ * connection; records are decrypted in place.
+ *
+ * The keys are not signed, so this keeps out anyone who only listens. Both
+ * sides can compare {@link #getFingerprint()} to rule out a device in the
+ * middle.
+ */
+public class SecureConnection implements ChatTransport.Connection {
+
+    static final byte MAGIC = 0x5E;
+    static final int VERSION = 1;
+    static final int TAG_SIZE = 16;
+    static final int RECORD_HEADER = 4;
+    // Largest plaintext in one record; longer writes are split
+    static final int MAX_RECORD = FrameCodec.MAX_PAYLOAD + FrameCodec.OVERHEAD;
+    private static final int MAX_KEY_SIZE = 512;
+    private static final int NONCE_SIZE = 12;
+
+    private final ChatTransport.Connection connection;
+    private RecordInputStream in;
+    private RecordOutputStream out;
+    private volatile String fingerprint;
+
+    public SecureConnection(ChatTransport.Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        connection.connect();
+    }
+
+    /**
+     * Agree on the keys with the peer. Blocks until the peer's hello has
+     * arrived. The streams can be handed out before, but must not be read
+     * or written until this has returned.
+     *
+     * @throws IOException if the link fails or the peer does not encrypt
+     */
+    public void handshake() throws IOException {
+        RecordInputStream recordIn = (RecordInputStream) getInputStream();
+        RecordOutputStream recordOut = (RecordOutputStream) getOutputStream();
+        DataInputStream peer = recordIn.in;
+        OutputStream rawOut = recordOut.out;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            KeyPair keyPair = generator.generateKeyPair();
+            byte[] ourKey = keyPair.getPublic().getEncoded();
+
+            byte[] hello = new byte[4 + ourKey.length];
+            hello[0] = MAGIC;
+            hello[1] = VERSION;
+            hello[2] = (byte) (ourKey.length >>> 8);
+            hello[3] = (byte) ourKey.length;
+            System.arraycopy(ourKey, 0, hello, 4, ourKey.length);
+            rawOut.write(hello);
+            rawOut.flush();
+
+            if (peer.readByte() != MAGIC) {
+                throw new IOException("Peer does not encrypt");
+            }
+            // a later version must still accept this hello
+            peer.readByte();
+            int keyLength = peer.readUnsignedShort();
+            if (keyLength > MAX_KEY_SIZE) {
+                throw new IOException("Bad key length " + keyLength);
+            }
+            byte[] theirKey = new byte[keyLength];
+            peer.readFully(theirKey);
+            if (Arrays.equals(ourKey, theirKey)) {
+                throw new IOException("Peer echoed our key");
+            }
+            PublicKey theirPublic = KeyFactory.getInstance("EC")
+                    .generatePublic(new X509EncodedKeySpec(theirKey));
+
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(keyPair.getPrivate());
+            agreement.doPhase(theirPublic, true);
+            byte[] secret = agreement.generateSecret();
+
+            // Both sides put the keys in the same order to agree on who is first
+            boolean first = compare(ourKey, theirKey) < 0;
+            MessageDigest transcript = MessageDigest.getInstance("SHA-256");
+            transcript.update(first ? ourKey : theirKey);
+            transcript.update(first ? theirKey : ourKey);
+            byte[] prk = hmac(transcript.digest(), secret);
+            byte[] firstKey = hmac(prk, "bluetoothchat first\u0001".getBytes("US-ASCII"));
+            byte[] secondKey = hmac(prk, "bluetoothchat second\u0001".getBytes("US-ASCII"));
+            byte[] check = hmac(prk, "bluetoothchat fingerprint\u0001".getBytes("US-ASCII"));
+            fingerprint = String.format(Locale.US, "%06d", (FrameCodec.getInt(check, 0) & 0x7FFFFFFF) % 1000000);
+
+            recordOut.key = new SecretKeySpec(first ? firstKey : secondKey, "AES");
+            recordIn.key = new SecretKeySpec(first ? secondKey : firstKey, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Handshake failed: " + e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Six digits derived from both keys, the same on both sides unless
+     * someone is relaying the connection. Null before the handshake.
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (in == null) {
+            in = new RecordInputStream(connection.getInputStream());
+        }
+        return in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (out == null) {
+            out = new RecordOutputStream(connection.getOutputStream());
+        }
+        return out;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public String getRemoteName() {
+        return connection.getRemoteName();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+
+    private static Cipher newCipher() throws IOException {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM not available: " + e);
+        }
+    }
+
+    private static byte[] nonce(byte[] nonce, long counter) {
+        FrameCodec.putLong(nonce, NONCE_SIZE - 8, counter);
+        return nonce;
+    }
+
+    /**
+     * Seals every write into one record. Used by one writer at a time.
+     */
+    private static final class RecordOutputStream extends OutputStream {
+        private final OutputStream out;
+        // set by the handshake
+        private SecretKeySpec key;
+        private final Cipher cipher;
+        private final byte[] nonce = new byte[NONCE_SIZE];
+        private byte[] record = new byte[RECORD_HEADER + 4096 + TAG_SIZE];
+        private long sent;
+
+        RecordOutputStream(OutputStream out) throws IOException {
+            this.out = out;
+            cipher = newCipher();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, MAX_RECORD);
+                seal(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void seal(byte[] b, int off, int len) throws IOException {
+            if (key == null) {
+                throw new IOException("Handshake not done");
+            }
+            int size = RECORD_HEADER + len + TAG_SIZE;
+            if (record.length < size) {
+                record = new byte[Math.max(size, record.length * 2)];
+            }
+            FrameCodec.putInt(record, 0, len + TAG_SIZE);
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce(nonce, sent++)));
+                cipher.updateAAD(record, 0, RECORD_HEADER);
+                cipher.doFinal(b, off, len, record, RECORD_HEADER);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot encrypt: " + e);
+            }
+            out.write(record, 0, size);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads one record at a time into a reused buffer, decrypts it there
+     * and hands out its plaintext.
+     */
+    private static final class RecordInputStream extends InputStream {
+        private final DataInputStream in;
+        // set by the handshake
+        private SecretKeySpec key;
+        private final Cipher cipher;
+        private final byte[] nonce = new byte[NONCE_SIZE];
+        private final byte[] header = new byte[RECORD_HEADER];
+        private byte[] record = new byte[4096 + TAG_SIZE];
+        private int position;
+        private int limit;
+        private long received;
+
+        RecordInputStream(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            cipher = newCipher();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (!open()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(record, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        /**
+         * @return false at the end of the stream
+         */
+        private boolean open() throws IOException {
+            if (key == null) {
+                throw new IOException("Handshake not done");
+            }
+            try {
+                in.readFully(header);
+            } catch (EOFException e) {
+                return false;
+            }
+            int length = FrameCodec.getInt(header, 0);
+            if (length < TAG_SIZE || length > MAX_RECORD + TAG_SIZE) {
+                throw new IOException("Bad record length " + length);
+            }
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            in.readFully(record, 0, length);
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce(nonce, received++)));
+                cipher.updateAAD(header);
+                limit = cipher.doFinal(record, 0, length, record, 0);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Record failed authentication");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot decrypt: " + e);
+            }
+            position = 0;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
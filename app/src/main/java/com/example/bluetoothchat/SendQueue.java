@@ -0,0 +1,724 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound half of a connection. Any thread may queue frames; a dedicated
+ * writer thread encodes them and writes them to the socket.
+ *
+ * Frames that are queued close together are coalesced into one socket
+ * write, up to {@code maxBatchBytes} or until {@code maxLingerNanos} has
+ * passed since the first frame of the batch was taken.
+ *
+ * Frames wait on one of three channels picked by their type, see
+ * {@link #channelOf}: control, chat and bulk (file chunks). The writer
+ * takes from them by deficit round robin, each channel getting a share of
+ * the bytes written in proportion to its weight while it has frames
+ * waiting, and the whole link when it is the only one. So a chat message
+ * queued behind a file waits for at most the one chunk being written, not
+ * for everything queued before it, and the file still gets all the
+ * bandwidth chat does not use. Frames of one channel keep their order.
+ *
+ * With {@link #setCreditRequired} chat is also held back until the peer
+ * grants credit and while the peer's window is full, see
+ * {@link CreditWindow}: the other channels carry on, and one CREDIT probe
+ * goes out to ask for more room. Each CREDIT frame is stamped with the
+ * chat bytes written before it, so the peer can tell what was lost.
+ *
+ * Once {@link #setCompression} is on, chat frames (plain or sequenced)
+ * that shrink are sent compressed by the writer. Callbacks always get the original payload.
+ */
+public final class SendQueue implements Runnable {
+
+    // Metric names, see setMetrics()
+    public static final String METRIC_WRITE = "write";
+    public static final String METRIC_SEND = "send";
+    public static final String METRIC_BYTES_OUT = "bytes.out";
+    public static final String METRIC_CREDIT_IN_FLIGHT = "credit.inflight";
+    public static final String METRIC_CREDIT_WINDOW = "credit.window";
+    public static final String METRIC_CREDIT_STALLS = "credit.stalls";
+
+    // Channels, see channelOf()
+    public static final int CHANNEL_CONTROL = 0;
+    public static final int CHANNEL_CHAT = 1;
+    public static final int CHANNEL_BULK = 2;
+    static final int CHANNELS = 3;
+    // Bytes a channel may write per round, times its weight
+    static final int QUANTUM_BYTES = 1024;
+    private static final int[] WEIGHTS = {8, 4, 1};
+
+    /**
+     * Completion callbacks, invoked on the writer thread.
+     */
+    public interface Callback {
+        void onSent(int type, byte[] payload);
+
+        void onSendFailed(int type, byte[] payload, IOException e);
+    }
+
+    private static final class Outgoing {
+        final int type;
+        final int channel;
+        final byte[] payload;
+        // optional bytes sent after the payload, e.g. a slice of a mapped file
+        final ByteBuffer body;
+        final long enqueuedAt;
+        // bytes it takes of the peer's window
+        final int counted;
+
+        Outgoing(int type, int channel, byte[] payload, ByteBuffer body) {
+            this.type = type;
+            this.channel = channel;
+            this.payload = payload;
+            this.body = body;
+            this.enqueuedAt = System.nanoTime();
+            this.counted = CreditWindow.countedBytes(type, payload.length);
+        }
+
+        int frameSize() {
+            return FrameCodec.OVERHEAD + payload.length + (body == null ? 0 : body.remaining());
+        }
+    }
+
+    private final OutputStream outputStream;
+    private final int capacity;
+    // frames waiting to be written, one FIFO per channel, guarded by lock
+    private final ArrayDeque<Outgoing>[] channels = newChannels();
+    private final int[] deficits = new int[CHANNELS];
+    private int current;
+    private int queued;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // off: every frame waits on one channel, in the order offered
+    private volatile boolean scheduling = true;
+    // credit the peer granted, guarded by lock; chat waits for it if required
+    private boolean creditRequired;
+    // the peer's window, 0 until it grants one
+    private int creditWindow;
+    private long creditConsumed;
+    // counted bytes taken for writing
+    private long creditReserved;
+    // a probe is out and no grant has come back yet
+    private boolean probePending;
+    // in flight and window as last added to the metrics
+    private long reportedInFlight;
+    private int reportedWindow;
+    // counted bytes encoded so far, writer only
+    private long creditWritten;
+    private final int maxBatchBytes;
+    private final long maxLingerNanos;
+    private final Callback callback;
+    private final FrameCodec frameCodec = new FrameCodec(0);
+    private final List<Outgoing> batch = new ArrayList<>();
+    private byte[] batchBuffer;
+    private byte[] compressBuffer = new byte[0];
+    // set once the peer has said it can read compressed chat
+    private volatile boolean compression;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    //statistics
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+    private final AtomicLong queuedNanos = new AtomicLong();
+    private final AtomicLong framesCompressed = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong creditStalls = new AtomicLong();
+    private final AtomicLong maxCreditInFlight = new AtomicLong();
+    //shared metrics, null unless set
+    private LatencyHistogram writeHistogram;
+    private LatencyHistogram sendHistogram;
+    private AtomicLong bytesOut;
+    private AtomicLong inFlightGauge;
+    private AtomicLong windowGauge;
+    private AtomicLong stallCounter;
+
+    /**
+     * @param outputStream   socket stream owned by this queue from now on
+     * @param capacity       maximum number of frames waiting on each channel
+     * @param maxBatchBytes  upper bound on the size of one coalesced write
+     * @param maxLingerNanos how long to wait for more frames before writing
+     * @param callback       told about every frame once it is written or dropped
+     */
+    public SendQueue(OutputStream outputStream, int capacity, int maxBatchBytes,
+                     long maxLingerNanos, Callback callback) {
+        this.outputStream = outputStream;
+        this.capacity = capacity;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxLingerNanos = maxLingerNanos;
+        this.callback = callback;
+        this.batchBuffer = new byte[maxBatchBytes];
+        this.thread = new Thread(this, "SendQueue");
+    }
+
+    /**
+     * Compress chat frames from now on. Frames already queued are affected too.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public boolean isCompressing() {
+        return compression;
+    }
+
+    /**
+     * Whether to share the link between the channels, on by default. Off,
+     * frames are written in the order they were queued, and chat waiting
+     * for credit holds up everything behind it. Set before the first frame
+     * is queued.
+     */
+    public void setPriorityScheduling(boolean scheduling) {
+        this.scheduling = scheduling;
+    }
+
+    /**
+     * The channel frames of {@code type} wait on. A RESUME goes with the
+     * chat, the peer must read it before the sequenced chat queued after
+     * it. A BYE waits with the bulk frames, and only goes once the other
+     * channels are empty, so it is still the last thing the peer reads.
+     */
+    public static int channelOf(int type) {
+        switch (type) {
+            case FrameCodec.TYPE_CHAT:
+            case FrameCodec.TYPE_CHAT_DEFLATE:
+            case FrameCodec.TYPE_CHAT_SEQ:
+            case FrameCodec.TYPE_CHAT_SEQ_DEFLATE:
+            case FrameCodec.TYPE_RESUME:
+            case FrameCodec.TYPE_ROUTED:
+                return CHANNEL_CHAT;
+            case FrameCodec.TYPE_FILE_CHUNK:
+            case FrameCodec.TYPE_BYE:
+                return CHANNEL_BULK;
+            default:
+                return CHANNEL_CONTROL;
+        }
+    }
+
+    /**
+     * Also record into {@code metrics}: the time of each socket write
+     * ({@link #METRIC_WRITE}), the time from {@link #offer} until each frame
+     * was written ({@link #METRIC_SEND}), the bytes written
+     * ({@link #METRIC_BYTES_OUT}) and how much of the peer's window is used:
+     * the chat bytes in flight ({@link #METRIC_CREDIT_IN_FLIGHT}) out of
+     * the window ({@link #METRIC_CREDIT_WINDOW}), both summed over the
+     * connections sharing the registry, and how often chat had to wait for
+     * room ({@link #METRIC_CREDIT_STALLS}). Set before the queue is started.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        writeHistogram = metrics.histogram(METRIC_WRITE);
+        sendHistogram = metrics.histogram(METRIC_SEND);
+        bytesOut = metrics.counter(METRIC_BYTES_OUT);
+        inFlightGauge = metrics.counter(METRIC_CREDIT_IN_FLIGHT);
+        windowGauge = metrics.counter(METRIC_CREDIT_WINDOW);
+        stallCounter = metrics.counter(METRIC_CREDIT_STALLS);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queue a frame without blocking.
+     *
+     * @return false if the queue is full or closed
+     */
+    public boolean offer(int type, byte[] payload) {
+        return offer(type, payload, null);
+    }
+
+    /**
+     * Queue a frame whose payload is {@code payload} followed by the
+     * remaining bytes of {@code body}. The body is copied straight into the
+     * socket write buffer and must not change until the frame is reported
+     * sent or failed. Callbacks get {@code payload} only.
+     *
+     * @return false if the queue is full or closed
+     */
+    public boolean offer(int type, byte[] payload, ByteBuffer body) {
+        int channel = scheduling ? channelOf(type) : CHANNEL_CONTROL;
+        int depth;
+        lock.lock();
+        try {
+            if (closed || channels[channel].size() >= capacity) {
+                return false;
+            }
+            channels[channel].addLast(new Outgoing(type, channel, payload, body));
+            depth = ++queued;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        updateMax(maxQueueDepth, depth);
+        return true;
+    }
+
+    /**
+     * Hold chat until the peer grants credit, and then to the room it
+     * grants. Set before the first frame is queued.
+     */
+    public void setCreditRequired(boolean required) {
+        lock.lock();
+        try {
+            creditRequired = required;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The peer's grant: it consumed {@code consumed} counted bytes of ours
+     * and takes up to {@code window} more.
+     */
+    public void grantCredit(long consumed, int window) {
+        if (window <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (consumed > creditConsumed || window != creditWindow) {
+                // a grant of no more room leaves the probe out, the next ping repeats it
+                probePending = false;
+            }
+            creditConsumed = Math.max(creditConsumed, consumed);
+            creditWindow = window;
+            updateCreditLocked();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ask the peer for room again if chat is waiting for it, in case the
+     * probe or its answer was lost.
+     *
+     * @return whether a probe was queued
+     */
+    public boolean probeCredit() {
+        lock.lock();
+        try {
+            if (closed || !isStalledLocked()) {
+                return false;
+            }
+            queueProbeLocked();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Stop the writer. Frames still queued are reported as failed.
+     */
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                batch.add(take());
+                fillBatch();
+                writeBatch();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            failAll(e);
+            return;
+        }
+        failAll(new IOException("Send queue closed"));
+    }
+
+    private void fillBatch() throws InterruptedException {
+        int bytes = batch.get(0).frameSize();
+        long deadline = System.nanoTime() + maxLingerNanos;
+        while (bytes < maxBatchBytes) {
+            Outgoing next;
+            lock.lockInterruptibly();
+            try {
+                next = peekLocked();
+                if (next == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    notEmpty.awaitNanos(remaining);
+                    continue;
+                }
+                if (bytes + next.frameSize() > maxBatchBytes) {
+                    // leave it for the next batch
+                    break;
+                }
+                removeLocked(next);
+            } finally {
+                lock.unlock();
+            }
+            batch.add(next);
+            bytes += next.frameSize();
+        }
+    }
+
+    private Outgoing take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Outgoing next;
+            while ((next = peekLocked()) == null) {
+                notEmpty.await();
+            }
+            removeLocked(next);
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether any channel has a frame that may go now. Chat that waits for
+     * credit sends a probe, once until the next grant.
+     */
+    private boolean readyLocked() {
+        if (queued == 0) {
+            return false;
+        }
+        boolean ready = false;
+        boolean stalled = false;
+        for (ArrayDeque<Outgoing> channel : channels) {
+            Outgoing head = channel.peekFirst();
+            if (head == null) {
+                continue;
+            }
+            if (!hasCreditLocked(head)) {
+                stalled = true;
+            } else if (head.type != FrameCodec.TYPE_BYE || queued == channel.size()) {
+                ready = true;
+            }
+        }
+        if (stalled && !probePending) {
+            creditStalls.incrementAndGet();
+            if (stallCounter != null) {
+                stallCounter.incrementAndGet();
+            }
+            queueProbeLocked();
+            ready = true;
+        }
+        return ready;
+    }
+
+    private boolean isStalledLocked() {
+        for (ArrayDeque<Outgoing> channel : channels) {
+            Outgoing head = channel.peekFirst();
+            if (head != null && !hasCreditLocked(head)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the peer has room for {@code o}. A message bigger than the
+     * whole window still goes once nothing else is in flight.
+     */
+    private boolean hasCreditLocked(Outgoing o) {
+        if (!creditRequired || o.counted == 0) {
+            return true;
+        }
+        if (creditWindow == 0) {
+            return false;
+        }
+        long inFlight = creditReserved - creditConsumed;
+        return inFlight <= 0 || inFlight + o.counted <= creditWindow;
+    }
+
+    private void queueProbeLocked() {
+        byte[] probe = new byte[CreditWindow.CREDIT_SIZE];
+        probe[0] = CreditWindow.FLAG_PROBE;
+        int channel = scheduling ? channelOf(FrameCodec.TYPE_CREDIT) : CHANNEL_CONTROL;
+        // ahead of the rest, with scheduling off the chat waiting for room is in the same channel
+        channels[channel].addFirst(new Outgoing(FrameCodec.TYPE_CREDIT, channel, probe, null));
+        queued++;
+        probePending = true;
+        notEmpty.signal();
+    }
+
+    // Hold the lock
+    private void updateCreditLocked() {
+        long inFlight = creditWindow == 0 || closed ? 0 : creditReserved - creditConsumed;
+        int window = closed ? 0 : creditWindow;
+        updateMax(maxCreditInFlight, inFlight);
+        if (inFlightGauge != null) {
+            inFlightGauge.addAndGet(inFlight - reportedInFlight);
+            windowGauge.addAndGet(window - reportedWindow);
+        }
+        reportedInFlight = inFlight;
+        reportedWindow = window;
+    }
+
+    /**
+     * The frame deficit round robin writes next, or null if none may go.
+     * A channel is served while its head fits its deficit; moving on to the
+     * next channel adds that one's quantum to its deficit. Chat waiting
+     * for credit is passed over and saves up nothing meanwhile.
+     */
+    private Outgoing peekLocked() {
+        if (!readyLocked()) {
+            return null;
+        }
+        while (true) {
+            ArrayDeque<Outgoing> channel = channels[current];
+            Outgoing head = channel.peekFirst();
+            if (head == null || !hasCreditLocked(head)) {
+                // an idle channel saves up nothing
+                deficits[current] = 0;
+            } else if (head.frameSize() <= deficits[current]
+                    && (head.type != FrameCodec.TYPE_BYE || queued == channel.size())) {
+                return head;
+            }
+            current = (current + 1) % CHANNELS;
+            if (!channels[current].isEmpty()) {
+                deficits[current] += QUANTUM_BYTES * WEIGHTS[current];
+            }
+        }
+    }
+
+    private void removeLocked(Outgoing head) {
+        channels[head.channel].pollFirst();
+        queued--;
+        if (head.counted > 0) {
+            creditReserved += head.counted;
+            updateCreditLocked();
+        }
+        deficits[head.channel] -= head.frameSize();
+        if (channels[head.channel].isEmpty()) {
+            deficits[head.channel] = 0;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<Outgoing>[] newChannels() {
+        ArrayDeque<Outgoing>[] channels = new ArrayDeque[CHANNELS];
+        for (int i = 0; i < CHANNELS; i++) {
+            channels[i] = new ArrayDeque<>();
+        }
+        return channels;
+    }
+
+    private void writeBatch() throws IOException {
+        int size = 0;
+        for (Outgoing o : batch) {
+            size += o.frameSize();
+        }
+        if (batchBuffer.length < size) {
+            // a single frame bigger than the batch budget
+            batchBuffer = new byte[size];
+        }
+        int n = 0;
+        for (Outgoing o : batch) {
+            if (o.type == FrameCodec.TYPE_CREDIT && o.payload.length >= CreditWindow.CREDIT_SIZE) {
+                // the mark: counted bytes written before this frame
+                FrameCodec.putLong(o.payload, CreditWindow.SENT_OFFSET, creditWritten);
+            }
+            creditWritten += o.counted;
+            if (o.body == null && o.type == FrameCodec.TYPE_CHAT && compression) {
+                n += encodeCompressed(o.type, FrameCodec.TYPE_CHAT_DEFLATE, o.payload, 0, n);
+            } else if (o.body == null && o.type == FrameCodec.TYPE_CHAT_SEQ && compression) {
+                // the sequence number stays readable
+                n += encodeCompressed(o.type, FrameCodec.TYPE_CHAT_SEQ_DEFLATE, o.payload,
+                        ReliableDelivery.SEQ_SIZE, n);
+            } else if (o.body == null) {
+                n += frameCodec.encode(o.type, o.payload, 0, o.payload.length, batchBuffer, n);
+            } else {
+                n += frameCodec.encode(o.type, o.payload, o.body, batchBuffer, n);
+            }
+        }
+
+        long start = System.nanoTime();
+        outputStream.write(batchBuffer, 0, n);
+        outputStream.flush();
+        long end = System.nanoTime();
+
+        writes.incrementAndGet();
+        bytesSent.addAndGet(n);
+        writeNanos.addAndGet(end - start);
+        updateMax(maxWriteNanos, end - start);
+        if (writeHistogram != null) {
+            writeHistogram.record(end - start);
+            bytesOut.addAndGet(n);
+        }
+        for (Outgoing o : batch) {
+            framesSent.incrementAndGet();
+            queuedNanos.addAndGet(end - o.enqueuedAt);
+            if (sendHistogram != null) {
+                sendHistogram.record(end - o.enqueuedAt);
+            }
+            callback.onSent(o.type, o.payload);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Encode a chat frame compressed, or as it is if it does not shrink.
+     * The first {@code keep} bytes of the payload are copied as they are.
+     * Either way it fits the room reserved for the plain frame.
+     */
+    private int encodeCompressed(int type, int compressedType, byte[] payload, int keep, int offset) {
+        if (compressBuffer.length < payload.length) {
+            compressBuffer = new byte[Math.max(payload.length, 1024)];
+        }
+        int length = PayloadCompression.compress(payload, keep, payload.length - keep, compressBuffer, keep);
+        if (length < 0) {
+            return frameCodec.encode(type, payload, 0, payload.length, batchBuffer, offset);
+        }
+        System.arraycopy(payload, 0, compressBuffer, 0, keep);
+        framesCompressed.incrementAndGet();
+        bytesSaved.addAndGet(payload.length - keep - length);
+        return frameCodec.encode(compressedType, compressBuffer, 0, keep + length, batchBuffer, offset);
+    }
+
+    private void failAll(IOException e) {
+        closed = true;
+        lock.lock();
+        try {
+            for (ArrayDeque<Outgoing> channel : channels) {
+                batch.addAll(channel);
+                channel.clear();
+            }
+            queued = 0;
+            updateCreditLocked();
+        } finally {
+            lock.unlock();
+        }
+        for (Outgoing failed : batch) {
+            callback.onSendFailed(failed.type, failed.payload, e);
+        }
+        batch.clear();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Average time spent inside one socket write.
+     */
+    public long getAverageWriteNanos() {
+        long n = writes.get();
+        return n == 0 ? 0 : writeNanos.get() / n;
+    }
+
+    public long getFramesCompressed() {
+        return framesCompressed.get();
+    }
+
+    /**
+     * Payload bytes compression kept off the wire.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Chat bytes the peer has not consumed yet, 0 until it grants credit.
+     */
+    public long getCreditInFlight() {
+        lock.lock();
+        try {
+            return creditWindow == 0 ? 0 : Math.max(0, creditReserved - creditConsumed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The most chat bytes that were in flight at once.
+     */
+    public long getMaxCreditInFlight() {
+        return maxCreditInFlight.get();
+    }
+
+    /**
+     * The peer's window, 0 if it has not granted one.
+     */
+    public int getCreditWindow() {
+        lock.lock();
+        try {
+            return creditWindow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether chat is waiting for the peer to grant room.
+     */
+    public boolean isCreditStalled() {
+        lock.lock();
+        try {
+            return isStalledLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How often chat had to wait for the peer to grant room.
+     */
+    public long getCreditStalls() {
+        return creditStalls.get();
+    }
+
+    public long getMaxWriteNanos() {
+        return maxWriteNanos.get();
+    }
+
+    /**
+     * Average time from {@link #offer} until the frame was on the socket.
+     */
+    public long getAverageSendLatencyNanos() {
+        long n = framesSent.get();
+        return n == 0 ? 0 : queuedNanos.get() / n;
+    }
+}
@@ -0,0 +1,348 @@
+package com.example.bluetoothchat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hub mode: keeps accepting while connected and holds up to
+ * {@code maxPeers} sessions at once, routing traffic by peer address.
+ *
+ * Unlike {@link ChatUtils}, which drops everything for a single peer, the
+ * thread count here is bounded by the configuration: one accept thread,
+ * one connect thread, and a reader and a writer for each of at most
+ * {@code maxPeers} peers. RFCOMM streams only block, and a peer that
+ * stops reading must not hold up the writes to the others.
+ *
+ * Each peer has its own receive pool and credit window, so a consumer
+ * that is slow to release one peer's leases holds back that peer only.
+ *
+ * Every link is encrypted with {@link SecureConnection}, as in
+ * {@link ChatUtils}; the keys are agreed on the peer's reader thread
+ * before the peer is reported. Chat goes out as plain frames with no
+ * sequence numbers, which {@link ChatUtils} accepts. The sequenced chat
+ * of {@link ReliableDelivery} is not read here.
+ */
+public class SessionManager {
+    private static final String TAG = "SessionManager";
+
+    // An RFCOMM piconet has at most seven active slaves
+    public static final int DEFAULT_MAX_PEERS = 7;
+    // Receive buffers of each peer, enough for its credit window of small messages
+    static final int RECEIVE_BUFFER_SIZE = 1024;
+    static final int RECEIVE_BUFFERS = 64;
+
+    /**
+     * Receives the traffic of every peer. Called on the manager's worker threads.
+     */
+    public interface Listener {
+        void onPeerConnected(String address, String name);
+
+        void onPeerDisconnected(String address);
+
+        /**
+         * A message arrived from {@code address}. The lease must be released
+         * once it has been decoded.
+         */
+        void onMessage(String address, BufferPool.Lease lease);
+
+        void onSent(String address, byte[] payload);
+
+        void onSendFailed(String address, byte[] payload, IOException e);
+
+        void onConnectFailed(String address, IOException e);
+    }
+
+    /**
+     * Receives the frames of one type from every peer, on that peer's
+     * reader thread. The buffer is only valid during the call.
+     */
+    public interface FrameHandler {
+        void onFrame(String address, int type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final ChatTransport transport;
+    private final Listener listener;
+    private final int maxPeers;
+    private final ConcurrentHashMap<String, PeerSession> sessions = new ConcurrentHashMap<>();
+    // handlers for frame types other than chat, given to every new session
+    private final FrameHandler[] frameHandlers = new FrameHandler[256];
+
+    private final ExecutorService readers;
+    private final ExecutorService connector;
+    private Thread acceptThread;
+    private ChatTransport.Server server;
+    // accepting incoming peers
+    private volatile boolean running;
+    private volatile boolean stopped;
+
+    private final PeerSession.Listener sessionListener = new PeerSession.Listener() {
+        @Override
+        public void onMessage(PeerSession session, BufferPool.Lease lease) {
+            listener.onMessage(session.getRemoteAddress(), lease);
+        }
+
+        @Override
+        public void onSent(PeerSession session, byte[] payload) {
+            listener.onSent(session.getRemoteAddress(), payload);
+        }
+
+        @Override
+        public void onSendFailed(PeerSession session, byte[] payload, IOException e) {
+            listener.onSendFailed(session.getRemoteAddress(), payload, e);
+        }
+
+        @Override
+        public void onClosed(PeerSession session, IOException cause) {
+            if (sessions.remove(session.getRemoteAddress(), session)) {
+                listener.onPeerDisconnected(session.getRemoteAddress());
+            }
+        }
+    };
+
+    public SessionManager(ChatTransport transport, Listener listener) {
+        this(transport, listener, DEFAULT_MAX_PEERS);
+    }
+
+    public SessionManager(ChatTransport transport, Listener listener, int maxPeers) {
+        this.transport = transport;
+        this.listener = listener;
+        this.maxPeers = maxPeers;
+        readers = Executors.newFixedThreadPool(maxPeers, new NamedThreadFactory("PeerReader"));
+        connector = Executors.newSingleThreadExecutor(new NamedThreadFactory("PeerConnect"));
+    }
+
+    /**
+     * Route frames of another type than chat from every peer to
+     * {@code handler}. Set before starting or connecting.
+     */
+    public void setFrameHandler(int type, FrameHandler handler) {
+        if (type == FrameCodec.TYPE_CHAT) {
+            throw new IllegalArgumentException("Chat frames go to the listener");
+        }
+        frameHandlers[type] = handler;
+    }
+
+    /**
+     * Start accepting peers.
+     */
+    public synchronized void start() throws IOException {
+        if (running || stopped) {
+            return;
+        }
+        server = transport.listen();
+        running = true;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "PeerAccept");
+        acceptThread.start();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            ChatTransport.Connection connection;
+            try {
+                connection = server.accept();
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "accept: " + e);
+                }
+                return;
+            }
+            addSession(connection);
+        }
+    }
+
+    /**
+     * Connect to a peer in the background. The result is reported through
+     * {@link Listener#onPeerConnected} or {@link Listener#onConnectFailed}.
+     */
+    public void connect(final String address) {
+        connector.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (sessions.containsKey(address)) {
+                    return;
+                }
+                ChatTransport.Connection connection = null;
+                try {
+                    connection = transport.createConnection(address);
+                    connection.connect();
+                } catch (IOException e) {
+                    closeQuietly(connection);
+                    listener.onConnectFailed(address, e);
+                    return;
+                }
+                addSession(connection);
+            }
+        });
+    }
+
+    private void addSession(ChatTransport.Connection connection) {
+        final String address = connection.getRemoteAddress();
+        final SecureConnection secure = new SecureConnection(connection);
+        final PeerSession session;
+        synchronized (this) {
+            if (stopped || sessions.size() >= maxPeers || sessions.containsKey(address)) {
+                Log.w(TAG, "Refusing connection from " + address);
+                closeQuietly(connection);
+                return;
+            }
+            try {
+                // The keys are agreed on by the reader, the session's streams wait for them
+                session = new PeerSession(secure, new BufferPool(RECEIVE_BUFFER_SIZE, RECEIVE_BUFFERS),
+                        sessionListener);
+            } catch (IOException e) {
+                Log.e(TAG, "session: " + e);
+                closeQuietly(connection);
+                return;
+            }
+            session.setFlowControl(CreditWindow.DEFAULT_WINDOW_BYTES);
+            for (int type = 0; type < frameHandlers.length; type++) {
+                if (frameHandlers[type] != null) {
+                    session.setFrameHandler(type, new AddressedFrameListener(address, frameHandlers[type]));
+                }
+            }
+            sessions.put(address, session);
+        }
+        readers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    secure.handshake();
+                } catch (IOException e) {
+                    Log.e(TAG, "Secure handshake with " + address + " failed: " + e);
+                    if (sessions.remove(address, session)) {
+                        session.close();
+                        listener.onConnectFailed(address, e);
+                    }
+                    return;
+                }
+                listener.onPeerConnected(address, secure.getRemoteName());
+                session.run();
+            }
+        });
+    }
+
+    /**
+     * Queue a message for one peer. Never blocks.
+     *
+     * @return false if the peer is not connected or its send queue is full
+     */
+    public boolean send(String address, byte[] payload) {
+        PeerSession session = sessions.get(address);
+        return session != null && session.send(payload);
+    }
+
+    /**
+     * Queue a message for every connected peer.
+     *
+     * @return how many peers accepted it
+     */
+    public int broadcast(byte[] payload) {
+        int count = 0;
+        for (PeerSession session : sessions.values()) {
+            if (session.send(payload)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void disconnect(String address) {
+        PeerSession session = sessions.remove(address);
+        if (session != null) {
+            session.close();
+            listener.onPeerDisconnected(address);
+        }
+    }
+
+    public List<String> getPeerAddresses() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    public int getPeerCount() {
+        return sessions.size();
+    }
+
+    public PeerSession getSession(String address) {
+        return sessions.get(address);
+    }
+
+    /**
+     * Live view of the connected sessions.
+     */
+    Collection<PeerSession> getSessions() {
+        return sessions.values();
+    }
+
+    /**
+     * Close every session and stop all threads. The manager cannot be restarted.
+     */
+    public void stop() {
+        synchronized (this) {
+            running = false;
+            stopped = true;
+            closeQuietly(server);
+            server = null;
+        }
+        for (String address : getPeerAddresses()) {
+            disconnect(address);
+        }
+        connector.shutdownNow();
+        readers.shutdownNow();
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e);
+        }
+    }
+
+    private static class AddressedFrameListener implements FrameDecoder.FrameListener {
+        private final String address;
+        private final FrameHandler handler;
+
+        AddressedFrameListener(String address, FrameHandler handler) {
+            this.address = address;
+            this.handler = handler;
+        }
+
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+            handler.onFrame(address, type, buffer, offset, length);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
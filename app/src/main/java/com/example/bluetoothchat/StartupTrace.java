@@ -0,0 +1,141 @@
+package com.example.bluetoothchat;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the steps of a cold start, from the start of the process until
+ * the app can take a connection:
+ * <ul>
+ *     <li>{@link #METRIC_ROUTE}: the launcher has decided which screen to show</li>
+ *     <li>{@link #METRIC_FIRST_FRAME}: that screen has drawn its first frame</li>
+ *     <li>{@link #METRIC_LISTENING}: the chat listens for incoming connections</li>
+ * </ul>
+ * Each step is marked once per process, so a rotation or a second visit
+ * to the chat screen does not count as a start. The marks are recorded in
+ * the registry of the chat service and so dumped with its other metrics,
+ * where a change in the startup path shows up from one run to the next.
+ *
+ * Before API 24 the platform does not say when the process started; the
+ * trace then starts when this class is loaded, by the launcher activity,
+ * and leaves out the time to fork the process and create the application.
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    public static final String METRIC_ROUTE = "startup.route";
+    public static final String METRIC_FIRST_FRAME = "startup.first_frame";
+    public static final String METRIC_LISTENING = "startup.listening";
+
+    private static final StartupTrace process = new StartupTrace(processStartNanos());
+
+    /**
+     * The trace of this process's start.
+     */
+    public static StartupTrace get() {
+        return process;
+    }
+
+    /**
+     * When the process started, on the {@link System#nanoTime()} clock, or
+     * now if that is not known.
+     */
+    private static long processStartNanos() {
+        long now = System.nanoTime();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            long sinceStart = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+            if (Process.getStartElapsedRealtime() > 0 && sinceStart >= 0) {
+                return now - TimeUnit.MILLISECONDS.toNanos(sinceStart);
+            }
+        }
+        return now;
+    }
+
+    private final long startNanos;
+
+    //member variables
+    //time of each step since the start, in the order they happened
+    private final Map<String, Long> marks = new LinkedHashMap<>();
+    private MetricsRegistry metrics;
+
+    StartupTrace(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Mark the end of step {@code name}, unless it has been marked already.
+     *
+     * @return true if this was the first mark of the step
+     */
+    public synchronized boolean mark(String name) {
+        if (marks.containsKey(name)) {
+            return false;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        marks.put(name, nanos);
+        if (metrics != null) {
+            metrics.histogram(name).record(nanos);
+        }
+        Log.d(TAG, name + " " + nanos / 1000000 + " ms");
+        return true;
+    }
+
+    /**
+     * @return the time from the start until step {@code name}, in nanoseconds, or -1 if not marked
+     */
+    public synchronized long get(String name) {
+        Long nanos = marks.get(name);
+        return nanos != null ? nanos : -1;
+    }
+
+    /**
+     * Record the steps in {@code metrics}, those marked so far and those to come.
+     */
+    public synchronized void setMetrics(MetricsRegistry metrics) {
+        if (this.metrics == metrics) {
+            return;
+        }
+        this.metrics = metrics;
+        for (Map.Entry<String, Long> mark : marks.entrySet()) {
+            metrics.histogram(mark.getKey()).record(mark.getValue());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> mark : marks.entrySet()) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(mark.getKey()).append(' ').append(mark.getValue() / 1000000).append(" ms");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Run {@code task} on the main thread once the next frame has been
+     * drawn. Must be called on the main thread.
+     *
+     * The frame callback comes before the frame's layout and drawing;
+     * posting from it puts the task after them.
+     */
+    public static void afterNextFrame(final Runnable task) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                handler.post(task);
+            }
+        });
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * {@link ChatTransport} over localhost TCP. Addresses are port numbers, so
+ * several chat endpoints can run side by side in one process.
+ */
+public class TcpTransport implements ChatTransport {
+    private final int listenPort;
+
+    /**
+     * @param listenPort port {@link #listen()} binds to, 0 for any free port
+     */
+    public TcpTransport(int listenPort) {
+        this.listenPort = listenPort;
+    }
+
+    /**
+     * A server that is already bound, so callers can read its port before
+     * the first accept.
+     */
+    public static class TcpServer implements Server {
+        private final ServerSocket serverSocket;
+
+        TcpServer(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true);
+            return new TcpConnection(socket, null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    @Override
+    public TcpServer listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(null), listenPort));
+        return new TcpServer(serverSocket);
+    }
+
+    @Override
+    public Connection createConnection(String address) throws IOException {
+        InetSocketAddress remote;
+        try {
+            remote = new InetSocketAddress(InetAddress.getByName(null), Integer.parseInt(address));
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a port number: " + address);
+        }
+        return new TcpConnection(new Socket(), remote);
+    }
+
+    private static class TcpConnection implements Connection {
+        private final Socket socket;
+        private final InetSocketAddress remote;
+
+        TcpConnection(Socket socket, InetSocketAddress remote) {
+            this.socket = socket;
+            this.remote = remote;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (remote != null) {
+                socket.connect(remote);
+                socket.setTcpNoDelay(true);
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return String.valueOf(socket.getPort());
+        }
+
+        @Override
+        public String getRemoteName() {
+            return "tcp:" + socket.getPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
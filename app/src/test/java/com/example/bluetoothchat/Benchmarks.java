@@ -0,0 +1,70 @@
+package com.example.bluetoothchat;
+
+import org.junit.Assume;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Small helpers shared by the JVM benchmarks in this directory.
+ *
+ * The benchmarks are skipped unless the tests run with -Dbench=true:
+ * <pre>
+ *   ./gradlew testDebugUnitTest -Dbench=true --tests '*Benchmark'
+ * </pre>
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Skip the calling class unless benchmarks were asked for, so a plain
+     * test run only checks behavior.
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks run with -Dbench=true", Boolean.getBoolean("bench"));
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread, or -1 if the JVM
+     * does not expose allocation counters.
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Print one result line. Pass a negative {@code allocatedBytes} when
+     * allocation was not measured.
+     */
+    static void report(String name, long operations, long elapsedNanos, long allocatedBytes) {
+        double seconds = elapsedNanos / 1e9;
+        if (allocatedBytes < 0) {
+            System.out.println(String.format(Locale.US, "%-28s %,12d ops in %7.3f s  %,14.0f ops/s",
+                    name, operations, seconds, operations / seconds));
+            return;
+        }
+        System.out.println(String.format(Locale.US,
+                "%-28s %,12d ops in %7.3f s  %,14.0f ops/s  %,10.1f MB/s alloc  %8.2f B/op",
+                name, operations, seconds, operations / seconds,
+                allocatedBytes / 1e6 / seconds, (double) allocatedBytes / operations));
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedBuffer_isReused() throws Exception {
+        BufferPool pool = new BufferPool(64, 2);
+        BufferPool.Lease first = pool.acquire(10);
+        byte[] data = first.data();
+        first.release();
+        BufferPool.Lease second = pool.acquire(10);
+
+        assertSame(data, second.data());
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getCreated());
+    }
+
+    @Test
+    public void dryPool_timesOutAndCountsExhaustion() throws Exception {
+        BufferPool pool = new BufferPool(64, 1);
+        pool.acquire(64);
+        assertNull(pool.acquire(64, 10, TimeUnit.MILLISECONDS));
+        assertEquals(1, pool.getExhaustions());
+    }
+
+    @Test
+    public void dryPool_blocksUntilRelease() throws Exception {
+        final BufferPool pool = new BufferPool(64, 1);
+        final BufferPool.Lease held = pool.acquire(1);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    waiting.await();
+                    Thread.sleep(20);
+                    held.release();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        consumer.start();
+        waiting.countDown();
+        BufferPool.Lease next = pool.acquire(1);
+        assertSame(held.data(), next.data());
+        consumer.join();
+    }
+
+    @Test
+    public void oversizedRequest_bypassesPool() throws Exception {
+        BufferPool pool = new BufferPool(64, 1);
+        BufferPool.Lease big = pool.acquire(1000);
+        assertTrue(big.data().length >= 1000);
+        big.release();
+        assertEquals(0, pool.getCreated());
+        assertEquals(0, pool.getAvailable());
+    }
+
+    @Test
+    public void doubleRelease_isRejected() throws Exception {
+        BufferPool.Lease lease = new BufferPool(8, 1).acquire(1);
+        lease.release();
+        try {
+            lease.release();
+            fail("second release should throw");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
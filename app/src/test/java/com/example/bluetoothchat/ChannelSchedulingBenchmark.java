@@ -0,0 +1,202 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a chat message every 10 ms while a file streams over the same
+ * connection, throttled to about the throughput of RFCOMM, once with the
+ * send queue's channel scheduling and once with every frame in the order
+ * it was queued. The file keeps up to FileTransfer's window of chunks
+ * queued. Reports chat latency percentiles and the file's throughput.
+ *
+ * Run with -Dbench.chats=N to change how many chat messages each round sends.
+ */
+public class ChannelSchedulingBenchmark {
+    private static final int CHATS = Integer.getInteger("bench.chats", 200);
+    private static final long CHAT_INTERVAL_MILLIS = 10;
+    private static final int LINK_BYTES_PER_SECOND = 512 * 1024;
+    private static final int CHUNK = FileTransfer.DEFAULT_CHUNK_SIZE;
+    private static final int WINDOW_CHUNKS = FileTransfer.DEFAULT_WINDOW_BYTES / CHUNK;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void chatLatencyDuringFileTransfer() throws Exception {
+        run("fifo", false);
+        run("scheduled", true);
+    }
+
+    private static void run(String name, boolean scheduling) throws Exception {
+        ChatTransport.Connection[] link = SecureConnectionTest.link();
+        BufferPool pool = new BufferPool(1024, 64);
+        final LatencyHistogram latency = new LatencyHistogram();
+        final CountDownLatch received = new CountDownLatch(CHATS);
+        final AtomicLong bulkBytes = new AtomicLong();
+
+        final PeerSession sender = new PeerSession(new ThrottledConnection(link[0], LINK_BYTES_PER_SECOND),
+                pool, new RecordingListener(null, null));
+        PeerSession receiver = new PeerSession(link[1], pool, new RecordingListener(latency, received));
+        receiver.setFrameHandler(FrameCodec.TYPE_FILE_CHUNK, new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                bulkBytes.addAndGet(length);
+            }
+        });
+        sender.getSendQueue().setPriorityScheduling(scheduling);
+        new Thread(sender).start();
+        new Thread(receiver).start();
+
+        final byte[] head = new byte[16];
+        final ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+        Thread bulk = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!sender.isClosed()) {
+                    if (sender.getSendQueue().getQueueDepth() >= WINDOW_CHUNKS
+                            || !sender.send(FrameCodec.TYPE_FILE_CHUNK, head, chunk)) {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        bulk.start();
+        // let the file fill its window first
+        Thread.sleep(200);
+
+        long start = System.nanoTime();
+        long bulkStart = bulkBytes.get();
+        for (int i = 0; i < CHATS; i++) {
+            byte[] payload = new byte[8];
+            FrameCodec.putLong(payload, 0, System.nanoTime());
+            sender.send(payload);
+            Thread.sleep(CHAT_INTERVAL_MILLIS);
+        }
+        received.await(60, TimeUnit.SECONDS);
+        long nanos = System.nanoTime() - start;
+        double bulkRate = (bulkBytes.get() - bulkStart) / 1024.0 / (nanos / 1e9);
+        sender.close();
+        receiver.close();
+        bulk.join();
+
+        System.out.println(String.format("%-28s %s", name + " chat latency", latency.snapshot()));
+        System.out.println(String.format("%-28s %.0f KB/s of a %d KB/s link",
+                name + " file throughput", bulkRate, LINK_BYTES_PER_SECOND / 1024));
+    }
+
+    private static final class RecordingListener implements PeerSession.Listener {
+        private final LatencyHistogram latency;
+        private final CountDownLatch received;
+
+        RecordingListener(LatencyHistogram latency, CountDownLatch received) {
+            this.latency = latency;
+            this.received = received;
+        }
+
+        @Override
+        public void onMessage(PeerSession session, BufferPool.Lease lease) {
+            latency.recordSince(FrameCodec.getLong(lease.data(), 0));
+            lease.release();
+            received.countDown();
+        }
+
+        @Override
+        public void onSent(PeerSession session, byte[] payload) {
+        }
+
+        @Override
+        public void onSendFailed(PeerSession session, byte[] payload, IOException e) {
+        }
+
+        @Override
+        public void onClosed(PeerSession session, IOException cause) {
+        }
+    }
+
+    /**
+     * A connection whose writes take as long as they would on a link of
+     * the given speed.
+     */
+    private static final class ThrottledConnection implements ChatTransport.Connection {
+        private final ChatTransport.Connection connection;
+        private final int bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long written;
+
+        ThrottledConnection(ChatTransport.Connection connection, int bytesPerSecond) {
+            this.connection = connection;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            connection.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connection.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            final OutputStream out = connection.getOutputStream();
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    written += len;
+                    long due = start + written * 1000000000L / bytesPerSecond;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted");
+                        }
+                    }
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return connection.getRemoteAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return connection.getRemoteName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Message throughput through two ChatUtils endpoints, over the in-process
+ * pipe transport and over localhost TCP.
+ *
+ * Run with -Dbench.messages=N to change the message count.
+ */
+public class ChatUtilsBenchmark {
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 200000);
+    // Messages allowed in flight, kept below the send queue capacity
+    private static final int WINDOW = 128;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void loopbackThroughput() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        run("chat loopback", new LoopbackTransport(network, "server"),
+                new LoopbackTransport(network, "client"), "server");
+    }
+
+    @Test
+    public void tcpThroughput() throws Exception {
+        TcpTransport.TcpServer probe = new TcpTransport(0).listen();
+        int port = probe.getPort();
+        probe.close();
+        run("chat tcp", new TcpTransport(port), new TcpTransport(0), String.valueOf(port));
+    }
+
+    static void run(String name, ChatTransport serverTransport, ChatTransport clientTransport,
+                    String serverAddress) throws Exception {
+        RecordingChatListener serverEvents = new RecordingChatListener(false);
+        RecordingChatListener clientEvents = new RecordingChatListener(false);
+        ChatUtils server = new ChatUtils(serverTransport, serverEvents);
+        ChatUtils client = new ChatUtils(clientTransport, clientEvents);
+        try {
+            server.start();
+            serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+            client.connect(serverAddress);
+            clientEvents.awaitState(ChatUtils.STATE_CONNECTED, 5000);
+            serverEvents.awaitState(ChatUtils.STATE_CONNECTED, 5000);
+
+            byte[] payload = "a typical short chat message, about sixty bytes long".getBytes("UTF-8");
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                if (i >= WINDOW) {
+                    clientEvents.awaitDelivered(i - WINDOW + 1, 10000);
+                }
+                client.write(payload);
+            }
+            serverEvents.awaitRead(MESSAGES, 60000);
+            long elapsed = System.nanoTime() - start;
+            Benchmarks.report(name, MESSAGES, elapsed, -1);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the ChatUtils state machine and data path over the in-process
+ * and TCP transports.
+ */
+public class ChatUtilsTransportTest {
+    private ChatUtils server;
+    private ChatUtils client;
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void loopback_connectExchangeAndDisconnect() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingChatListener serverEvents = new RecordingChatListener();
+        RecordingChatListener clientEvents = new RecordingChatListener();
+        server = new ChatUtils(new LoopbackTransport(network, "server"), serverEvents);
+        client = new ChatUtils(new LoopbackTransport(network, "client"), clientEvents);
+
+        server.start();
+        serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+        client.connect("server");
+        clientEvents.awaitState(ChatUtils.STATE_CONNECTED, 2000);
+        serverEvents.awaitState(ChatUtils.STATE_CONNECTED, 2000);
+        assertEquals("server", clientEvents.getDeviceName());
+        assertEquals("client", serverEvents.getDeviceName());
+        // the code both users compare
+        assertEquals(clientEvents.awaitFingerprint(2000), serverEvents.awaitFingerprint(2000));
+
+        client.write("hello".getBytes());
+        client.write("there".getBytes());
+        server.write("hi".getBytes());
+        serverEvents.awaitRead(2, 2000);
+        clientEvents.awaitRead(1, 2000);
+        assertEquals(Arrays.asList("hello", "there"), serverEvents.received);
+        assertEquals(Arrays.asList("hi"), clientEvents.received);
+
+        // Dropping the link sends the server back to listening
+        client.stop();
+        serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+    }
+
+    @Test
+    public void loopback_connectToUnknownAddressFails() throws Exception {
+        RecordingChatListener events = new RecordingChatListener();
+        client = new ChatUtils(new LoopbackTransport(new LoopbackTransport.Network(), "client"), events);
+        client.connect("nobody");
+        events.awaitState(ChatUtils.STATE_LISTEN, 2000);
+        assertEquals("Can't connect to the device", events.toasts.get(0));
+    }
+
+    @Test
+    public void tcp_connectAndExchange() throws Exception {
+        TcpTransport.TcpServer probe = new TcpTransport(0).listen();
+        int port = probe.getPort();
+        probe.close();
+
+        RecordingChatListener serverEvents = new RecordingChatListener();
+        RecordingChatListener clientEvents = new RecordingChatListener();
+        server = new ChatUtils(new TcpTransport(port), serverEvents);
+        client = new ChatUtils(new TcpTransport(0), clientEvents);
+
+        server.start();
+        serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+        client.connect(String.valueOf(port));
+        clientEvents.awaitState(ChatUtils.STATE_CONNECTED, 5000);
+        serverEvents.awaitState(ChatUtils.STATE_CONNECTED, 5000);
+
+        client.write("over tcp".getBytes());
+        serverEvents.awaitRead(1, 2000);
+        assertEquals("over tcp", serverEvents.received.get(0));
+    }
+}
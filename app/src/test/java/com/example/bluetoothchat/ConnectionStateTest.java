@@ -0,0 +1,251 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateTest {
+    private final List<ChatUtils> services = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ChatUtils service : services) {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void table_refusesConnectingFromNothing() {
+        ConnectionState state = new ConnectionState();
+        assertEquals(ChatUtils.STATE_NONE, state.get());
+        assertFalse(state.moveTo(ChatUtils.STATE_CONNECTED));
+        assertEquals(1, state.getRejectedTransitions());
+        assertEquals(ChatUtils.STATE_NONE, state.get());
+
+        assertTrue(state.moveTo(ChatUtils.STATE_LISTEN));
+        assertTrue(state.moveTo(ChatUtils.STATE_CONNECTED));
+        assertFalse(state.compareAndSet(ChatUtils.STATE_LISTEN, ChatUtils.STATE_NONE));
+        assertTrue(state.compareAndSet(ChatUtils.STATE_CONNECTED, ChatUtils.STATE_NONE));
+        assertEquals(3, state.getTransitions());
+        assertFalse(ConnectionState.isAllowed(ChatUtils.STATE_NONE, 0));
+    }
+
+    @Test
+    public void table_endsAConnectionBeforeAnythingElse() {
+        ConnectionState state = new ConnectionState();
+        state.moveTo(ChatUtils.STATE_CONNECTING);
+        state.moveTo(ChatUtils.STATE_CONNECTED);
+        assertFalse(state.moveTo(ChatUtils.STATE_LISTEN));
+        assertFalse(state.moveTo(ChatUtils.STATE_CONNECTING));
+        assertEquals(2, state.getRejectedTransitions());
+        assertEquals(ChatUtils.STATE_CONNECTED, state.get());
+
+        assertTrue(state.compareAndSet(ChatUtils.STATE_CONNECTED, ChatUtils.STATE_NONE));
+        assertTrue(state.moveTo(ChatUtils.STATE_LISTEN));
+    }
+
+    @Test
+    public void chatUtils_reportsOutsideItsLock_inOrder() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        final ChatUtils service = new ChatUtils(new LoopbackTransport(network, "self"),
+                new RecordingChatListener(false));
+        services.add(service);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        final List<Boolean> locked = Collections.synchronizedList(new ArrayList<Boolean>());
+        service.addStateListener(new ConnectionState.Listener() {
+            @Override
+            public void onTransition(int from, int to) {
+                locked.add(Thread.holdsLock(service));
+                seen.add(from + " -> " + to);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        // a listener that does not return holds up neither the caller nor the lock
+        service.start();
+        service.stop();
+        service.start();
+        assertEquals(ChatUtils.STATE_LISTEN, service.getState());
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (seen.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        String none = String.valueOf(ChatUtils.STATE_NONE);
+        String listen = String.valueOf(ChatUtils.STATE_LISTEN);
+        assertEquals(Arrays.asList(none + " -> " + listen, listen + " -> " + none, none + " -> " + listen), seen);
+        assertFalse(locked.contains(true));
+    }
+
+    @Test
+    public void sameState_isNotReported() {
+        ConnectionState state = new ConnectionState();
+        final AtomicInteger reports = new AtomicInteger();
+        state.addListener(new ConnectionState.Listener() {
+            @Override
+            public void onTransition(int from, int to) {
+                reports.incrementAndGet();
+            }
+        });
+        assertTrue(state.moveTo(ChatUtils.STATE_LISTEN));
+        assertTrue(state.moveTo(ChatUtils.STATE_LISTEN));
+        assertEquals(1, reports.get());
+    }
+
+    @Test
+    public void concurrentMoves_eachWinOnce() throws Exception {
+        final ConnectionState state = new ConnectionState();
+        final List<int[]> seen = Collections.synchronizedList(new ArrayList<int[]>());
+        state.addListener(new ConnectionState.Listener() {
+            @Override
+            public void onTransition(int from, int to) {
+                seen.add(new int[]{from, to});
+            }
+        });
+        final int[] targets = {ChatUtils.STATE_NONE, ChatUtils.STATE_LISTEN,
+                ChatUtils.STATE_CONNECTING, ChatUtils.STATE_CONNECTED};
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 100000; i++) {
+                        int from = state.get();
+                        int to = targets[random.nextInt(targets.length)];
+                        if (ConnectionState.isAllowed(from, to)) {
+                            state.compareAndSet(from, to);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, state.getRejectedTransitions());
+        assertEquals(state.getTransitions(), seen.size());
+        for (int[] transition : seen) {
+            assertTrue(transition[0] + " -> " + transition[1],
+                    ConnectionState.isAllowed(transition[0], transition[1]));
+        }
+    }
+
+    /**
+     * Hammer one service with connect, stop, start and write from several
+     * threads while a peer keeps accepting.
+     */
+    @Test
+    public void chatUtils_survivesConcurrentControl() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingChatListener peerEvents = new RecordingChatListener(false);
+        RecordingChatListener events = new RecordingChatListener(false);
+        final ChatUtils peer = new ChatUtils(new LoopbackTransport(network, "peer"), peerEvents);
+        final ChatUtils service = new ChatUtils(new LoopbackTransport(network, "self"), events);
+        services.add(peer);
+        services.add(service);
+        final List<String> invalid = Collections.synchronizedList(new ArrayList<String>());
+        ConnectionState.Listener checker = new ConnectionState.Listener() {
+            @Override
+            public void onTransition(int from, int to) {
+                if (!ConnectionState.isAllowed(from, to)) {
+                    invalid.add(from + " -> " + to);
+                }
+            }
+        };
+        service.addStateListener(checker);
+        peer.addStateListener(checker);
+        peer.setAutoReconnect(true);
+        peer.setReconnectBackoff(1, 10, 1000);
+        peer.start();
+        peerEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[6];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    byte[] message = "stress".getBytes();
+                    try {
+                        go.await();
+                        for (int i = 0; i < 2000; i++) {
+                            switch (random.nextInt(8)) {
+                                case 0:
+                                    service.connect("peer");
+                                    break;
+                                case 1:
+                                    service.stop();
+                                    break;
+                                case 2:
+                                    service.start();
+                                    break;
+                                default:
+                                    service.write(message);
+                                    break;
+                            }
+                            service.getState();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }, "Stress-" + t);
+            threads[t].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join(60000);
+            assertFalse("deadlocked", thread.isAlive());
+        }
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+        assertEquals(Collections.<String>emptyList(), invalid);
+        assertEquals(0, service.getRejectedTransitions());
+        assertEquals(0, peer.getRejectedTransitions());
+
+        // still works afterwards
+        peer.setAutoReconnect(false);
+        service.stop();
+        assertEquals(ChatUtils.STATE_NONE, service.getState());
+        long read = peerEvents.getReadCount();
+        service.connect("peer");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (peerEvents.getReadCount() == read && System.currentTimeMillis() < deadline) {
+            // the peer may still have been on its way back to listening
+            if (service.getState() == ChatUtils.STATE_LISTEN) {
+                service.connect("peer");
+            }
+            service.write("after".getBytes());
+            Thread.sleep(50);
+        }
+        assertTrue("no message got through", peerEvents.getReadCount() > read);
+    }
+}
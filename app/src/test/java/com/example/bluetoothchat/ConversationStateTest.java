@@ -0,0 +1,282 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A screen that detaches and attaches again, as on a rotation, while the
+ * conversation goes on without it.
+ */
+public class ConversationStateTest {
+
+    /**
+     * The main thread: runs what is posted to it when the test says so.
+     */
+    static class MainThread implements Executor {
+        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        /**
+         * Run the next posted task, waiting for it if need be.
+         */
+        void runNext() throws InterruptedException {
+            Runnable next = queue.poll(5, TimeUnit.SECONDS);
+            assertNotNull("nothing posted", next);
+            next.run();
+        }
+    }
+
+    /**
+     * A screen: the list it shows, built from the state when it attaches.
+     */
+    static class Screen implements ConversationState.Client {
+        final List<Message> shown = new ArrayList<>();
+        int state = -1;
+        String deviceName;
+        String fingerprint;
+
+        void attach(ConversationState conversation) {
+            shown.addAll(conversation.getMessages());
+            state = conversation.getState();
+            deviceName = conversation.getDeviceName();
+            fingerprint = conversation.getFingerprint();
+            conversation.attach(this);
+        }
+
+        @Override
+        public void onStateChanged(int state) {
+            this.state = state;
+        }
+
+        @Override
+        public void onDeviceConnected(String name) {
+            deviceName = name;
+        }
+
+        @Override
+        public void onEncrypted(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public void onMessages(List<Message> batch) {
+            shown.addAll(batch);
+        }
+
+        @Override
+        public void onHistory(List<Message> older) {
+            shown.addAll(0, older);
+        }
+
+        @Override
+        public void onImageArrived(long id) {
+        }
+
+        @Override
+        public void onToast(String text) {
+        }
+    }
+
+    private static final String PEER = "00:00:00:00:00:01";
+
+    private File dir;
+    private MainThread main;
+    private final List<ConversationState> states = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+        main = new MainThread();
+    }
+
+    @After
+    public void tearDown() {
+        for (ConversationState state : states) {
+            state.close();
+        }
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    private ConversationState state() {
+        ConversationState state = new ConversationState(dir, main);
+        states.add(state);
+        return state;
+    }
+
+    private static List<Message> messages(int from, int count) {
+        List<Message> batch = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            batch.add(new Message("peer", "message " + i));
+        }
+        return batch;
+    }
+
+    @Test
+    public void screenAttachingAgain_showsWhatHappenedWithoutIt() throws Exception {
+        ConversationState conversation = state();
+        Screen first = new Screen();
+        first.attach(conversation);
+        conversation.onStateChanged(ChatUtils.STATE_CONNECTED);
+        conversation.onDeviceConnected(PEER, "peer");
+        conversation.onBatch(messages(0, 2));
+        assertEquals(2, first.shown.size());
+
+        // rotated: the old screen is gone before the new one attaches
+        conversation.detach(first);
+        assertFalse(conversation.isAttached());
+        conversation.onBatch(messages(2, 3));
+        Screen second = new Screen();
+        second.attach(conversation);
+
+        assertEquals(2, first.shown.size());
+        assertEquals(5, second.shown.size());
+        assertEquals("message 4", second.shown.get(4).getMessage());
+        assertEquals(ChatUtils.STATE_CONNECTED, second.state);
+        assertEquals("peer", second.deviceName);
+
+        // a late detach of the old screen leaves the new one attached
+        conversation.detach(first);
+        conversation.onBatch(messages(5, 1));
+        assertEquals(6, second.shown.size());
+
+        // everything went to the history, detached or not
+        conversation.getStore().flush();
+        assertEquals(6, conversation.getStore().size());
+    }
+
+    @Test
+    public void fingerprint_isKeptForTheScreen_untilTheNextConnection() throws Exception {
+        ConversationState conversation = state();
+        Screen first = new Screen();
+        first.attach(conversation);
+        conversation.onDeviceConnected(PEER, "peer");
+        assertNull(conversation.getFingerprint());
+        conversation.onEncrypted("123456");
+        assertEquals("123456", first.fingerprint);
+
+        conversation.detach(first);
+        Screen second = new Screen();
+        second.attach(conversation);
+        assertEquals("123456", second.fingerprint);
+
+        // the next connection has keys of its own
+        conversation.onDeviceConnected(PEER, "peer");
+        assertNull(conversation.getFingerprint());
+    }
+
+    @Test
+    public void samePeer_keepsTheConversation_anotherReplacesIt() throws Exception {
+        ConversationState earlier = state();
+        earlier.onDeviceConnected(PEER, "peer");
+        earlier.onBatch(messages(0, 3));
+        earlier.close();
+
+        ConversationState conversation = state();
+        Screen screen = new Screen();
+        screen.attach(conversation);
+        conversation.onDeviceConnected(PEER, "peer");
+        // the last page of the history, read in the background
+        main.runNext();
+        assertEquals(3, conversation.getMessages().size());
+        assertEquals(Arrays.asList("message 0", "message 1", "message 2"), texts(screen.shown));
+
+        MessageStore store = conversation.getStore();
+        conversation.onDeviceConnected(PEER, "peer");
+        assertSame(store, conversation.getStore());
+        assertEquals(3, conversation.getMessages().size());
+
+        conversation.onDeviceConnected("00:00:00:00:00:02", "other");
+        assertTrue(conversation.getMessages().isEmpty());
+        assertEquals("other", screen.deviceName);
+    }
+
+    @Test
+    public void histories_areKeptByAddress_notByName() throws Exception {
+        ConversationState first = state();
+        first.onDeviceConnected(PEER, "Galaxy S10");
+        first.onBatch(messages(0, 2));
+        first.close();
+
+        // another device of the same name has a conversation of its own
+        ConversationState conversation = state();
+        conversation.onDeviceConnected("00:00:00:00:00:02", "Galaxy S10");
+        assertEquals(0, conversation.getStore().appendedCount());
+        conversation.onBatch(messages(2, 1));
+
+        // the first one, renamed, still has its history
+        conversation.onDeviceConnected(PEER, "Renamed");
+        main.runNext();
+        assertEquals(Arrays.asList("message 0", "message 1"), texts(conversation.getMessages()));
+        assertEquals("Renamed", conversation.getDeviceName());
+
+        // a device without a name is kept too
+        conversation.onDeviceConnected("00:00:00:00:00:03", null);
+        assertNotNull(conversation.getStore());
+    }
+
+    @Test
+    public void detached_keepsTheLatestMessages_andPagesTheOthersBack() throws Exception {
+        int page = ConversationState.HISTORY_PAGE_SIZE;
+        int total = ConversationState.MAX_SHOWN + 2 * page;
+        ConversationState conversation = state();
+        conversation.onDeviceConnected(PEER, "peer");
+        for (int i = 0; i < total; i += 10) {
+            conversation.onBatch(messages(i, 10));
+        }
+        List<Message> kept = conversation.getMessages();
+        assertEquals(ConversationState.MAX_SHOWN, kept.size());
+        assertEquals("message " + 2 * page, kept.get(0).getMessage());
+
+        Screen screen = new Screen();
+        screen.attach(conversation);
+        assertEquals(ConversationState.MAX_SHOWN, screen.shown.size());
+        conversation.loadOlderHistory(page);
+        main.runNext();
+        conversation.loadOlderHistory(page);
+        main.runNext();
+        // nothing goes while a screen shows it
+        assertEquals(total, conversation.getMessages().size());
+        assertEquals("message 0", conversation.getMessages().get(0).getMessage());
+
+        conversation.detach(screen);
+        kept = conversation.getMessages();
+        assertEquals(ConversationState.MAX_SHOWN, kept.size());
+        assertEquals("message " + (total - 1), kept.get(kept.size() - 1).getMessage());
+        // the next screen scrolls up to them again
+        new Screen().attach(conversation);
+        conversation.loadOlderHistory(page);
+        main.runNext();
+        assertEquals("message " + page, conversation.getMessages().get(0).getMessage());
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        List<String> texts = new ArrayList<>();
+        for (Message message : messages) {
+            texts.add(message.getMessage());
+        }
+        return texts;
+    }
+}
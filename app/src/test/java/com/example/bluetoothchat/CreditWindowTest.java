@@ -0,0 +1,279 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A sender that is much faster than the consumer on the other side, which
+ * takes a millisecond over each message the way a busy UI thread would.
+ */
+public class CreditWindowTest {
+    private static final int WINDOW = 4096;
+    private static final int MESSAGE_SIZE = 128;
+    private static final int MESSAGES = 500;
+
+    /**
+     * Queues messages the way the UI's Looper does, for a consumer that
+     * releases one per millisecond. Tracks how far behind it falls.
+     */
+    private static class SlowConsumer implements PeerSession.Listener, Runnable {
+        final BlockingQueue<BufferPool.Lease> queue = new LinkedBlockingQueue<>();
+        final AtomicInteger maxQueued = new AtomicInteger();
+        final List<Integer> consumed = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void onMessage(PeerSession session, BufferPool.Lease lease) {
+            queue.add(lease);
+            int size = queue.size();
+            if (size > maxQueued.get()) {
+                maxQueued.set(size);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < MESSAGES; i++) {
+                    BufferPool.Lease lease = queue.take();
+                    Thread.sleep(1);
+                    consumed.add(FrameCodec.getInt(lease.data(), 0));
+                    lease.release();
+                }
+            } catch (InterruptedException e) {
+                // test over
+            }
+        }
+
+        @Override
+        public void onSent(PeerSession session, byte[] payload) {
+        }
+
+        @Override
+        public void onSendFailed(PeerSession session, byte[] payload, IOException e) {
+        }
+
+        @Override
+        public void onClosed(PeerSession session, IOException cause) {
+        }
+    }
+
+    private final List<PeerSession> sessions = new ArrayList<>();
+    private ScheduledExecutorService timer;
+
+    @After
+    public void tearDown() {
+        for (PeerSession session : sessions) {
+            session.close();
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    private PeerSession session(ChatTransport.Connection connection, PeerSession.Listener listener,
+                                boolean flowControl) throws IOException {
+        PeerSession session = new PeerSession(connection, new BufferPool(1024, 64), listener);
+        if (flowControl) {
+            session.setFlowControl(WINDOW);
+        }
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * Send as fast as the send queue takes it, then wait for the consumer.
+     */
+    private static void sendAll(PeerSession sender, Thread consumer) throws InterruptedException {
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] payload = new byte[MESSAGE_SIZE];
+            FrameCodec.putInt(payload, 0, i);
+            while (!sender.send(payload)) {
+                Thread.sleep(1);
+            }
+        }
+        consumer.join(20000);
+    }
+
+    @Test
+    public void slowConsumer_holdsNoMoreThanTheWindow() throws Exception {
+        ChatTransport.Connection[] link = SecureConnectionTest.link();
+        SlowConsumer consumer = new SlowConsumer();
+        PeerSession sender = session(link[0], consumer, true);
+        PeerSession receiver = session(link[1], consumer, true);
+        new Thread(sender).start();
+        new Thread(receiver).start();
+        Thread consuming = new Thread(consumer);
+        consuming.start();
+
+        sendAll(sender, consuming);
+        assertEquals(MESSAGES, consumer.consumed.size());
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals(i, (int) consumer.consumed.get(i));
+        }
+        // the consumer never had more than the window waiting, though the pool had room for twice as much
+        assertTrue("held " + receiver.getCreditWindow().getMaxHeldBytes(),
+                receiver.getCreditWindow().getMaxHeldBytes() <= WINDOW);
+        assertTrue("queued " + consumer.maxQueued.get(), consumer.maxQueued.get() <= WINDOW / MESSAGE_SIZE);
+        assertTrue(sender.getSendQueue().getMaxCreditInFlight() <= WINDOW);
+        assertEquals(WINDOW, sender.getSendQueue().getCreditWindow());
+        assertTrue(sender.getSendQueue().getCreditStalls() > 0);
+        assertEquals(0, receiver.getCreditWindow().getLostBytes());
+    }
+
+    @Test
+    public void withoutFlowControl_theConsumerFallsFurtherBehind() throws Exception {
+        ChatTransport.Connection[] link = SecureConnectionTest.link();
+        SlowConsumer consumer = new SlowConsumer();
+        PeerSession sender = session(link[0], consumer, false);
+        PeerSession receiver = session(link[1], consumer, false);
+        new Thread(sender).start();
+        new Thread(receiver).start();
+        Thread consuming = new Thread(consumer);
+        consuming.start();
+
+        sendAll(sender, consuming);
+        assertEquals(MESSAGES, consumer.consumed.size());
+        // only the receive pool stopped the sender
+        assertEquals(0, sender.getSendQueue().getCreditStalls());
+        assertTrue("queued " + consumer.maxQueued.get(), consumer.maxQueued.get() > WINDOW / MESSAGE_SIZE);
+    }
+
+    @Test
+    public void batchedForTheUi_holdsNoMoreThanTheWindow() throws Exception {
+        ChatTransport.Connection[] link = SecureConnectionTest.link();
+        final BlockingQueue<Runnable> frames = new LinkedBlockingQueue<>();
+        final List<Integer> consumed = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicLong consumedBytes = new AtomicLong();
+        // the UI thread takes a millisecond over each message of a batch
+        final MessageBatcher batcher = new MessageBatcher(new MessageBatcher.FrameScheduler() {
+            @Override
+            public void scheduleFrame(Runnable tick) {
+                frames.add(tick);
+            }
+        }, new MessageBatcher.Sink() {
+            @Override
+            public void onBatch(List<Message> batch) {
+                for (Message message : batch) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    consumed.add(Integer.parseInt(message.getMessage().trim()));
+                    consumedBytes.addAndGet(MESSAGE_SIZE);
+                }
+            }
+        });
+        // only chat is given to it here, nothing goes to the handler
+        final BatchingChatListener chat = new BatchingChatListener(null, batcher, "me");
+        final AtomicLong readBytes = new AtomicLong();
+        final AtomicLong maxWaiting = new AtomicLong();
+        PeerSession.Listener reading = new SlowConsumer() {
+            @Override
+            public void onMessage(PeerSession session, BufferPool.Lease lease) {
+                // read but not yet taken by the sink, wherever it waits
+                long waiting = readBytes.addAndGet(lease.length()) - consumedBytes.get();
+                if (waiting > maxWaiting.get()) {
+                    maxWaiting.set(waiting);
+                }
+                chat.onMessageRead(lease);
+            }
+        };
+        PeerSession sender = session(link[0], new SlowConsumer(), true);
+        PeerSession receiver = session(link[1], reading, true);
+        new Thread(sender).start();
+        new Thread(receiver).start();
+        Thread ui = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (consumed.size() < MESSAGES) {
+                        frames.take().run();
+                    }
+                } catch (InterruptedException e) {
+                    // test over
+                }
+            }
+        });
+        ui.start();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] payload = String.format("%" + MESSAGE_SIZE + "d", i).getBytes("UTF-8");
+            while (!sender.send(payload)) {
+                Thread.sleep(1);
+            }
+        }
+        ui.join(20000);
+        assertEquals(MESSAGES, consumed.size());
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals(i, (int) consumed.get(i));
+        }
+        // messages waiting for a frame still held back the sender
+        assertTrue("waiting " + maxWaiting.get(), maxWaiting.get() <= WINDOW);
+        assertTrue(receiver.getCreditWindow().getMaxHeldBytes() <= WINDOW);
+        assertTrue(sender.getSendQueue().getCreditStalls() > 0);
+    }
+
+    @Test
+    public void droppedFrames_doNotShrinkTheWindow() throws Exception {
+        ChatTransport.Connection[] link = SecureConnectionTest.link();
+        // more than the window, the sender would wait for good unless the marks account for it
+        Long[] drop = new Long[WINDOW / MESSAGE_SIZE + 1];
+        for (int i = 0; i < drop.length; i++) {
+            drop[i] = (long) (10 + i * 10);
+        }
+        ReliableDeliveryTest.DroppingConnection dropping = new ReliableDeliveryTest.DroppingConnection(
+                link[0], Collections.synchronizedSet(new HashSet<>(Arrays.asList(drop))));
+        SlowConsumer consumer = new SlowConsumer();
+        PeerSession sender = session(dropping, consumer, true);
+        PeerSession receiver = session(link[1], consumer, true);
+
+        timer = Executors.newSingleThreadScheduledExecutor();
+        ReliableDelivery.Callback release = new ReliableDelivery.Callback() {
+            @Override
+            public void onMessage(BufferPool.Lease lease) {
+                lease.release();
+            }
+
+            @Override
+            public void onDelivered(byte[] payload) {
+            }
+        };
+        ReliableDelivery outgoing = new ReliableDelivery(new BufferPool(1024, 64), release);
+        ReliableDelivery incoming = new ReliableDelivery(new BufferPool(1024, 64), release);
+        outgoing.setRetransmitTimeout(50);
+        outgoing.attach(sender, timer);
+        incoming.attach(receiver, timer);
+        new Thread(sender).start();
+        new Thread(receiver).start();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] payload = new byte[MESSAGE_SIZE];
+            FrameCodec.putInt(payload, 0, i);
+            assertTrue(outgoing.send(payload));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (outgoing.getUnacknowledged() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, outgoing.getUnacknowledged());
+        assertTrue(sender.getSendQueue().getCreditStalls() > 0);
+        assertEquals((long) drop.length * MESSAGE_SIZE, receiver.getCreditWindow().getLostBytes());
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DeviceCacheTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("devices", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void repeatedSightings_updateOneEntry() {
+        DeviceCache cache = new DeviceCache(file);
+        assertNotNull(cache.update(ADDRESS, null, (short) -80, 1000));
+        // same address in lower case, same details: nothing to redraw
+        assertNull(cache.update(ADDRESS.toLowerCase(), null, (short) -80, 2000));
+        assertEquals(2000, cache.get(ADDRESS).getLastSeen());
+
+        DeviceCache.Device device = cache.update(ADDRESS, "Phone", DeviceCache.RSSI_UNKNOWN, 3000);
+        assertNotNull(device);
+        assertEquals("Phone", device.getName());
+        // unknown signal strength keeps the last known one
+        assertEquals(-80, device.getRssi());
+        assertNotNull(cache.update(ADDRESS, null, (short) -55, 4000));
+        assertEquals("Phone", cache.get(ADDRESS).getName());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void devices_areListedNewestFirst() {
+        DeviceCache cache = new DeviceCache(file);
+        cache.update("00:00:00:00:00:01", "old", (short) -70, 1000);
+        cache.update("00:00:00:00:00:02", "new", (short) -70, 3000);
+        cache.update("00:00:00:00:00:03", "middle", (short) -70, 2000);
+        List<DeviceCache.Device> devices = cache.getDevices();
+        assertEquals("new", devices.get(0).getName());
+        assertEquals("middle", devices.get(1).getName());
+        assertEquals("old", devices.get(2).getName());
+    }
+
+    @Test
+    public void staleDevices_ageOut() {
+        DeviceCache cache = new DeviceCache(file, 1000);
+        cache.update("00:00:00:00:00:01", "stale", (short) -70, 1000);
+        cache.update("00:00:00:00:00:02", "fresh", (short) -70, 2500);
+        assertEquals(1, cache.expire(3000));
+        assertEquals(1, cache.size());
+        assertEquals("fresh", cache.getDevices().get(0).getName());
+    }
+
+    @Test
+    public void savedCache_isLoadedOnTheNextLaunch() throws IOException {
+        DeviceCache cache = new DeviceCache(file);
+        cache.update(ADDRESS, "Phone", (short) -61, 1000);
+        cache.update("00:00:00:00:00:02", null, DeviceCache.RSSI_UNKNOWN, 2000);
+        cache.save();
+
+        DeviceCache reopened = new DeviceCache(file);
+        reopened.load();
+        assertEquals(2, reopened.size());
+        DeviceCache.Device phone = reopened.get(ADDRESS);
+        assertEquals("Phone", phone.getName());
+        assertEquals(-61, phone.getRssi());
+        assertEquals(1000, phone.getLastSeen());
+        assertNull(reopened.get("00:00:00:00:00:02").getName());
+    }
+
+    @Test
+    public void corruptOrMissingFile_isAnEmptyCache() throws IOException {
+        DeviceCache cache = new DeviceCache(file);
+        cache.load();
+        assertEquals(0, cache.size());
+
+        cache.update(ADDRESS, "Phone", (short) -61, 1000);
+        cache.save();
+        // cut the file short
+        byte[] partial = new byte[(int) file.length() - 3];
+        FileInputStream in = new FileInputStream(file);
+        in.read(partial);
+        in.close();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(partial);
+        out.close();
+
+        cache.load();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.FilterOutputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ChatTransport} for tests that wraps another one and can fail
+ * connection attempts or cut every open link, the way a peer walking out
+ * of radio range would: no BYE, the streams just end. Writes to a peer
+ * can also be held, as if it had stopped reading.
+ */
+class FaultInjectingTransport implements ChatTransport {
+    private final ChatTransport delegate;
+    private final AtomicInteger failingConnects = new AtomicInteger();
+    private final AtomicInteger connectAttempts = new AtomicInteger();
+    private final List<Connection> open = new ArrayList<>();
+    // remote addresses whose writes block until released
+    private final Set<String> stalled = new HashSet<>();
+
+    FaultInjectingTransport(ChatTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Make the next {@code count} calls to {@link Connection#connect()} fail.
+     */
+    void failNextConnects(int count) {
+        failingConnects.set(count);
+    }
+
+    int getConnectAttempts() {
+        return connectAttempts.get();
+    }
+
+    /**
+     * Close every connection made or accepted so far.
+     */
+    void breakConnections() throws IOException {
+        List<Connection> connections;
+        synchronized (open) {
+            connections = new ArrayList<>(open);
+            open.clear();
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Block every write to {@code address} until {@link #releaseWrites()}.
+     */
+    void stallWrites(String address) {
+        synchronized (stalled) {
+            stalled.add(address);
+        }
+    }
+
+    void releaseWrites() {
+        synchronized (stalled) {
+            stalled.clear();
+            stalled.notifyAll();
+        }
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        final Server server = delegate.listen();
+        return new Server() {
+            @Override
+            public Connection accept() throws IOException {
+                final Connection connection = server.accept();
+                return track(new Connection() {
+                    @Override
+                    public void connect() throws IOException {
+                        connection.connect();
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return connection.getInputStream();
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() throws IOException {
+                        return stallable(connection);
+                    }
+
+                    @Override
+                    public String getRemoteAddress() {
+                        return connection.getRemoteAddress();
+                    }
+
+                    @Override
+                    public String getRemoteName() {
+                        return connection.getRemoteName();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        connection.close();
+                    }
+                });
+            }
+
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection createConnection(String address) throws IOException {
+        final Connection connection = delegate.createConnection(address);
+        return new Connection() {
+            @Override
+            public void connect() throws IOException {
+                connectAttempts.incrementAndGet();
+                if (failingConnects.getAndDecrement() > 0) {
+                    throw new IOException("Injected connect failure");
+                }
+                connection.connect();
+                track(connection);
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return connection.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return stallable(connection);
+            }
+
+            @Override
+            public String getRemoteAddress() {
+                return connection.getRemoteAddress();
+            }
+
+            @Override
+            public String getRemoteName() {
+                return connection.getRemoteName();
+            }
+
+            @Override
+            public void close() throws IOException {
+                connection.close();
+            }
+        };
+    }
+
+    private OutputStream stallable(final Connection connection) throws IOException {
+        return new FilterOutputStream(connection.getOutputStream()) {
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                awaitWritable(connection.getRemoteAddress());
+                out.write(buffer, offset, count);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                awaitWritable(connection.getRemoteAddress());
+                out.write(b);
+            }
+        };
+    }
+
+    private void awaitWritable(String address) throws IOException {
+        synchronized (stalled) {
+            while (stalled.contains(address)) {
+                try {
+                    stalled.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private Connection track(Connection connection) {
+        synchronized (open) {
+            open.add(connection);
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Effective file transfer throughput between two ChatUtils over localhost
+ * TCP, against plain writes of the same bytes to a socket of the same
+ * transport, once thrown away by the reader and once written to a file.
+ *
+ * Run with -Dbench.fileMb=N to change the file size.
+ */
+public class FileTransferBenchmark {
+    private static final int FILE_MB = Integer.getInteger("bench.fileMb", 64);
+    private static final int WRITE_SIZE = FileTransfer.DEFAULT_CHUNK_SIZE;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void throughputAgainstRawSocket() throws Exception {
+        long size = FILE_MB * 1024L * 1024L;
+        File dir = File.createTempFile("transfer", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            File file = new File(dir, "payload.bin");
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            out.setLength(size);
+            out.close();
+
+            double raw = rawSocket(size, null);
+            double rawToFile = rawSocket(size, new File(dir, "raw.bin"));
+            double transfer = fileTransfer(file, new File(dir, "received"));
+            System.out.println(String.format(Locale.US, "%-28s %10.1f MB/s", "raw tcp socket", raw));
+            System.out.println(String.format(Locale.US, "%-28s %10.1f MB/s", "raw tcp socket to file", rawToFile));
+            System.out.println(String.format(Locale.US, "%-28s %10.1f MB/s  (%.0f%% of raw, %.0f%% of raw to file)",
+                    "file transfer tcp", transfer, 100 * transfer / raw, 100 * transfer / rawToFile));
+        } finally {
+            Benchmarks.deleteRecursively(dir);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        TcpTransport.TcpServer probe = new TcpTransport(0).listen();
+        int port = probe.getPort();
+        probe.close();
+        return port;
+    }
+
+    /**
+     * @param target file the reader writes what it receives to, or null to discard it
+     */
+    private static double rawSocket(final long size, final File target) throws Exception {
+        int port = freePort();
+        final ChatTransport.Server server = new TcpTransport(port).listen();
+        final AtomicLong read = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ChatTransport.Connection connection = server.accept();
+                    InputStream in = connection.getInputStream();
+                    OutputStream file = target == null ? null : new FileOutputStream(target);
+                    byte[] buffer = new byte[64 * 1024];
+                    int n;
+                    while (read.get() < size && (n = in.read(buffer)) > 0) {
+                        if (file != null) {
+                            file.write(buffer, 0, n);
+                        }
+                        read.addAndGet(n);
+                    }
+                    if (file != null) {
+                        file.close();
+                    }
+                    connection.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        reader.start();
+        ChatTransport.Connection connection = new TcpTransport(0).createConnection(String.valueOf(port));
+        connection.connect();
+        try {
+            OutputStream out = connection.getOutputStream();
+            byte[] buffer = new byte[WRITE_SIZE];
+            long start = System.nanoTime();
+            for (long sent = 0; sent < size; sent += WRITE_SIZE) {
+                out.write(buffer, 0, (int) Math.min(WRITE_SIZE, size - sent));
+            }
+            out.flush();
+            reader.join();
+            long elapsed = System.nanoTime() - start;
+            assertEquals(size, read.get());
+            return size / 1e6 / (elapsed / 1e9);
+        } finally {
+            connection.close();
+            server.close();
+        }
+    }
+
+    private static double fileTransfer(File file, File downloadDir) throws Exception {
+        int port = freePort();
+        RecordingChatListener serverEvents = new RecordingChatListener(false);
+        RecordingChatListener clientEvents = new RecordingChatListener(false);
+        RecordingTransferListener received = new RecordingTransferListener();
+        ChatUtils server = new ChatUtils(new TcpTransport(port), serverEvents);
+        ChatUtils client = new ChatUtils(new TcpTransport(0), clientEvents);
+        FileTransfer serverFiles = new FileTransfer(downloadDir, received);
+        FileTransfer clientFiles = new FileTransfer(downloadDir, new RecordingTransferListener());
+        server.setFileTransfer(serverFiles);
+        client.setFileTransfer(clientFiles);
+        try {
+            server.start();
+            serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+            client.connect(String.valueOf(port));
+            clientEvents.awaitState(ChatUtils.STATE_CONNECTED, 5000);
+            serverEvents.awaitState(ChatUtils.STATE_CONNECTED, 5000);
+
+            long start = System.nanoTime();
+            client.sendFile(file);
+            File arrived = received.awaitReceived(1, 120000);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(file.length(), arrived.length());
+            return file.length() / 1e6 / (elapsed / 1e9);
+        } finally {
+            client.stop();
+            server.stop();
+            clientFiles.close();
+            serverFiles.close();
+        }
+    }
+}
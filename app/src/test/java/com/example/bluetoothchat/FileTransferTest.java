@@ -0,0 +1,157 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends files between two ChatUtils over the in-process transport.
+ */
+public class FileTransferTest {
+    private File dir;
+    private ChatUtils server;
+    private ChatUtils client;
+    private FileTransfer serverFiles;
+    private FileTransfer clientFiles;
+    private RecordingChatListener serverEvents;
+    private RecordingChatListener clientEvents;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("transfer", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+        if (clientFiles != null) {
+            clientFiles.close();
+        }
+        if (serverFiles != null) {
+            serverFiles.close();
+        }
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    private void connect(FileTransfer.Listener serverListener, int chunkSize, int window) throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        serverEvents = new RecordingChatListener();
+        clientEvents = new RecordingChatListener();
+        server = new ChatUtils(new LoopbackTransport(network, "server"), serverEvents);
+        client = new ChatUtils(new LoopbackTransport(network, "client"), clientEvents);
+        serverFiles = new FileTransfer(new File(dir, "server"), serverListener, chunkSize, window);
+        clientFiles = new FileTransfer(new File(dir, "client"), new RecordingTransferListener(), chunkSize, window);
+        server.setFileTransfer(serverFiles);
+        client.setFileTransfer(clientFiles);
+
+        server.start();
+        serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+        client.connect("server");
+        clientEvents.awaitState(ChatUtils.STATE_CONNECTED, 2000);
+        serverEvents.awaitState(ChatUtils.STATE_CONNECTED, 2000);
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void files_arriveIntactNextToChat() throws Exception {
+        RecordingTransferListener received = new RecordingTransferListener();
+        connect(received, 4096, 32 * 1024);
+        File big = createFile("log.txt", 1000 * 1000 + 123);
+        File empty = createFile("empty.bin", 0);
+
+        client.sendFile(big);
+        client.sendFile(empty);
+        client.write("still chatting".getBytes());
+
+        File first = received.awaitReceived(1, 5000);
+        File second = received.awaitReceived(2, 5000);
+        assertEquals("log.txt", first.getName());
+        assertArrayEquals(read(big), read(first));
+        assertEquals("empty.bin", second.getName());
+        assertEquals(0, second.length());
+        serverEvents.awaitRead(1, 2000);
+        assertEquals(Arrays.asList("still chatting"), serverEvents.received);
+        assertEquals(0, clientFiles.getRewinds());
+    }
+
+    @Test
+    public void transfer_resumesAfterConnectionLost() throws Exception {
+        final int size = 2 * 1000 * 1000;
+        final CountDownLatch halfway = new CountDownLatch(1);
+        final CountDownLatch cut = new CountDownLatch(1);
+        RecordingTransferListener received = new RecordingTransferListener() {
+            @Override
+            public void onReceiveProgress(String name, long bytes, long total) {
+                super.onReceiveProgress(name, bytes, total);
+                if (bytes >= total / 2 && halfway.getCount() > 0) {
+                    // hold the receiver until the link is gone
+                    halfway.countDown();
+                    try {
+                        cut.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        connect(received, 8192, 64 * 1024);
+        File file = createFile("capture.bin", size);
+        client.sendFile(file);
+
+        assertTrue(halfway.await(5, TimeUnit.SECONDS));
+        client.stop();
+        cut.countDown();
+        serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+
+        client.connect("server");
+        File arrived = received.awaitReceived(1, 10000);
+        assertArrayEquals(read(file), read(arrived));
+        // Only what was in flight when the link dropped is sent twice
+        assertTrue("sent " + clientFiles.getChunkBytesSent(),
+                clientFiles.getChunkBytesSent() < size + size / 4);
+        assertEquals(size, serverFiles.getChunkBytesReceived());
+    }
+}
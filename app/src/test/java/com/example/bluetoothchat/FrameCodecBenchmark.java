@@ -0,0 +1,72 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pushes frames through a pair of piped streams and reports decode rate
+ * and how many bytes the reading thread allocated per frame.
+ *
+ * Run with -Dbench.frames=N to change the frame count.
+ */
+public class FrameCodecBenchmark {
+    private static final int FRAMES = Integer.getInteger("bench.frames", 2000000);
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void decodeThroughPipe() throws Exception {
+        final PipedOutputStream pipeOut = new PipedOutputStream();
+        PipedInputStream pipeIn = new PipedInputStream(pipeOut, 64 * 1024);
+        final byte[] payload = "a typical short chat message, about sixty bytes long".getBytes("UTF-8");
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FrameCodec codec = new FrameCodec();
+                    // Batch frames like a busy link would
+                    OutputStream out = new java.io.BufferedOutputStream(pipeOut, 8192);
+                    for (int i = 0; i < FRAMES; i++) {
+                        codec.writeFrame(out, FrameCodec.TYPE_CHAT, payload, 0, payload.length);
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        final long[] received = new long[1];
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                received[0]++;
+            }
+        });
+
+        long allocBefore = Benchmarks.allocatedBytes();
+        long start = System.nanoTime();
+        writer.start();
+        while (decoder.readFrom(pipeIn) >= 0) {
+            // keep reading until the writer closes the pipe
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = Benchmarks.allocatedBytes() - allocBefore;
+        writer.join();
+
+        assertEquals(FRAMES, received[0]);
+        assertEquals(0, decoder.getCorruptFrames());
+        Benchmarks.report("frame decode", FRAMES, elapsed, allocated);
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameCodecTest {
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<Integer> types = new ArrayList<>();
+    private FrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                types.add(type);
+                frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            }
+        }, 4096);
+    }
+
+    private static byte[] encode(int type, String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] payload = text.getBytes("UTF-8");
+        new FrameCodec().writeFrame(out, type, payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void crc32c_matchesKnownVector() throws Exception {
+        Crc32c crc = new Crc32c();
+        crc.update("123456789".getBytes("US-ASCII"));
+        assertEquals(0xE3069283L, crc.getValue());
+    }
+
+    @Test
+    public void gluedFrames_areSplitApart() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(encode(FrameCodec.TYPE_CHAT, "hello"));
+        out.write(encode(7, ""));
+        out.write(encode(FrameCodec.TYPE_CHAT, "world"));
+        byte[] all = out.toByteArray();
+
+        decoder.feed(all, 0, all.length);
+
+        assertEquals(3, frames.size());
+        assertArrayEquals("hello".getBytes("UTF-8"), frames.get(0));
+        assertEquals(7, (int) types.get(1));
+        assertEquals(0, frames.get(1).length);
+        assertArrayEquals("world".getBytes("UTF-8"), frames.get(2));
+    }
+
+    @Test
+    public void frameSplitAcrossReads_isReassembled() throws Exception {
+        byte[] frame = encode(FrameCodec.TYPE_CHAT, "a message torn into single bytes");
+        for (int i = 0; i < frame.length; i++) {
+            decoder.feed(frame, i, 1);
+        }
+        assertEquals(1, frames.size());
+        assertArrayEquals("a message torn into single bytes".getBytes("UTF-8"), frames.get(0));
+    }
+
+    @Test
+    public void payloadWrappingTheRing_isDelivered() throws Exception {
+        // Push enough traffic through to wrap the ring several times
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String text = new String(chars);
+        byte[] frame = encode(FrameCodec.TYPE_CHAT, text);
+        for (int i = 0; i < 50; i++) {
+            ByteArrayInputStream in = new ByteArrayInputStream(frame);
+            while (decoder.readFrom(in) > 0) {
+                // a read stops at the end of the ring, so keep going
+            }
+        }
+        assertEquals(50, frames.size());
+        for (byte[] f : frames) {
+            assertArrayEquals(text.getBytes("UTF-8"), f);
+        }
+    }
+
+    @Test
+    public void corruptFrame_isDroppedAndDecoderResyncs() throws Exception {
+        byte[] bad = encode(FrameCodec.TYPE_CHAT, "corrupted");
+        bad[FrameCodec.HEADER_SIZE + 2] ^= 0x40;
+        byte[] good = encode(FrameCodec.TYPE_CHAT, "intact");
+
+        byte[] garbage = {1, 2, FrameCodec.SYNC, 3};
+        decoder.feed(garbage, 0, garbage.length);
+        decoder.feed(bad, 0, bad.length);
+        decoder.feed(good, 0, good.length);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals("intact".getBytes("UTF-8"), frames.get(0));
+        assertEquals(1, decoder.getFramesDecoded());
+        assertEquals(2, decoder.getCorruptFrames());
+    }
+
+    @Test
+    public void oversizedLength_isTreatedAsCorrupt() throws Exception {
+        byte[] header = {FrameCodec.SYNC, FrameCodec.TYPE_CHAT, 0x7F, 0, 0, 0, 0};
+        byte[] good = encode(FrameCodec.TYPE_CHAT, "after");
+        decoder.feed(header, 0, header.length);
+        decoder.feed(good, 0, good.length);
+
+        assertEquals(1, frames.size());
+        assertEquals(1, decoder.getCorruptFrames());
+    }
+
+    @Test
+    public void corruptLength_doesNotHoldUpTheNextFrame() throws Exception {
+        byte[] bad = encode(FrameCodec.TYPE_CHAT, "hello");
+        // still a length the decoder would wait for
+        bad[5] ^= 0x40;
+        byte[] good = encode(FrameCodec.TYPE_CHAT, "after");
+        decoder.feed(bad, 0, bad.length);
+        // and then the link goes quiet
+        decoder.feed(good, 0, good.length);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals("after".getBytes("UTF-8"), frames.get(0));
+        assertEquals(1, decoder.getCorruptFrames());
+    }
+}
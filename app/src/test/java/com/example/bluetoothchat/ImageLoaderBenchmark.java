@@ -0,0 +1,210 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scrolls a conversation of image messages the way the list binds rows:
+ * the row coming into view is bound, checking the cache first, and the
+ * one leaving is recycled. Decodes are simulated with the allocation and
+ * a pass over the bytes of a real one, on a background thread.
+ *
+ * First the user scrolls back and forth over a stretch of the history
+ * that fits in the cache, which must decode each image once. Then a fling
+ * through all of it, where the cache must stay within its bytes and rows
+ * that fly past must not keep the decode thread busy.
+ *
+ * Run with -Dbench.images=N to change the number of image messages.
+ */
+public class ImageLoaderBenchmark {
+    private static final int IMAGES = Integer.getInteger("bench.images", 500);
+    private static final int VISIBLE = 12;
+    // 256x256 ARGB, what a row shows, and a 64x64 thumbnail
+    private static final int FULL_BYTES = 256 * 256 * 4;
+    private static final int THUMBNAIL_BYTES = 64 * 64 * 4;
+    private static final long CACHE_BYTES = 8 * 1024 * 1024;
+    // rows the back and forth covers, within what the cache holds
+    private static final int BROWSED = 24;
+    private static final int PASSES = 20;
+
+    private static class SimulatedDecoder implements ImageLoader.Decoder<byte[]> {
+        final ConcurrentHashMap<Long, AtomicInteger> decodes = new ConcurrentHashMap<>();
+        final AtomicInteger total = new AtomicInteger();
+        volatile int checksum;
+
+        @Override
+        public byte[] decode(Message message, boolean full) {
+            if (full) {
+                AtomicInteger count = decodes.get(message.getId());
+                if (count == null) {
+                    decodes.putIfAbsent(message.getId(), new AtomicInteger());
+                    count = decodes.get(message.getId());
+                }
+                count.incrementAndGet();
+            }
+            total.incrementAndGet();
+            byte[] pixels = new byte[full ? FULL_BYTES : THUMBNAIL_BYTES];
+            int sum = 0;
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (byte) (i * 31 + message.getId());
+                sum += pixels[i];
+            }
+            checksum += sum;
+            return pixels;
+        }
+
+        @Override
+        public int sizeOf(byte[] image) {
+            return image.length;
+        }
+
+        int maxDecodesOfOneImage() {
+            int max = 0;
+            for (AtomicInteger count : decodes.values()) {
+                max = Math.max(max, count.get());
+            }
+            return max;
+        }
+    }
+
+    /**
+     * A recycled row, bound like MessageAdapter binds image rows.
+     */
+    private static class Row implements ImageLoader.Callback<byte[]> {
+        volatile long imageId = -1;
+        volatile boolean showingFull;
+
+        void bind(ImageLoader<byte[]> loader, Message message) {
+            imageId = message.getId();
+            showingFull = false;
+            loader.cancel(this);
+            if (loader.get(message.getId(), true) != null) {
+                showingFull = true;
+                return;
+            }
+            if (loader.get(message.getId(), false) == null) {
+                loader.load(message, false, this);
+            }
+            loader.load(message, true, this);
+        }
+
+        @Override
+        public void onLoaded(Message message, boolean full, byte[] image) {
+            if (message.getId() == imageId && full) {
+                showingFull = true;
+            }
+        }
+    }
+
+    private final List<Message> history = new ArrayList<>();
+    private final List<Row> rows = new ArrayList<>();
+    private ImageLoader<byte[]> loader;
+    private ExecutorService decodeThread;
+    private long bindNanos;
+    private int binds;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void scrollThroughImages() throws Exception {
+        for (int i = 0; i < IMAGES; i++) {
+            history.add(new Message(i, "peer", "image " + i, new byte[1]));
+        }
+        for (int i = 0; i <= VISIBLE; i++) {
+            rows.add(new Row());
+        }
+        SimulatedDecoder decoder = new SimulatedDecoder();
+        decodeThread = Executors.newSingleThreadExecutor();
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        loader = new ImageLoader<>(decoder, CACHE_BYTES, decodeThread, direct);
+        try {
+            // the first screen
+            for (int i = 0; i < VISIBLE; i++) {
+                bind(i, i);
+            }
+            idle();
+
+            // slow enough for every decode to finish before the next row comes in
+            for (int pass = 0; pass < PASSES; pass++) {
+                for (int first = 1; first <= BROWSED - VISIBLE; first++) {
+                    bind(first + VISIBLE - 1, first + VISIBLE - 1);
+                    idle();
+                }
+                for (int first = BROWSED - VISIBLE - 1; first >= 0; first--) {
+                    bind(first, first);
+                    idle();
+                }
+            }
+            report("back and forth", decoder);
+            assertEquals(BROWSED, decoder.decodes.size());
+            assertEquals(1, decoder.maxDecodesOfOneImage());
+            assertTrue(loader.getHitRate() > 0.9);
+            for (int i = 0; i < VISIBLE; i++) {
+                assertTrue(rows.get(i % rows.size()).showingFull);
+            }
+
+            // a fling: a new row every bind, with no time for the decodes in between
+            int before = decoder.total.get();
+            long maxCached = 0;
+            for (int first = 1; first + VISIBLE <= IMAGES; first++) {
+                bind(first + VISIBLE - 1, first + VISIBLE - 1);
+                maxCached = Math.max(maxCached, loader.getCacheBytes());
+            }
+            idle();
+            report("fling", decoder);
+            int flingDecodes = decoder.total.get() - before;
+            System.out.println(String.format("  fling past %d rows: %d decodes, at most %d KB cached",
+                    IMAGES - VISIBLE, flingDecodes, maxCached / 1024));
+            assertTrue(maxCached <= CACHE_BYTES);
+            assertTrue(flingDecodes <= 2 * IMAGES);
+        } finally {
+            decodeThread.shutdownNow();
+        }
+    }
+
+    /**
+     * Bind history item {@code position}, to the row that went off screen.
+     */
+    private void bind(int position, int slot) {
+        long start = System.nanoTime();
+        rows.get(slot % rows.size()).bind(loader, history.get(position));
+        bindNanos += System.nanoTime() - start;
+        binds++;
+    }
+
+    private void idle() throws Exception {
+        decodeThread.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(10, TimeUnit.SECONDS);
+    }
+
+    private void report(String name, SimulatedDecoder decoder) {
+        Benchmarks.report("bind, " + name, binds, bindNanos, -1);
+        System.out.println(String.format("  %d decodes of %d images, %s", decoder.total.get(),
+                decoder.decodes.size(), loader.getReport()));
+        bindNanos = 0;
+        binds = 0;
+    }
+}
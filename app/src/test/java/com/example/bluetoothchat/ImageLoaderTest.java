@@ -0,0 +1,191 @@
+package com.example.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ImageLoaderTest {
+    private static final int THUMBNAIL_BYTES = 100;
+    private static final int FULL_BYTES = 400;
+
+    /**
+     * Images are byte arrays of the decoded size. Full images are only
+     * there once their id is in {@link #arrived}.
+     */
+    private static class FakeDecoder implements ImageLoader.Decoder<byte[]> {
+        final Set<Long> arrived = new HashSet<>();
+        int decodes;
+
+        @Override
+        public byte[] decode(Message message, boolean full) {
+            decodes++;
+            if (full) {
+                return arrived.contains(message.getId()) ? new byte[FULL_BYTES] : null;
+            }
+            return new byte[THUMBNAIL_BYTES];
+        }
+
+        @Override
+        public int sizeOf(byte[] image) {
+            return image.length;
+        }
+    }
+
+    /**
+     * Runs the decodes when the test says so.
+     */
+    private static class QueuedExecutor implements Executor {
+        final Queue<Runnable> queue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        void runAll() {
+            Runnable next;
+            while ((next = queue.poll()) != null) {
+                next.run();
+            }
+        }
+    }
+
+    private static class RecordingCallback implements ImageLoader.Callback<byte[]> {
+        final List<byte[]> loaded = new ArrayList<>();
+
+        @Override
+        public void onLoaded(Message message, boolean full, byte[] image) {
+            loaded.add(image);
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private FakeDecoder decoder;
+    private QueuedExecutor decodes;
+
+    @Before
+    public void setUp() {
+        decoder = new FakeDecoder();
+        decodes = new QueuedExecutor();
+    }
+
+    private static Message image(long id) {
+        return new Message(id, "peer", "", new byte[1]);
+    }
+
+    @Test
+    public void cache_isBoundedByBytes_andEvictsTheLeastRecentlyUsed() {
+        ImageLoader<byte[]> loader = new ImageLoader<>(decoder, 10 * THUMBNAIL_BYTES, decodes, DIRECT);
+        for (long id = 0; id < 10; id++) {
+            assertTrue(loader.load(image(id), false, new RecordingCallback()));
+        }
+        decodes.runAll();
+        assertEquals(10 * THUMBNAIL_BYTES, loader.getCacheBytes());
+        // bound again: a hit, and now the most recently used
+        assertNotNull(loader.get(0, false));
+
+        loader.load(image(10), false, new RecordingCallback());
+        decodes.runAll();
+        assertEquals(10 * THUMBNAIL_BYTES, loader.getCacheBytes());
+        assertEquals(1, loader.getEvictions());
+        assertNull(loader.get(1, false));
+        assertNotNull(loader.get(0, false));
+        assertEquals(2, loader.getHits());
+        assertEquals(1, loader.getMisses());
+        assertTrue(loader.getReport().startsWith("hit rate 66.7%"));
+    }
+
+    @Test
+    public void fullImage_replacesTheThumbnail() {
+        ImageLoader<byte[]> loader = new ImageLoader<>(decoder, 10 * FULL_BYTES, decodes, DIRECT);
+        decoder.arrived.add(1L);
+        RecordingCallback row = new RecordingCallback();
+        loader.load(image(1), false, row);
+        loader.load(image(1), true, row);
+        decodes.runAll();
+
+        assertEquals(2, row.loaded.size());
+        assertSame(row.loaded.get(1), loader.get(1, true));
+        assertNull(loader.get(1, false));
+        assertEquals(FULL_BYTES, loader.getCacheBytes());
+        assertEquals(2, loader.getDecodeTimes().getCount());
+    }
+
+    @Test
+    public void rowsWaitingForTheSameImage_shareOneDecode() {
+        ImageLoader<byte[]> loader = new ImageLoader<>(decoder, 10 * THUMBNAIL_BYTES, decodes, DIRECT);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        loader.load(image(1), false, first);
+        loader.load(image(1), false, second);
+        decodes.runAll();
+
+        assertEquals(1, decoder.decodes);
+        assertEquals(1, first.loaded.size());
+        assertSame(first.loaded.get(0), second.loaded.get(0));
+
+        // decoded meanwhile: straight from the cache
+        RecordingCallback third = new RecordingCallback();
+        loader.load(image(1), false, third);
+        assertTrue(decodes.queue.isEmpty());
+        assertEquals(1, third.loaded.size());
+    }
+
+    @Test
+    public void recycledRows_cancelTheirDecodes() {
+        ImageLoader<byte[]> loader = new ImageLoader<>(decoder, 10 * THUMBNAIL_BYTES, decodes, DIRECT);
+        RecordingCallback scrolledAway = new RecordingCallback();
+        RecordingCallback stillShown = new RecordingCallback();
+        loader.load(image(1), false, scrolledAway);
+        loader.load(image(2), false, scrolledAway);
+        loader.load(image(2), false, stillShown);
+        loader.cancel(scrolledAway);
+        decodes.runAll();
+
+        // image 1 nobody waited for, image 2 only the row still on screen
+        assertEquals(1, decoder.decodes);
+        assertTrue(scrolledAway.loaded.isEmpty());
+        assertEquals(1, stillShown.loaded.size());
+        assertNull(loader.get(1, false));
+    }
+
+    @Test
+    public void missingFullImage_isNotDecodedAgainUntilItArrives() {
+        ImageLoader<byte[]> loader = new ImageLoader<>(decoder, 10 * FULL_BYTES, decodes, DIRECT);
+        RecordingCallback row = new RecordingCallback();
+        assertTrue(loader.load(image(1), true, row));
+        decodes.runAll();
+        assertTrue(row.loaded.isEmpty());
+
+        // every bind of the row would otherwise look for the file again
+        assertFalse(loader.load(image(1), true, row));
+        assertEquals(1, decoder.decodes);
+
+        decoder.arrived.add(1L);
+        loader.invalidate(1);
+        assertTrue(loader.load(image(1), true, row));
+        decodes.runAll();
+        assertEquals(1, row.loaded.size());
+        assertEquals(FULL_BYTES, row.loaded.get(0).length);
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_holdEveryValueWithinThreePercent() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() & LatencyHistogram.MAX_VALUE >>> random.nextInt(40);
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueAt(index);
+            assertTrue(value + " above its bucket", highest >= value);
+            assertTrue(value + " bucket too wide", highest - value <= value / 32);
+            if (index > 0) {
+                assertTrue(value + " below its bucket", LatencyHistogram.highestValueAt(index - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void percentiles_ofUniformValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 10000 microseconds
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(1000, snapshot.getMin());
+        assertEquals(10000000, snapshot.getMax());
+        assertEquals(5000500, snapshot.getMean());
+        assertNear(5000000, snapshot.getValueAtPercentile(50));
+        assertNear(9900000, snapshot.getValueAtPercentile(99));
+        assertEquals(10000000, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void outOfRangeValues_areClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.getMin());
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void emptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+        assertEquals(0, histogram.snapshot().getMin());
+        histogram.record(42);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.snapshot().getMax());
+    }
+
+    @Test
+    public void concurrentRecording_losesNothing() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 50000; i++) {
+                        histogram.record(random.nextInt(1000000));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(200000, histogram.getCount());
+        assertEquals(200000, histogram.snapshot().getCount());
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 32);
+    }
+}
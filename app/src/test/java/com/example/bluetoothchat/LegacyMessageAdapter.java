@@ -0,0 +1,39 @@
+package com.example.bluetoothchat;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+
+/**
+ * The ListView adapter the conversation used before {@link MessageAdapter},
+ * kept as the baseline for {@link MessageAdapterBenchmark}.
+ */
+class LegacyMessageAdapter extends ArrayAdapter<Message> {
+    int binds;
+
+    LegacyMessageAdapter(Context context, ArrayList<Message> messages) {
+        super(context, 0, messages);
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        binds++;
+        Message message = getItem(position);
+
+        if (convertView == null) {
+            convertView = LayoutInflater.from(getContext()).inflate(R.layout.message, parent, false);
+        }
+        TextView senderTextView = (TextView) convertView.findViewById(R.id.sender);
+        TextView messageTextView = (TextView) convertView.findViewById(R.id.message);
+
+        senderTextView.setText(message.getSender());
+        messageTextView.setText(message.getMessage());
+
+        return convertView;
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends chat from one corner of a 12 node chain and a 4 x 3 grid to the
+ * other over the in-process transport, through every relay in between.
+ * Reports throughput, one way latency, frames sent per message delivered
+ * and the duplicates the relays suppressed; then the cost of the
+ * duplicate check alone.
+ *
+ * Run with -Dbench.messages=N to change how many messages each round sends.
+ */
+public class MeshRelayBenchmark {
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 20000);
+    private static final int WINDOW = 64;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void cornerToCorner() throws Exception {
+        run("chain of 12", 12, MeshRelayTest.chain(12));
+        run("4 x 3 grid", 12, MeshRelayTest.grid(4, 3));
+    }
+
+    private static void run(String name, int count, int[][] edges) throws Exception {
+        List<MeshRelayTest.Node> nodes = new ArrayList<>();
+        try {
+            MeshRelayTest.topology(nodes, count, edges);
+            MeshRelayTest.Node from = nodes.get(0);
+            MeshRelayTest.Node to = nodes.get(count - 1);
+            from.relay.setLimits(count, MeshRelay.DEFAULT_TTL_MILLIS);
+            byte[] body = "a typical short chat message, about sixty bytes long".getBytes("UTF-8");
+
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                if (i >= WINDOW) {
+                    to.awaitReceived(i - WINDOW + 1, 10000);
+                }
+                from.relay.send(to.address, body);
+            }
+            to.awaitReceived(MESSAGES, 10000);
+            Benchmarks.report(name + " throughput", MESSAGES, System.nanoTime() - start, -1);
+
+            LatencyHistogram latency = new LatencyHistogram();
+            int trips = Math.max(1, MESSAGES / 10);
+            for (int i = 0; i < trips; i++) {
+                long sent = System.nanoTime();
+                from.relay.send(to.address, body);
+                to.awaitReceived(MESSAGES + i + 1, 10000);
+                latency.recordSince(sent);
+            }
+            System.out.println(String.format("%-28s %s", name + " latency", latency.snapshot()));
+
+            long frames = 0;
+            long duplicates = 0;
+            for (MeshRelayTest.Node node : nodes) {
+                frames += node.relay.getForwardedCount();
+                duplicates += node.relay.getDuplicateCount();
+            }
+            long delivered = to.relay.getDeliveredCount();
+            System.out.println(String.format("%-28s %.2f frames and %.2f duplicates suppressed per message",
+                    name + " traffic", (double) frames / delivered, (double) duplicates / delivered));
+        } finally {
+            for (MeshRelayTest.Node node : nodes) {
+                node.manager.stop();
+            }
+        }
+    }
+
+    @Test
+    public void duplicateCheck() {
+        int ids = MESSAGES * 50;
+        MeshRelay.SeenIds seen = new MeshRelay.SeenIds();
+        Random random = new Random(1);
+        long[] recent = new long[1024];
+        long sink = 0;
+        long alloc = Benchmarks.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ids; i++) {
+            long id = random.nextLong();
+            if (seen.add(id)) {
+                sink++;
+            }
+            recent[i & 1023] = id;
+        }
+        long nanos = System.nanoTime() - start;
+        boolean measured = Benchmarks.allocatedBytes() >= 0;
+        Benchmarks.report("new ids", ids, nanos, measured ? Benchmarks.allocatedBytes() - alloc : -1);
+
+        alloc = Benchmarks.allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < ids; i++) {
+            if (!seen.add(recent[i & 1023])) {
+                sink++;
+            }
+        }
+        nanos = System.nanoTime() - start;
+        Benchmarks.report("repeated ids", ids, nanos, measured ? Benchmarks.allocatedBytes() - alloc : -1);
+        if (sink == 0) {
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MeshRelayTest {
+    private final List<Node> nodes = new ArrayList<>();
+
+    /**
+     * One device of a simulated topology: a hub with a relay, recording
+     * the messages addressed to it.
+     */
+    static final class Node implements MeshRelay.Listener {
+        final String address;
+        final RecordingSessionListener events = new RecordingSessionListener(false);
+        final MeshRelay relay;
+        final SessionManager manager;
+        final List<String> received = new ArrayList<>();
+        int degree;
+
+        Node(LoopbackTransport.Network network, String address) {
+            this.address = address;
+            relay = new MeshRelay(address, events, this);
+            manager = new SessionManager(new LoopbackTransport(network, address), relay, 7);
+            relay.attach(manager);
+        }
+
+        @Override
+        public synchronized void onRelayedMessage(String source, byte[] body) {
+            received.add(source + ": " + new String(body));
+            notifyAll();
+        }
+
+        synchronized List<String> awaitReceived(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (received.size() < count) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw new AssertionError(address + " received " + received);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return new ArrayList<>(received);
+        }
+    }
+
+    /**
+     * Start {@code count} nodes and connect the pairs in {@code edges},
+     * each from the first node of the pair.
+     */
+    static List<Node> topology(List<Node> nodes, int count, int[][] edges) throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        for (int i = 0; i < count; i++) {
+            Node node = new Node(network, "n" + i);
+            node.manager.start();
+            nodes.add(node);
+        }
+        for (int[] edge : edges) {
+            nodes.get(edge[0]).manager.connect(nodes.get(edge[1]).address);
+            nodes.get(edge[0]).degree++;
+            nodes.get(edge[1]).degree++;
+        }
+        for (Node node : nodes) {
+            node.events.awaitConnected(node.degree, 5000);
+        }
+        return nodes;
+    }
+
+    static int[][] chain(int count) {
+        int[][] edges = new int[count - 1][];
+        for (int i = 0; i < count - 1; i++) {
+            edges[i] = new int[]{i, i + 1};
+        }
+        return edges;
+    }
+
+    /**
+     * A grid of {@code width} by {@code height} nodes, numbered row by row,
+     * each connected to the ones right of and below it.
+     */
+    static int[][] grid(int width, int height) {
+        List<int[]> edges = new ArrayList<>();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (x + 1 < width) {
+                    edges.add(new int[]{i, i + 1});
+                }
+                if (y + 1 < height) {
+                    edges.add(new int[]{i, i + width});
+                }
+            }
+        }
+        return edges.toArray(new int[edges.size()][]);
+    }
+
+    @After
+    public void tearDown() {
+        for (Node node : nodes) {
+            node.manager.stop();
+        }
+    }
+
+    @Test
+    public void chain_deliversAcrossElevenHops() throws Exception {
+        topology(nodes, 12, chain(12));
+        Node first = nodes.get(0);
+        Node last = nodes.get(11);
+        first.relay.setLimits(11, MeshRelay.DEFAULT_TTL_MILLIS);
+        last.relay.setLimits(11, MeshRelay.DEFAULT_TTL_MILLIS);
+
+        assertTrue(first.relay.send("n11", "hello from the far end".getBytes()));
+        assertEquals("n0: hello from the far end", last.awaitReceived(1, 5000).get(0));
+
+        assertTrue(last.relay.send("n0", "and back".getBytes()));
+        assertEquals("n11: and back", first.awaitReceived(1, 5000).get(0));
+        // a relay counts a frame once it is queued, which can be after it arrived
+        Thread.sleep(100);
+        for (int i = 1; i < 11; i++) {
+            assertEquals(0, nodes.get(i).received.size());
+            // every relay passed each message on once
+            assertEquals(2, nodes.get(i).relay.getForwardedCount());
+        }
+    }
+
+    @Test
+    public void hopLimit_dropsMessagesThatWouldGoFurther() throws Exception {
+        topology(nodes, 12, chain(12));
+        Node first = nodes.get(0);
+        first.relay.setLimits(10, MeshRelay.DEFAULT_TTL_MILLIS);
+
+        first.relay.send("n11", "too far".getBytes());
+        first.relay.send("n10", "just far enough".getBytes());
+        assertEquals("n0: just far enough", nodes.get(10).awaitReceived(1, 5000).get(0));
+        Thread.sleep(100);
+        assertEquals(0, nodes.get(11).received.size());
+        assertEquals(1, nodes.get(10).relay.getDroppedCount());
+    }
+
+    @Test
+    public void meshWithCycles_deliversAndForwardsEachMessageOnce() throws Exception {
+        // 4 x 3 grid, many paths between the corners
+        int[][] edges = grid(4, 3);
+        topology(nodes, 12, edges);
+        Node from = nodes.get(0);
+        Node to = nodes.get(11);
+        int messages = 50;
+        for (int i = 0; i < messages; i++) {
+            assertTrue(from.relay.send("n11", ("message " + i).getBytes()));
+        }
+        List<String> received = to.awaitReceived(messages, 5000);
+        Thread.sleep(200);
+        assertEquals(messages, to.received.size());
+        // messages on different paths can overtake each other
+        for (int i = 0; i < messages; i++) {
+            assertTrue(received.contains("n0: message " + i));
+        }
+
+        long duplicates = 0;
+        for (Node node : nodes) {
+            // a node passes a message on at most once, to each of its peers
+            assertTrue(node.address + " forwarded " + node.relay.getForwardedCount(),
+                    node.relay.getForwardedCount() <= (long) messages * node.degree);
+            duplicates += node.relay.getDuplicateCount();
+            assertEquals(0, node.relay.getStoredCount());
+        }
+        assertTrue(duplicates > 0);
+    }
+
+    @Test
+    public void messageWithoutRoute_waitsForTheNextPeer() throws Exception {
+        topology(nodes, 3, new int[][]{{0, 1}});
+        Node a = nodes.get(0);
+        Node b = nodes.get(1);
+        Node c = nodes.get(2);
+
+        a.relay.send("n2", "wait for it".getBytes());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (b.relay.getStoredCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, b.relay.getStoredCount());
+
+        b.manager.connect("n2");
+        assertEquals("n0: wait for it", c.awaitReceived(1, 5000).get(0));
+        assertEquals(0, b.relay.getStoredCount());
+    }
+
+    @Test
+    public void storedMessage_expiresAfterItsTtl() throws Exception {
+        topology(nodes, 3, new int[][]{{0, 1}});
+        Node a = nodes.get(0);
+        Node b = nodes.get(1);
+        a.relay.setLimits(MeshRelay.DEFAULT_HOP_LIMIT, 50);
+
+        a.relay.send("n2", "too late".getBytes());
+        Thread.sleep(150);
+        b.manager.connect("n2");
+        long deadline = System.currentTimeMillis() + 2000;
+        while (b.relay.getDroppedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        assertEquals(0, nodes.get(2).received.size());
+        assertEquals(0, b.relay.getStoredCount());
+        assertEquals(1, b.relay.getDroppedCount());
+    }
+
+    @Test
+    public void seenIds_neverRejectNewIdsAndCatchRepeats() {
+        MeshRelay.SeenIds seen = new MeshRelay.SeenIds(12, 64);
+        Random random = new Random(7);
+        long[] recent = new long[64];
+        // far more ids than the small filter holds, so it gives false positives
+        for (int i = 0; i < 100000; i++) {
+            long id = random.nextLong();
+            assertTrue(seen.add(id));
+            recent[i % recent.length] = id;
+        }
+        for (long id : recent) {
+            assertFalse(seen.add(id));
+        }
+    }
+}
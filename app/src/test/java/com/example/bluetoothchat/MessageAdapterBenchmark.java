@@ -0,0 +1,137 @@
+package com.example.bluetoothchat;
+
+import android.content.Context;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.ListView;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Adds messages one at a time, laying the list out after each one the way
+ * a frame would, with the old ListView adapter and with the RecyclerView
+ * adapter. Reports main thread time and rows bound per message.
+ *
+ * Run with -Dbench.uiMessages=N to change the conversation length.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MessageAdapterBenchmark {
+    private static final int MESSAGES = Integer.getInteger("bench.uiMessages", 10000);
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+
+    private Context context;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+    }
+
+    @Test
+    public void listViewAdapter() {
+        ListView list = new ListView(context);
+        list.setStackFromBottom(true);
+        list.setTranscriptMode(AbsListView.TRANSCRIPT_MODE_ALWAYS_SCROLL);
+        LegacyMessageAdapter adapter = new LegacyMessageAdapter(context, new ArrayList<Message>());
+        list.setAdapter(adapter);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            adapter.add(message(i));
+            layout(list);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(MESSAGES, adapter.getCount());
+        Benchmarks.report("ListView add+layout", MESSAGES, elapsed, -1);
+        System.out.println(String.format("  rows bound per message: %.2f", (double) adapter.binds / MESSAGES));
+    }
+
+    @Test
+    public void recyclerViewAdapter() {
+        RecyclerView list = new RecyclerView(context);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(context);
+        layoutManager.setStackFromEnd(true);
+        list.setLayoutManager(layoutManager);
+        // animations would run on later frames, leave them out of the comparison
+        list.setItemAnimator(null);
+        TimedExecutor diffExecutor = new TimedExecutor();
+        CountingAdapter adapter = new CountingAdapter(context, diffExecutor);
+        list.setAdapter(adapter);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            adapter.add(message(i));
+            // deliver the diff result posted to the main thread
+            ShadowLooper.idleMainLooper();
+            list.scrollToPosition(adapter.getItemCount() - 1);
+            layout(list);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(MESSAGES, adapter.getItemCount());
+        // the diffs ran inline here but run on a background thread in the app
+        Benchmarks.report("RecyclerView add+layout", MESSAGES, elapsed - diffExecutor.nanos, -1);
+        System.out.println(String.format("  rows bound per message: %.2f", (double) adapter.binds / MESSAGES));
+        System.out.println(String.format("  background diff time: %.3f s", diffExecutor.nanos / 1e9));
+    }
+
+    private static Message message(int i) {
+        return new Message(i % 2 == 0 ? "me" : "peer", "message number " + i);
+    }
+
+    private static void layout(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    private static class CountingAdapter extends MessageAdapter {
+        int binds;
+
+        CountingAdapter(Context context, Executor diffExecutor) {
+            super(context, diffExecutor);
+        }
+
+        @Override
+        public void onBindViewHolder(ViewHolder holder, int position) {
+            binds++;
+            super.onBindViewHolder(holder, position);
+        }
+    }
+
+    /**
+     * Runs diffs on the calling thread and adds up the time they take.
+     */
+    private static class TimedExecutor implements Executor {
+        long nanos;
+
+        @Override
+        public void execute(Runnable command) {
+            long start = System.nanoTime();
+            command.run();
+            nanos += System.nanoTime() - start;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.bluetoothchat;
+
+import android.content.Context;
+import android.view.View;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Main thread cost of a burst of inbound messages: one Handler message,
+ * decode and adapter update per chat message, against one batch per frame
+ * from {@link MessageBatcher}. Reports main thread time per 1,000 messages.
+ *
+ * Run with -Dbench.burst=N to change the burst size and
+ * -Dbench.perFrame=N to change how many messages arrive per frame.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class MessageBatcherBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BURST = Integer.getInteger("bench.burst", 5000);
+    private static final int PER_FRAME = Integer.getInteger("bench.perFrame", 50);
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+
+    private Context context;
+    private byte[][] payloads;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        payloads = new byte[BURST][];
+        for (int i = 0; i < BURST; i++) {
+            payloads[i] = ("incoming message number " + i).getBytes(UTF_8);
+        }
+    }
+
+    @Test
+    public void perMessage() {
+        RecyclerView list = newList();
+        MessageAdapter adapter = new MessageAdapter(context, new InlineExecutor());
+        list.setAdapter(adapter);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BURST; i++) {
+            // what the MESSAGE_READ case of the fragment's handler used to do
+            adapter.add(new Message("peer", new String(payloads[i], UTF_8)));
+            ShadowLooper.idleMainLooper();
+            list.scrollToPosition(adapter.getItemCount() - 1);
+            if ((i + 1) % PER_FRAME == 0) {
+                layout(list);
+            }
+        }
+        layout(list);
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(BURST, adapter.getItemCount());
+        Benchmarks.report("per message", BURST, elapsed, -1);
+        System.out.println(String.format("  main thread per 1,000 messages: %.2f ms", elapsed / 1e6 * 1000 / BURST));
+    }
+
+    @Test
+    public void batchedPerFrame() {
+        RecyclerView list = newList();
+        final MessageAdapter adapter = new MessageAdapter(context, new InlineExecutor());
+        list.setAdapter(adapter);
+        final List<Runnable> frame = new ArrayList<>();
+        MessageBatcher batcher = new MessageBatcher(new MessageBatcher.FrameScheduler() {
+            @Override
+            public void scheduleFrame(Runnable tick) {
+                frame.add(tick);
+            }
+        }, new MessageBatcher.Sink() {
+            @Override
+            public void onBatch(List<Message> batch) {
+                adapter.addAll(batch);
+            }
+        });
+
+        long mainThread = 0;
+        for (int i = 0; i < BURST; i++) {
+            // decoded on the reader thread, not counted
+            batcher.offer(new Message("peer", new String(payloads[i], UTF_8)));
+            if ((i + 1) % PER_FRAME == 0 || i == BURST - 1) {
+                long start = System.nanoTime();
+                for (Runnable tick : frame) {
+                    tick.run();
+                }
+                frame.clear();
+                ShadowLooper.idleMainLooper();
+                list.scrollToPosition(adapter.getItemCount() - 1);
+                layout(list);
+                mainThread += System.nanoTime() - start;
+            }
+        }
+
+        assertEquals(BURST, adapter.getItemCount());
+        Benchmarks.report("batched per frame", BURST, mainThread, -1);
+        System.out.println(String.format("  main thread per 1,000 messages: %.2f ms", mainThread / 1e6 * 1000 / BURST));
+        System.out.println(String.format("  batches: %d, largest: %d", batcher.getBatches(), batcher.getMaxBatchSize()));
+    }
+
+    private RecyclerView newList() {
+        RecyclerView list = new RecyclerView(context);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(context);
+        layoutManager.setStackFromEnd(true);
+        list.setLayoutManager(layoutManager);
+        list.setItemAnimator(null);
+        return list;
+    }
+
+    private static void layout(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Diffs on the calling thread, so both runs pay for them the same way.
+     */
+    private static class InlineExecutor implements Executor {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MessageBatcherTest {
+
+    /**
+     * Frames only happen when the test says so.
+     */
+    private static class ManualFrames implements MessageBatcher.FrameScheduler {
+        final List<Runnable> pending = new ArrayList<>();
+        int requests;
+        int maxPending;
+
+        @Override
+        public synchronized void scheduleFrame(Runnable tick) {
+            requests++;
+            pending.add(tick);
+            maxPending = Math.max(maxPending, pending.size());
+        }
+
+        void frame() {
+            List<Runnable> ticks;
+            synchronized (this) {
+                ticks = new ArrayList<>(pending);
+                pending.clear();
+            }
+            for (Runnable tick : ticks) {
+                tick.run();
+            }
+        }
+    }
+
+    private static class Batches implements MessageBatcher.Sink {
+        final List<List<Message>> batches = new ArrayList<>();
+
+        @Override
+        public void onBatch(List<Message> batch) {
+            batches.add(batch);
+        }
+    }
+
+    @Test
+    public void burst_isDeliveredAsOneBatchPerFrame() {
+        ManualFrames frames = new ManualFrames();
+        Batches sink = new Batches();
+        MessageBatcher batcher = new MessageBatcher(frames, sink);
+        for (int i = 0; i < 500; i++) {
+            batcher.offer(new Message("peer", "message " + i));
+        }
+        assertEquals(1, frames.requests);
+        frames.frame();
+        assertEquals(1, sink.batches.size());
+        assertEquals(500, sink.batches.get(0).size());
+        assertEquals("message 499", sink.batches.get(0).get(499).getMessage());
+
+        // nothing new, nothing scheduled
+        frames.frame();
+        assertEquals(1, frames.requests);
+        batcher.offer(new Message("peer", "later"));
+        assertEquals(2, frames.requests);
+        frames.frame();
+        assertEquals(2, sink.batches.size());
+        assertEquals(2, batcher.getBatches());
+        assertEquals(501, batcher.getMessagesDelivered());
+        assertEquals(500, batcher.getMaxBatchSize());
+    }
+
+    @Test
+    public void messageOfferedDuringDelivery_goesToTheNextFrame() {
+        final ManualFrames frames = new ManualFrames();
+        final List<Integer> sizes = new ArrayList<>();
+        final MessageBatcher[] batcher = new MessageBatcher[1];
+        batcher[0] = new MessageBatcher(frames, new MessageBatcher.Sink() {
+            @Override
+            public void onBatch(List<Message> batch) {
+                sizes.add(batch.size());
+                if (sizes.size() == 1) {
+                    batcher[0].offer(new Message("me", "reply"));
+                }
+            }
+        });
+        batcher[0].offer(new Message("peer", "hi"));
+        frames.frame();
+        frames.frame();
+        assertEquals(2, sizes.size());
+        assertEquals(1, (int) sizes.get(1));
+    }
+
+    @Test
+    public void closedBatcher_deliversNothing() {
+        ManualFrames frames = new ManualFrames();
+        Batches sink = new Batches();
+        MessageBatcher batcher = new MessageBatcher(frames, sink);
+        batcher.offer(new Message("peer", "queued"));
+        batcher.close();
+        batcher.offer(new Message("peer", "dropped"));
+        frames.frame();
+        assertEquals(0, sink.batches.size());
+    }
+
+    @Test
+    public void concurrentReaders_loseNothing() throws Exception {
+        final ManualFrames frames = new ManualFrames();
+        Batches sink = new Batches();
+        final MessageBatcher batcher = new MessageBatcher(frames, sink);
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final String sender = "peer" + t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        batcher.offer(new Message(sender, "m" + i));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        // the main thread keeps drawing frames while the readers run
+        while (done.getCount() > 0) {
+            frames.frame();
+        }
+        frames.frame();
+        int total = 0;
+        for (List<Message> batch : sink.batches) {
+            total += batch.size();
+        }
+        assertEquals(40000, total);
+        // never more than one frame requested at a time
+        assertEquals(1, frames.maxPending);
+    }
+
+    @Test
+    public void batchingListener_decodesOnTheCallingThread() throws Exception {
+        ManualFrames frames = new ManualFrames();
+        Batches sink = new Batches();
+        MessageBatcher batcher = new MessageBatcher(frames, sink);
+        BatchingChatListener listener = new BatchingChatListener(null, batcher, "me");
+        BufferPool pool = new BufferPool(64, 1);
+        byte[] text = "héllo 你好".getBytes("UTF-8");
+        BufferPool.Lease lease = pool.acquire(text.length);
+        System.arraycopy(text, 0, lease.data(), 0, text.length);
+        lease.setLength(text.length);
+
+        listener.onMessageWritten("hi".getBytes("UTF-8"));
+        listener.onMessageRead(lease);
+        // the buffer went straight back to the pool
+        assertSame(lease, pool.acquire(1));
+        frames.frame();
+        List<Message> batch = sink.batches.get(0);
+        assertEquals("me", batch.get(0).getSender());
+        assertEquals("héllo 你好", batch.get(1).getMessage());
+    }
+}
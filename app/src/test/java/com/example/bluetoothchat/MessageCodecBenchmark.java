@@ -0,0 +1,79 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes and decodes chat messages the way the fragment used to (the
+ * body's getBytes() and new String on the other side, no sender on the
+ * wire) and as {@link MessageCodec} records into a reused buffer and
+ * record, for ASCII, CJK and emoji text. Reports throughput, bytes on
+ * the wire and bytes allocated per message.
+ *
+ * Run with -Dbench.messages=N to change how many messages each round sends.
+ */
+public class MessageCodecBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 200000);
+    private static final int ROUNDS = 5;
+
+    private static final String SENDER = "Tejas's Pixel";
+    private static final String ASCII = "see you at the station at 5, bring the tickets";
+    private static final String CJK = "今日は天気がいいですね。明天见，我们在咖啡店碰头。";
+    private static final String EMOJI = "ok 😀 see you 👍🏽 🎉🎉 lol 😂😂 on my way 🚗";
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void encodeDecode() {
+        run("ascii", ASCII);
+        run("cjk", CJK);
+        run("emoji", EMOJI);
+    }
+
+    private static void run(String name, String body) {
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.encodedLength(SENDER, body));
+        MessageCodec.Record record = new MessageCodec.Record();
+        long stringNanos = Long.MAX_VALUE;
+        long stringAlloc = Long.MAX_VALUE;
+        long codecNanos = Long.MAX_VALUE;
+        long codecAlloc = Long.MAX_VALUE;
+        long sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long alloc = Benchmarks.allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                byte[] bytes = body.getBytes(UTF_8);
+                sink += new String(bytes, UTF_8).length();
+            }
+            stringNanos = Math.min(stringNanos, System.nanoTime() - start);
+            stringAlloc = Math.min(stringAlloc, Benchmarks.allocatedBytes() - alloc);
+
+            alloc = Benchmarks.allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                buffer.clear();
+                MessageCodec.encode(i, start, MessageCodec.KIND_TEXT, SENDER, body, buffer);
+                buffer.flip();
+                MessageCodec.decode(buffer, record);
+                sink += record.getBody().length();
+            }
+            codecNanos = Math.min(codecNanos, System.nanoTime() - start);
+            codecAlloc = Math.min(codecAlloc, Benchmarks.allocatedBytes() - alloc);
+        }
+        boolean measured = Benchmarks.allocatedBytes() >= 0;
+        Benchmarks.report(name + " getBytes/String", MESSAGES, stringNanos, measured ? stringAlloc : -1);
+        Benchmarks.report(name + " MessageCodec", MESSAGES, codecNanos, measured ? codecAlloc : -1);
+        System.out.println(String.format("%-28s %d bytes plain, %d bytes as a record with sender",
+                name + " wire size", body.getBytes(UTF_8).length, buffer.limit()));
+        if (sink == 0) {
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCodecTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String BODY = "héllo 你好 wörld 😀👍🏽 ok";
+
+    @Test
+    public void roundTrip_keepsEveryField() {
+        byte[] bytes = MessageCodec.encode(42L, 1600000000000L, MessageCodec.KIND_TEXT, "Pixel 3", BODY);
+        assertEquals(MessageCodec.encodedLength("Pixel 3", BODY), bytes.length);
+        assertTrue(MessageCodec.isRecord(bytes, 0, bytes.length));
+
+        MessageCodec.Record record = new MessageCodec.Record();
+        assertTrue(MessageCodec.decode(ByteBuffer.wrap(bytes), record));
+        assertEquals(42L, record.getId());
+        assertEquals(1600000000000L, record.getTimestamp());
+        assertEquals(MessageCodec.KIND_TEXT, record.getKind());
+        assertEquals("Pixel 3", record.getSender().toString());
+        assertEquals(BODY, record.getBody().toString());
+
+        // the text is the same UTF-8 the platform would produce
+        ByteBuffer direct = ByteBuffer.allocateDirect(256);
+        int written = MessageCodec.encode(-1L, 0L, MessageCodec.KIND_TEXT, "", BODY, direct);
+        direct.flip();
+        assertEquals(written, direct.remaining());
+        assertTrue(MessageCodec.decode(direct, record));
+        assertEquals(-1L, record.getId());
+        assertEquals(0, record.getSender().length());
+        assertEquals(BODY, record.getBody().toString());
+        assertEquals(BODY.getBytes(UTF_8).length, MessageCodec.utf8Length(BODY));
+    }
+
+    @Test
+    public void imageRecord_carriesItsThumbnail() {
+        byte[] thumbnail = new byte[300];
+        for (int i = 0; i < thumbnail.length; i++) {
+            thumbnail[i] = (byte) i;
+        }
+        byte[] bytes = MessageCodec.encode(-7L, 5L, MessageCodec.KIND_IMAGE, "Pixel 3", "caption", thumbnail);
+        assertEquals(MessageCodec.encodedLength("Pixel 3", "caption", thumbnail), bytes.length);
+
+        MessageCodec.Record record = new MessageCodec.Record();
+        assertTrue(MessageCodec.decode(ByteBuffer.wrap(bytes), record));
+        assertEquals(MessageCodec.KIND_IMAGE, record.getKind());
+        assertEquals(thumbnail.length, record.getThumbnailLength());
+        Message message = record.toMessage();
+        assertTrue(message.isImage());
+        assertEquals(-7L, message.getId());
+        assertEquals("caption", message.getMessage());
+        assertArrayEquals(thumbnail, message.getThumbnail());
+        assertEquals(Long.valueOf(-7L), Message.imageIdOf(message.getImageName()));
+        assertNull(Message.imageIdOf("photo.jpg"));
+
+        // a text record decoded into the same record has no thumbnail left over
+        bytes = MessageCodec.encode(1L, 2L, MessageCodec.KIND_TEXT, "", BODY);
+        assertTrue(MessageCodec.decode(ByteBuffer.wrap(bytes), record));
+        assertEquals(-1, record.getThumbnailLength());
+        assertFalse(record.toMessage().isImage());
+    }
+
+    @Test
+    public void unknownAndGrownFields_areSkipped() {
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        buffer.put(MessageCodec.MAGIC).put((byte) 7);
+        // a field this version does not know
+        buffer.put((byte) 99).put((byte) 3).put(new byte[]{1, 2, 3});
+        // the kind grown to two bytes; the first is read, the second skipped
+        buffer.put((byte) MessageCodec.TAG_KIND).put((byte) 2).put((byte) 5).put((byte) 9);
+        buffer.put((byte) MessageCodec.TAG_BODY).put((byte) 2).put(new byte[]{'h', 'i'});
+        buffer.flip();
+
+        MessageCodec.Record record = new MessageCodec.Record();
+        assertTrue(MessageCodec.decode(buffer, record));
+        assertEquals(5, record.getKind());
+        assertEquals("hi", record.getBody().toString());
+        // missing fields keep their zero value
+        assertEquals(0L, record.getId());
+        assertEquals(0, record.getSender().length());
+    }
+
+    @Test
+    public void plainTextAndTruncatedRecords_areRejected() {
+        byte[] text = BODY.getBytes(UTF_8);
+        assertFalse(MessageCodec.isRecord(text, 0, text.length));
+        MessageCodec.Record record = new MessageCodec.Record();
+        assertFalse(MessageCodec.decode(ByteBuffer.wrap(text), record));
+
+        byte[] bytes = MessageCodec.encode(1L, 2L, MessageCodec.KIND_TEXT, "me", "hello");
+        for (int length = 0; length < bytes.length; length++) {
+            // every cut either lands between fields or is reported
+            boolean decoded = MessageCodec.decode(ByteBuffer.wrap(bytes, 0, length), record);
+            if (decoded) {
+                assertFalse("hello".contentEquals(record.getBody()));
+            }
+        }
+    }
+
+    @Test
+    public void badText_isReplaced() {
+        // a lone surrogate cannot be encoded
+        byte[] bytes = MessageCodec.encode(1L, 2L, MessageCodec.KIND_TEXT, "", "a\uD83Db");
+        assertEquals(MessageCodec.encodedLength("", "a\uD83Db"), bytes.length);
+        MessageCodec.Record record = new MessageCodec.Record();
+        assertTrue(MessageCodec.decode(ByteBuffer.wrap(bytes), record));
+        assertEquals("a?b", record.getBody().toString());
+
+        // a lone continuation byte, a lead byte followed by ASCII, an overlong '/'
+        byte[] body = {'a', (byte) 0x80, 'b', (byte) 0xE4, 'c', (byte) 0xC0, (byte) 0xAF};
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        buffer.put(MessageCodec.MAGIC).put((byte) MessageCodec.VERSION);
+        buffer.put((byte) MessageCodec.TAG_BODY).put((byte) body.length).put(body);
+        buffer.flip();
+        assertTrue(MessageCodec.decode(buffer, record));
+        assertEquals("a�b�c��", record.getBody().toString());
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Indexes a long made-up history and measures how long queries take:
+ * single words, prefixes and several words at once.
+ *
+ * Run with -Dbench.history=N to change the history length.
+ */
+public class MessageIndexBenchmark {
+    private static final int HISTORY = Integer.getInteger("bench.history", 100000);
+    private static final int QUERIES = 200;
+
+    private static final String[] WORDS = {
+            "hello", "see", "you", "at", "the", "station", "tomorrow", "tickets", "coffee",
+            "meeting", "lol", "ok", "thanks", "where", "are", "running", "late", "dinner",
+            "movie", "tonight", "weekend", "call", "me", "later", "bring", "charger"};
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void indexAndSearch() throws Exception {
+        Random random = new Random(1);
+        MessageIndex index = new MessageIndex();
+        try {
+            long start = System.nanoTime();
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < HISTORY; i++) {
+                text.setLength(0);
+                int words = 3 + random.nextInt(10);
+                for (int w = 0; w < words; w++) {
+                    // skewed, like real chat: a few words are very common
+                    int pick = (int) (WORDS.length * Math.pow(random.nextDouble(), 2));
+                    text.append(WORDS[pick]).append(' ');
+                }
+                // plus something close to unique, such as a name or a number
+                text.append("order").append(random.nextInt(HISTORY));
+                index.add(i, text.toString());
+            }
+            index.flush();
+            Benchmarks.report("index " + HISTORY + " messages", HISTORY, System.nanoTime() - start, -1);
+            System.out.println(String.format("  %d words, %d bytes of postings, %.2f bytes per message",
+                    index.getWordCount(), index.getPostingsBytes(),
+                    (double) index.getPostingsBytes() / HISTORY));
+
+            query(index, "hello");
+            query(index, "charger");
+            query(index, "t");
+            query(index, "order12");
+            query(index, "coffee tomorrow");
+            query(index, "coffee tomorrow charger late");
+        } finally {
+            index.close();
+        }
+    }
+
+    private static void query(MessageIndex index, String query) {
+        int found = 0;
+        // warm up, then measure
+        for (int i = 0; i < QUERIES; i++) {
+            found = index.search(query, MessageIndex.DEFAULT_LIMIT).length;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            found = index.search(query, MessageIndex.DEFAULT_LIMIT).length;
+        }
+        long nanos = System.nanoTime() - start;
+        Benchmarks.report("search \"" + query + "\"", QUERIES, nanos, -1);
+        System.out.println(String.format("  %.3f ms per query, %d results", nanos / 1e6 / QUERIES, found));
+        assertTrue(found > 0);
+    }
+}
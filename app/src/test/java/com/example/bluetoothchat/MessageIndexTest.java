@@ -0,0 +1,118 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageIndexTest {
+    private File dir;
+    private MessageStore store;
+    private MessageIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+        index = new MessageIndex();
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+        if (store != null) {
+            store.close();
+        }
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    private void add(String... texts) throws InterruptedException {
+        long next = index.getIndexedCount();
+        for (int i = 0; i < texts.length; i++) {
+            index.add(next + i, texts[i]);
+        }
+        index.flush();
+    }
+
+    @Test
+    public void prefixAndMultiWordQueries_findMessagesNewestFirst() throws Exception {
+        add("Hello world",
+                "see you at the station",
+                "hello again, WORLD!",
+                "helicopter tickets",
+                "nothing here");
+
+        assertArrayEquals(new long[]{2, 0}, index.search("hello", 10));
+        // every query word is a prefix
+        assertArrayEquals(new long[]{3, 2, 0}, index.search("hel", 10));
+        // and all of them must match
+        assertArrayEquals(new long[]{2, 0}, index.search("HEL wor", 10));
+        assertArrayEquals(new long[0], index.search("hel station", 10));
+        assertArrayEquals(new long[0], index.search("missing", 10));
+        assertArrayEquals(new long[0], index.search("  ,, ", 10));
+        assertArrayEquals(new long[]{3}, index.search("hel", 1));
+    }
+
+    @Test
+    public void ideographs_areWordsOfTheirOwn() throws Exception {
+        add("明天见 ok", "我们在咖啡店碰头", "today明天");
+
+        assertArrayEquals(new long[]{2, 0}, index.search("明天", 10));
+        assertArrayEquals(new long[]{1}, index.search("咖啡", 10));
+        assertArrayEquals(new long[]{2}, index.search("today", 10));
+    }
+
+    @Test
+    public void messagesAlreadyIndexed_areIgnored() throws Exception {
+        index.add(0, "first");
+        index.add(1, "second");
+        index.add(1, "second again");
+        index.add(0, "first again");
+        index.flush();
+
+        assertEquals(2, index.getIndexedCount());
+        assertArrayEquals(new long[0], index.search("again", 10));
+    }
+
+    @Test
+    public void postings_roundTripLargeGaps() {
+        MessageIndex.Postings postings = new MessageIndex.Postings();
+        long[] positions = {0, 1, 127, 128, 300, 16384, 16385, 2000000, 40000000};
+        for (long position : positions) {
+            assertTrue(postings.add(position));
+        }
+        BitSet set = new BitSet();
+        postings.addTo(set);
+        assertEquals(positions.length, set.cardinality());
+        for (long position : positions) {
+            assertTrue(set.get((int) position));
+        }
+        assertEquals(positions.length, postings.count);
+    }
+
+    @Test
+    public void rebuild_readsTheWholeStore() throws Exception {
+        store = new MessageStore(dir, 1024, 4);
+        for (int i = 0; i < 3000; i++) {
+            store.append(new Message("peer", "message " + i + (i % 1000 == 0 ? " milestone" : "")));
+        }
+        index.add(0, "stale entry from before");
+        index.rebuild(store);
+        // added while the pass runs, indexed once after it
+        long last = store.append(new Message("peer", "milestone reached"));
+        index.add(last, "milestone reached");
+        index.flush();
+
+        assertEquals(3001, index.getIndexedCount());
+        assertArrayEquals(new long[]{3000, 2000, 1000, 0}, index.search("milestone", 10));
+        assertArrayEquals(new long[]{2999}, index.search("message 2999", 10));
+        assertArrayEquals(new long[0], index.search("stale", 10));
+    }
+}
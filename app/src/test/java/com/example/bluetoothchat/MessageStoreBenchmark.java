@@ -0,0 +1,53 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Appends a long history and measures how long it takes to page in one
+ * screenful at random positions.
+ *
+ * Run with -Dbench.history=N to change the history length.
+ */
+public class MessageStoreBenchmark {
+    private static final int HISTORY = Integer.getInteger("bench.history", 300000);
+    private static final int PAGE = 50;
+    private static final int PAGES = 2000;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void pageLoad() throws Exception {
+        File dir = File.createTempFile("history", "");
+        dir.delete();
+        MessageStore store = new MessageStore(dir);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < HISTORY; i++) {
+                store.append(new Message("peer", "history message number " + i));
+            }
+            store.flush();
+            Benchmarks.report("store append", HISTORY, System.nanoTime() - start, -1);
+            System.out.println("  group commits: " + store.getCommitCount());
+
+            Random random = new Random(1);
+            start = System.nanoTime();
+            for (int i = 0; i < PAGES; i++) {
+                long from = (long) (random.nextDouble() * (HISTORY - PAGE));
+                assertEquals(PAGE, store.read(from, PAGE).size());
+            }
+            Benchmarks.report("store page of " + PAGE, PAGES, System.nanoTime() - start, -1);
+        } finally {
+            store.close();
+            Benchmarks.deleteRecursively(dir);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageStoreTest {
+    private File dir;
+    private MessageStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    private static Message message(int i) {
+        return new Message("peer", "message " + i);
+    }
+
+    @Test
+    public void appendedMessages_canBePagedBack() throws Exception {
+        // Small segments so the pages cross segment boundaries
+        store = new MessageStore(dir, 1024, 4);
+        for (int i = 0; i < 500; i++) {
+            store.append(message(i));
+        }
+        store.flush();
+
+        assertEquals(500, store.size());
+        assertTrue(dir.list().length > 2);
+        List<Message> page = store.read(37, 50);
+        assertEquals(50, page.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("message " + (37 + i), page.get(i).getMessage());
+            assertEquals("peer", page.get(i).getSender());
+        }
+        assertEquals(5, store.read(495, 50).size());
+        assertEquals(0, store.read(500, 10).size());
+    }
+
+    @Test
+    public void imageMessages_keepTheirThumbnail() throws Exception {
+        store = new MessageStore(dir);
+        byte[] thumbnail = {1, 2, 3, 4, 5};
+        store.append(message(0));
+        store.append(new Message(99L, "peer", "caption", thumbnail));
+        store.append(message(2));
+        store.flush();
+
+        List<Message> page = store.read(0, 3);
+        assertFalse(page.get(0).isImage());
+        Message image = page.get(1);
+        assertTrue(image.isImage());
+        assertEquals(99L, image.getId());
+        assertEquals("caption", image.getMessage());
+        assertArrayEquals(thumbnail, image.getThumbnail());
+        assertEquals("message 2", page.get(2).getMessage());
+    }
+
+    @Test
+    public void writes_areGroupCommitted() throws Exception {
+        store = new MessageStore(dir);
+        for (int i = 0; i < 2000; i++) {
+            store.append(message(i));
+        }
+        store.flush();
+        assertEquals(2000, store.size());
+        assertTrue("commits: " + store.getCommitCount(), store.getCommitCount() < 2000);
+    }
+
+    @Test
+    public void history_survivesReopen() throws Exception {
+        store = new MessageStore(dir, 2048, 8);
+        for (int i = 0; i < 300; i++) {
+            store.append(message(i));
+        }
+        store.close();
+
+        store = new MessageStore(dir, 2048, 8);
+        assertEquals(300, store.size());
+        assertEquals("message 299", store.read(299, 1).get(0).getMessage());
+        store.append(message(300));
+        store.flush();
+        assertEquals("message 300", store.read(300, 1).get(0).getMessage());
+        assertEquals("message 150", store.read(150, 1).get(0).getMessage());
+    }
+
+    @Test
+    public void tornTail_isTruncatedOnOpen() throws Exception {
+        store = new MessageStore(dir);
+        for (int i = 0; i < 10; i++) {
+            store.append(message(i));
+        }
+        store.close();
+
+        // Simulate a crash in the middle of writing a record
+        File log = new File(dir, String.format("%020d.log", 0));
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        long goodLength = file.length();
+        file.seek(goodLength);
+        file.writeInt(100);
+        file.writeInt(0);
+        file.write(new byte[10]);
+        file.close();
+
+        store = new MessageStore(dir);
+        assertEquals(10, store.size());
+        assertEquals(goodLength, log.length());
+        store.append(message(10));
+        store.flush();
+        assertEquals("message 10", store.read(10, 1).get(0).getMessage());
+    }
+
+    @Test
+    public void failedWriter_failsWaitersAndAppendsInsteadOfHanging() throws Exception {
+        // the writer's files, closed by the test as if the disk went away
+        final List<FileChannel> channels = new CopyOnWriteArrayList<>();
+        store = new MessageStore(dir) {
+            @Override
+            FileChannel openChannel(File file) throws IOException {
+                FileChannel channel = super.openChannel(file);
+                channels.add(channel);
+                return channel;
+            }
+        };
+        store.append(message(0));
+        store.flush();
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+
+        store.append(message(1));
+        try {
+            store.flush();
+            fail("flush returned without writing");
+        } catch (IOException expected) {
+        }
+        try {
+            store.append(message(2));
+            fail("append after the writer failed");
+        } catch (IOException expected) {
+        }
+
+        // a page of what never got written fails, what was written still reads
+        final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        MessageStore.PageCallback callback = new MessageStore.PageCallback() {
+            @Override
+            public void onPage(long from, List<Message> messages) {
+                results.add(messages);
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                results.add(e);
+            }
+        };
+        store.loadPage(0, 2, callback);
+        Object result = results.poll(5, TimeUnit.SECONDS);
+        assertNotNull("page never loaded", result);
+        assertTrue(result instanceof IOException);
+        store.loadPage(0, 1, callback);
+        result = results.poll(5, TimeUnit.SECONDS);
+        assertTrue(result instanceof List);
+        assertEquals("message 0", ((Message) ((List<?>) result).get(0)).getMessage());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void closeInBackground_doesNotWaitForTheWriter_butTheNextStoreDoes() throws Exception {
+        // the writer is stuck on the disk until the test lets it go
+        final CountDownLatch disk = new CountDownLatch(1);
+        MessageStore closing = new MessageStore(dir) {
+            @Override
+            FileChannel openChannel(File file) throws IOException {
+                try {
+                    disk.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.openChannel(file);
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            closing.append(message(i));
+        }
+        closing.closeInBackground();
+
+        final BlockingQueue<Object> opened = new LinkedBlockingQueue<>();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    opened.add(new MessageStore(dir));
+                } catch (IOException e) {
+                    opened.add(e);
+                }
+            }
+        }).start();
+        assertNull("opened before the last store was written", opened.poll(100, TimeUnit.MILLISECONDS));
+
+        disk.countDown();
+        Object result = opened.poll(5, TimeUnit.SECONDS);
+        assertTrue(String.valueOf(result), result instanceof MessageStore);
+        store = (MessageStore) result;
+        assertEquals(10, store.size());
+        assertEquals("message 9", store.read(9, 1).get(0).getMessage());
+    }
+}
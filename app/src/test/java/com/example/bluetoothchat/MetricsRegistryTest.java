@@ -0,0 +1,178 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsRegistryTest {
+    private static final PeerSession.Listener IGNORE = new PeerSession.Listener() {
+        @Override
+        public void onMessage(PeerSession session, BufferPool.Lease lease) {
+            lease.release();
+        }
+
+        @Override
+        public void onSent(PeerSession session, byte[] payload) {
+        }
+
+        @Override
+        public void onSendFailed(PeerSession session, byte[] payload, IOException e) {
+        }
+
+        @Override
+        public void onClosed(PeerSession session, IOException cause) {
+        }
+    };
+
+    private final List<PeerSession> sessions = new ArrayList<>();
+    private ChatUtils server;
+    private ChatUtils client;
+    private ScheduledExecutorService timer;
+    private File dir;
+
+    @After
+    public void tearDown() throws IOException {
+        for (PeerSession session : sessions) {
+            session.close();
+        }
+        if (client != null) {
+            client.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (dir != null) {
+            Benchmarks.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void metrics_areCreatedOncePerName() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        assertSame(metrics.histogram("rtt"), metrics.histogram("rtt"));
+        assertSame(metrics.counter("bytes.in"), metrics.counter("bytes.in"));
+    }
+
+    @Test
+    public void json_isCompactAndSorted() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("b").addAndGet(7);
+        metrics.counter("a").incrementAndGet();
+        metrics.histogram("rtt").record(2000000);
+        String json = metrics.toJson();
+        assertTrue(json, json.startsWith("{\"uptimeMs\":"));
+        assertTrue(json, json.contains(",\"counters\":{\"a\":1,\"b\":7},\"histograms\":{\"rtt\":{\"count\":1,"
+                + "\"min\":2000,\"mean\":2000,\"p50\":2000,\"p90\":2000,\"p99\":2000,\"p999\":2000,\"max\":2000}}}"));
+        assertFalse(json, json.contains("\n"));
+
+        dir = Files.createTempDirectory("metrics").toFile();
+        File file = new File(dir, "metrics.json");
+        metrics.writeTo(file);
+        metrics.writeTo(file);
+        assertTrue(new String(Files.readAllBytes(file.toPath()), "UTF-8").contains("\"rtt\":{\"count\":1,"));
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void chatUtils_recordsConnectionAndTraffic() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingChatListener serverEvents = new RecordingChatListener();
+        RecordingChatListener clientEvents = new RecordingChatListener();
+        server = new ChatUtils(new LoopbackTransport(network, "server"), serverEvents);
+        client = new ChatUtils(new LoopbackTransport(network, "client"), clientEvents);
+        server.start();
+        serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+        client.connect("server");
+        clientEvents.awaitState(ChatUtils.STATE_CONNECTED, 2000);
+        serverEvents.awaitState(ChatUtils.STATE_CONNECTED, 2000);
+
+        client.write("hello".getBytes());
+        client.write("there".getBytes());
+        serverEvents.awaitRead(2, 2000);
+        // counted once the server's ack is back
+        clientEvents.awaitDelivered(2, 2000);
+
+        MetricsRegistry clientMetrics = client.getMetrics();
+        MetricsRegistry serverMetrics = server.getMetrics();
+        assertEquals(1, clientMetrics.histogram(ChatUtils.METRIC_CONNECT).getCount());
+        assertEquals(1, serverMetrics.histogram(ChatUtils.METRIC_ACCEPT_FIRST_BYTE).getCount());
+        assertEquals(0, clientMetrics.histogram(ChatUtils.METRIC_ACCEPT_FIRST_BYTE).getCount());
+        assertEquals(2, clientMetrics.counter(PeerSession.METRIC_MESSAGES_OUT).get());
+        assertEquals(2, clientMetrics.histogram(ReliableDelivery.METRIC_DELIVERY).getCount());
+        assertEquals(2, serverMetrics.counter(PeerSession.METRIC_MESSAGES_IN).get());
+        // both messages, and the HELLO unless it was queued behind them
+        assertTrue(clientMetrics.histogram(SendQueue.METRIC_SEND).getCount() >= 2);
+        assertTrue(clientMetrics.histogram(SendQueue.METRIC_WRITE).getCount() > 0);
+        assertTrue(serverMetrics.counter(PeerSession.METRIC_BYTES_IN).get()
+                >= 2 * (FrameCodec.OVERHEAD + 5));
+    }
+
+    @Test
+    public void pings_measureRoundTrips() throws Exception {
+        PeerSession[] pair = connect();
+        MetricsRegistry metrics = new MetricsRegistry();
+        pair[0].setMetrics(metrics);
+        start(pair);
+        assertEquals(-1, pair[0].getLastRttNanos());
+
+        timer = Executors.newSingleThreadScheduledExecutor();
+        pair[0].startPings(timer, 10);
+        LatencyHistogram rtt = metrics.histogram(PeerSession.METRIC_RTT);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (rtt.getCount() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("only " + rtt.getCount() + " pongs", rtt.getCount() >= 5);
+        assertTrue(pair[0].getLastRttNanos() > 0);
+        assertTrue(rtt.snapshot().getMax() < 5000000000L);
+    }
+
+    @Test
+    public void pings_stopWhenThePeerNeverAnswers() throws Exception {
+        PeerSession[] pair = connect();
+        // only the pinging side runs, nobody reads the other end
+        start(new PeerSession[]{pair[0]});
+        timer = Executors.newSingleThreadScheduledExecutor();
+        pair[0].startPings(timer, 5);
+        Thread.sleep(200);
+        assertEquals(PeerSession.MAX_UNANSWERED_PINGS, pair[0].getSendQueue().getFramesSent());
+    }
+
+    private PeerSession[] connect() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        ChatTransport.Server listener = new LoopbackTransport(network, "b").listen();
+        ChatTransport.Connection outgoing = new LoopbackTransport(network, "a").createConnection("b");
+        outgoing.connect();
+        ChatTransport.Connection incoming = listener.accept();
+        listener.close();
+        BufferPool pool = new BufferPool(1024, 8);
+        PeerSession a = new PeerSession(outgoing, pool, IGNORE);
+        PeerSession b = new PeerSession(incoming, pool, IGNORE);
+        a.setCompressionOffered(false);
+        b.setCompressionOffered(false);
+        sessions.add(a);
+        sessions.add(b);
+        return new PeerSession[]{a, b};
+    }
+
+    private static void start(PeerSession[] pair) {
+        for (PeerSession session : pair) {
+            new Thread(session).start();
+        }
+    }
+}
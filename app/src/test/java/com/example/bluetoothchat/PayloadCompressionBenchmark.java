@@ -0,0 +1,138 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Bytes on the wire and CPU time per message for a synthetic chat corpus
+ * of short replies, sentences and pasted log excerpts, with and without
+ * the preset dictionary.
+ *
+ * Run with -Dbench.messages=N to change the corpus size.
+ */
+public class PayloadCompressionBenchmark {
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 20000);
+
+    private static final String[] REPLIES = {
+            "ok", "yes", "no", "sure", "thanks!", "lol", "see you later", "on my way",
+            "sounds good", "what time?", "I'm here", "be there in 5", "hey", "not sure yet",
+            "can you call me?", "did you get the file?",
+    };
+    private static final String[] WORDS = {
+            "the", "to", "and", "you", "I", "is", "it", "in", "of", "for", "that", "me",
+            "are", "we", "going", "tomorrow", "tonight", "meeting", "want", "need", "know",
+            "let", "think", "really", "good", "great", "time", "when", "where", "what",
+            "phone", "battery", "update", "app", "message", "photo", "weekend", "friday",
+            "morning", "later", "about", "maybe", "just", "would", "could", "should",
+    };
+    private static final String[] LOG_LINES = {
+            "E/BluetoothChat: java.io.IOException: read failed, socket might closed or timeout, read ret: -1",
+            "\tat android.bluetooth.BluetoothSocket.readAll(BluetoothSocket.java:970)",
+            "\tat android.bluetooth.BluetoothSocket.connect(BluetoothSocket.java:389)",
+            "\tat com.example.bluetoothchat.ChatUtils$ConnectThread.run(ChatUtils.java:379)",
+            "W/System.err: java.lang.NullPointerException: Attempt to invoke virtual method on a null object reference",
+            "D/BluetoothAdapter: isLeEnabled(): ON",
+            "I/ActivityManager: Start proc 12345:com.example.bluetoothchat/u0a123 for activity",
+    };
+
+    static List<byte[]> corpus(int count, int kind, Random random) throws Exception {
+        List<byte[]> corpus = new ArrayList<>(count);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            switch (kind) {
+                case 0:
+                    sb.append(REPLIES[random.nextInt(REPLIES.length)]);
+                    break;
+                case 1:
+                    int words = 6 + random.nextInt(30);
+                    for (int w = 0; w < words; w++) {
+                        sb.append(WORDS[random.nextInt(WORDS.length)]).append(w + 1 < words ? " " : "?");
+                    }
+                    break;
+                default:
+                    int lines = 3 + random.nextInt(12);
+                    for (int l = 0; l < lines; l++) {
+                        sb.append("10-18 12:").append(10 + random.nextInt(50)).append(':')
+                                .append(10 + random.nextInt(50)).append('.').append(random.nextInt(1000))
+                                .append(' ').append(LOG_LINES[random.nextInt(LOG_LINES.length)]).append('\n');
+                    }
+                    break;
+            }
+            corpus.add(sb.toString().getBytes("UTF-8"));
+        }
+        return corpus;
+    }
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void wireBytesAndCpu() throws Exception {
+        String[] names = {"short replies", "sentences", "pasted logs"};
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Deflater plain = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        for (int kind = 0; kind < names.length; kind++) {
+            List<byte[]> corpus = corpus(MESSAGES, kind, new Random(kind));
+            byte[] compressed = new byte[FrameCodec.MAX_PAYLOAD];
+            byte[] restored = new byte[FrameCodec.MAX_PAYLOAD];
+            // warm up
+            for (int i = 0; i < Math.min(2000, MESSAGES); i++) {
+                byte[] m = corpus.get(i);
+                PayloadCompression.compress(m, 0, m.length, compressed, 0);
+            }
+
+            long rawWire = 0;
+            long wire = 0;
+            long noDictionaryWire = 0;
+            long compressCpu = 0;
+            long decompressCpu = 0;
+            int compressedCount = 0;
+            for (byte[] m : corpus) {
+                rawWire += m.length + FrameCodec.OVERHEAD;
+
+                long t0 = threads.getCurrentThreadCpuTime();
+                int length = PayloadCompression.compress(m, 0, m.length, compressed, 0);
+                long t1 = threads.getCurrentThreadCpuTime();
+                compressCpu += t1 - t0;
+                if (length < 0) {
+                    wire += m.length + FrameCodec.OVERHEAD;
+                } else {
+                    compressedCount++;
+                    wire += length + FrameCodec.OVERHEAD;
+                    t0 = threads.getCurrentThreadCpuTime();
+                    int n = PayloadCompression.decompress(compressed, 0, length, restored, 0);
+                    decompressCpu += threads.getCurrentThreadCpuTime() - t0;
+                    assertEquals(m.length, n);
+                }
+
+                plain.reset();
+                plain.setInput(m);
+                plain.finish();
+                int plainLength = PayloadCompression.HEADER_SIZE + plain.deflate(compressed);
+                noDictionaryWire += Math.min(plainLength, m.length) + FrameCodec.OVERHEAD;
+            }
+            System.out.println(String.format(Locale.US,
+                    "%-14s %6.1f B raw  %6.1f B wire (%3.0f%%)  %6.1f B without dictionary (%3.0f%%)  "
+                            + "%3.0f%% compressed  %5.1f us compress  %5.1f us decompress",
+                    names[kind], (double) rawWire / MESSAGES, (double) wire / MESSAGES,
+                    100.0 * wire / rawWire, (double) noDictionaryWire / MESSAGES,
+                    100.0 * noDictionaryWire / rawWire, 100.0 * compressedCount / MESSAGES,
+                    compressCpu / 1e3 / MESSAGES,
+                    compressedCount == 0 ? 0 : decompressCpu / 1e3 / compressedCount));
+        }
+        plain.end();
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadCompressionTest {
+    private final List<PeerSession> sessions = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (PeerSession session : sessions) {
+            session.close();
+        }
+    }
+
+    private static byte[] roundTrip(byte[] payload) throws IOException {
+        byte[] compressed = new byte[payload.length];
+        int length = PayloadCompression.compress(payload, 0, payload.length, compressed, 0);
+        assertTrue("did not compress", length > 0 && length < payload.length);
+        byte[] out = new byte[PayloadCompression.decompressedLength(compressed, 0, length)];
+        assertEquals(out.length, PayloadCompression.decompress(compressed, 0, length, out, 0));
+        return out;
+    }
+
+    @Test
+    public void chatText_roundTripsSmaller() throws Exception {
+        String[] messages = {
+                "hey are you there? what time are we going tomorrow",
+                "I'm not sure, let me know when you are ready to leave",
+                "java.lang.IllegalStateException: connection closed at android.bluetooth.BluetoothSocket.read",
+        };
+        for (String message : messages) {
+            byte[] payload = message.getBytes("UTF-8");
+            assertArrayEquals(payload, roundTrip(payload));
+        }
+    }
+
+    @Test
+    public void shortOrIncompressiblePayloads_areLeftAlone() {
+        byte[] shortPayload = "ok see you".getBytes();
+        assertEquals(-1, PayloadCompression.compress(shortPayload, 0, shortPayload.length,
+                new byte[shortPayload.length], 0));
+
+        byte[] random = new byte[500];
+        new Random(7).nextBytes(random);
+        assertEquals(-1, PayloadCompression.compress(random, 0, random.length, new byte[random.length], 0));
+    }
+
+    @Test
+    public void corruptPayload_isRejected() throws Exception {
+        byte[] payload = "thanks, that sounds good to me. see you later tonight".getBytes("UTF-8");
+        byte[] compressed = new byte[payload.length];
+        int length = PayloadCompression.compress(payload, 0, payload.length, compressed, 0);
+        // claim more bytes than the stream holds
+        FrameCodec.putInt(compressed, 0, payload.length + 10);
+        try {
+            PayloadCompression.decompress(compressed, 0, length, new byte[payload.length + 10], 0);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void hello_matchesOnlyTheSameDictionary() {
+        byte[] hello = PayloadCompression.hello();
+        assertTrue(PayloadCompression.acceptsCompression(hello, 0, hello.length));
+        FrameCodec.putInt(hello, 2, PayloadCompression.DICTIONARY_ID + 1);
+        assertFalse(PayloadCompression.acceptsCompression(hello, 0, hello.length));
+    }
+
+    @Test
+    public void sessions_compressOnlyWhenBothOffer() throws Exception {
+        String message = "are you coming to the meeting tomorrow morning? let me know so I can book the room";
+        Collector received = new Collector();
+        PeerSession[] pair = connect(true, true, received);
+        assertTrue(pair[0].send(message.getBytes("UTF-8")));
+        assertEquals(message, received.await(1).get(0));
+        assertEquals(1, pair[0].getSendQueue().getFramesCompressed());
+
+        Collector plain = new Collector();
+        pair = connect(true, false, plain);
+        assertTrue(pair[0].send(message.getBytes("UTF-8")));
+        assertEquals(message, plain.await(1).get(0));
+        assertEquals(0, pair[0].getSendQueue().getFramesCompressed());
+    }
+
+    /**
+     * @return the sending and the receiving session
+     */
+    private PeerSession[] connect(boolean senderOffers, boolean receiverOffers, Collector received)
+            throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        ChatTransport.Server server = new LoopbackTransport(network, "receiver").listen();
+        ChatTransport.Connection outgoing = new LoopbackTransport(network, "sender").createConnection("receiver");
+        outgoing.connect();
+        ChatTransport.Connection incoming = server.accept();
+        server.close();
+
+        BufferPool pool = new BufferPool(1024, 8);
+        PeerSession sender = new PeerSession(outgoing, pool, new Collector());
+        PeerSession receiver = new PeerSession(incoming, pool, received);
+        sender.setCompressionOffered(senderOffers);
+        receiver.setCompressionOffered(receiverOffers);
+        sessions.add(sender);
+        sessions.add(receiver);
+        new Thread(sender).start();
+        new Thread(receiver).start();
+        if (senderOffers && receiverOffers) {
+            // wait for the receiver's HELLO
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!sender.getSendQueue().isCompressing()) {
+                assertTrue("no HELLO", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+        return new PeerSession[]{sender, receiver};
+    }
+
+    private static class Collector implements PeerSession.Listener {
+        private final List<String> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void onMessage(PeerSession session, BufferPool.Lease lease) {
+            messages.add(new String(lease.data(), 0, lease.length()));
+            lease.release();
+            notifyAll();
+        }
+
+        @Override
+        public void onSent(PeerSession session, byte[] payload) {
+        }
+
+        @Override
+        public void onSendFailed(PeerSession session, byte[] payload, IOException e) {
+        }
+
+        @Override
+        public void onClosed(PeerSession session, IOException cause) {
+        }
+
+        synchronized List<String> await(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (messages.size() < count) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw new AssertionError("received " + messages);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return messages;
+        }
+    }
+}
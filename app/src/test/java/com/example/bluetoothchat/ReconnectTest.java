@@ -0,0 +1,223 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Auto-reconnect of {@link ChatUtils} with faults injected into the
+ * in-process transport.
+ */
+public class ReconnectTest {
+    private ChatUtils server;
+    private ChatUtils client;
+    private FaultInjectingTransport serverLink;
+    private FaultInjectingTransport clientLink;
+    private RecordingChatListener serverEvents;
+    private RecordingChatListener clientEvents;
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private void connect(boolean serverReconnects, boolean clientReconnects, int maxAttempts)
+            throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        serverLink = new FaultInjectingTransport(new LoopbackTransport(network, "server"));
+        clientLink = new FaultInjectingTransport(new LoopbackTransport(network, "client"));
+        serverEvents = new RecordingChatListener();
+        clientEvents = new RecordingChatListener();
+        server = new ChatUtils(serverLink, serverEvents);
+        client = new ChatUtils(clientLink, clientEvents);
+        server.setAutoReconnect(serverReconnects);
+        client.setAutoReconnect(clientReconnects);
+        server.setReconnectBackoff(10, 100, maxAttempts);
+        client.setReconnectBackoff(10, 100, maxAttempts);
+
+        server.start();
+        serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+        client.connect("server");
+        clientEvents.awaitConnections(1, 2000);
+        serverEvents.awaitConnections(1, 2000);
+        assertEquals("server", client.getLastAddress());
+        assertEquals("client", server.getLastAddress());
+    }
+
+    @Test
+    public void linkDrop_bothSidesRaceBackTogether() throws Exception {
+        connect(true, true, 50);
+        clientLink.breakConnections();
+
+        clientEvents.awaitConnections(2, 5000);
+        serverEvents.awaitConnections(2, 5000);
+        // the race may briefly settle on two different links; wait until it is stable
+        awaitConnected();
+
+        client.write("back".getBytes());
+        server.write("again".getBytes());
+        serverEvents.awaitRead(1, 2000);
+        clientEvents.awaitRead(1, 2000);
+        assertTrue(client.getMetrics().histogram(ChatUtils.METRIC_RECONNECT).getCount() >= 1);
+        assertTrue(server.getMetrics().histogram(ChatUtils.METRIC_RECONNECT).getCount() >= 1);
+    }
+
+    @Test
+    public void failedDials_areRetriedWithBackoff() throws Exception {
+        connect(false, true, 50);
+        int dials = clientLink.getConnectAttempts();
+        clientLink.failNextConnects(3);
+        clientLink.breakConnections();
+
+        clientEvents.awaitConnections(2, 5000);
+        serverEvents.awaitConnections(2, 5000);
+        assertTrue(clientLink.getConnectAttempts() - dials >= 4);
+        assertTrue(client.getMetrics().counter(ChatUtils.METRIC_RECONNECT_ATTEMPTS).get() >= 4);
+        assertEquals(1, client.getMetrics().histogram(ChatUtils.METRIC_RECONNECT).getCount());
+
+        client.write("made it".getBytes());
+        serverEvents.awaitRead(1, 2000);
+        assertEquals("made it", serverEvents.received.get(0));
+    }
+
+    @Test
+    public void deliberateDisconnect_isNotReconnected() throws Exception {
+        connect(true, true, 50);
+        client.stop();
+        serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+
+        Thread.sleep(300);
+        assertEquals(1, serverEvents.getConnections());
+        assertEquals(ChatUtils.STATE_LISTEN, server.getState());
+        assertEquals(0, server.getMetrics().counter(ChatUtils.METRIC_RECONNECT_ATTEMPTS).get());
+    }
+
+    @Test
+    public void disconnect_beforeTheSessionStarts_doesNotWaitForTheBye() throws Exception {
+        ChatTransport.Connection[] link = SecureConnectionTest.link();
+        // never started, as while the secure handshake is still going on
+        PeerSession session = new PeerSession(link[0], new BufferPool(1024, 8), IGNORING);
+        Thread peer = readToEnd(link[1].getInputStream());
+
+        long start = System.nanoTime();
+        session.disconnect();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < PeerSession.BYE_LINGER_MILLIS / 2);
+        assertTrue(session.isClosed());
+
+        // closed all the same once the BYE had its time
+        peer.join(PeerSession.BYE_LINGER_MILLIS * 10);
+        assertFalse(peer.isAlive());
+    }
+
+    @Test
+    public void disconnect_withChatWaitingForCredit_doesNotWaitForTheBye() throws Exception {
+        ChatTransport.Connection[] link = SecureConnectionTest.link();
+        PeerSession session = new PeerSession(link[0], new BufferPool(1024, 8), IGNORING);
+        session.setFlowControl(CreditWindow.DEFAULT_WINDOW_BYTES);
+        // the peer reads but never grants credit, so the BYE waits behind the chat
+        Thread peer = readToEnd(link[1].getInputStream());
+        new Thread(session).start();
+        assertTrue(session.send("held back".getBytes()));
+
+        long start = System.nanoTime();
+        session.disconnect();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < PeerSession.BYE_LINGER_MILLIS / 2);
+
+        peer.join(PeerSession.BYE_LINGER_MILLIS * 10);
+        assertFalse(peer.isAlive());
+    }
+
+    private static final PeerSession.Listener IGNORING = new PeerSession.Listener() {
+        @Override
+        public void onMessage(PeerSession session, BufferPool.Lease lease) {
+            lease.release();
+        }
+
+        @Override
+        public void onSent(PeerSession session, byte[] payload) {
+        }
+
+        @Override
+        public void onSendFailed(PeerSession session, byte[] payload, IOException e) {
+        }
+
+        @Override
+        public void onClosed(PeerSession session, IOException cause) {
+        }
+    };
+
+    /**
+     * A thread that reads {@code in} until the connection is closed.
+     */
+    private static Thread readToEnd(final InputStream in) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[1024];
+                try {
+                    while (in.read(buffer, 0, buffer.length) >= 0) {
+                        // keep reading
+                    }
+                } catch (IOException e) {
+                    // closed as well
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void givesUpAfterTooManyAttempts() throws Exception {
+        connect(false, true, 3);
+        clientLink.failNextConnects(Integer.MAX_VALUE);
+        clientLink.breakConnections();
+
+        clientEvents.awaitToast("Can't reconnect to the device", 5000);
+        assertEquals(3, client.getMetrics().counter(ChatUtils.METRIC_RECONNECT_ATTEMPTS).get());
+        // still reachable by the peer
+        assertEquals(ChatUtils.STATE_LISTEN, client.getState());
+    }
+
+    @Test
+    public void backoff_isJitteredBelowTheCap() {
+        Random random = new Random(11);
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long ceiling = Math.min(15000, 250L << Math.min(attempt, 30));
+            long sum = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = ChatUtils.backoffMillis(attempt, 250, 15000, random);
+                assertTrue(delay + " > " + ceiling, delay >= 0 && delay <= ceiling);
+                sum += delay;
+            }
+            long mean = sum / 1000;
+            assertTrue("mean " + mean + " of " + ceiling, Math.abs(mean - ceiling / 2) < ceiling / 10);
+        }
+    }
+
+    private void awaitConnected() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        int stable = 0;
+        while (stable < 10 && System.currentTimeMillis() < deadline) {
+            boolean connected = client.getState() == ChatUtils.STATE_CONNECTED
+                    && server.getState() == ChatUtils.STATE_CONNECTED;
+            stable = connected ? stable + 1 : 0;
+            Thread.sleep(20);
+        }
+        assertEquals(10, stable);
+    }
+}
@@ -0,0 +1,211 @@
+package com.example.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ChatListener} for JVM tests. Releases every lease it receives and
+ * lets a test wait for states and message counts.
+ */
+class RecordingChatListener implements ChatListener {
+    final List<Integer> states = new ArrayList<>();
+    final List<String> received = new ArrayList<>();
+    final List<String> toasts = new ArrayList<>();
+    private final boolean keepMessages;
+    private long readCount;
+    private long readBytes;
+    private long writtenCount;
+    private long deliveredCount;
+    private String deviceName;
+    private int connections;
+    private String fingerprint;
+
+    RecordingChatListener() {
+        this(true);
+    }
+
+    /**
+     * @param keepMessages false to only count messages, for benchmarks
+     */
+    RecordingChatListener(boolean keepMessages) {
+        this.keepMessages = keepMessages;
+    }
+
+    @Override
+    public synchronized void onStateChanged(int state) {
+        states.add(state);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onDeviceConnected(String address, String name) {
+        deviceName = name;
+        connections++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onEncrypted(String fingerprint) {
+        this.fingerprint = fingerprint;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onMessageRead(BufferPool.Lease lease) {
+        if (keepMessages) {
+            received.add(new String(lease.data(), 0, lease.length()));
+        }
+        readCount++;
+        readBytes += lease.length();
+        lease.release();
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onMessageWritten(byte[] payload) {
+        writtenCount++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onMessageDelivered(byte[] payload) {
+        deliveredCount++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onToast(String text) {
+        toasts.add(text);
+        notifyAll();
+    }
+
+    synchronized long getReadCount() {
+        return readCount;
+    }
+
+    synchronized long getReadBytes() {
+        return readBytes;
+    }
+
+    synchronized long getWrittenCount() {
+        return writtenCount;
+    }
+
+    synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    synchronized int getConnections() {
+        return connections;
+    }
+
+    synchronized String getDeviceName() {
+        return deviceName;
+    }
+
+    synchronized int lastState() {
+        return states.isEmpty() ? -1 : states.get(states.size() - 1);
+    }
+
+    /**
+     * Wait until the last reported state is {@code state}.
+     */
+    synchronized void awaitState(int state, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (lastState() != state) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("expected state " + state + ", reported " + states);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    /**
+     * Wait until a device has been connected at least {@code count} times.
+     */
+    synchronized void awaitConnections(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (connections < count) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("connected " + connections + " of " + count + " times");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    /**
+     * Wait until the connection is encrypted.
+     *
+     * @return the fingerprint reported
+     */
+    synchronized String awaitFingerprint(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (fingerprint == null) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("not encrypted");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Wait until {@code text} has been shown.
+     */
+    synchronized void awaitToast(String text, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!toasts.contains(text)) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("no toast \"" + text + "\" in " + toasts);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    /**
+     * Wait until at least {@code count} messages have been written.
+     */
+    synchronized void awaitWritten(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (writtenCount < count) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("wrote " + writtenCount + " of " + count + " messages");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    /**
+     * Wait until the peer has acknowledged at least {@code count} messages.
+     */
+    synchronized void awaitDelivered(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (deliveredCount < count) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("delivered " + deliveredCount + " of " + count + " messages");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    /**
+     * Wait until at least {@code count} messages have been read.
+     */
+    synchronized void awaitRead(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (readCount < count) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("read " + readCount + " of " + count + " messages");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SessionManager.Listener} for JVM tests. Releases every lease and
+ * counts traffic per peer.
+ */
+class RecordingSessionListener implements SessionManager.Listener {
+    final List<String> connected = new ArrayList<>();
+    final List<String> disconnected = new ArrayList<>();
+    final Map<String, List<String>> messages = new HashMap<>();
+    private final boolean keepMessages;
+    private long readCount;
+    private long sentCount;
+
+    RecordingSessionListener(boolean keepMessages) {
+        this.keepMessages = keepMessages;
+    }
+
+    @Override
+    public synchronized void onPeerConnected(String address, String name) {
+        connected.add(address);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onPeerDisconnected(String address) {
+        disconnected.add(address);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onMessage(String address, BufferPool.Lease lease) {
+        if (keepMessages) {
+            List<String> list = messages.get(address);
+            if (list == null) {
+                list = new ArrayList<>();
+                messages.put(address, list);
+            }
+            list.add(new String(lease.data(), 0, lease.length()));
+        }
+        lease.release();
+        readCount++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onSent(String address, byte[] payload) {
+        sentCount++;
+        notifyAll();
+    }
+
+    @Override
+    public void onSendFailed(String address, byte[] payload, IOException e) {
+    }
+
+    @Override
+    public void onConnectFailed(String address, IOException e) {
+    }
+
+    synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    synchronized void awaitConnected(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (connected.size() < count) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("connected " + connected);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    synchronized void awaitRead(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (readCount < count) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("read " + readCount + " of " + count);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    synchronized void awaitSent(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (sentCount < count) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("sent " + sentCount + " of " + count);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+}
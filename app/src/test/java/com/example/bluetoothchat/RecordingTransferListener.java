@@ -0,0 +1,83 @@
+package com.example.bluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FileTransfer.Listener} for JVM tests that lets a test wait for
+ * files to arrive.
+ */
+class RecordingTransferListener implements FileTransfer.Listener {
+    final List<File> received = new ArrayList<>();
+    final List<String> sent = new ArrayList<>();
+    final List<String> failed = new ArrayList<>();
+    private long bytesReceived;
+
+    @Override
+    public void onSendProgress(String name, long acknowledged, long size) {
+    }
+
+    @Override
+    public synchronized void onFileSent(String name, long size) {
+        sent.add(name);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onReceiveProgress(String name, long received, long size) {
+        bytesReceived = received;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onFileReceived(File file) {
+        received.add(file);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onTransferFailed(String name, IOException e) {
+        failed.add(name + ": " + e);
+        notifyAll();
+    }
+
+    /**
+     * Wait until the current incoming file has at least {@code bytes} bytes.
+     */
+    synchronized void awaitBytesReceived(long bytes, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (bytesReceived < bytes) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("received " + bytesReceived + " of " + bytes + " bytes");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    synchronized File awaitReceived(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (received.size() < count) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("received " + received + ", failed " + failed);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return received.get(count - 1);
+    }
+
+    synchronized void awaitSent(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (sent.size() < count) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new AssertionError("sent " + sent + ", failed " + failed);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of sequence numbers and acks over the in-process transport: bytes
+ * on the wire per message in both directions and one-way latency, for
+ * plain chat frames and for {@link ReliableDelivery}.
+ *
+ * Run with -Dbench.messages=N to change the message count.
+ */
+public class ReliableDeliveryBenchmark {
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 2000);
+    private static final byte[] PAYLOAD = "a typical short chat message, about sixty bytes long".getBytes();
+
+    /**
+     * Counts arrivals and records the time since the matching send.
+     */
+    private static class Arrivals implements PeerSession.Listener, ReliableDelivery.Callback {
+        final Semaphore arrived = new Semaphore(0);
+        final LatencyHistogram latency = new LatencyHistogram();
+        volatile long sentAt;
+
+        @Override
+        public void onMessage(PeerSession session, BufferPool.Lease lease) {
+            onMessage(lease);
+        }
+
+        @Override
+        public void onMessage(BufferPool.Lease lease) {
+            latency.recordSince(sentAt);
+            lease.release();
+            arrived.release();
+        }
+
+        @Override
+        public void onDelivered(byte[] payload) {
+        }
+
+        @Override
+        public void onSent(PeerSession session, byte[] payload) {
+        }
+
+        @Override
+        public void onSendFailed(PeerSession session, byte[] payload, IOException e) {
+        }
+
+        @Override
+        public void onClosed(PeerSession session, IOException cause) {
+        }
+    }
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void overheadAgainstPlainChat() throws Exception {
+        run(false);
+        run(true);
+    }
+
+    private static void run(boolean reliable) throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        ChatTransport.Server server = new LoopbackTransport(network, "b").listen();
+        ChatTransport.Connection outgoing = new LoopbackTransport(network, "a").createConnection("b");
+        outgoing.connect();
+        ChatTransport.Connection incoming = server.accept();
+        server.close();
+
+        BufferPool pool = new BufferPool(1024, 64);
+        Arrivals senderSide = new Arrivals();
+        Arrivals receiverSide = new Arrivals();
+        PeerSession a = new PeerSession(outgoing, pool, senderSide);
+        PeerSession b = new PeerSession(incoming, pool, receiverSide);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        ReliableDelivery sender = new ReliableDelivery(pool, senderSide);
+        if (reliable) {
+            sender.attach(a, timer);
+            new ReliableDelivery(pool, receiverSide).attach(b, timer);
+        }
+        new Thread(a).start();
+        new Thread(b).start();
+        try {
+            // one message at a time, so the latency is not queueing
+            for (int i = 0; i < MESSAGES; i++) {
+                receiverSide.sentAt = System.nanoTime();
+                if (reliable) {
+                    sender.send(PAYLOAD);
+                } else {
+                    a.send(PAYLOAD);
+                }
+                if (!receiverSide.arrived.tryAcquire(5, TimeUnit.SECONDS)) {
+                    throw new AssertionError("message " + i + " did not arrive");
+                }
+            }
+            if (reliable) {
+                // let the last acks arrive
+                long deadline = System.currentTimeMillis() + 5000;
+                while (sender.getUnacknowledged() > 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+            }
+            long forward = a.getSendQueue().getBytesSent();
+            long backward = b.getSendQueue().getBytesSent();
+            LatencyHistogram.Snapshot latency = receiverSide.latency.snapshot();
+            System.out.println(String.format(Locale.US,
+                    "%-10s %6.1f B/msg forward  %6.1f B/msg back  latency p50 %s p99 %s",
+                    reliable ? "reliable" : "plain", (double) forward / MESSAGES, (double) backward / MESSAGES,
+                    micros(latency.getValueAtPercentile(50)), micros(latency.getValueAtPercentile(99))));
+        } finally {
+            a.close();
+            b.close();
+            timer.shutdownNow();
+        }
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.US, "%.1f us", nanos / 1e3);
+    }
+}
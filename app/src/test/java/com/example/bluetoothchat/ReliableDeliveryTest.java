@@ -0,0 +1,327 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ReliableDelivery} between two sessions, with chosen sequenced
+ * frames dropped on the way the way a corrupt frame would be.
+ */
+public class ReliableDeliveryTest {
+    private static final PeerSession.Listener IGNORE = new PeerSession.Listener() {
+        @Override
+        public void onMessage(PeerSession session, BufferPool.Lease lease) {
+            lease.release();
+        }
+
+        @Override
+        public void onSent(PeerSession session, byte[] payload) {
+        }
+
+        @Override
+        public void onSendFailed(PeerSession session, byte[] payload, IOException e) {
+        }
+
+        @Override
+        public void onClosed(PeerSession session, IOException cause) {
+        }
+    };
+
+    /**
+     * Records what a {@link ReliableDelivery} hands on.
+     */
+    private static class Recorder implements ReliableDelivery.Callback {
+        final List<String> messages = new ArrayList<>();
+        int delivered;
+
+        @Override
+        public synchronized void onMessage(BufferPool.Lease lease) {
+            messages.add(new String(lease.data(), 0, lease.length()));
+            lease.release();
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onDelivered(byte[] payload) {
+            delivered++;
+            notifyAll();
+        }
+
+        synchronized void awaitMessages(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (messages.size() < count) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw new AssertionError("received " + messages);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        }
+
+        synchronized void awaitDelivered(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (delivered < count) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw new AssertionError("delivered " + delivered + " of " + count);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        }
+    }
+
+    /**
+     * Re-frames what is written and drops the sequenced chat frames whose
+     * numbers are listed, each one the first time it is sent. Counts the
+     * sequenced frames that get through.
+     */
+    static class DroppingStream extends OutputStream implements FrameDecoder.FrameListener {
+        private final OutputStream out;
+        private final Set<Long> drop;
+        private final FrameDecoder decoder = new FrameDecoder(this);
+        private final FrameCodec codec = new FrameCodec();
+        private final MemoryPipe pipe = new MemoryPipe(256 * 1024);
+        int chatFrames;
+
+        DroppingStream(OutputStream out, Set<Long> drop) {
+            this.out = out;
+            this.drop = drop;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            pipe.getOutputStream().write(b, off, len);
+            InputStream in = pipe.getInputStream();
+            while (in.available() > 0) {
+                decoder.fill(in);
+                decoder.decode();
+            }
+        }
+
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+            if (type == FrameCodec.TYPE_CHAT_SEQ || type == FrameCodec.TYPE_CHAT_SEQ_DEFLATE) {
+                if (drop.remove(FrameCodec.getLong(buffer, offset))) {
+                    return;
+                }
+                chatFrames++;
+            }
+            codec.writeFrame(out, type, buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static class DroppingConnection implements ChatTransport.Connection {
+        private final ChatTransport.Connection connection;
+        final DroppingStream out;
+
+        DroppingConnection(ChatTransport.Connection connection, Set<Long> drop) throws IOException {
+            this.connection = connection;
+            out = new DroppingStream(connection.getOutputStream(), drop);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            connection.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connection.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return connection.getRemoteAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return connection.getRemoteName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+
+    private final List<PeerSession> sessions = new ArrayList<>();
+    private final BufferPool pool = new BufferPool(1024, 64);
+    private ScheduledExecutorService timer;
+    private Recorder senderEvents;
+    private Recorder receiverEvents;
+    private ReliableDelivery sender;
+    private ReliableDelivery receiver;
+    private DroppingConnection link;
+
+    @Before
+    public void setUp() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+        senderEvents = new Recorder();
+        receiverEvents = new Recorder();
+        sender = new ReliableDelivery(pool, senderEvents);
+        receiver = new ReliableDelivery(pool, receiverEvents);
+    }
+
+    @After
+    public void tearDown() {
+        for (PeerSession session : sessions) {
+            session.close();
+        }
+        timer.shutdownNow();
+    }
+
+    /**
+     * Open a new connection and attach both sides to it. Frames from the
+     * sender with the given numbers are dropped once.
+     */
+    private PeerSession[] connect(Long... drop) throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        ChatTransport.Server server = new LoopbackTransport(network, "receiver").listen();
+        ChatTransport.Connection outgoing = new LoopbackTransport(network, "sender").createConnection("receiver");
+        outgoing.connect();
+        ChatTransport.Connection incoming = server.accept();
+        server.close();
+        link = new DroppingConnection(outgoing, Collections.synchronizedSet(new HashSet<>(Arrays.asList(drop))));
+        PeerSession a = new PeerSession(link, pool, IGNORE);
+        PeerSession b = new PeerSession(incoming, pool, IGNORE);
+        sessions.add(a);
+        sessions.add(b);
+        sender.attach(a, timer);
+        receiver.attach(b, timer);
+        new Thread(a).start();
+        new Thread(b).start();
+        return new PeerSession[]{a, b};
+    }
+
+    private void send(int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertTrue(sender.send(("message " + i).getBytes()));
+        }
+    }
+
+    private List<String> expected(int from, int to) {
+        List<String> list = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            list.add("message " + i);
+        }
+        return list;
+    }
+
+    @Test
+    public void droppedFrames_areSentAgainAndDeliveredInOrder() throws Exception {
+        // long enough that only the selective acks can bring them back in time
+        sender.setRetransmitTimeout(60000);
+        connect(3L, 7L);
+        send(0, 20);
+
+        receiverEvents.awaitMessages(20);
+        senderEvents.awaitDelivered(20);
+        assertEquals(expected(0, 20), receiverEvents.messages);
+        assertEquals(2, sender.getRetransmits());
+        assertEquals(0, sender.getUnacknowledged());
+        assertEquals(0, sender.getUnacknowledgedBytes());
+    }
+
+    @Test
+    public void lastFrameDropped_isSentAgainOnTheTimer() throws Exception {
+        sender.setRetransmitTimeout(50);
+        connect(5L);
+        send(0, 5);
+
+        receiverEvents.awaitMessages(5);
+        senderEvents.awaitDelivered(5);
+        assertEquals(expected(0, 5), receiverEvents.messages);
+        assertTrue(sender.getRetransmits() >= 1);
+    }
+
+    @Test
+    public void reconnect_resendsOnlyTheUnacknowledgedSuffix() throws Exception {
+        sender.setRetransmitTimeout(60000);
+        PeerSession[] first = connect(6L, 7L, 8L);
+        send(0, 8);
+        // 1..5 arrive, 6..8 are lost with the link
+        receiverEvents.awaitMessages(5);
+        senderEvents.awaitDelivered(5);
+        sender.detach(first[0]);
+        receiver.detach(first[1]);
+        first[0].close();
+        first[1].close();
+        assertEquals(3, sender.getUnacknowledged());
+
+        connect();
+        receiverEvents.awaitMessages(8);
+        senderEvents.awaitDelivered(8);
+        assertEquals(expected(0, 8), receiverEvents.messages);
+        assertEquals(3, link.out.chatFrames);
+
+        // and new messages carry on after them
+        send(8, 10);
+        receiverEvents.awaitMessages(10);
+        assertEquals(expected(0, 10), receiverEvents.messages);
+    }
+
+    @Test
+    public void restartedSender_startsANewStream() throws Exception {
+        connect();
+        send(0, 3);
+        receiverEvents.awaitMessages(3);
+        senderEvents.awaitDelivered(3);
+
+        // the app on the other side was restarted and numbers from 1 again
+        sender = new ReliableDelivery(pool, senderEvents);
+        connect();
+        send(3, 5);
+        receiverEvents.awaitMessages(5);
+        assertEquals(expected(0, 5), receiverEvents.messages);
+    }
+
+    @Test
+    public void retransmitBuffer_isBoundedByBytes() {
+        ReliableDelivery delivery = new ReliableDelivery(pool, senderEvents, 10);
+        assertTrue(delivery.send(new byte[6]));
+        assertFalse(delivery.send(new byte[6]));
+        assertTrue(delivery.send(new byte[4]));
+        assertEquals(2, delivery.getUnacknowledged());
+        assertEquals(2, delivery.reset());
+        assertTrue(delivery.send(new byte[10]));
+    }
+}
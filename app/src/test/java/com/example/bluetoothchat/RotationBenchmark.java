@@ -0,0 +1,197 @@
+package com.example.bluetoothchat;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.View;
+
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Time until the chat screen shows the conversation again after a
+ * rotation, the way it was and with {@link ChatService} keeping the
+ * connection and the {@link ConversationState}.
+ *
+ * Each rotation recreates {@link MainActivity}, and with it the fragment,
+ * its views and its adapter, and is timed until the first frame that
+ * shows the last page of the history. Before, the screen also stopped the
+ * chat and built it again: the service goes with the old screen, the link
+ * is connected again with a new handshake, and the history opened and its
+ * last page read. Now the new fragment binds to the service the old one
+ * left and fills its adapter from the state as it stands.
+ *
+ * The service's own link is Bluetooth, which Robolectric does not have;
+ * the reconnect is an in-process link next to it, the cheapest the old
+ * way can be. Over RFCOMM connecting adds seconds more, see the connect
+ * metric of ChatUtils.
+ *
+ * Run with -Dbench.rotations=N to change the number of rotations.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class RotationBenchmark {
+    private static final int ROTATIONS = Integer.getInteger("bench.rotations", 20);
+    private static final int HISTORY = 1000;
+    private static final String PEER = "server";
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void rotate() throws Exception {
+        Application application = ApplicationProvider.getApplicationContext();
+        application.getSharedPreferences("Bluetooth_messenger", Context.MODE_PRIVATE)
+                .edit().putBoolean("Onboarding_completed", true).commit();
+        shadowOf(LocalBluetooth.getAdapter()).setEnabled(true);
+
+        File dir = new File(application.getFilesDir(), "history");
+        ConversationState seed = new ConversationState(dir, new ConversationStateTest.MainThread());
+        seed.onDeviceConnected(PEER, PEER);
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < HISTORY; i++) {
+            batch.add(new Message(PEER, "message " + i));
+        }
+        seed.onBatch(batch);
+        seed.close();
+
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingChatListener serverEvents = new RecordingChatListener(false);
+        ChatUtils server = new ChatUtils(new LoopbackTransport(network, PEER), serverEvents);
+        ChatUtils client = null;
+        ServiceController<ChatService> service = null;
+        ActivityController<MainActivity> activity = null;
+        try {
+            server.start();
+            serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+
+            // before: every rotation tears the chat down and sets it up again
+            LatencyHistogram reconnect = new LatencyHistogram();
+            long total = 0;
+            for (int i = 0; i <= ROTATIONS; i++) {
+                long start = System.nanoTime();
+                if (client != null) {
+                    client.stop();
+                    service.destroy();
+                    serverEvents.awaitState(ChatUtils.STATE_LISTEN, 2000);
+                }
+                service = startService(application);
+                activity = activity == null
+                        ? Robolectric.buildActivity(MainActivity.class).setup()
+                        : activity.recreate();
+                RecordingChatListener events = new RecordingChatListener(false);
+                client = new ChatUtils(new LoopbackTransport(network, "client"), events);
+                client.connect(PEER);
+                events.awaitConnections(1, 5000);
+                // so that listening again is known to come after the client left
+                serverEvents.awaitState(ChatUtils.STATE_CONNECTED, 5000);
+                // as the service does when ChatUtils reports the device
+                service.get().getConversation().onDeviceConnected(PEER, PEER);
+                awaitShown(activity.get(), ConversationState.HISTORY_PAGE_SIZE);
+                long nanos = System.nanoTime() - start;
+                // the first one starts from nothing, it is not a rotation
+                if (i > 0) {
+                    reconnect.record(nanos);
+                    total += nanos;
+                }
+            }
+            Benchmarks.report("rotate, reconnecting", ROTATIONS, total, -1);
+            System.out.println("  time to interactive " + reconnect.snapshot());
+
+            // after: the service keeps the connection and the state, the new screen binds to it
+            LatencyHistogram reattach = new LatencyHistogram();
+            total = 0;
+            for (int i = 0; i < ROTATIONS; i++) {
+                long start = System.nanoTime();
+                activity.recreate();
+                awaitShown(activity.get(), ConversationState.HISTORY_PAGE_SIZE);
+                long nanos = System.nanoTime() - start;
+                reattach.record(nanos);
+                total += nanos;
+            }
+            Benchmarks.report("rotate, reattaching", ROTATIONS, total, -1);
+            System.out.println("  time to interactive " + reattach.snapshot());
+            assertEquals(ChatUtils.STATE_CONNECTED, client.getState());
+            assertTrue(reattach.snapshot().getValueAtPercentile(50)
+                    < reconnect.snapshot().getValueAtPercentile(50));
+        } finally {
+            if (client != null) {
+                client.stop();
+            }
+            server.stop();
+            if (activity != null) {
+                activity.pause().stop().destroy();
+            }
+            if (service != null) {
+                service.destroy();
+            }
+            Benchmarks.deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * A new service, handed to the next screen that binds to it.
+     */
+    private static ServiceController<ChatService> startService(Application application) {
+        ServiceController<ChatService> service = Robolectric.buildService(ChatService.class).create();
+        shadowOf(application).setComponentNameAndServiceForBindService(
+                new ComponentName(application, ChatService.class), service.get().onBind(null));
+        return service;
+    }
+
+    /**
+     * Run the main thread until the conversation list holds {@code count}
+     * messages, then lay the screen out and wait for the frame after it.
+     */
+    private static void awaitShown(MainActivity activity, int count) {
+        RecyclerView list = (RecyclerView) activity.findViewById(R.id.in);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (list.getAdapter() == null || list.getAdapter().getItemCount() < count) {
+            assertTrue("shown " + (list.getAdapter() != null ? list.getAdapter().getItemCount() : 0)
+                    + " of " + count, System.nanoTime() < deadline);
+            // the bind, the history page and the diff are posted from other threads
+            ShadowLooper.idleMainLooper();
+            Thread.yield();
+        }
+        assertEquals(count, list.getAdapter().getItemCount());
+
+        View content = activity.getWindow().getDecorView();
+        content.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        content.layout(0, 0, WIDTH, HEIGHT);
+        final boolean[] drawn = new boolean[1];
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                drawn[0] = true;
+            }
+        });
+        while (!drawn[0]) {
+            ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+        }
+    }
+}
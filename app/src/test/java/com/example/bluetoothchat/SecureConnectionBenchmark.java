@@ -0,0 +1,161 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams writes of chat and file chunk sizes over a loopback link, plain
+ * and through {@link SecureConnection}, and bounces a small message back
+ * and forth to compare round trips. Reports throughput, bytes allocated
+ * per write on the sending side and round trip percentiles.
+ *
+ * Run with -Dbench.messages=N to change how many writes each round sends.
+ */
+public class SecureConnectionBenchmark {
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 50000);
+    private static final int ROUNDS = 3;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        for (int size : new int[]{64, 4096}) {
+            long plainNanos = Long.MAX_VALUE;
+            long secureNanos = Long.MAX_VALUE;
+            long secureAlloc = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                ChatTransport.Connection[] link = SecureConnectionTest.link();
+                plainNanos = Math.min(plainNanos, stream(link[0], link[1], size, null));
+
+                link = SecureConnectionTest.link();
+                SecureConnection a = new SecureConnection(link[0]);
+                SecureConnection b = new SecureConnection(link[1]);
+                SecureConnectionTest.handshake(a, b);
+                long[] alloc = new long[1];
+                secureNanos = Math.min(secureNanos, stream(a, b, size, alloc));
+                secureAlloc = Math.min(secureAlloc, alloc[0]);
+            }
+            long bytes = (long) MESSAGES * size;
+            Benchmarks.report(size + " B writes plain", MESSAGES, plainNanos, -1);
+            Benchmarks.report(size + " B writes AES-GCM", MESSAGES, secureNanos,
+                    Benchmarks.allocatedBytes() >= 0 ? secureAlloc : -1);
+            System.out.println(String.format("%-28s %.1f MB/s plain, %.1f MB/s encrypted",
+                    size + " B throughput", bytes * 1e3 / plainNanos, bytes * 1e3 / secureNanos));
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        int trips = MESSAGES / 5;
+        ChatTransport.Connection[] link = SecureConnectionTest.link();
+        LatencyHistogram plain = bounce(link[0], link[1], trips);
+
+        link = SecureConnectionTest.link();
+        SecureConnection a = new SecureConnection(link[0]);
+        SecureConnection b = new SecureConnection(link[1]);
+        SecureConnectionTest.handshake(a, b);
+        LatencyHistogram secure = bounce(a, b, trips);
+
+        System.out.println(String.format("%-28s %s", "64 B round trip plain", plain.snapshot()));
+        System.out.println(String.format("%-28s %s", "64 B round trip AES-GCM", secure.snapshot()));
+    }
+
+    /**
+     * Write {@code MESSAGES} writes of {@code size} bytes from a to b.
+     *
+     * @param alloc receives the bytes the writing thread allocated, or null
+     * @return nanoseconds until the last byte was read
+     */
+    private static long stream(ChatTransport.Connection a, ChatTransport.Connection b,
+                               final int size, final long[] alloc) throws Exception {
+        final OutputStream out = a.getOutputStream();
+        InputStream in = b.getInputStream();
+        final IOException[] failure = new IOException[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] message = new byte[size];
+                long before = Benchmarks.allocatedBytes();
+                try {
+                    for (int i = 0; i < MESSAGES; i++) {
+                        out.write(message, 0, size);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+                if (alloc != null) {
+                    alloc[0] = Benchmarks.allocatedBytes() - before;
+                }
+            }
+        });
+        byte[] buffer = new byte[8192];
+        long remaining = (long) MESSAGES * size;
+        long start = System.nanoTime();
+        writer.start();
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                break;
+            }
+            remaining -= n;
+        }
+        long nanos = System.nanoTime() - start;
+        writer.join();
+        a.close();
+        b.close();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return nanos;
+    }
+
+    /**
+     * Send 64 bytes from a to b and back, {@code trips} times.
+     */
+    private static LatencyHistogram bounce(ChatTransport.Connection a, final ChatTransport.Connection b,
+                                           int trips) throws Exception {
+        final int size = 64;
+        Thread echo = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] message = new byte[size];
+                try {
+                    DataInputStream in = new DataInputStream(b.getInputStream());
+                    OutputStream out = b.getOutputStream();
+                    while (true) {
+                        in.readFully(message);
+                        out.write(message);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // the link was closed
+                }
+            }
+        });
+        echo.start();
+        DataInputStream in = new DataInputStream(a.getInputStream());
+        OutputStream out = a.getOutputStream();
+        byte[] message = new byte[size];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < trips; i++) {
+            long start = System.nanoTime();
+            out.write(message);
+            out.flush();
+            in.readFully(message);
+            histogram.recordSince(start);
+        }
+        a.close();
+        b.close();
+        echo.join();
+        return histogram;
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SecureConnectionTest {
+
+    /**
+     * Two ends of one in-process link: the outgoing one, then the accepted one.
+     */
+    static ChatTransport.Connection[] link() throws IOException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        ChatTransport.Server server = new LoopbackTransport(network, "b").listen();
+        ChatTransport.Connection outgoing = new LoopbackTransport(network, "a").createConnection("b");
+        outgoing.connect();
+        ChatTransport.Connection incoming = server.accept();
+        server.close();
+        return new ChatTransport.Connection[]{outgoing, incoming};
+    }
+
+    /**
+     * Run both handshakes at once, the way two peers do.
+     */
+    static void handshake(final SecureConnection a, SecureConnection b) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> other = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    a.handshake();
+                    return null;
+                }
+            });
+            b.handshake();
+            other.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void handshake_agreesOnKeysAndCarriesTheStream() throws Exception {
+        ChatTransport.Connection[] link = link();
+        SecureConnection a = new SecureConnection(link[0]);
+        SecureConnection b = new SecureConnection(link[1]);
+        handshake(a, b);
+        assertNotNull(a.getFingerprint());
+        assertEquals(a.getFingerprint(), b.getFingerprint());
+
+        // small writes, and one longer than a record, which fills the pipe
+        final byte[] big = new byte[SecureConnection.MAX_RECORD + 1000];
+        new Random(1).nextBytes(big);
+        final OutputStream outA = a.getOutputStream();
+        outA.write("hello".getBytes());
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    outA.write(big);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+        b.getOutputStream().write("back".getBytes());
+
+        DataInputStream inB = new DataInputStream(b.getInputStream());
+        byte[] hello = new byte[5];
+        inB.readFully(hello);
+        assertArrayEquals("hello".getBytes(), hello);
+        byte[] received = new byte[big.length];
+        inB.readFully(received);
+        assertArrayEquals(big, received);
+        writer.join();
+
+        byte[] back = new byte[4];
+        new DataInputStream(a.getInputStream()).readFully(back);
+        assertArrayEquals("back".getBytes(), back);
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void newConnections_getNewKeys() throws Exception {
+        ChatTransport.Connection[] first = link();
+        SecureConnection a1 = new SecureConnection(first[0]);
+        SecureConnection b1 = new SecureConnection(first[1]);
+        handshake(a1, b1);
+        ChatTransport.Connection[] second = link();
+        SecureConnection a2 = new SecureConnection(second[0]);
+        SecureConnection b2 = new SecureConnection(second[1]);
+        handshake(a2, b2);
+        // a collision is possible in one run out of a million
+        assertTrue(!a1.getFingerprint().equals(a2.getFingerprint())
+                || !b1.getFingerprint().equals(b2.getFingerprint()));
+    }
+
+    @Test
+    public void forgedRecord_failsAuthentication() throws Exception {
+        ChatTransport.Connection[] link = link();
+        SecureConnection a = new SecureConnection(link[0]);
+        SecureConnection b = new SecureConnection(link[1]);
+        handshake(a, b);
+        OutputStream raw = link[0].getOutputStream();
+
+        // a record that was not sealed with the key
+        byte[] forged = new byte[4 + 5 + SecureConnection.TAG_SIZE];
+        FrameCodec.putInt(forged, 0, forged.length - 4);
+        raw.write(forged);
+        try {
+            b.getInputStream().read(new byte[16], 0, 16);
+            fail("forged record was accepted");
+        } catch (IOException e) {
+            assertEquals("Record failed authentication", e.getMessage());
+        }
+    }
+
+    @Test
+    public void replayedRecord_failsAuthentication() throws Exception {
+        ChatTransport.Connection[] link = link();
+        SecureConnection a = new SecureConnection(link[0]);
+        SecureConnection b = new SecureConnection(link[1]);
+        handshake(a, b);
+
+        // capture one sealed record off the wire and send it twice
+        a.getOutputStream().write("pay me".getBytes());
+        DataInputStream wire = new DataInputStream(link[1].getInputStream());
+        byte[] record = new byte[4 + 6 + SecureConnection.TAG_SIZE];
+        wire.readFully(record);
+        OutputStream raw = link[0].getOutputStream();
+        raw.write(record);
+        raw.write(record);
+
+        byte[] first = new byte[6];
+        new DataInputStream(b.getInputStream()).readFully(first);
+        assertArrayEquals("pay me".getBytes(), first);
+        try {
+            b.getInputStream().read(new byte[6], 0, 6);
+            fail("replayed record was accepted");
+        } catch (IOException e) {
+            assertEquals("Record failed authentication", e.getMessage());
+        }
+    }
+
+    @Test
+    public void plaintextPeer_isRefused() throws Exception {
+        ChatTransport.Connection[] link = link();
+        SecureConnection a = new SecureConnection(link[0]);
+        // the peer starts talking in frames right away
+        byte[] frame = new byte[FrameCodec.OVERHEAD + 5];
+        new FrameCodec().encode(FrameCodec.TYPE_HELLO, new byte[5], 0, 5, frame, 0);
+        link[1].getOutputStream().write(frame);
+        try {
+            a.handshake();
+            fail("handshake with a plaintext peer succeeded");
+        } catch (IOException e) {
+            assertEquals("Peer does not encrypt", e.getMessage());
+        }
+        try {
+            a.getOutputStream().write(new byte[1]);
+            fail("wrote without keys");
+        } catch (IOException e) {
+            assertEquals("Handshake not done", e.getMessage());
+        }
+    }
+}
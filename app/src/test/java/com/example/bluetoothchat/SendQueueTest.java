@@ -0,0 +1,209 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendQueueTest {
+
+    private static class RecordingCallback implements SendQueue.Callback {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done;
+
+        RecordingCallback(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onSent(int type, byte[] payload) {
+            sent.add(new String(payload));
+            done.countDown();
+        }
+
+        @Override
+        public void onSendFailed(int type, byte[] payload, IOException e) {
+            failed.add(new String(payload));
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void queuedFrames_areCoalescedIntoOneWrite() throws Exception {
+        final List<Integer> writeSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writeSizes.add(len);
+                wire.write(b, off, len);
+            }
+        };
+        RecordingCallback callback = new RecordingCallback(10);
+        SendQueue queue = new SendQueue(out, 16, 4096, TimeUnit.MILLISECONDS.toNanos(200), callback);
+        // Queue everything before the writer starts so it all fits one batch
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(FrameCodec.TYPE_CHAT, ("message " + i).getBytes()));
+        }
+        queue.start();
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        queue.close();
+
+        assertEquals(1, writeSizes.size());
+        assertEquals(10, callback.sent.size());
+        assertEquals("message 0", callback.sent.get(0));
+        assertEquals(10, queue.getMaxQueueDepth());
+
+        // and the bytes decode back to the same ten frames
+        final List<String> decoded = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                decoded.add(new String(buffer, offset, length));
+            }
+        });
+        byte[] bytes = wire.toByteArray();
+        decoder.feed(bytes, 0, bytes.length);
+        assertEquals(callback.sent, decoded);
+    }
+
+    @Test
+    public void batch_respectsSizeBudget() throws Exception {
+        final List<Integer> writeSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writeSizes.add(len);
+            }
+        };
+        RecordingCallback callback = new RecordingCallback(4);
+        SendQueue queue = new SendQueue(out, 16, 2 * (100 + FrameCodec.OVERHEAD), 0, callback);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(FrameCodec.TYPE_CHAT, new byte[100]);
+        }
+        queue.start();
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        queue.close();
+
+        assertEquals(2, writeSizes.size());
+        assertEquals(2, queue.getWrites());
+        assertEquals(4, queue.getFramesSent());
+    }
+
+    @Test
+    public void writeFailure_failsEveryPendingFrame() throws Exception {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("link down");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("link down");
+            }
+        };
+        RecordingCallback callback = new RecordingCallback(3);
+        SendQueue queue = new SendQueue(broken, 16, 64, 0, callback);
+        queue.offer(FrameCodec.TYPE_CHAT, new byte[40]);
+        queue.offer(FrameCodec.TYPE_CHAT, new byte[40]);
+        queue.offer(FrameCodec.TYPE_CHAT, new byte[40]);
+        queue.start();
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, callback.sent.size());
+        assertEquals(3, callback.failed.size());
+        assertFalse(queue.offer(FrameCodec.TYPE_CHAT, new byte[1]));
+    }
+
+    @Test
+    public void fullQueue_rejectsOffer() {
+        SendQueue queue = new SendQueue(new ByteArrayOutputStream(), 2, 64, 0, new RecordingCallback(0));
+        assertTrue(queue.offer(FrameCodec.TYPE_CHAT, new byte[1]));
+        assertTrue(queue.offer(FrameCodec.TYPE_CHAT, new byte[1]));
+        assertFalse(queue.offer(FrameCodec.TYPE_CHAT, new byte[1]));
+    }
+
+    /**
+     * Queue eight file chunks, each a write of its own, then {@code late}.
+     */
+    private static List<String> sendBehindBulk(boolean scheduling, int lateType, String late) throws Exception {
+        RecordingCallback callback = new RecordingCallback(9);
+        SendQueue queue = new SendQueue(new ByteArrayOutputStream(), 16, 4096, 0, callback);
+        queue.setPriorityScheduling(scheduling);
+        for (int i = 0; i < 8; i++) {
+            queue.offer(FrameCodec.TYPE_FILE_CHUNK, ("chunk " + i).getBytes(), ByteBuffer.allocate(4000));
+        }
+        queue.offer(lateType, late.getBytes());
+        queue.start();
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        queue.close();
+        return callback.sent;
+    }
+
+    @Test
+    public void chat_overtakesQueuedFileChunks() throws Exception {
+        List<String> sent = sendBehindBulk(true, FrameCodec.TYPE_CHAT, "chat");
+        assertEquals("chat", sent.get(0));
+        // the chunks keep their order
+        for (int i = 0; i < 8; i++) {
+            assertEquals("chunk " + i, sent.get(i + 1));
+        }
+
+        sent = sendBehindBulk(false, FrameCodec.TYPE_CHAT, "chat");
+        assertEquals("chat", sent.get(8));
+    }
+
+    @Test
+    public void bye_goesAfterEverythingQueuedBeforeIt() throws Exception {
+        RecordingCallback callback = new RecordingCallback(5);
+        SendQueue queue = new SendQueue(new ByteArrayOutputStream(), 16, 64, 0, callback);
+        queue.offer(FrameCodec.TYPE_CHAT, "first".getBytes());
+        queue.offer(FrameCodec.TYPE_CHAT, "second".getBytes());
+        queue.offer(FrameCodec.TYPE_BYE, "bye".getBytes());
+        queue.offer(FrameCodec.TYPE_CHAT, "third".getBytes());
+        queue.offer(FrameCodec.TYPE_ACK, "ack".getBytes());
+        queue.start();
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        queue.close();
+        assertEquals("bye", callback.sent.get(4));
+    }
+
+    @Test
+    public void channels_shareTheLinkByWeight() throws Exception {
+        RecordingCallback callback = new RecordingCallback(32);
+        SendQueue queue = new SendQueue(new ByteArrayOutputStream(), 16, 1024, 0, callback);
+        for (int i = 0; i < 16; i++) {
+            queue.offer(FrameCodec.TYPE_FILE_CHUNK, "bulk".getBytes(), ByteBuffer.allocate(1000));
+            queue.offer(FrameCodec.TYPE_CHAT, "chat".getBytes(), ByteBuffer.allocate(1000));
+        }
+        queue.start();
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        queue.close();
+        // chat has four times the weight of bulk, and bulk is not starved
+        List<String> firstTen = callback.sent.subList(0, 10);
+        assertEquals(8, Collections.frequency(firstTen, "chat"));
+        assertEquals(2, Collections.frequency(firstTen, "bulk"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aggregate inbound throughput at a hub with 1, 2, 4 and 7 peers sending
+ * concurrently over the in-process transport.
+ *
+ * Run with -Dbench.messages=N to change the messages sent per peer.
+ */
+public class SessionManagerBenchmark {
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 50000);
+    private static final int WINDOW = 128;
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void aggregateThroughput() throws Exception {
+        for (int peers : new int[]{1, 2, 4, 7}) {
+            run(peers);
+        }
+    }
+
+    private void run(int peerCount) throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        RecordingSessionListener hubEvents = new RecordingSessionListener(false);
+        SessionManager hub = new SessionManager(new LoopbackTransport(network, "hub"), hubEvents);
+        final List<SessionManager> peers = new ArrayList<>();
+        final List<RecordingSessionListener> peerEvents = new ArrayList<>();
+        try {
+            hub.start();
+            for (int i = 0; i < peerCount; i++) {
+                RecordingSessionListener events = new RecordingSessionListener(false);
+                SessionManager peer = new SessionManager(new LoopbackTransport(network, "peer" + i),
+                        events, 1);
+                peer.connect("hub");
+                peers.add(peer);
+                peerEvents.add(events);
+            }
+            hubEvents.awaitConnected(peerCount, 5000);
+
+            final byte[] payload = "a typical short chat message, about sixty bytes long".getBytes("UTF-8");
+            List<Thread> senders = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < peerCount; i++) {
+                final SessionManager peer = peers.get(i);
+                final RecordingSessionListener events = peerEvents.get(i);
+                Thread sender = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int m = 0; m < MESSAGES; m++) {
+                                if (m >= WINDOW) {
+                                    events.awaitSent(m - WINDOW + 1, 10000);
+                                }
+                                while (!peer.send("hub", payload)) {
+                                    Thread.yield();
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                sender.start();
+                senders.add(sender);
+            }
+            hubEvents.awaitRead((long) MESSAGES * peerCount, 60000);
+            long elapsed = System.nanoTime() - start;
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            Benchmarks.report("hub with " + peerCount + " peers", (long) MESSAGES * peerCount, elapsed, -1);
+        } finally {
+            for (SessionManager peer : peers) {
+                peer.stop();
+            }
+            hub.stop();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionManagerTest {
+    private final LoopbackTransport.Network network = new LoopbackTransport.Network();
+    private final List<SessionManager> managers = new ArrayList<>();
+
+    private SessionManager manager(String address, RecordingSessionListener listener, int maxPeers) {
+        SessionManager manager = new SessionManager(new LoopbackTransport(network, address),
+                listener, maxPeers);
+        managers.add(manager);
+        return manager;
+    }
+
+    @After
+    public void tearDown() {
+        for (SessionManager manager : managers) {
+            manager.stop();
+        }
+    }
+
+    @Test
+    public void hub_keepsAcceptingAndRoutesByAddress() throws Exception {
+        RecordingSessionListener hubEvents = new RecordingSessionListener(true);
+        SessionManager hub = manager("hub", hubEvents, 7);
+        hub.start();
+
+        RecordingSessionListener[] peerEvents = new RecordingSessionListener[3];
+        SessionManager[] peers = new SessionManager[3];
+        for (int i = 0; i < 3; i++) {
+            peerEvents[i] = new RecordingSessionListener(true);
+            peers[i] = manager("peer" + i, peerEvents[i], 1);
+            peers[i].connect("hub");
+        }
+        hubEvents.awaitConnected(3, 2000);
+        for (int i = 0; i < 3; i++) {
+            peerEvents[i].awaitConnected(1, 2000);
+            assertTrue(peers[i].send("hub", ("from " + i).getBytes()));
+        }
+        hubEvents.awaitRead(3, 2000);
+        assertEquals(Arrays.asList("from 0"), hubEvents.messages.get("peer0"));
+        assertEquals(Arrays.asList("from 2"), hubEvents.messages.get("peer2"));
+
+        assertTrue(hub.send("peer1", "only for 1".getBytes()));
+        peerEvents[1].awaitRead(1, 2000);
+        assertEquals(Arrays.asList("only for 1"), peerEvents[1].messages.get("hub"));
+        assertEquals(3, hub.broadcast("everyone".getBytes()));
+        peerEvents[0].awaitRead(1, 2000);
+        peerEvents[2].awaitRead(1, 2000);
+    }
+
+    @Test
+    public void hub_refusesPeersBeyondLimit() throws Exception {
+        RecordingSessionListener hubEvents = new RecordingSessionListener(false);
+        SessionManager hub = manager("hub", hubEvents, 2);
+        hub.start();
+        for (int i = 0; i < 3; i++) {
+            manager("peer" + i, new RecordingSessionListener(false), 1).connect("hub");
+        }
+        hubEvents.awaitConnected(2, 2000);
+        Thread.sleep(100);
+        assertEquals(2, hub.getPeerCount());
+    }
+
+    @Test
+    public void peerNotReleased_doesNotHoldBackTheOthers() throws Exception {
+        // the consumer keeps every message of "slow" without releasing it
+        final List<BufferPool.Lease> held = new ArrayList<>();
+        RecordingSessionListener hubEvents = new RecordingSessionListener(true) {
+            @Override
+            public synchronized void onMessage(String address, BufferPool.Lease lease) {
+                if (address.equals("slow")) {
+                    held.add(lease);
+                    return;
+                }
+                super.onMessage(address, lease);
+            }
+        };
+        SessionManager hub = manager("hub", hubEvents, 7);
+        hub.start();
+        SessionManager slow = manager("slow", new RecordingSessionListener(false), 1);
+        RecordingSessionListener fastEvents = new RecordingSessionListener(false);
+        SessionManager fast = manager("fast", fastEvents, 1);
+        slow.connect("hub");
+        fast.connect("hub");
+        hubEvents.awaitConnected(2, 2000);
+        fastEvents.awaitConnected(1, 2000);
+
+        // more than the receive buffers of one peer
+        for (int i = 0; i < 2 * SessionManager.RECEIVE_BUFFERS; i++) {
+            slow.send("hub", ("slow " + i).getBytes());
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        while (heldCount(hubEvents, held) < SessionManager.RECEIVE_BUFFERS
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(SessionManager.RECEIVE_BUFFERS, heldCount(hubEvents, held));
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(fast.send("hub", ("fast " + i).getBytes()));
+        }
+        hubEvents.awaitRead(10, 2000);
+        assertEquals(10, hubEvents.messages.get("fast").size());
+        synchronized (hubEvents) {
+            for (BufferPool.Lease lease : held) {
+                lease.release();
+            }
+        }
+    }
+
+    @Test
+    public void stalledPeers_doNotHoldBackWritesToTheOthers() throws Exception {
+        FaultInjectingTransport hubTransport = new FaultInjectingTransport(new LoopbackTransport(network, "hub"));
+        RecordingSessionListener hubEvents = new RecordingSessionListener(false);
+        SessionManager hub = new SessionManager(hubTransport, hubEvents, 7);
+        managers.add(hub);
+        hub.start();
+        RecordingSessionListener[] peerEvents = new RecordingSessionListener[3];
+        for (int i = 0; i < 3; i++) {
+            peerEvents[i] = new RecordingSessionListener(true);
+            manager("peer" + i, peerEvents[i], 1).connect("hub");
+            peerEvents[i].awaitConnected(1, 2000);
+        }
+        hubEvents.awaitConnected(3, 2000);
+
+        // two peers stop reading; the hub's writes to them never return
+        hubTransport.stallWrites("peer0");
+        hubTransport.stallWrites("peer1");
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(3, hub.broadcast(("all " + i).getBytes()));
+            }
+            peerEvents[2].awaitRead(10, 2000);
+            assertEquals(10, peerEvents[2].messages.get("hub").size());
+        } finally {
+            hubTransport.releaseWrites();
+        }
+    }
+
+    @Test
+    public void phone_connectsToHubOverEncryptedLink() throws Exception {
+        RecordingSessionListener hubEvents = new RecordingSessionListener(true);
+        SessionManager hub = manager("hub", hubEvents, 7);
+        hub.start();
+        RecordingChatListener phoneEvents = new RecordingChatListener();
+        ChatUtils phone = new ChatUtils(new LoopbackTransport(network, "phone"), phoneEvents);
+        try {
+            phone.connect("hub");
+            phoneEvents.awaitState(ChatUtils.STATE_CONNECTED, 2000);
+            phoneEvents.awaitFingerprint(2000);
+            hubEvents.awaitConnected(1, 2000);
+
+            assertEquals(1, hub.broadcast("to the phone".getBytes()));
+            phoneEvents.awaitRead(1, 2000);
+            assertEquals(Arrays.asList("to the phone"), phoneEvents.received);
+        } finally {
+            phone.stop();
+        }
+    }
+
+    private static int heldCount(Object lock, List<BufferPool.Lease> held) {
+        synchronized (lock) {
+            return held.size();
+        }
+    }
+
+    @Test
+    public void peerDisconnect_isReportedAndRemoved() throws Exception {
+        RecordingSessionListener hubEvents = new RecordingSessionListener(false);
+        SessionManager hub = manager("hub", hubEvents, 7);
+        hub.start();
+        RecordingSessionListener peerEvents = new RecordingSessionListener(false);
+        SessionManager peer = manager("peer", peerEvents, 1);
+        peer.connect("hub");
+        hubEvents.awaitConnected(1, 2000);
+        peerEvents.awaitConnected(1, 2000);
+
+        peer.disconnect("hub");
+        long deadline = System.currentTimeMillis() + 2000;
+        while (hub.getPeerCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, hub.getPeerCount());
+        assertFalse(hub.send("peer", new byte[1]));
+    }
+}
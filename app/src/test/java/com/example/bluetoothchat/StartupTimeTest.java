@@ -0,0 +1,55 @@
+package com.example.bluetoothchat;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cold start of the chat screen, from the launcher to its first frame,
+ * held to a budget so that work moved back in front of the screen fails
+ * the build. Robolectric is much slower than a phone and the budgets
+ * leave room for that: they catch a step that got a lot slower, not a
+ * few milliseconds.
+ *
+ * Run with -Dstartup.routeBudgetMs=N and -Dstartup.firstFrameBudgetMs=N
+ * to change the budgets.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class StartupTimeTest {
+    private static final long ROUTE_BUDGET_MS = Long.getLong("startup.routeBudgetMs", 1000);
+    private static final long FIRST_FRAME_BUDGET_MS = Long.getLong("startup.firstFrameBudgetMs", 3000);
+
+    @Test
+    public void chatScreen_routesAndDrawsWithinBudget() {
+        Context context = ApplicationProvider.getApplicationContext();
+        context.getSharedPreferences("Bluetooth_messenger", Context.MODE_PRIVATE)
+                .edit().putBoolean("Onboarding_completed", true).commit();
+
+        Robolectric.buildActivity(MainActivity.class).setup();
+        // the first frame, and the task posted after it
+        ShadowLooper.idleMainLooper(1, TimeUnit.SECONDS);
+
+        StartupTrace trace = StartupTrace.get();
+        System.out.println("  " + trace);
+        long route = trace.get(StartupTrace.METRIC_ROUTE);
+        long firstFrame = trace.get(StartupTrace.METRIC_FIRST_FRAME);
+        assertTrue("never routed", route >= 0);
+        assertTrue("no frame drawn", firstFrame >= route);
+        assertTrue("routed after " + TimeUnit.NANOSECONDS.toMillis(route) + " ms",
+                route <= TimeUnit.MILLISECONDS.toNanos(ROUTE_BUDGET_MS));
+        assertTrue("first frame after " + TimeUnit.NANOSECONDS.toMillis(firstFrame) + " ms",
+                firstFrame <= TimeUnit.MILLISECONDS.toNanos(FIRST_FRAME_BUDGET_MS));
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The steps of a start, marked once each and recorded in the metrics
+ * whether the registry comes before or after them.
+ */
+public class StartupTraceTest {
+
+    @Test
+    public void eachStep_isMarkedOnce() throws Exception {
+        StartupTrace trace = new StartupTrace(System.nanoTime());
+        assertEquals(-1, trace.get(StartupTrace.METRIC_ROUTE));
+
+        assertTrue(trace.mark(StartupTrace.METRIC_ROUTE));
+        long route = trace.get(StartupTrace.METRIC_ROUTE);
+        assertTrue(route >= 0);
+
+        // a rotation creates the screen again, it is not a start
+        Thread.sleep(2);
+        assertFalse(trace.mark(StartupTrace.METRIC_ROUTE));
+        assertEquals(route, trace.get(StartupTrace.METRIC_ROUTE));
+
+        assertTrue(trace.mark(StartupTrace.METRIC_FIRST_FRAME));
+        assertTrue(trace.get(StartupTrace.METRIC_FIRST_FRAME) >= route);
+        assertTrue(trace.toString().startsWith(StartupTrace.METRIC_ROUTE + " "));
+        assertTrue(trace.toString().contains(", " + StartupTrace.METRIC_FIRST_FRAME + " "));
+    }
+
+    @Test
+    public void stepsBeforeAndAfterTheRegistry_areRecorded() {
+        StartupTrace trace = new StartupTrace(System.nanoTime());
+        trace.mark(StartupTrace.METRIC_ROUTE);
+        trace.mark(StartupTrace.METRIC_FIRST_FRAME);
+
+        // the service and its registry come after the screen
+        MetricsRegistry metrics = new MetricsRegistry();
+        trace.setMetrics(metrics);
+        trace.setMetrics(metrics);
+        trace.mark(StartupTrace.METRIC_LISTENING);
+
+        assertEquals(1, metrics.histogram(StartupTrace.METRIC_ROUTE).getCount());
+        assertEquals(1, metrics.histogram(StartupTrace.METRIC_FIRST_FRAME).getCount());
+        assertEquals(1, metrics.histogram(StartupTrace.METRIC_LISTENING).getCount());
+        assertTrue(metrics.toJson().contains("\"" + StartupTrace.METRIC_LISTENING + "\""));
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.bluetoothchat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Incremental UTF-8 decoder for text that arrives in pieces.
+ *
+ * A multibyte character cut in two by a read boundary is kept back (at
+ * most three bytes) and finished with the start of the next piece, so it
+ * is decoded once instead of turning into two replacement characters.
+ * Bytes that are not UTF-8 become U+FFFD. The decoder and its output
+ * buffer are reused, so decoding allocates nothing once the buffer has
+ * grown to the largest piece. Not thread safe.
+ *
+ * The app does not need it: a chat frame holds a whole message. It is
+ * kept here as the baseline of {@link Utf8DecoderBenchmark}.
+ */
+final class Utf8Decoder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Longest UTF-8 sequence
+    private static final int MAX_SEQUENCE = 4;
+
+    private final CharsetDecoder decoder = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Start of a character whose remaining bytes have not arrived yet
+    private final byte[] carry = new byte[MAX_SEQUENCE];
+    private final ByteBuffer carryBuffer = ByteBuffer.wrap(carry);
+    private int carried;
+    private CharBuffer chars;
+
+    public Utf8Decoder() {
+        this(1024);
+    }
+
+    /**
+     * @param initialCapacity chars the output buffer starts with
+     */
+    public Utf8Decoder(int initialCapacity) {
+        chars = CharBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Decode the next piece of the text.
+     *
+     * @param endOfInput true if this is the last piece; an unfinished
+     *                   character at its end is replaced instead of kept
+     * @return the decoded characters, only valid until the next call
+     */
+    public CharBuffer decode(byte[] bytes, int offset, int length, boolean endOfInput) {
+        // Every byte decodes to at most one char: four byte sequences give
+        // a surrogate pair and every malformed byte one replacement
+        int needed = carried + length;
+        if (chars.capacity() < needed) {
+            chars = CharBuffer.allocate(Math.max(needed, chars.capacity() * 2));
+        }
+        chars.clear();
+
+        int end = offset + length;
+        // Finish the character left over from the last piece, a byte at a time
+        while (carried > 0 && offset < end) {
+            carry[carried++] = bytes[offset++];
+            carryBuffer.limit(carried).position(0);
+            decoder.decode(carryBuffer, chars, false);
+            int used = carryBuffer.position();
+            if (used > 0) {
+                // Complete, or malformed and replaced; keep whatever is left
+                System.arraycopy(carry, used, carry, 0, carried - used);
+                carried -= used;
+            }
+        }
+
+        if (offset < end) {
+            ByteBuffer in = ByteBuffer.wrap(bytes, offset, end - offset);
+            decoder.decode(in, chars, false);
+            carried = in.remaining();
+            in.get(carry, 0, carried);
+        }
+
+        if (endOfInput) {
+            carryBuffer.limit(carried).position(0);
+            decoder.decode(carryBuffer, chars, true);
+            decoder.flush(chars);
+            reset();
+        }
+        chars.flip();
+        return chars;
+    }
+
+    /**
+     * Decode one piece that holds the whole text, such as a chat frame.
+     */
+    public String decodeString(byte[] bytes, int offset, int length) {
+        return decode(bytes, offset, length, true).toString();
+    }
+
+    /**
+     * Bytes kept back from the last piece as the start of a character.
+     */
+    public int getPendingBytes() {
+        return carried;
+    }
+
+    /**
+     * Drop any partial character and start over, e.g. for a new connection.
+     */
+    public void reset() {
+        decoder.reset();
+        carried = 0;
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.bluetoothchat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Decodes a text stream that arrives in 1024 byte reads, the way the
+ * fragment used to (a String per read) and with
+ * {@link Utf8Decoder}, for ASCII, CJK and emoji heavy text. Reports
+ * throughput and how many characters each approach got wrong, and the
+ * cost of decoding whole 64 byte chat frames either way.
+ *
+ * Run with -Dbench.textBytes=N to change the size of each corpus.
+ */
+public class Utf8DecoderBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int TEXT_BYTES = Integer.getInteger("bench.textBytes", 4 * 1024 * 1024);
+    private static final int READ_SIZE = 1024;
+    private static final int ROUNDS = 5;
+
+    private static final String ASCII = "the quick brown fox jumps over the lazy dog, see you at 5? ";
+    private static final String CJK = "今日は天気がいいですね。明天见，我们在咖啡店碰头。안녕하세요 반갑습니다 ";
+    private static final String EMOJI = "ok 😀 see you 👍🏽 🎉🎉 lol 😂😂😂 on my way 🚗 ❤️ ";
+
+    @BeforeClass
+    public static void onlyWhenAsked() {
+        Benchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void streamDecoding() {
+        run("ascii", ASCII);
+        run("cjk", CJK);
+        run("emoji", EMOJI);
+    }
+
+    @Test
+    public void wholeFrames() {
+        wholeFrames("ascii", ASCII);
+        wholeFrames("cjk", CJK);
+        wholeFrames("emoji", EMOJI);
+    }
+
+    // chat frames already carry whole messages, so each one is decoded in one piece
+    private static void wholeFrames(String name, String alphabet) {
+        byte[] text = corpus(alphabet);
+        int messages = text.length / 64;
+        Utf8Decoder decoder = new Utf8Decoder();
+        long stringNanos = Long.MAX_VALUE;
+        long decoderNanos = Long.MAX_VALUE;
+        long sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                sink += new String(text, i * 64, 64, UTF_8).length();
+            }
+            stringNanos = Math.min(stringNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                sink += decoder.decodeString(text, i * 64, 64).length();
+            }
+            decoderNanos = Math.min(decoderNanos, System.nanoTime() - start);
+        }
+        Benchmarks.report(name + " String", messages, stringNanos, -1);
+        Benchmarks.report(name + " Utf8Decoder", messages, decoderNanos, -1);
+        if (sink == 0) {
+            System.out.println();
+        }
+    }
+
+    private static void run(String name, String alphabet) {
+        byte[] text = corpus(alphabet);
+        String expected = new String(text, UTF_8);
+        Utf8Decoder decoder = new Utf8Decoder(READ_SIZE);
+        long naiveNanos = Long.MAX_VALUE;
+        long streamNanos = Long.MAX_VALUE;
+        long naiveChars = 0;
+        long streamChars = 0;
+        int naiveErrors = 0;
+        int streamErrors = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            // what the MESSAGE_READ handler did with every raw read
+            StringBuilder naive = new StringBuilder(expected.length());
+            long start = System.nanoTime();
+            for (int off = 0; off < text.length; off += READ_SIZE) {
+                naive.append(new String(text, off, Math.min(READ_SIZE, text.length - off), UTF_8));
+            }
+            naiveNanos = Math.min(naiveNanos, System.nanoTime() - start);
+            naiveChars = naive.length();
+            naiveErrors = differences(expected, naive);
+
+            StringBuilder stream = new StringBuilder(expected.length());
+            start = System.nanoTime();
+            for (int off = 0; off < text.length; off += READ_SIZE) {
+                int length = Math.min(READ_SIZE, text.length - off);
+                CharBuffer chars = decoder.decode(text, off, length, off + length == text.length);
+                stream.append(chars);
+            }
+            streamNanos = Math.min(streamNanos, System.nanoTime() - start);
+            streamChars = stream.length();
+            streamErrors = differences(expected, stream);
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%-6s per-read String %7.1f MB/s, %,d chars, %,d wrong | Utf8Decoder %7.1f MB/s, %,d chars, %,d wrong",
+                name, text.length / 1e6 / (naiveNanos / 1e9), naiveChars, naiveErrors,
+                text.length / 1e6 / (streamNanos / 1e9), streamChars, streamErrors));
+    }
+
+    private static byte[] corpus(String alphabet) {
+        Random random = new Random(14);
+        StringBuilder sb = new StringBuilder(TEXT_BYTES);
+        int[] codePoints = new int[alphabet.codePointCount(0, alphabet.length())];
+        for (int i = 0, off = 0; i < codePoints.length; i++) {
+            codePoints[i] = alphabet.codePointAt(off);
+            off += Character.charCount(codePoints[i]);
+        }
+        int bytes = 0;
+        while (bytes < TEXT_BYTES) {
+            int cp = codePoints[random.nextInt(codePoints.length)];
+            sb.appendCodePoint(cp);
+            bytes += cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+        }
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    // replacement characters, plus any difference in length
+    private static int differences(String expected, CharSequence actual) {
+        int errors = Math.abs(expected.length() - actual.length());
+        for (int i = 0; i < actual.length(); i++) {
+            if (actual.charAt(i) == '�') {
+                errors++;
+            }
+        }
+        return errors;
+    }
+}
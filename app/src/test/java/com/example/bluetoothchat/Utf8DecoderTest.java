@@ -0,0 +1,58 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class Utf8DecoderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String MIXED = "héllo 你好 wörld 😀👍🏽 ok";
+
+    @Test
+    public void splitAtEveryBoundary_decodesIntact() {
+        byte[] bytes = MIXED.getBytes(UTF_8);
+        Utf8Decoder decoder = new Utf8Decoder(4);
+        for (int split = 0; split <= bytes.length; split++) {
+            StringBuilder out = new StringBuilder();
+            out.append(decoder.decode(bytes, 0, split, false));
+            out.append(decoder.decode(bytes, split, bytes.length - split, true));
+            assertEquals("split at " + split, MIXED, out.toString());
+            assertEquals(0, decoder.getPendingBytes());
+        }
+    }
+
+    @Test
+    public void oneByteAtATime_decodesIntact() {
+        byte[] bytes = MIXED.getBytes(UTF_8);
+        Utf8Decoder decoder = new Utf8Decoder(1);
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            out.append(decoder.decode(bytes, i, 1, i == bytes.length - 1));
+        }
+        assertEquals(MIXED, out.toString());
+    }
+
+    @Test
+    public void malformedBytes_areReplaced() {
+        Utf8Decoder decoder = new Utf8Decoder();
+        // a lone continuation byte, and a lead byte followed by ASCII
+        byte[] bytes = {'a', (byte) 0x80, 'b', (byte) 0xE4, 'c'};
+        assertEquals("a�b�c", decoder.decodeString(bytes, 0, bytes.length));
+
+        // the lead byte arrives in one piece, the ASCII in the next
+        assertEquals("x", decoder.decode(new byte[]{'x', (byte) 0xE4}, 0, 2, false).toString());
+        assertEquals(1, decoder.getPendingBytes());
+        assertEquals("�y", decoder.decode(new byte[]{'y'}, 0, 1, true).toString());
+    }
+
+    @Test
+    public void truncatedCharacterAtEnd_isReplaced() {
+        Utf8Decoder decoder = new Utf8Decoder();
+        byte[] emoji = "😀".getBytes(UTF_8);
+        assertEquals("�", decoder.decodeString(emoji, 0, 2));
+        // nothing carried into the next message
+        assertEquals("ok", decoder.decodeString("ok".getBytes(UTF_8), 0, 2));
+    }
+}